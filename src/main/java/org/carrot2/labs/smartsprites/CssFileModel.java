@@ -0,0 +1,208 @@
+package org.carrot2.labs.smartsprites;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.carrot2.labs.smartsprites.resource.ByteBufferResourceHandler;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.Ints;
+
+/**
+ * In-memory model of a single CSS file, built in one pass over the file's contents. The
+ * model holds the file's text, the offsets of its lines and the raw strings of all
+ * directives and SVG image rules found in the file, so that the later processing stages
+ * do not need to read the file again.
+ */
+public class CssFileModel
+{
+    /** A regular expression for extracting sprite image directives */
+    static final Pattern SPRITE_IMAGE_DIRECTIVE = Pattern
+        .compile("/\\*+\\s+(sprite:[^*]*)\\*+/");
+
+    /** A regular expression for extracting sprite reference directives */
+    static final Pattern SPRITE_REFERENCE_DIRECTIVE = Pattern
+        .compile("/\\*+\\s+(sprite-ref:[^*]*)\\*+/");
+
+    /** Regular expressions for the SVG sprite image definitions and image rules */
+    private static final Pattern DEF_SVG_SPRITE_IMAGE = Pattern
+        .compile(SvgSpriteBuilder.DEF_SVG_SPRITE_IMAGE_REGEX);
+    private static final Pattern ANY_SVG_IMAGE = Pattern
+        .compile(SvgSpriteBuilder.ANY_SVG_IMAGE_REGEX);
+
+    /** Marker every sprite image and sprite reference directive contains */
+    private static final String DIRECTIVE_MARKER = "sprite";
+
+    /** Path of the CSS file, as provided to the builder */
+    public final String path;
+
+    /** Full text of the CSS file */
+    public final String content;
+
+    /** Start and end (exclusive, without the line terminator) offsets of each line */
+    private final int [] lineStarts;
+    private final int [] lineEnds;
+
+    /** Sprite image directive strings, keyed by the 0-based line number */
+    public final Map<Integer, String> spriteImageDirectives;
+
+    /** Sprite reference directive strings, keyed by the 0-based line number */
+    public final Map<Integer, String> spriteReferenceDirectives;
+
+    /** SVG sprite image definitions (<code>svg-sprite-image: url(...);</code>) */
+    public final List<String> svgSpriteImageDefinitions;
+
+    /** Rules referring to SVG images, including the comments following them */
+    public final List<String> svgImageRules;
+
+    /**
+     * Creates a model of the provided CSS text.
+     */
+    public CssFileModel(String path, String content)
+    {
+        this.path = path;
+        this.content = content;
+
+        final List<Integer> starts = Lists.newArrayList();
+        final List<Integer> ends = Lists.newArrayList();
+        final Map<Integer, String> imageDirectives = Maps.newLinkedHashMap();
+        final Map<Integer, String> referenceDirectives = Maps.newLinkedHashMap();
+
+        final Matcher imageMatcher = SPRITE_IMAGE_DIRECTIVE.matcher(content);
+        final Matcher referenceMatcher = SPRITE_REFERENCE_DIRECTIVE.matcher(content);
+
+        // Lines are split in the same way as BufferedReader.readLine() does
+        final int length = content.length();
+        int start = 0;
+        int markerIndex = content.indexOf(DIRECTIVE_MARKER);
+        while (start < length)
+        {
+            int end = start;
+            while (end < length && content.charAt(end) != '\n'
+                && content.charAt(end) != '\r')
+            {
+                end++;
+            }
+
+            final int lineNumber = starts.size();
+            starts.add(start);
+            ends.add(end);
+
+            if (markerIndex >= 0 && markerIndex < start)
+            {
+                markerIndex = content.indexOf(DIRECTIVE_MARKER, start);
+            }
+            if (markerIndex >= 0 && markerIndex < end)
+            {
+                final String imageDirective = find(imageMatcher, start, end);
+                if (imageDirective != null)
+                {
+                    imageDirectives.put(lineNumber, imageDirective);
+                }
+
+                final String referenceDirective = find(referenceMatcher, start, end);
+                if (referenceDirective != null)
+                {
+                    referenceDirectives.put(lineNumber, referenceDirective);
+                }
+            }
+
+            if (end < length && content.charAt(end) == '\r' && end + 1 < length
+                && content.charAt(end + 1) == '\n')
+            {
+                end++;
+            }
+            start = end + 1;
+        }
+
+        this.lineStarts = Ints.toArray(starts);
+        this.lineEnds = Ints.toArray(ends);
+        this.spriteImageDirectives = Collections.unmodifiableMap(imageDirectives);
+        this.spriteReferenceDirectives = Collections.unmodifiableMap(referenceDirectives);
+
+        this.svgSpriteImageDefinitions = content.contains("svg-sprite-image") ? findAll(
+            DEF_SVG_SPRITE_IMAGE, content) : Collections.<String> emptyList();
+        this.svgImageRules = content.contains(".svg") ? findAll(ANY_SVG_IMAGE, content)
+            : Collections.<String> emptyList();
+    }
+
+    /**
+     * Reads the provided CSS file using the resource handler and builds its model.
+     */
+    public static CssFileModel read(String path, ResourceHandler resourceHandler)
+        throws IOException
+    {
+        if (resourceHandler instanceof ByteBufferResourceHandler)
+        {
+            return new CssFileModel(path, ((ByteBufferResourceHandler) resourceHandler)
+                .getResourceAsCharBuffer(path).toString());
+        }
+
+        final Reader reader = resourceHandler.getResourceAsReader(path);
+        try
+        {
+            return new CssFileModel(path, CharStreams.toString(reader));
+        }
+        finally
+        {
+            Closeables.close(reader, true);
+        }
+    }
+
+    /**
+     * Returns the number of lines in this file.
+     */
+    public int getLineCount()
+    {
+        return lineStarts.length;
+    }
+
+    /**
+     * Returns the text of the provided 0-based line, without the line terminator.
+     */
+    public String getLine(int lineNumber)
+    {
+        return content.substring(lineStarts[lineNumber], lineEnds[lineNumber]);
+    }
+
+    /**
+     * Returns the offset in {@link #content} at which the provided 0-based line starts.
+     */
+    public int getLineOffset(int lineNumber)
+    {
+        return lineStarts[lineNumber];
+    }
+
+    private static String find(Matcher matcher, int start, int end)
+    {
+        matcher.region(start, end);
+        if (matcher.find())
+        {
+            return matcher.group(1).trim();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    private static List<String> findAll(Pattern pattern, String content)
+    {
+        final List<String> matches = Lists.newArrayList();
+        final Matcher matcher = pattern.matcher(content);
+        while (matcher.find())
+        {
+            matches.add(matcher.group());
+        }
+        return Collections.unmodifiableList(matches);
+    }
+}
@@ -0,0 +1,272 @@
+package org.carrot2.labs.smartsprites;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.carrot2.labs.smartsprites.resource.ByteBufferResourceHandler;
+import org.carrot2.labs.smartsprites.resource.FileSystemResourceHandler;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+import org.carrot2.util.FileUtils;
+import org.carrot2.util.ImageUtils;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * A size-bounded cache of decoded source images. Images loaded through the
+ * {@link FileSystemResourceHandler} are keyed by their canonical path, size and last
+ * modification time, images loaded through other resource handlers are keyed by their
+ * path and the md5 hash of their contents. When the total size of the decoded images
+ * exceeds the budget, the least recently used images are evicted. This class is
+ * thread-safe, concurrent requests for the same image decode it only once.
+ */
+public class DecodedImageCache
+{
+    /** The underlying cache, <code>null</code> if caching is disabled */
+    private final Cache<ImageKey, Optional<BufferedImage>> cache;
+
+    /**
+     * Numbers of requests and decoded images. We don't rely on the underlying cache's
+     * statistics, which count a request waiting for another thread's decoding as a miss.
+     */
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+
+    /**
+     * Creates a cache holding decoded images of the provided total size in bytes. If the
+     * size is not positive, images are decoded on each request and not cached.
+     */
+    public DecodedImageCache(long maxBytes)
+    {
+        if (maxBytes > 0)
+        {
+            // A single segment, so that the budget and the LRU order are global
+            this.cache = CacheBuilder.newBuilder().concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<ImageKey, Optional<BufferedImage>>()
+                {
+                    public int weigh(ImageKey key, Optional<BufferedImage> image)
+                    {
+                        return image.isPresent() ? getSizeInBytes(image.get()) : 1;
+                    }
+                }).recordStats().build();
+        }
+        else
+        {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Returns the decoded image for the provided path, decoding it if needed.
+     *
+     * @return the image or <code>null</code> if the image format is not supported
+     * @throws IOException if the image could not be read
+     */
+    public BufferedImage get(final String path, final ResourceHandler resourceHandler)
+        throws IOException
+    {
+        if (cache == null)
+        {
+            requests.incrementAndGet();
+            decodes.incrementAndGet();
+            return decode(path, resourceHandler);
+        }
+
+        final ImageKey key;
+        final ByteBuffer content;
+        if (resourceHandler instanceof FileSystemResourceHandler)
+        {
+            final File file = FileUtils.getCanonicalOrAbsoluteFile(path);
+            if (!file.isFile())
+            {
+                throw new FileNotFoundException(path);
+            }
+            key = new ImageKey(file.getPath(), file.length() + "/" + file.lastModified());
+            content = null;
+        }
+        else
+        {
+            content = read(path, resourceHandler);
+            key = new ImageKey(path, SpriteBuildManifest.md5(content));
+        }
+
+        requests.incrementAndGet();
+        try
+        {
+            return cache.get(key, new Callable<Optional<BufferedImage>>()
+            {
+                public Optional<BufferedImage> call() throws IOException
+                {
+                    decodes.incrementAndGet();
+                    return Optional.fromNullable(content != null ? ImageUtils
+                        .read(content) : decode(path, resourceHandler));
+                }
+            }).orNull();
+        }
+        catch (ExecutionException e)
+        {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Discards all cached images loaded from the provided path.
+     */
+    public void invalidate(String path)
+    {
+        if (cache == null)
+        {
+            return;
+        }
+
+        final String canonicalPath = FileUtils.getCanonicalOrAbsoluteFile(path).getPath();
+        for (Iterator<ImageKey> it = cache.asMap().keySet().iterator(); it.hasNext();)
+        {
+            final ImageKey key = it.next();
+            if (key.path.equals(path) || key.path.equals(canonicalPath))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards all cached images.
+     */
+    public void invalidateAll()
+    {
+        if (cache != null)
+        {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     */
+    public long getHitCount()
+    {
+        return requests.get() - decodes.get();
+    }
+
+    /**
+     * Returns the number of requests that required decoding an image.
+     */
+    public long getMissCount()
+    {
+        return decodes.get();
+    }
+
+    /**
+     * Returns the number of images evicted from the cache due to the size limit.
+     */
+    public long getEvictionCount()
+    {
+        return cache != null ? cache.stats().evictionCount() : 0;
+    }
+
+    /**
+     * Returns the number of images currently in the cache.
+     */
+    public long size()
+    {
+        return cache != null ? cache.size() : 0;
+    }
+
+    private static BufferedImage decode(String path, ResourceHandler resourceHandler)
+        throws IOException
+    {
+        return ImageUtils.read(read(path, resourceHandler));
+    }
+
+    /**
+     * Reads the whole image file, so that it can be decoded without the temporary file
+     * {@link ImageIO} may cache streams in.
+     */
+    private static ByteBuffer read(String path, ResourceHandler resourceHandler)
+        throws IOException
+    {
+        if (resourceHandler instanceof ByteBufferResourceHandler)
+        {
+            return ((ByteBufferResourceHandler) resourceHandler)
+                .getResourceAsByteBuffer(path);
+        }
+
+        final InputStream is = resourceHandler.getResourceAsInputStream(path);
+        if (is == null)
+        {
+            throw new FileNotFoundException(path);
+        }
+
+        try
+        {
+            return ByteBuffer.wrap(ByteStreams.toByteArray(is));
+        }
+        finally
+        {
+            Closeables.close(is, true);
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes the image's pixels occupy in memory.
+     */
+    static int getSizeInBytes(BufferedImage image)
+    {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        final long bytes = (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+            * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Identifies a specific version of an image file.
+     */
+    private static final class ImageKey
+    {
+        final String path;
+        final String version;
+
+        ImageKey(String path, String version)
+        {
+            this.path = path;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ImageKey))
+            {
+                return false;
+            }
+            final ImageKey other = (ImageKey) obj;
+            return path.equals(other.path) && version.equals(other.version);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(path, version);
+        }
+    }
+}
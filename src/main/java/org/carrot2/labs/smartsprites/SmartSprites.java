@@ -44,7 +44,14 @@ public class SmartSprites
         // Get parameters form system properties
         final MessageLog messageLog = new MessageLog(new PrintStreamMessageSink(
             System.out, parameters.getLogLevel()));
-        new SpriteBuilder(parameters, messageLog).buildSprites();
+        if (parameters.isWatch())
+        {
+            new SpriteBuildWatcher(parameters, messageLog).watch();
+        }
+        else
+        {
+            new SpriteBuilder(parameters, messageLog).buildSprites();
+        }
     }
 
     private static void printUsage(final CmdLineParser parser)
@@ -8,10 +8,14 @@ import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.util.FileUtils;
+import org.carrot2.util.PngEncoder;
+import org.carrot2.util.PngEncoder.Filter;
 import org.carrot2.util.StringUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import com.google.common.collect.Lists;
+
 /**
  * Contains invocation parameters for SmartSprites, provides methods for validating the
  * parameters.
@@ -131,6 +135,42 @@ public final class SmartSpritesParameters
     @Option(name = "--sprite-png-ie6")
     private boolean spritePngIe6;
 
+    /**
+     * The color quantization engine to use when sprites need to be saved in indexed color
+     * with quality loss. Can be overridden for individual sprites by the
+     * <code>sprite-quantizer</code> property of the sprite image directive.
+     */
+    @Option(name = "--sprite-quantizer")
+    private SpriteQuantizer spriteQuantizer = DEFAULT_SPRITE_QUANTIZER;
+
+    /**
+     * The writer to use for PNG sprite images: the Image I/O one or the built-in
+     * {@link PngEncoder}, which supports the compression options below.
+     */
+    @Option(name = "--sprite-png-encoder")
+    private SpritePngEncoder spritePngEncoder = DEFAULT_SPRITE_PNG_ENCODER;
+
+    /**
+     * Deflate level of PNG sprite images written by the built-in encoder, from 1
+     * (fastest) to 9 (smallest files).
+     */
+    @Option(name = "--sprite-png-compression-level", metaVar = "1-9")
+    private int spritePngCompressionLevel = DEFAULT_SPRITE_PNG_COMPRESSION_LEVEL;
+
+    /**
+     * Row filter of PNG sprite images written by the built-in encoder.
+     */
+    @Option(name = "--sprite-png-filter")
+    private Filter spritePngFilter = DEFAULT_SPRITE_PNG_FILTER;
+
+    /**
+     * Number of blocks of rows of a PNG sprite image that the built-in encoder
+     * compresses concurrently. Files written with parallelism larger than 1 are
+     * slightly larger.
+     */
+    @Option(name = "--sprite-png-deflate-parallelism", metaVar = "N")
+    private int spritePngDeflateParallelism = DEFAULT_SPRITE_PNG_DEFLATE_PARALLELISM;
+
     /**
      * If <code>true</code>, SmartSprites will generate the sprite directive indicating
      * that the image is a sprite image.
@@ -138,6 +178,86 @@ public final class SmartSpritesParameters
     @Option(name = "--mark-sprite-images")
     private boolean markSpriteImages;
 
+    /**
+     * Number of worker threads to use when building sprite images. Sprite images with
+     * different ids are independent of each other, so with more than one thread they
+     * will be loaded, laid out, rendered and written concurrently. The results and the
+     * order of logged messages are the same as with a single thread.
+     */
+    @Option(name = "--sprite-build-threads", metaVar = "N")
+    private int spriteBuildThreads = DEFAULT_SPRITE_BUILD_THREADS;
+
+    /**
+     * Number of concurrent stripes of rows in which pixels of a single sprite image are
+     * matted and mapped to palette colors during color reduction and quantization, also
+     * the number of pixel densities of a multi-resolution sprite image rendered
+     * concurrently. The resulting images are the same as with a single stripe.
+     */
+    @Option(name = "--pixel-parallelism", metaVar = "N")
+    private int pixelParallelism = DEFAULT_PIXEL_PARALLELISM;
+
+    /**
+     * Path to the build manifest file. If provided, SmartSprites records the inputs and
+     * outputs of each sprite image in the manifest and skips rebuilding sprite images
+     * whose inputs have not changed since the previous run.
+     */
+    @Option(name = "--build-manifest-path", metaVar = "PATH")
+    private String buildManifestPath;
+
+    /**
+     * Path to the usage profile file, mapping pages or routes to the individual images
+     * they use. If provided, the references of each sprite are split between sprite
+     * images used by the same routes, so that pages download only the sprite images with
+     * the images they use, see {@link UsageProfile}.
+     */
+    @Option(name = "--usage-profile-path", metaVar = "PATH")
+    private String usageProfilePath;
+
+    /**
+     * If <code>true</code>, the number of sprite image bytes each route of the usage
+     * profile needs with and without splitting sprites by usage is logged. Measuring the
+     * size without splitting builds each split sprite once more, without writing it.
+     */
+    @Option(name = "--report-usage-savings")
+    private boolean reportUsageSavings = DEFAULT_REPORT_USAGE_SAVINGS;
+
+    /**
+     * Memory budget, in megabytes, for decoded source images. Images referenced more than
+     * once, from different CSS rules or sprites, are decoded only once as long as they
+     * fit in the budget; the least recently used images are evicted first. Set to 0 to
+     * disable caching.
+     */
+    @Option(name = "--image-cache-size", metaVar = "MB")
+    private int imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+
+    /**
+     * If <code>true</code>, sprite images are composed without holding all individual
+     * images in memory: the layout is computed from image headers, then each individual
+     * image is decoded and drawn directly onto the sprite image. Use with a small
+     * {@link #imageCacheSize} to build very large sprites with limited heap. Identical
+     * images stored in different files are not merged into one sprite region in this
+     * mode.
+     */
+    @Option(name = "--streaming-composition")
+    private boolean streamingComposition = DEFAULT_STREAMING_COMPOSITION;
+
+    /**
+     * If <code>true</code>, sprite images and processed CSS files whose content is the
+     * same as the content of the existing files are not rewritten, so that their
+     * modification times do not change. Each output is reported as either written or
+     * unchanged.
+     */
+    @Option(name = "--skip-unchanged-outputs")
+    private boolean skipUnchangedOutputs = DEFAULT_SKIP_UNCHANGED_OUTPUTS;
+
+    /**
+     * If <code>true</code>, after the initial build SmartSprites keeps watching the root
+     * directory and the document root directory and rebuilds only the sprite images and
+     * CSS files affected by each change. Available from the command line only.
+     */
+    @Option(name = "--watch")
+    private boolean watch;
+
     /** The default suffix to be added to the generated CSS files. */
     public static final String DEFAULT_CSS_FILE_SUFFIX = "-sprite";
 
@@ -147,6 +267,21 @@ public final class SmartSpritesParameters
     /** By default, we don't generate separate sprites for IE6 */
     public static final boolean DEFAULT_SPRITE_PNG_IE6 = false;
 
+    /** By default, we use the original octree quantizer */
+    public static final SpriteQuantizer DEFAULT_SPRITE_QUANTIZER = SpriteQuantizer.OCTREE;
+
+    /** By default, we write PNG sprites with Image I/O */
+    public static final SpritePngEncoder DEFAULT_SPRITE_PNG_ENCODER = SpritePngEncoder.IMAGEIO;
+
+    /** By default, the built-in PNG encoder balances speed and size */
+    public static final int DEFAULT_SPRITE_PNG_COMPRESSION_LEVEL = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
+
+    /** By default, the built-in PNG encoder chooses a filter for each row */
+    public static final Filter DEFAULT_SPRITE_PNG_FILTER = Filter.ADAPTIVE;
+
+    /** By default, PNG sprite images are compressed in one block */
+    public static final int DEFAULT_SPRITE_PNG_DEFLATE_PARALLELISM = 1;
+
     /** By default, we'll assume CSS files are UTF-8 encoded */
     public static final String DEFAULT_CSS_FILE_ENCODING = "UTF-8";
 
@@ -158,6 +293,24 @@ public final class SmartSpritesParameters
 
     public static final String DEFAULT_SPRITE_DIR_PATH = "";
 
+    /** By default, sprite images are built one after another */
+    public static final int DEFAULT_SPRITE_BUILD_THREADS = 1;
+
+    /** By default, pixels of sprite images are processed in the sprite build thread */
+    public static final int DEFAULT_PIXEL_PARALLELISM = 1;
+
+    /** By default, up to 64 MB of decoded source images are cached */
+    public static final int DEFAULT_IMAGE_CACHE_SIZE = 64;
+
+    /** By default, all individual images of a sprite are composed in memory */
+    public static final boolean DEFAULT_STREAMING_COMPOSITION = false;
+
+    /** By default, all outputs are rewritten */
+    public static final boolean DEFAULT_SKIP_UNCHANGED_OUTPUTS = false;
+
+    /** By default, the savings of splitting sprites by usage are not measured */
+    public static final boolean DEFAULT_REPORT_USAGE_SAVINGS = false;
+
     /** The default suffix to be added to the generated sprite files. */
     public static final String DEFAULT_SPRITE_FILE_SUFFIX = "-sprite";
 
@@ -166,6 +319,69 @@ public final class SmartSpritesParameters
         AUTO, INDEXED, DIRECT;
     }
 
+    /**
+     * Writers of PNG sprite images.
+     */
+    public enum SpritePngEncoder
+    {
+        /** The PNG writer of {@link javax.imageio.ImageIO} with its default settings */
+        IMAGEIO,
+
+        /** See {@link PngEncoder} */
+        BUILTIN;
+    }
+
+    /**
+     * Color quantization engines, see {@link org.carrot2.util.QuantizationEngine}.
+     */
+    public enum SpriteQuantizer
+    {
+        /** The octree quantizer from {@link amd.Quantize} */
+        OCTREE,
+
+        /**
+         * The same octree algorithm working on flat arrays, see
+         * {@link org.carrot2.util.FlatOctreeQuantizer}
+         */
+        FLAT_OCTREE,
+
+        /** See {@link org.carrot2.util.MedianCutQuantizer} */
+        MEDIAN_CUT,
+
+        /** See {@link org.carrot2.util.KMeansQuantizer} */
+        KMEANS;
+
+        private String value;
+
+        private SpriteQuantizer()
+        {
+            this.value = name().toLowerCase().replace('_', '-');
+        }
+
+        @Override
+        public String toString()
+        {
+            return value;
+        }
+
+        /**
+         * Returns the quantizer with the provided name, accepting both the CSS-style
+         * lower case names with hyphens and the constant names.
+         *
+         * @throws IllegalArgumentException if no quantizer with this name exists
+         */
+        public static SpriteQuantizer getValue(String value)
+        {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+
+        public static String valuesAsString()
+        {
+            final String list = Lists.newArrayList(values()).toString();
+            return list.substring(1, list.length() - 1);
+        }
+    }
+
     /**
      * Creates the parameters with default options and null root dir, before root dir is
      * set, the parameters are invalid.
@@ -305,6 +521,39 @@ public final class SmartSpritesParameters
             valid = false;
         }
 
+        if (spriteBuildThreads < 1)
+        {
+            log.error(MessageType.SPRITE_BUILD_THREADS_MUST_BE_POSITIVE,
+                spriteBuildThreads);
+            valid = false;
+        }
+
+        if (pixelParallelism < 1)
+        {
+            log.error(MessageType.PIXEL_PARALLELISM_MUST_BE_POSITIVE, pixelParallelism);
+            valid = false;
+        }
+
+        if (spritePngCompressionLevel < 1 || spritePngCompressionLevel > 9)
+        {
+            log.error(MessageType.SPRITE_PNG_COMPRESSION_LEVEL_OUT_OF_RANGE,
+                spritePngCompressionLevel);
+            valid = false;
+        }
+
+        if (spritePngDeflateParallelism < 1)
+        {
+            log.error(MessageType.SPRITE_PNG_DEFLATE_PARALLELISM_MUST_BE_POSITIVE,
+                spritePngDeflateParallelism);
+            valid = false;
+        }
+
+        if (imageCacheSize < 0)
+        {
+            log.error(MessageType.IMAGE_CACHE_SIZE_MUST_NOT_BE_NEGATIVE, imageCacheSize);
+            valid = false;
+        }
+
 
         return valid;
     }
@@ -435,4 +684,154 @@ public final class SmartSpritesParameters
     {
         return cssFileEncoding;
     }
-}
\ No newline at end of file
+
+    public int getSpriteBuildThreads()
+    {
+        return spriteBuildThreads;
+    }
+
+    public void setSpriteBuildThreads(int spriteBuildThreads)
+    {
+        this.spriteBuildThreads = spriteBuildThreads;
+    }
+
+    public int getPixelParallelism()
+    {
+        return pixelParallelism;
+    }
+
+    public void setPixelParallelism(int pixelParallelism)
+    {
+        this.pixelParallelism = pixelParallelism;
+    }
+
+    public String getBuildManifestPath()
+    {
+        return buildManifestPath;
+    }
+
+    public boolean hasBuildManifestPath()
+    {
+        return StringUtils.isNotBlank(buildManifestPath);
+    }
+
+    public void setBuildManifestPath(String buildManifestPath)
+    {
+        this.buildManifestPath = buildManifestPath;
+    }
+
+    public String getUsageProfilePath()
+    {
+        return usageProfilePath;
+    }
+
+    public boolean hasUsageProfilePath()
+    {
+        return StringUtils.isNotBlank(usageProfilePath);
+    }
+
+    public void setUsageProfilePath(String usageProfilePath)
+    {
+        this.usageProfilePath = usageProfilePath;
+    }
+
+    public boolean isReportUsageSavings()
+    {
+        return reportUsageSavings;
+    }
+
+    public void setReportUsageSavings(boolean reportUsageSavings)
+    {
+        this.reportUsageSavings = reportUsageSavings;
+    }
+
+    public int getImageCacheSize()
+    {
+        return imageCacheSize;
+    }
+
+    public void setImageCacheSize(int imageCacheSize)
+    {
+        this.imageCacheSize = imageCacheSize;
+    }
+
+    public SpriteQuantizer getSpriteQuantizer()
+    {
+        return spriteQuantizer;
+    }
+
+    public void setSpriteQuantizer(SpriteQuantizer spriteQuantizer)
+    {
+        this.spriteQuantizer = spriteQuantizer;
+    }
+
+    public SpritePngEncoder getSpritePngEncoder()
+    {
+        return spritePngEncoder;
+    }
+
+    public void setSpritePngEncoder(SpritePngEncoder spritePngEncoder)
+    {
+        this.spritePngEncoder = spritePngEncoder;
+    }
+
+    public int getSpritePngCompressionLevel()
+    {
+        return spritePngCompressionLevel;
+    }
+
+    public void setSpritePngCompressionLevel(int spritePngCompressionLevel)
+    {
+        this.spritePngCompressionLevel = spritePngCompressionLevel;
+    }
+
+    public Filter getSpritePngFilter()
+    {
+        return spritePngFilter;
+    }
+
+    public void setSpritePngFilter(Filter spritePngFilter)
+    {
+        this.spritePngFilter = spritePngFilter;
+    }
+
+    public int getSpritePngDeflateParallelism()
+    {
+        return spritePngDeflateParallelism;
+    }
+
+    public void setSpritePngDeflateParallelism(int spritePngDeflateParallelism)
+    {
+        this.spritePngDeflateParallelism = spritePngDeflateParallelism;
+    }
+
+    public boolean isStreamingComposition()
+    {
+        return streamingComposition;
+    }
+
+    public void setStreamingComposition(boolean streamingComposition)
+    {
+        this.streamingComposition = streamingComposition;
+    }
+
+    public boolean isSkipUnchangedOutputs()
+    {
+        return skipUnchangedOutputs;
+    }
+
+    public void setSkipUnchangedOutputs(boolean skipUnchangedOutputs)
+    {
+        this.skipUnchangedOutputs = skipUnchangedOutputs;
+    }
+
+    public boolean isWatch()
+    {
+        return watch;
+    }
+
+    public void setWatch(boolean watch)
+    {
+        this.watch = watch;
+    }
+}
@@ -0,0 +1,710 @@
+package org.carrot2.labs.smartsprites;
+
+import java.awt.Color;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.ByteBufferResourceHandler;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+import org.carrot2.util.FileUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * A persistent record of the inputs and outputs of the sprite images built in the
+ * previous run, used to skip rebuilding sprite images whose inputs have not changed. For
+ * each sprite id, the manifest stores a hash of the sprite image directive, the sprite
+ * reference directives, the contents of all referenced images and the relevant
+ * {@link SmartSpritesParameters}, the md5 hashes of the written sprite image files and
+ * the data needed to replay the {@link SpriteReferenceReplacement}s without rendering the
+ * sprite again.
+ * <p>
+ * The manifest is stored as a UTF-8 encoded properties file. Entries of one sprite can
+ * be recorded concurrently with entries of other sprites.
+ */
+public class SpriteBuildManifest
+{
+    /** Version of the manifest format, changing it invalidates all stored entries */
+    private static final String FORMAT_VERSION = "1";
+
+    /** Manifest charset */
+    private static final Charset CHARSET = Charsets.UTF_8;
+
+    /** Separates the sprite id from the property name in keys */
+    private static final char KEY_SEPARATOR = '/';
+
+    private static final String INPUTS = "inputs";
+    private static final String WIDTH = "width";
+    private static final String HEIGHT = "height";
+    private static final String RESOLVED_PATH = "resolvedPath";
+    private static final String RESOLVED_PATH_IE6 = "resolvedPathIe6";
+    private static final String RESOLVED_PATH_RESOLUTION = "resolvedPath@";
+    private static final char RESOLVED_PATH_FORMAT = '.';
+    private static final String OUTPUTS = "outputs";
+    private static final String OUTPUT = "output.";
+    private static final String REFERENCE = "reference.";
+    private static final String HORIZONTAL_POSITION = ".horizontalPosition";
+    private static final String HORIZONTAL_POSITION_STRING = ".horizontal";
+    private static final String VERTICAL_POSITION = ".verticalPosition";
+    private static final String VERTICAL_POSITION_STRING = ".vertical";
+    private static final String MD5 = ".md5";
+
+    /** Entries loaded from the manifest file */
+    private final Properties previous;
+
+    /** Entries of the sprites processed in the current run */
+    private final Properties current = new Properties();
+
+    /**
+     * Digests of image and sprite files, keyed by normalized path, <code>null</code> if
+     * digests are computed on each use.
+     */
+    private final ConcurrentMap<String, String> fileDigests;
+
+    private SpriteBuildManifest(Properties previous,
+        ConcurrentMap<String, String> fileDigests)
+    {
+        this.previous = previous;
+        this.fileDigests = fileDigests;
+    }
+
+    /**
+     * Creates an empty manifest that retains file digests, see
+     * {@link #retainingFileDigests()}.
+     */
+    static SpriteBuildManifest empty()
+    {
+        return new SpriteBuildManifest(new Properties(),
+            new ConcurrentHashMap<String, String>());
+    }
+
+    /**
+     * Returns a manifest with the same previous entries that keeps the digests of the
+     * files it reads in memory, for use in long-running processes that
+     * {@link #invalidate(String) invalidate} the digests of the files that change.
+     */
+    SpriteBuildManifest retainingFileDigests()
+    {
+        return new SpriteBuildManifest(previous, new ConcurrentHashMap<String, String>());
+    }
+
+    /**
+     * Returns a manifest for the next run in the same process, whose previous entries
+     * are the entries recorded in this manifest's run. Retained file digests are carried
+     * over.
+     */
+    SpriteBuildManifest next()
+    {
+        final Properties entries = new Properties();
+        entries.putAll(current);
+        return new SpriteBuildManifest(entries, fileDigests);
+    }
+
+    /**
+     * Discards the retained digest of the provided file, if any.
+     */
+    void invalidate(String path)
+    {
+        if (fileDigests != null)
+        {
+            fileDigests.remove(FileUtils.getNormalizedAbsolutePath(path));
+        }
+    }
+
+    /**
+     * Returns paths of all files written in the current run or replayed from the
+     * previous one.
+     */
+    Set<String> getOutputs()
+    {
+        final Set<String> outputs = Sets.newHashSet();
+        for (String name : current.stringPropertyNames())
+        {
+            if (name.endsWith(MD5))
+            {
+                outputs.add(current.getProperty(name.substring(0,
+                    name.length() - MD5.length())));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Loads the manifest from the provided path. If the manifest does not exist or
+     * cannot be read, an empty manifest is returned.
+     */
+    static SpriteBuildManifest load(String path, ResourceHandler resourceHandler,
+        MessageLog messageLog)
+    {
+        final Properties properties = new Properties();
+        InputStream is = null;
+        try
+        {
+            is = resourceHandler.getResourceAsInputStream(path);
+            if (is != null)
+            {
+                final Reader reader = new InputStreamReader(is, CHARSET);
+                properties.load(reader);
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            // No manifest yet, all sprites will be built
+        }
+        catch (IOException e)
+        {
+            messageLog.warning(MessageType.CANNOT_READ_BUILD_MANIFEST, path,
+                e.getMessage());
+            properties.clear();
+        }
+        finally
+        {
+            Closeables.closeQuietly(is);
+        }
+
+        if (!FORMAT_VERSION.equals(properties.getProperty("version")))
+        {
+            properties.clear();
+        }
+        return new SpriteBuildManifest(properties, null);
+    }
+
+    /**
+     * Saves the entries of the sprites processed in the current run to the provided
+     * path. Entries of sprites that were not processed are dropped.
+     */
+    void save(String path, ResourceHandler resourceHandler, MessageLog messageLog)
+    {
+        final Properties properties = new Properties();
+        properties.putAll(current);
+        properties.setProperty("version", FORMAT_VERSION);
+
+        // Sort the entries, so that the file does not change if the entries don't
+        final StringWriter stored = new StringWriter();
+        try
+        {
+            properties.store(stored, null);
+        }
+        catch (IOException e)
+        {
+            // Not thrown when writing to memory
+            throw new RuntimeException(e);
+        }
+        final List<String> lines = Lists.newArrayList();
+        for (String line : stored.toString().split("\r?\n"))
+        {
+            if (!line.startsWith("#") && line.length() > 0)
+            {
+                lines.add(line);
+            }
+        }
+        Collections.sort(lines);
+
+        try
+        {
+            final OutputStream os = resourceHandler.getResourceAsOutputStream(path);
+            try (Writer writer = new OutputStreamWriter(os, CHARSET))
+            {
+                writer.write("# SmartSprites build manifest, do not edit\n");
+                for (String line : lines)
+                {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            messageLog.warning(MessageType.CANNOT_WRITE_BUILD_MANIFEST, path,
+                e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the hash of all inputs of a sprite image. Returns <code>null</code> if any
+     * of the referenced images cannot be read, in which case the sprite image should be
+     * built in the regular way to report the problem.
+     */
+    String computeInputsHash(SmartSpritesParameters parameters,
+        SpriteImageOccurrence spriteImageOccurrence,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths, ResourceHandler resourceHandler)
+    {
+        final MessageDigest digest = newDigest();
+
+        final StringBuilder inputs = new StringBuilder();
+        appendParameters(inputs, parameters);
+        appendSpriteImageDirective(inputs, spriteImageOccurrence);
+        update(digest, inputs);
+
+        for (int i = 0; i < spriteReferenceOccurrences.size(); i++)
+        {
+            final SpriteReferenceOccurrence occurrence = spriteReferenceOccurrences.get(i);
+            final String imageMd5 = md5(realImagePaths.get(i), resourceHandler);
+            if (imageMd5 == null)
+            {
+                return null;
+            }
+
+            inputs.setLength(0);
+            inputs.append("reference:").append(realImagePaths.get(i)).append(';');
+            appendLayoutProperties(inputs,
+                occurrence.spriteReferenceDirective.spriteLayoutProperties);
+            inputs.append(imageMd5);
+
+            // Variants of other densities are optional, they can be resampled
+            for (int density : spriteImageOccurrence.spriteImageDirective.resolutions)
+            {
+                if (density != 1)
+                {
+                    final String variantMd5 = md5(SpriteImageBuilder
+                        .getResolutionVariantPath(realImagePaths.get(i), density),
+                        resourceHandler);
+                    inputs.append(';').append(variantMd5 != null ? variantMd5 : "");
+                }
+            }
+            update(digest, inputs);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the replacements recorded for a sprite image if the sprite image's inputs
+     * have not changed since the previous run and the sprite image files written in that
+     * run are still in place. Otherwise, returns <code>null</code>.
+     */
+    Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> replay(
+        String inputsHash, SpriteImageOccurrence spriteImageOccurrence,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        ResourceHandler resourceHandler)
+    {
+        final String prefix = prefix(spriteImageOccurrence);
+        if (inputsHash == null || !inputsHash.equals(previous.getProperty(prefix + INPUTS)))
+        {
+            return null;
+        }
+
+        try
+        {
+            // Make sure the outputs have not been removed or modified
+            final int outputs = Integer.parseInt(previous.getProperty(prefix + OUTPUTS));
+            for (int i = 0; i < outputs; i++)
+            {
+                final String output = previous.getProperty(prefix + OUTPUT + i);
+                if (!previous.getProperty(prefix + OUTPUT + i + MD5).equals(
+                    md5(output, resourceHandler)))
+                {
+                    return null;
+                }
+            }
+
+            final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> replacements = Maps
+                .newLinkedHashMap();
+            for (int i = 0; i < spriteReferenceOccurrences.size(); i++)
+            {
+                final String key = prefix + REFERENCE + i;
+                if (previous.getProperty(key + HORIZONTAL_POSITION) == null)
+                {
+                    // The image could not be added to the sprite in the previous run
+                    continue;
+                }
+
+                final SpriteReferenceOccurrence occurrence = spriteReferenceOccurrences
+                    .get(i);
+                final int horizontalPosition = Integer.parseInt(previous.getProperty(key
+                    + HORIZONTAL_POSITION));
+                final int verticalPosition = Integer.parseInt(previous.getProperty(key
+                    + VERTICAL_POSITION));
+                final SpriteReferenceReplacement replacement;
+                if (horizontalPosition < 0)
+                {
+                    replacement = new SpriteReferenceReplacement(occurrence,
+                        verticalPosition,
+                        previous.getProperty(key + HORIZONTAL_POSITION_STRING));
+                }
+                else if (verticalPosition >= 0)
+                {
+                    // An image in a packed sprite
+                    replacement = new SpriteReferenceReplacement(occurrence,
+                        horizontalPosition, verticalPosition);
+                }
+                else
+                {
+                    replacement = new SpriteReferenceReplacement(occurrence,
+                        previous.getProperty(key + VERTICAL_POSITION_STRING),
+                        horizontalPosition);
+                }
+                replacements.put(occurrence, replacement);
+            }
+
+            final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+            final int width = Integer.parseInt(previous.getProperty(prefix + WIDTH));
+            final int height = Integer.parseInt(previous.getProperty(prefix + HEIGHT));
+            final float scale = directive.hasResolutions() ? directive.resolutions.get(0)
+                : directive.scaleRatio;
+            final SpriteImage spriteImage = new SpriteImage(null, spriteImageOccurrence,
+                replacements, width, height, scale);
+            spriteImage.resolvedPath = previous.getProperty(prefix + RESOLVED_PATH);
+            spriteImage.resolvedPathIe6 = previous.getProperty(prefix + RESOLVED_PATH_IE6);
+            spriteImage.hasReducedForIe6 = spriteImage.resolvedPathIe6 != null;
+            if (!replayFormatVariants(prefix + RESOLVED_PATH, spriteImage))
+            {
+                return null;
+            }
+            for (int i = 1; i < directive.resolutions.size(); i++)
+            {
+                final int density = directive.resolutions.get(i);
+                final SpriteImage resolutionVariant = new SpriteImage(null,
+                    new SpriteImageOccurrence(directive.resolution(density),
+                        spriteImageOccurrence.cssFile, spriteImageOccurrence.line),
+                    Maps.<SpriteReferenceOccurrence, SpriteReferenceReplacement> newHashMap(),
+                    Math.round(width / scale * density),
+                    Math.round(height / scale * density), density);
+                resolutionVariant.resolvedPath = previous.getProperty(prefix
+                    + RESOLVED_PATH_RESOLUTION + density);
+                if (resolutionVariant.resolvedPath == null
+                    || !replayFormatVariants(prefix + RESOLVED_PATH_RESOLUTION + density,
+                        resolutionVariant))
+                {
+                    return null;
+                }
+                spriteImage.resolutionVariants.add(resolutionVariant);
+            }
+
+            // Carry the entries over to the manifest of the current run
+            for (String name : previous.stringPropertyNames())
+            {
+                if (name.startsWith(prefix))
+                {
+                    current.setProperty(name, previous.getProperty(name));
+                }
+            }
+
+            return replacements;
+        }
+        catch (RuntimeException e)
+        {
+            // Incomplete or malformed entries, build the sprite from scratch
+            return null;
+        }
+    }
+
+    /**
+     * Adds the recorded images in the alternative formats to the sprite image's
+     * {@link SpriteImage#formatVariants}, returns <code>false</code> if any of them is
+     * missing in the manifest.
+     */
+    private boolean replayFormatVariants(String key, SpriteImage spriteImage)
+    {
+        final SpriteImageOccurrence occurrence = spriteImage.spriteImageOccurrence;
+        final SpriteImageDirective directive = occurrence.spriteImageDirective;
+        for (SpriteImageFormat format : directive.alternativeFormats)
+        {
+            final SpriteImage formatVariant = new SpriteImage(null,
+                new SpriteImageOccurrence(directive.format(format), occurrence.cssFile,
+                    occurrence.line),
+                Maps.<SpriteReferenceOccurrence, SpriteReferenceReplacement> newHashMap(),
+                spriteImage.spriteWidth, spriteImage.spriteHeight, spriteImage.scaleRatio);
+            formatVariant.resolvedPath = previous.getProperty(key + RESOLVED_PATH_FORMAT
+                + format);
+            if (formatVariant.resolvedPath == null)
+            {
+                return false;
+            }
+            spriteImage.formatVariants.add(formatVariant);
+        }
+        return true;
+    }
+
+    /**
+     * Records a sprite image built in the current run.
+     *
+     * @param outputs md5 hashes of the written sprite image files, keyed by file path
+     */
+    void record(String inputsHash, SpriteImage spriteImage,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        Map<String, String> outputs)
+    {
+        if (inputsHash == null)
+        {
+            return;
+        }
+
+        final String prefix = prefix(spriteImage.spriteImageOccurrence);
+        final Properties entries = new Properties();
+        entries.setProperty(prefix + INPUTS, inputsHash);
+        entries.setProperty(prefix + WIDTH, Integer.toString(spriteImage.spriteWidth));
+        entries.setProperty(prefix + HEIGHT, Integer.toString(spriteImage.spriteHeight));
+        entries.setProperty(prefix + RESOLVED_PATH, spriteImage.resolvedPath);
+        if (spriteImage.hasReducedForIe6)
+        {
+            entries.setProperty(prefix + RESOLVED_PATH_IE6, spriteImage.resolvedPathIe6);
+        }
+        recordFormatVariants(entries, prefix + RESOLVED_PATH, spriteImage);
+        for (SpriteImage resolutionVariant : spriteImage.resolutionVariants)
+        {
+            if (resolutionVariant.resolvedPath != null)
+            {
+                final String key = prefix + RESOLVED_PATH_RESOLUTION
+                    + Math.round(resolutionVariant.scaleRatio);
+                entries.setProperty(key, resolutionVariant.resolvedPath);
+                recordFormatVariants(entries, key, resolutionVariant);
+            }
+        }
+
+        int output = 0;
+        for (Map.Entry<String, String> entry : outputs.entrySet())
+        {
+            entries.setProperty(prefix + OUTPUT + output, entry.getKey());
+            entries.setProperty(prefix + OUTPUT + output + MD5, entry.getValue());
+            if (fileDigests != null)
+            {
+                fileDigests.put(FileUtils.getNormalizedAbsolutePath(entry.getKey()),
+                    entry.getValue());
+            }
+            output++;
+        }
+        entries.setProperty(prefix + OUTPUTS, Integer.toString(output));
+
+        for (int i = 0; i < spriteReferenceOccurrences.size(); i++)
+        {
+            final SpriteReferenceReplacement replacement = spriteImage.spriteReferenceReplacements
+                .get(spriteReferenceOccurrences.get(i));
+            if (replacement == null)
+            {
+                continue;
+            }
+
+            final String key = prefix + REFERENCE + i;
+            entries.setProperty(key + HORIZONTAL_POSITION,
+                Integer.toString(replacement.horizontalPosition));
+            entries.setProperty(key + HORIZONTAL_POSITION_STRING,
+                replacement.horizontalPositionString);
+            entries.setProperty(key + VERTICAL_POSITION,
+                Integer.toString(replacement.verticalPosition));
+            entries.setProperty(key + VERTICAL_POSITION_STRING,
+                replacement.verticalPositionString);
+        }
+
+        current.putAll(entries);
+    }
+
+    /**
+     * Returns the md5 hash of the provided file or <code>null</code> if the file cannot
+     * be read. If the file digests are retained, the hash is computed only once until the
+     * file is {@link #invalidate(String) invalidated}.
+     */
+    private String md5(String path, ResourceHandler resourceHandler)
+    {
+        if (fileDigests == null)
+        {
+            return computeMd5(path, resourceHandler);
+        }
+
+        final String key = FileUtils.getNormalizedAbsolutePath(path);
+        String md5 = fileDigests.get(key);
+        if (md5 == null)
+        {
+            md5 = computeMd5(path, resourceHandler);
+            if (md5 != null)
+            {
+                fileDigests.put(key, md5);
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * Returns the md5 hash of the provided resource or <code>null</code> if the resource
+     * cannot be read.
+     */
+    static String computeMd5(String path, ResourceHandler resourceHandler)
+    {
+        if (resourceHandler instanceof ByteBufferResourceHandler)
+        {
+            try
+            {
+                return md5(((ByteBufferResourceHandler) resourceHandler)
+                    .getResourceAsByteBuffer(path));
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+
+        final MessageDigest digest = newDigest();
+        final byte [] buffer = new byte [8192];
+        InputStream is = null;
+        try
+        {
+            is = resourceHandler.getResourceAsInputStream(path);
+            if (is == null)
+            {
+                return null;
+            }
+            int read;
+            while ((read = is.read(buffer)) >= 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns the md5 hash of the provided bytes, in the format used by this manifest.
+     */
+    static String md5(byte [] bytes)
+    {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * Returns the md5 hash of the remaining bytes of the buffer, in the format used by
+     * this manifest. The position of the buffer is not changed.
+     */
+    static String md5(ByteBuffer buffer)
+    {
+        final MessageDigest digest = newDigest();
+        digest.update(buffer.duplicate());
+        return toHex(digest.digest());
+    }
+
+    private static void appendParameters(StringBuilder inputs,
+        SmartSpritesParameters parameters)
+    {
+        inputs.append("parameters:");
+        inputs.append(parameters.getRootDir()).append(';');
+        inputs.append(parameters.getOutputDir()).append(';');
+        inputs.append(parameters.getDocumentRootDir()).append(';');
+        inputs.append(parameters.getSpritePngDepth()).append(';');
+        inputs.append(parameters.isSpritePngIe6()).append(';');
+        inputs.append(parameters.getSpriteQuantizer()).append(';');
+        inputs.append(parameters.getSpritePngEncoder()).append(';');
+        inputs.append(parameters.getSpritePngCompressionLevel()).append(';');
+        inputs.append(parameters.getSpritePngFilter()).append(';');
+        inputs.append(parameters.getSpritePngDeflateParallelism()).append(';');
+        inputs.append(parameters.isStreamingComposition()).append(';');
+    }
+
+    private static void recordFormatVariants(Properties entries, String key,
+        SpriteImage spriteImage)
+    {
+        for (SpriteImage formatVariant : spriteImage.formatVariants)
+        {
+            if (formatVariant.resolvedPath != null)
+            {
+                entries.setProperty(key + RESOLVED_PATH_FORMAT
+                    + formatVariant.spriteImageOccurrence.spriteImageDirective.format,
+                    formatVariant.resolvedPath);
+            }
+        }
+    }
+
+    private static void appendSpriteImageDirective(StringBuilder inputs,
+        SpriteImageOccurrence spriteImageOccurrence)
+    {
+        final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+        inputs.append("sprite:");
+        inputs.append(spriteImageOccurrence.cssFile).append(';');
+        inputs.append(directive.spriteId).append(';');
+        inputs.append(directive.imagePath).append(';');
+        inputs.append(directive.uidType).append(';');
+        inputs.append(directive.layout).append(';');
+        inputs.append(directive.format).append(';');
+        inputs.append(directive.ie6Mode).append(';');
+        final Color matteColor = directive.matteColor;
+        inputs.append(matteColor != null ? Integer.toHexString(matteColor.getRGB()) : "")
+            .append(';');
+        inputs.append(directive.scaleRatio).append(';');
+        inputs.append(directive.quantizer != null ? directive.quantizer : "").append(';');
+        inputs.append(directive.maxWidth).append(';');
+        inputs.append(directive.maxHeight).append(';');
+        inputs.append(directive.maxPixels).append(';');
+        inputs.append(directive.resolutions).append(';');
+        inputs.append(directive.alternativeFormats).append(';');
+        appendLayoutProperties(inputs, directive.spriteLayoutProperties);
+    }
+
+    private static void appendLayoutProperties(StringBuilder inputs,
+        SpriteLayoutProperties properties)
+    {
+        inputs.append(properties.alignment).append(';');
+        inputs.append(properties.marginLeft).append(';');
+        inputs.append(properties.marginRight).append(';');
+        inputs.append(properties.marginTop).append(';');
+        inputs.append(properties.marginBottom).append(';');
+    }
+
+    private static String prefix(SpriteImageOccurrence spriteImageOccurrence)
+    {
+        return spriteImageOccurrence.spriteImageDirective.spriteId + KEY_SEPARATOR;
+    }
+
+    private static void update(MessageDigest digest, CharSequence value)
+    {
+        digest.update(value.toString().getBytes(CHARSET));
+        digest.update((byte) '\n');
+    }
+
+    /**
+     * Returns a new digest computing hashes in the format used by this manifest, see
+     * {@link #toHex(byte[])}.
+     */
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the hexadecimal representation of a digest, as used in the manifest and in
+     * sprite image paths.
+     */
+    static String toHex(byte [] bytes)
+    {
+        return new BigInteger(1, bytes).toString(16);
+    }
+}
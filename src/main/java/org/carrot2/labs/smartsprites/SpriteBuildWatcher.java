@@ -0,0 +1,269 @@
+package org.carrot2.labs.smartsprites;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.util.FileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Builds sprites and then watches the root directory and the document root directory for
+ * changes, rebuilding only the sprites and CSS files affected by the changed files. The
+ * CSS file models and the state of sprite builds are kept in memory between rebuilds,
+ * see {@link SpriteBuilder#setRetainBuildState(boolean)}. This class is not
+ * thread-safe.
+ */
+public class SpriteBuildWatcher
+{
+    /** Time to wait for further changes before rebuilding, in milliseconds */
+    private static final long QUIET_PERIOD_MILLIS = 50;
+
+    /** This watcher's configuration */
+    private final SmartSpritesParameters parameters;
+
+    /** This watcher's message log */
+    private final MessageLog messageLog;
+
+    /** The builder whose state is kept between rebuilds */
+    private final SpriteBuilder spriteBuilder;
+
+    /** Watched directories */
+    private final Map<WatchKey, Path> watchedDirs = Maps.newHashMap();
+
+    /**
+     * Creates a {@link SpriteBuildWatcher} with the provided parameters and log.
+     */
+    public SpriteBuildWatcher(SmartSpritesParameters parameters, MessageLog messageLog)
+    {
+        this.parameters = parameters;
+        this.messageLog = messageLog;
+        this.spriteBuilder = new SpriteBuilder(parameters, messageLog);
+        this.spriteBuilder.setRetainBuildState(true);
+    }
+
+    /**
+     * Builds the sprites and then rebuilds them on every change, until the calling thread
+     * is interrupted.
+     */
+    public void watch() throws IOException
+    {
+        if (!parameters.validate(messageLog))
+        {
+            return;
+        }
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService())
+        {
+            final List<Path> roots = getWatchedRoots();
+            for (Path root : roots)
+            {
+                registerAll(watchService, root);
+            }
+
+            spriteBuilder.buildSprites();
+            messageLog.setCssFile(null);
+            messageLog.status(MessageType.WATCHING_FOR_CHANGES, roots);
+
+            while (!Thread.currentThread().isInterrupted())
+            {
+                final Set<String> changedPaths = awaitChanges(watchService);
+                if (changedPaths == null)
+                {
+                    // Events were lost, start over
+                    spriteBuilder.invalidateAll();
+                }
+                else
+                {
+                    changedPaths.removeAll(getIgnoredPaths());
+                    removeTemporaryFiles(changedPaths);
+                    if (changedPaths.isEmpty())
+                    {
+                        continue;
+                    }
+                    spriteBuilder.invalidate(changedPaths);
+                }
+
+                messageLog.setCssFile(null);
+                messageLog.info(MessageType.REBUILDING_AFTER_CHANGES,
+                    changedPaths != null ? changedPaths.size() : "unknown");
+                spriteBuilder.buildSprites();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for changes and returns the normalized paths of the changed files. Changes
+     * arriving within {@link #QUIET_PERIOD_MILLIS} from one another are returned
+     * together. Returns <code>null</code> if some events were lost.
+     */
+    private Set<String> awaitChanges(WatchService watchService) throws IOException,
+        InterruptedException
+    {
+        final Set<String> changedPaths = Sets.newLinkedHashSet();
+        boolean overflow = false;
+
+        WatchKey key = watchService.take();
+        while (key != null)
+        {
+            final Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == OVERFLOW || dir == null)
+                {
+                    overflow = true;
+                    continue;
+                }
+
+                final Path path = dir.resolve((Path) event.context());
+                changedPaths.add(FileUtils.getNormalizedAbsolutePath(path.toString()));
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+                {
+                    // Files could have been created before the directory got registered
+                    changedPaths.addAll(registerAll(watchService, path));
+                }
+            }
+
+            if (!key.reset())
+            {
+                watchedDirs.remove(key);
+            }
+            key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        return overflow ? null : changedPaths;
+    }
+
+    /**
+     * Registers the provided directory and all its subdirectories with the watch
+     * service. Returns normalized paths of all files found in the directories.
+     */
+    private Set<String> registerAll(final WatchService watchService, Path root)
+        throws IOException
+    {
+        final Set<String> files = Sets.newHashSet();
+        final Path outputDir = parameters.hasOutputDir() ? Paths.get(
+            FileUtils.getNormalizedAbsolutePath(parameters.getOutputDir())) : null;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                if (outputDir != null && dir.toAbsolutePath().normalize().equals(outputDir))
+                {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
+                    ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                files.add(FileUtils.getNormalizedAbsolutePath(file.toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Returns the directories to watch: the root directory or, if not provided, the
+     * directories of the individual CSS files, and the document root directory.
+     */
+    private List<Path> getWatchedRoots()
+    {
+        final Set<String> roots = Sets.newLinkedHashSet();
+        if (parameters.hasRootDir())
+        {
+            roots.add(FileUtils.getNormalizedAbsolutePath(parameters.getRootDir()));
+        }
+        else
+        {
+            for (String cssFile : parameters.getCssFiles())
+            {
+                roots.add(FileUtils.getNormalizedAbsolutePath(new File(cssFile)
+                    .getAbsoluteFile().getParent()));
+            }
+        }
+        if (parameters.hasDocumentRootDir())
+        {
+            roots.add(FileUtils.getNormalizedAbsolutePath(parameters.getDocumentRootDir()));
+        }
+
+        // Don't watch directories contained in other watched directories twice
+        final List<Path> result = Lists.newArrayList();
+        for (String root : roots)
+        {
+            boolean nested = false;
+            for (String other : roots)
+            {
+                nested |= !other.equals(root) && Paths.get(root).startsWith(other);
+            }
+            if (!nested)
+            {
+                result.add(Paths.get(root));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the temporary files sprite images are written to from the provided paths.
+     */
+    private static void removeTemporaryFiles(Set<String> paths)
+    {
+        for (Iterator<String> it = paths.iterator(); it.hasNext();)
+        {
+            if (it.next().endsWith(SpriteImageBuilder.TEMPORARY_FILE_SUFFIX))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns normalized paths of the files written by the builder, whose changes
+     * should not trigger rebuilds.
+     */
+    private Set<String> getIgnoredPaths()
+    {
+        final Set<String> ignored = Sets.newHashSet();
+        for (String outputFile : spriteBuilder.getOutputFiles())
+        {
+            ignored.add(FileUtils.getNormalizedAbsolutePath(outputFile));
+        }
+        return ignored;
+    }
+}
@@ -1,9 +1,10 @@
 package org.carrot2.labs.smartsprites;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -12,6 +13,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.carrot2.labs.smartsprites.message.LevelCounterMessageSink;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
@@ -27,7 +29,6 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
-import com.google.common.io.Closeables;
 
 /**
  * Performs all stages of sprite building. This class is not thread-safe.
@@ -53,6 +54,15 @@ public class SpriteBuilder
     /** Resource handler */
     private ResourceHandler resourceHandler;
 
+    /**
+     * CSS file models retained between builds, keyed by file path, <code>null</code>
+     * unless the build state is retained, see {@link #setRetainBuildState(boolean)}.
+     */
+    private Map<String, CssFileModel> retainedCssFiles;
+
+    /** Whether CSS or SVG files changed since the SVG sprites were last built */
+    private boolean svgSourcesChanged = true;
+
     /**
      * Creates a {@link SpriteBuilder} with the provided parameters and log.
      */
@@ -171,13 +181,24 @@ public class SpriteBuilder
             }
         }
 
-        buildSprites(filePaths);
+        buildSvgSprites(readAndBuildSprites(filePaths));
+    }
 
+    /**
+     * Builds the SVG sprites from the CSS files read while building the bitmap sprites.
+     */
+    private void buildSvgSprites(Map<String, CssFileModel> cssFiles)
+    {
+        if (!svgSourcesChanged)
+        {
+            return;
+        }
+        svgSourcesChanged = retainedCssFiles == null;
 
         SvgSpriteBuilder ssb = new SvgSpriteBuilder(parameters, messageLog, resourceHandler);
 
         try {
-        	ssb.buildSprites(filePaths);
+        	ssb.buildSprites(cssFiles);
 		} catch (Exception e) {
             e.printStackTrace();
 			messageLog.error(MessageType.GENERIC,
@@ -209,15 +230,72 @@ public class SpriteBuilder
      *            '/' as the file separator are supported.
      */
     public void buildSprites(Collection<String> filePaths) throws IOException
+    {
+        buildSvgSprites(readAndBuildSprites(filePaths));
+    }
+
+    /**
+     * Performs processing from the list of file paths for this builder's parameters and
+     * returns the models of the CSS files read during processing, so that subsequent
+     * stages do not need to read the files again.
+     */
+    private Map<String, CssFileModel> readAndBuildSprites(Collection<String> filePaths)
+        throws IOException
     {
         final long start = System.currentTimeMillis();
 
         final LevelCounterMessageSink levelCounter = new LevelCounterMessageSink();
         messageLog.addMessageSink(levelCounter);
+        try
+        {
+            return readAndBuildSprites(filePaths, levelCounter, start);
+        }
+        finally
+        {
+            messageLog.removeMessageSink(levelCounter);
+        }
+    }
+
+    private Map<String, CssFileModel> readAndBuildSprites(Collection<String> filePaths,
+        LevelCounterMessageSink levelCounter, long start) throws IOException
+    {
+        // Read all css files once, all stages below work on the in-memory models
+        final Map<String, CssFileModel> cssFiles;
+        final Set<String> changedCssFiles;
+        if (retainedCssFiles != null)
+        {
+            // Read only the files that are new or changed since the previous build
+            final List<String> filesToRead = Lists.newArrayList();
+            for (String filePath : filePaths)
+            {
+                if (!retainedCssFiles.containsKey(filePath))
+                {
+                    filesToRead.add(filePath);
+                }
+            }
+            final Map<String, CssFileModel> readCssFiles = spriteDirectiveOccurrenceCollector
+                .readCssFiles(filesToRead);
+
+            cssFiles = Maps.newLinkedHashMap();
+            for (String filePath : filePaths)
+            {
+                final CssFileModel retained = retainedCssFiles.get(filePath);
+                cssFiles.put(filePath, retained != null ? retained : readCssFiles
+                    .get(filePath));
+            }
+            retainedCssFiles.clear();
+            retainedCssFiles.putAll(cssFiles);
+            changedCssFiles = readCssFiles.keySet();
+        }
+        else
+        {
+            cssFiles = spriteDirectiveOccurrenceCollector.readCssFiles(filePaths);
+            changedCssFiles = cssFiles.keySet();
+        }
 
         // Collect sprite declarations from all css files
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile = spriteDirectiveOccurrenceCollector
-            .collectSpriteImageOccurrences(filePaths);
+            .collectSpriteImageOccurrences(cssFiles.values());
 
         // Merge them, checking for duplicates
         final Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId = spriteDirectiveOccurrenceCollector
@@ -233,7 +311,8 @@ public class SpriteBuilder
 
         // Collect sprite references from all css files
         final Multimap<String, SpriteReferenceOccurrence> spriteEntriesByFile = spriteDirectiveOccurrenceCollector
-            .collectSpriteReferenceOccurrences(filePaths, spriteImageDirectivesBySpriteId);
+            .collectSpriteReferenceOccurrences(cssFiles.values(),
+                spriteImageDirectivesBySpriteId);
 
         // Now merge and regroup all files by sprite-id
         final Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId = SpriteDirectiveOccurrenceCollector
@@ -245,8 +324,35 @@ public class SpriteBuilder
             .buildSpriteImages(spriteImageOccurrencesBySpriteId,
                 spriteReferenceOccurrencesBySpriteId);
 
-        // Rewrite the CSS
-        rewriteCssFiles(spriteImageOccurrencesByFile, spriteReplacementsByFile);
+        // Rewrite the CSS, skipping files not affected by changes if state is retained
+        final Set<String> cssFilesToRewrite;
+        if (retainedCssFiles != null)
+        {
+            cssFilesToRewrite = Sets.newHashSet(changedCssFiles);
+            final Set<String> rebuiltSpriteIds = spriteImageBuilder.getRebuiltSpriteIds();
+            for (SpriteReferenceReplacement replacement : spriteReplacementsByFile
+                .values())
+            {
+                if (rebuiltSpriteIds
+                    .contains(replacement.spriteReferenceOccurrence.spriteReferenceDirective.spriteRef))
+                {
+                    cssFilesToRewrite.add(replacement.spriteReferenceOccurrence.cssFile);
+                }
+            }
+            for (SpriteImageOccurrence occurrence : spriteImageOccurrencesByFile.values())
+            {
+                if (rebuiltSpriteIds.contains(occurrence.spriteImageDirective.spriteId))
+                {
+                    cssFilesToRewrite.add(occurrence.cssFile);
+                }
+            }
+        }
+        else
+        {
+            cssFilesToRewrite = cssFiles.keySet();
+        }
+        rewriteCssFiles(cssFiles, spriteImageOccurrencesByFile, spriteReplacementsByFile,
+            cssFilesToRewrite);
 
         final long stop = System.currentTimeMillis();
 
@@ -259,14 +365,17 @@ public class SpriteBuilder
         {
             messageLog.status(MessageType.PROCESSING_COMPLETED, (stop - start));
         }
+
+        return cssFiles;
     }
 
     /**
      * Rewrites the original files to refer to the generated sprite images.
      */
-    private void rewriteCssFiles(
+    private void rewriteCssFiles(final Map<String, CssFileModel> cssFiles,
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile,
-        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile)
+        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile,
+        final Set<String> cssFilesToRewrite)
         throws IOException
     {
         if (spriteReplacementsByFile.isEmpty())
@@ -277,9 +386,13 @@ public class SpriteBuilder
                 .asMap().entrySet())
             {
                 final String cssFile = entry.getKey();
+                if (!cssFilesToRewrite.contains(cssFile))
+                {
+                    continue;
+                }
 
                 createProcessedCss(
-                    cssFile,
+                    cssFiles.get(cssFile),
                     SpriteImageBuilder
                         .getSpriteImageOccurrencesByLineNumber(spriteImageOccurrencesByFile
                             .get(cssFile)),
@@ -292,11 +405,16 @@ public class SpriteBuilder
                 .asMap().entrySet())
             {
                 final String cssFile = entry.getKey();
+                if (!cssFilesToRewrite.contains(cssFile))
+                {
+                    continue;
+                }
+
                 final Map<Integer, SpriteReferenceReplacement> spriteReplacementsByLineNumber = SpriteImageBuilder
                     .getSpriteReplacementsByLineNumber(entry.getValue());
 
                 createProcessedCss(
-                    cssFile,
+                    cssFiles.get(cssFile),
                     SpriteImageBuilder
                         .getSpriteImageOccurrencesByLineNumber(spriteImageOccurrencesByFile
                             .get(cssFile)), spriteReplacementsByLineNumber);
@@ -304,26 +422,142 @@ public class SpriteBuilder
         }
     }
 
+    /**
+     * Makes this builder keep the CSS file models and the sprite build state in memory
+     * between subsequent builds. Subsequent builds then read only the CSS files that were
+     * not read before, rebuild only the sprites whose inputs changed and rewrite only the
+     * CSS files affected by the changes. Files that changed between the builds must be
+     * reported using {@link #invalidate(Collection)}.
+     */
+    void setRetainBuildState(boolean retainBuildState)
+    {
+        this.retainedCssFiles = retainBuildState ? Maps
+            .<String, CssFileModel> newHashMap() : null;
+        spriteImageBuilder.setRetainBuildState(retainBuildState);
+    }
+
+    /**
+     * Discards the retained state related to the provided changed, created or deleted
+     * files.
+     */
+    void invalidate(Collection<String> paths)
+    {
+        if (resourceHandler instanceof FileSystemResourceHandler)
+        {
+            // Changes to directories may change canonical paths too
+            ((FileSystemResourceHandler) resourceHandler).clearPathCache();
+        }
+
+        final Set<String> normalizedPaths = Sets.newHashSet();
+        for (String path : paths)
+        {
+            normalizedPaths.add(FileUtils.getNormalizedAbsolutePath(path));
+            spriteImageBuilder.invalidate(path);
+
+            final String lowerCasePath = path.toLowerCase();
+            if (lowerCasePath.endsWith(".css") || lowerCasePath.endsWith(".svg"))
+            {
+                svgSourcesChanged = true;
+            }
+        }
+
+        if (retainedCssFiles != null)
+        {
+            for (Iterator<String> it = retainedCssFiles.keySet().iterator(); it.hasNext();)
+            {
+                if (normalizedPaths.contains(FileUtils.getNormalizedAbsolutePath(it.next())))
+                {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards all the retained state, so that the next build reads all CSS files and
+     * images again. To be used when changes to some files may have been missed.
+     */
+    void invalidateAll()
+    {
+        if (resourceHandler instanceof FileSystemResourceHandler)
+        {
+            ((FileSystemResourceHandler) resourceHandler).clearPathCache();
+        }
+        if (retainedCssFiles != null)
+        {
+            retainedCssFiles.clear();
+        }
+        svgSourcesChanged = true;
+        spriteImageBuilder.invalidateAll();
+    }
+
+    /**
+     * Returns the cache of decoded source images used by this builder.
+     */
+    public DecodedImageCache getImageCache()
+    {
+        return spriteImageBuilder.getImageCache();
+    }
+
+    /**
+     * Makes this builder use the provided cache of decoded source images. Long-lived
+     * processes running many builds can share one cache between all builders.
+     */
+    public void setImageCache(DecodedImageCache imageCache)
+    {
+        spriteImageBuilder.setImageCache(imageCache);
+    }
+
+    /**
+     * Returns the paths of the processed CSS files and sprite images produced by the last
+     * build, if the build state is retained.
+     */
+    Set<String> getOutputFiles()
+    {
+        final Set<String> outputFiles = Sets.newHashSet(spriteImageBuilder
+            .getSpriteImageFiles());
+        if (retainedCssFiles != null)
+        {
+            for (String cssFile : retainedCssFiles.keySet())
+            {
+                outputFiles.add(getProcessedCssFile(cssFile));
+            }
+        }
+        if (parameters.hasBuildManifestPath())
+        {
+            outputFiles.add(parameters.getBuildManifestPath());
+        }
+        return outputFiles;
+    }
+
     /**
      * Rewrites one CSS file to refer to the generated sprite images.
      */
-    private void createProcessedCss(String originalCssFile,
+    private void createProcessedCss(CssFileModel originalCss,
         Map<Integer, SpriteImageOccurrence> spriteImageOccurrencesByLineNumber,
         Map<Integer, SpriteReferenceReplacement> spriteReplacementsByLineNumber)
         throws IOException
     {
+        String originalCssFile = originalCss.path;
         final String processedCssFile = getProcessedCssFile(originalCssFile);
-        final BufferedReader originalCssReader = new BufferedReader(
-            resourceHandler.getResourceAsReader(originalCssFile));
         messageLog.setCssFile(null);
         messageLog.info(MessageType.CREATING_CSS_STYLE_SHEET, processedCssFile);
-        messageLog.info(MessageType.READING_CSS, originalCssFile);
-        final BufferedWriter processedCssWriter = new BufferedWriter(
-            resourceHandler.getResourceAsWriter(processedCssFile));
-        messageLog.info(MessageType.WRITING_CSS, processedCssFile);
 
-        String originalCssLine;
-        int originalCssLineNumber = -1;
+        // To skip unchanged CSS files, render the CSS in memory first
+        final StringWriter processedCss = parameters.isSkipUnchangedOutputs()
+            ? new StringWriter() : null;
+        final BufferedWriter processedCssWriter;
+        if (processedCss != null)
+        {
+            processedCssWriter = new BufferedWriter(processedCss);
+        }
+        else
+        {
+            processedCssWriter = new BufferedWriter(
+                resourceHandler.getResourceAsWriter(processedCssFile));
+            messageLog.info(MessageType.WRITING_CSS, processedCssFile);
+        }
+
         int lastReferenceReplacementLine = -1;
 
         boolean markSpriteImages = parameters.isMarkSpriteImages();
@@ -335,9 +569,10 @@ public class SpriteBuilder
 
             originalCssFile = originalCssFile.replace(File.separatorChar, '/');
 
-            while ((originalCssLine = originalCssReader.readLine()) != null)
+            for (int originalCssLineNumber = 0; originalCssLineNumber < originalCss
+                .getLineCount(); originalCssLineNumber++)
             {
-                originalCssLineNumber++;
+                final String originalCssLine = originalCss.getLine(originalCssLineNumber);
                 messageLog.setLine(originalCssLineNumber);
 
                 if (originalCssLine.contains("}"))
@@ -367,6 +602,27 @@ public class SpriteBuilder
                             originalCssFile, spriteReferenceReplacement) + "')"
                             + (important ? " !important" : "") + ";"+ (markSpriteImages ? " /** sprite:sprite */" :"") + "\n");
 
+                    // If the sprite has several resolutions or formats, let the
+                    // browser choose. The prefixed function does not support type().
+                    final SpriteImage spriteImage = spriteReferenceReplacement.spriteImage;
+                    final String imageSetSuffix = (important ? " !important" : "") + ";"
+                        + (markSpriteImages ? " /** sprite:sprite */" : "") + "\n";
+                    if (!spriteImage.resolutionVariants.isEmpty())
+                    {
+                        processedCssWriter.write("  background-image: -webkit-image-set("
+                            + getImageSet(spriteImage, originalCssFile,
+                                spriteReferenceReplacement, false) + ")"
+                            + imageSetSuffix);
+                    }
+                    if (!spriteImage.resolutionVariants.isEmpty()
+                        || !spriteImage.formatVariants.isEmpty())
+                    {
+                        processedCssWriter.write("  background-image: image-set("
+                            + getImageSet(spriteImage, originalCssFile,
+                                spriteReferenceReplacement, true) + ")"
+                            + imageSetSuffix);
+                    }
+
                     if (spriteReferenceReplacement.spriteImage.hasReducedForIe6)
                     {
                         processedCssWriter.write("  -background-image: url('"
@@ -413,9 +669,41 @@ public class SpriteBuilder
         }
         finally
         {
-            Closeables.close(originalCssReader, true);
             processedCssWriter.close();
         }
+
+        if (processedCss != null)
+        {
+            writeIfChanged(processedCssFile, processedCss.toString().getBytes(
+                parameters.getCssFileEncoding()));
+        }
+    }
+
+    /**
+     * Writes the processed CSS file, unless the existing file has the same content.
+     */
+    private void writeIfChanged(String processedCssFile, byte [] content)
+        throws IOException
+    {
+        messageLog.setCssFile(null);
+        if (SpriteBuildManifest.md5(content).equals(
+            SpriteBuildManifest.computeMd5(processedCssFile, resourceHandler)))
+        {
+            messageLog.info(MessageType.CSS_UNCHANGED, processedCssFile);
+            return;
+        }
+
+        messageLog.info(MessageType.WRITING_CSS, processedCssFile);
+        final OutputStream processedCssStream = resourceHandler
+            .getResourceAsOutputStream(processedCssFile);
+        try
+        {
+            processedCssStream.write(content);
+        }
+        finally
+        {
+            processedCssStream.close();
+        }
     }
 
     /**
@@ -441,6 +729,65 @@ public class SpriteBuilder
                     + imagePath, "/");
     }
 
+    /**
+     * Returns the arguments of the <code>image-set()</code> function listing the
+     * sprite image at all its pixel densities, e.g.
+     * <code>url('sprite.png') 1x, url('sprite@2x.png') 2x</code>. If
+     * <code>withFormats</code> is <code>true</code>, the images in alternative formats
+     * are listed before the image in the fallback format of each density, all with
+     * their <code>type()</code>. Densities are omitted if the sprite has only one.
+     */
+    private String getImageSet(SpriteImage spriteImage, String originalCssFile,
+        SpriteReferenceReplacement spriteReferenceReplacement, boolean withFormats)
+    {
+        final List<SpriteImage> densities = Lists.newArrayList(spriteImage);
+        densities.addAll(spriteImage.resolutionVariants);
+        final boolean withDensities = densities.size() > 1;
+
+        final StringBuilder imageSet = new StringBuilder();
+        for (SpriteImage density : densities)
+        {
+            final boolean withTypes = withFormats && !density.formatVariants.isEmpty();
+            if (withTypes)
+            {
+                for (SpriteImage formatVariant : density.formatVariants)
+                {
+                    appendImageSetEntry(imageSet, formatVariant, originalCssFile,
+                        spriteReferenceReplacement, true, withDensities);
+                }
+            }
+            appendImageSetEntry(imageSet, density, originalCssFile,
+                spriteReferenceReplacement, withTypes, withDensities);
+        }
+        return imageSet.toString();
+    }
+
+    /**
+     * Appends one image to the arguments of the <code>image-set()</code> function.
+     */
+    private void appendImageSetEntry(StringBuilder imageSet, SpriteImage spriteImage,
+        String originalCssFile, SpriteReferenceReplacement spriteReferenceReplacement,
+        boolean withType, boolean withDensity)
+    {
+        if (imageSet.length() > 0)
+        {
+            imageSet.append(", ");
+        }
+        imageSet.append("url('").append(
+            getRelativeToReplacementLocation(spriteImage.resolvedPath, originalCssFile,
+                spriteReferenceReplacement)).append("')");
+        if (withType)
+        {
+            imageSet.append(" type(\"").append(
+                spriteImage.spriteImageOccurrence.spriteImageDirective.format.mimeType)
+                .append("\")");
+        }
+        if (withDensity)
+        {
+            imageSet.append(' ').append(Math.round(spriteImage.scaleRatio)).append('x');
+        }
+    }
+
     private String getRelativeToReplacementLocation(String imagePath,
         String originalCssFile,
         String declaringCssPath)
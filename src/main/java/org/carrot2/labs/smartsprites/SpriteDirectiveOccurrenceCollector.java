@@ -1,11 +1,9 @@
 package org.carrot2.labs.smartsprites;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.carrot2.labs.smartsprites.css.CssProperty;
 import org.carrot2.labs.smartsprites.css.CssSyntaxUtils;
@@ -17,21 +15,12 @@ import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.io.Closeables;
 
 /**
  * Methods for collecting SmartSprites directives from CSS files.
  */
 public class SpriteDirectiveOccurrenceCollector
 {
-    /** A regular expression for extracting sprite image directives */
-    private static final Pattern SPRITE_IMAGE_DIRECTIVE = Pattern
-        .compile("/\\*+\\s+(sprite:[^*]*)\\*+/");
-
-    /** A regular expression for extracting sprite reference directives */
-    private static final Pattern SPRITE_REFERENCE_DIRECTIVE = Pattern
-        .compile("/\\*+\\s+(sprite-ref:[^*]*)\\*+/");
-
     /** This builder's message log */
     private final MessageLog messageLog;
 
@@ -50,47 +39,47 @@ public class SpriteDirectiveOccurrenceCollector
     }
 
     /**
-     * Collects {@link SpriteImageOccurrence}s from a single CSS file.
+     * Reads the provided CSS files into {@link CssFileModel}s, keyed by file path. Each
+     * file is read only once, all later processing stages work on the models.
      */
-    Collection<SpriteImageOccurrence> collectSpriteImageOccurrences(String cssFile)
+    Map<String, CssFileModel> readCssFiles(Collection<String> filePaths)
         throws IOException
     {
-        final Collection<SpriteImageOccurrence> occurrences = Lists.newArrayList();
-        final BufferedReader reader = new BufferedReader(resourceHandler
-            .getResourceAsReader(cssFile));
+        final Map<String, CssFileModel> cssFiles = Maps.newLinkedHashMap();
         messageLog.setCssFile(null);
-        messageLog.info(MessageType.READING_SPRITE_IMAGE_DIRECTIVES, cssFile);
-        messageLog.setCssFile(cssFile);
+        for (final String cssFile : filePaths)
+        {
+            messageLog.info(MessageType.READING_CSS, cssFile);
+            cssFiles.put(cssFile, CssFileModel.read(cssFile, resourceHandler));
+        }
+        return cssFiles;
+    }
 
-        int lineNumber = -1;
-        String line;
+    /**
+     * Collects {@link SpriteImageOccurrence}s from a single CSS file.
+     */
+    Collection<SpriteImageOccurrence> collectSpriteImageOccurrences(CssFileModel cssFile)
+    {
+        final Collection<SpriteImageOccurrence> occurrences = Lists.newArrayList();
+        messageLog.setCssFile(null);
+        messageLog.info(MessageType.READING_SPRITE_IMAGE_DIRECTIVES, cssFile.path);
+        messageLog.setCssFile(cssFile.path);
 
-        try
+        for (final Map.Entry<Integer, String> entry : cssFile.spriteImageDirectives
+            .entrySet())
         {
-            while ((line = reader.readLine()) != null)
+            final int lineNumber = entry.getKey();
+            messageLog.setLine(lineNumber);
+
+            final SpriteImageDirective directive = SpriteImageDirective.parse(
+                entry.getValue(), messageLog);
+            if (directive == null)
             {
-                messageLog.setLine(++lineNumber);
-
-                final String spriteImageDirectiveString = extractSpriteImageDirectiveString(line);
-                if (spriteImageDirectiveString == null)
-                {
-                    continue;
-                }
-
-                final SpriteImageDirective directive = SpriteImageDirective.parse(
-                    spriteImageDirectiveString, messageLog);
-                if (directive == null)
-                {
-                    continue;
-                }
-
-                occurrences
-                    .add(new SpriteImageOccurrence(directive, cssFile, lineNumber));
+                continue;
             }
-        }
-        finally
-        {
-            Closeables.close(reader, true);
+
+            occurrences.add(new SpriteImageOccurrence(directive, cssFile.path,
+                lineNumber));
         }
 
         return occurrences;
@@ -100,54 +89,38 @@ public class SpriteDirectiveOccurrenceCollector
      * Collects {@link SpriteReferenceOccurrence}s from a single CSS file.
      */
     Collection<SpriteReferenceOccurrence> collectSpriteReferenceOccurrences(
-        String cssFile, Map<String, SpriteImageDirective> spriteImageDirectives)
-        throws IOException
+        CssFileModel cssFile, Map<String, SpriteImageDirective> spriteImageDirectives)
     {
         final Collection<SpriteReferenceOccurrence> directives = Lists.newArrayList();
 
-        final BufferedReader reader = new BufferedReader(resourceHandler
-            .getResourceAsReader(cssFile));
         messageLog.setCssFile(null);
-        messageLog.info(MessageType.READING_SPRITE_REFERENCE_DIRECTIVES, cssFile);
-        messageLog.setCssFile(cssFile);
+        messageLog.info(MessageType.READING_SPRITE_REFERENCE_DIRECTIVES, cssFile.path);
+        messageLog.setCssFile(cssFile.path);
 
-        int lineNumber = -1;
-        String line;
-
-        try
+        for (final Map.Entry<Integer, String> entry : cssFile.spriteReferenceDirectives
+            .entrySet())
         {
-            while ((line = reader.readLine()) != null)
+            final int lineNumber = entry.getKey();
+            messageLog.setLine(lineNumber);
+
+            final String line = cssFile.getLine(lineNumber);
+            final CssProperty backgroundProperty = extractSpriteReferenceCssProperty(line);
+            final String imageUrl = CssSyntaxUtils.unpackUrl(backgroundProperty.value,
+                messageLog);
+            if (imageUrl == null)
             {
-                messageLog.setLine(++lineNumber);
-
-                final String directiveString = extractSpriteReferenceDirectiveString(line);
-                if (directiveString == null)
-                {
-                    continue;
-                }
-
-                final CssProperty backgroundProperty = extractSpriteReferenceCssProperty(line);
-                final String imageUrl = CssSyntaxUtils.unpackUrl(
-                    backgroundProperty.value, messageLog);
-                if (imageUrl == null)
-                {
-                    continue;
-                }
-
-                final SpriteReferenceDirective directive = SpriteReferenceDirective
-                    .parse(directiveString, spriteImageDirectives, messageLog);
-                if (directive == null)
-                {
-                    continue;
-                }
-
-                directives.add(new SpriteReferenceOccurrence(directive, imageUrl,
-                    cssFile, lineNumber, backgroundProperty.important));
+                continue;
             }
-        }
-        finally
-        {
-            Closeables.close(reader, false);
+
+            final SpriteReferenceDirective directive = SpriteReferenceDirective.parse(
+                entry.getValue(), spriteImageDirectives, messageLog);
+            if (directive == null)
+            {
+                continue;
+            }
+
+            directives.add(new SpriteReferenceOccurrence(directive, imageUrl,
+                cssFile.path, lineNumber, backgroundProperty.important));
         }
 
         return directives;
@@ -157,17 +130,17 @@ public class SpriteDirectiveOccurrenceCollector
      * Collects {@link SpriteImageOccurrence}s from the provided CSS files.
      */
     Multimap<String, SpriteImageOccurrence> collectSpriteImageOccurrences(
-        Collection<String> filePaths) throws IOException
+        Collection<CssFileModel> cssFiles)
     {
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile = LinkedListMultimap
             .create();
-        for (final String cssFile : filePaths)
+        for (final CssFileModel cssFile : cssFiles)
         {
-            messageLog.setCssFile(cssFile);
+            messageLog.setCssFile(cssFile.path);
 
             final Collection<SpriteImageOccurrence> spriteImageOccurrences = collectSpriteImageOccurrences(cssFile);
 
-            spriteImageOccurrencesByFile.putAll(cssFile, spriteImageOccurrences);
+            spriteImageOccurrencesByFile.putAll(cssFile.path, spriteImageOccurrences);
         }
         return spriteImageOccurrencesByFile;
     }
@@ -176,20 +149,19 @@ public class SpriteDirectiveOccurrenceCollector
      * Collects {@link SpriteReferenceOccurrence}s from the provided CSS files.
      */
     Multimap<String, SpriteReferenceOccurrence> collectSpriteReferenceOccurrences(
-        Collection<String> files,
+        Collection<CssFileModel> cssFiles,
         final Map<String, SpriteImageDirective> spriteImageDirectivesBySpriteId)
-        throws IOException
     {
         final Multimap<String, SpriteReferenceOccurrence> spriteEntriesByFile = LinkedListMultimap
             .create();
-        for (final String cssFile : files)
+        for (final CssFileModel cssFile : cssFiles)
         {
-            messageLog.setCssFile(cssFile);
+            messageLog.setCssFile(cssFile.path);
 
             final Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences = collectSpriteReferenceOccurrences(
                 cssFile, spriteImageDirectivesBySpriteId);
 
-            spriteEntriesByFile.putAll(cssFile, spriteReferenceOccurrences);
+            spriteEntriesByFile.putAll(cssFile.path, spriteReferenceOccurrences);
         }
         return spriteEntriesByFile;
     }
@@ -249,7 +221,7 @@ public class SpriteDirectiveOccurrenceCollector
      */
     static String extractSpriteImageDirectiveString(String cssLine)
     {
-        final Matcher matcher = SPRITE_IMAGE_DIRECTIVE.matcher(cssLine);
+        final Matcher matcher = CssFileModel.SPRITE_IMAGE_DIRECTIVE.matcher(cssLine);
 
         if (matcher.find())
         {
@@ -266,7 +238,7 @@ public class SpriteDirectiveOccurrenceCollector
      */
     static String extractSpriteReferenceDirectiveString(String css)
     {
-        final Matcher matcher = SPRITE_REFERENCE_DIRECTIVE.matcher(css);
+        final Matcher matcher = CssFileModel.SPRITE_REFERENCE_DIRECTIVE.matcher(css);
 
         if (matcher.find())
         {
@@ -283,7 +255,7 @@ public class SpriteDirectiveOccurrenceCollector
      */
     CssProperty extractSpriteReferenceCssProperty(String css)
     {
-        final Matcher matcher = SPRITE_REFERENCE_DIRECTIVE.matcher(css);
+        final Matcher matcher = CssFileModel.SPRITE_REFERENCE_DIRECTIVE.matcher(css);
 
         // Remove the directive
         final String noDirective = matcher.replaceAll("").trim();
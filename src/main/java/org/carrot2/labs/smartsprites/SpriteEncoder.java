@@ -0,0 +1,21 @@
+package org.carrot2.labs.smartsprites;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
+
+/**
+ * Writes sprite images in one of the {@link SpriteImageFormat}s. The encoder of each
+ * format is chosen by {@link SpriteImageBuilder} when it is created, so a new format
+ * needs a {@link SpriteImageFormat} constant and an encoder registered there.
+ * Implementations must be thread-safe, as sprite images may be written concurrently.
+ */
+public interface SpriteEncoder
+{
+    /**
+     * Writes the image to the provided stream, without closing the stream.
+     */
+    void encode(BufferedImage image, OutputStream out) throws IOException;
+}
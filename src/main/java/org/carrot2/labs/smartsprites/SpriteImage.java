@@ -1,15 +1,9 @@
 package org.carrot2.labs.smartsprites;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteUidType;
@@ -66,6 +60,21 @@ public class SpriteImage
      */
     public float scaleRatio;
 
+    /**
+     * Images of this sprite at the higher pixel densities listed in
+     * {@link SpriteImageDirective#resolutions}, in ascending order. They share this
+     * sprite image's layout and {@link #spriteReferenceReplacements}, which is why their
+     * own replacement maps are empty.
+     */
+    public final List<SpriteImage> resolutionVariants = new ArrayList<SpriteImage>();
+
+    /**
+     * Images of this sprite in the {@link SpriteImageDirective#alternativeFormats}, in
+     * order of preference. Like {@link #resolutionVariants}, their replacement maps are
+     * empty.
+     */
+    public final List<SpriteImage> formatVariants = new ArrayList<SpriteImage>();
+
     private static final Pattern SPRITE_VARIABLE = Pattern.compile("${sprite}",
         Pattern.LITERAL);
 
@@ -86,7 +95,30 @@ public class SpriteImage
         }
     }
 
-    String resolveImagePath(byte [] image, String timestamp, boolean reducedForIe6) throws IOException
+    /**
+     * Resolves the image path, storing the result in {@link #resolvedPath} or
+     * {@link #resolvedPathIe6}, see {@link #getImagePath(String, String, boolean)}.
+     */
+    String resolveImagePath(String md5, String timestamp, boolean reducedForIe6)
+    {
+        final String imagePath = getImagePath(md5, timestamp, reducedForIe6);
+        if (reducedForIe6)
+        {
+            this.resolvedPathIe6 = imagePath;
+        }
+        else
+        {
+            this.resolvedPath = imagePath;
+        }
+        return imagePath;
+    }
+
+    /**
+     * Returns the {@link SpriteImageDirective#imagePath} with variables resolved.
+     * 
+     * @param md5 the md5 hash of the sprite image file, in hexadecimal
+     */
+    String getImagePath(String md5, String timestamp, boolean reducedForIe6)
     {
         String imagePath = spriteImageOccurrence.spriteImageDirective.imagePath;
 
@@ -102,12 +134,7 @@ public class SpriteImage
         }
 
         // Resolve MD5 hash
-        Matcher md5Matcher = SpriteUidType.MD5.pattern.matcher(imagePath);
-        if (md5Matcher.find())
-        {
-            // Compute MD5 only when necessary
-            imagePath = md5Matcher.replaceAll(computeMd5(image));
-        }
+        imagePath = SpriteUidType.MD5.pattern.matcher(imagePath).replaceAll(md5);
 
         // Resolve timestamp
         imagePath = SpriteUidType.DATE.pattern.matcher(imagePath).replaceAll(timestamp);
@@ -116,16 +143,7 @@ public class SpriteImage
         imagePath = SPRITE_VARIABLE.matcher(imagePath).replaceAll(
             spriteImageOccurrence.spriteImageDirective.spriteId);
 
-        if (reducedForIe6)
-        {
-            this.resolvedPathIe6 = addIe6Suffix(imagePath, reducedForIe6);
-            return this.resolvedPathIe6;
-        }
-        else
-        {
-            this.resolvedPath = addIe6Suffix(imagePath, reducedForIe6);
-            return this.resolvedPath;
-        }
+        return addIe6Suffix(imagePath, reducedForIe6);
     }
 
     /**
@@ -134,83 +152,77 @@ public class SpriteImage
      */
     static String addIe6Suffix(String spritePath, boolean ie6Reduced)
     {
-        if (ie6Reduced)
+        return ie6Reduced ? addSuffix(spritePath, "-ie6") : spritePath;
+    }
+
+    /**
+     * Adds a suffix to the file name in the sprite image path, before the extension. We
+     * make sure we don't add the suffix to the directory names or after the '?'
+     * character.
+     */
+    static String addSuffix(String spritePath, String suffix)
+    {
+        final StringBuilder result = new StringBuilder();
+
+        int lastFoundIndex = 0;
+
+        final int lastSlashIndex = spritePath.lastIndexOf('/');
+        if (lastSlashIndex >= 0)
+        {
+            result.append(spritePath, lastFoundIndex, lastSlashIndex + 1);
+            lastFoundIndex = lastSlashIndex + 1;
+        }
+
+        int lastDotIndex = spritePath.lastIndexOf('.');
+        if (lastDotIndex < lastFoundIndex)
+        {
+            lastDotIndex = -1;
+        }
+        final int firstQuestionMarkIndex = spritePath.indexOf('?', lastFoundIndex);
+
+        if (lastDotIndex >= 0
+            && (lastDotIndex < firstQuestionMarkIndex || firstQuestionMarkIndex < 0))
+        {
+            result.append(spritePath, lastFoundIndex, lastDotIndex);
+            result.append(suffix);
+            result.append(spritePath, lastDotIndex, spritePath.length());
+        }
+        else if (firstQuestionMarkIndex >= 0)
         {
-            final StringBuilder ie6Path = new StringBuilder();
-
-            int lastFoundIndex = 0;
-
-            final int lastSlashIndex = spritePath.lastIndexOf('/');
-            if (lastSlashIndex >= 0)
-            {
-                ie6Path.append(spritePath, lastFoundIndex, lastSlashIndex + 1);
-                lastFoundIndex = lastSlashIndex + 1;
-            }
-
-            int lastDotIndex = spritePath.lastIndexOf('.');
-            if (lastDotIndex < lastFoundIndex)
-            {
-                lastDotIndex = -1;
-            }
-            final int firstQuestionMarkIndex = spritePath.indexOf('?', lastFoundIndex);
-
-            if (lastDotIndex >= 0
-                && (lastDotIndex < firstQuestionMarkIndex || firstQuestionMarkIndex < 0))
-            {
-                ie6Path.append(spritePath, lastFoundIndex, lastDotIndex);
-                ie6Path.append("-ie6");
-                ie6Path.append(spritePath, lastDotIndex, spritePath.length());
-            }
-            else if (firstQuestionMarkIndex >= 0)
-            {
-                ie6Path.append(spritePath, lastFoundIndex, firstQuestionMarkIndex);
-                ie6Path.append("-ie6");
-                ie6Path.append(spritePath, firstQuestionMarkIndex, spritePath.length());
-            }
-            else
-            {
-                ie6Path.append(spritePath, lastFoundIndex, spritePath.length());
-                ie6Path.append("-ie6");
-            }
-
-            return ie6Path.toString();
+            result.append(spritePath, lastFoundIndex, firstQuestionMarkIndex);
+            result.append(suffix);
+            result.append(spritePath, firstQuestionMarkIndex, spritePath.length());
         }
-        return spritePath;
+        else
+        {
+            result.append(spritePath, lastFoundIndex, spritePath.length());
+            result.append(suffix);
+        }
+
+        return result.toString();
     }
 
     /**
-     * Computes
-     * @throws IOException 
+     * Replaces the file extension in the sprite image path, adds the extension if the
+     * file name has none. As in {@link #addSuffix(String, String)}, directory names and
+     * the part after the '?' character are not changed.
      */
-    private static String computeMd5(byte [] image) throws IOException
+    static String replaceExtension(String spritePath, String extension)
     {
-        try
+        final int fileNameIndex = spritePath.lastIndexOf('/') + 1;
+        int endIndex = spritePath.indexOf('?', fileNameIndex);
+        if (endIndex < 0)
         {
-            final byte [] buffer = new byte [4069];
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
-            try (InputStream is = new ByteArrayInputStream(image);
-                 InputStream digestInputStream = new DigestInputStream(is, digest))
-            {
-                while (digestInputStream.read(buffer) >= 0)
-                {
-                }
-
-                byte [] bytes = digest.digest();
-                return new BigInteger(1, bytes).toString(16);
-            }
-            catch (IOException e)
-            {
-                // Should not happen because we're reading from memory
-                throw new RuntimeException(e);
-            }
-            finally
-            {
-                digest.reset();
-            }
+            endIndex = spritePath.length();
         }
-        catch (NoSuchAlgorithmException nsaex)
+
+        int dotIndex = spritePath.lastIndexOf('.', endIndex - 1);
+        if (dotIndex < fileNameIndex)
         {
-            throw new RuntimeException(nsaex);
+            dotIndex = endIndex;
         }
+
+        return spritePath.substring(0, dotIndex) + "." + extension
+            + spritePath.substring(endIndex);
     }
 }
@@ -1,37 +1,73 @@
 package org.carrot2.labs.smartsprites;
 
+import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 import org.apache.commons.math3.util.ArithmeticUtils;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngEncoder;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageLayout;
 import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.MutableResourceHandler;
 import org.carrot2.labs.smartsprites.resource.ResourceHandler;
 import org.carrot2.util.BufferedImageUtils;
 import org.carrot2.util.FileUtils;
+import org.carrot2.util.ImageUtils;
+import org.carrot2.util.MaxRectsPacker;
+import org.carrot2.util.PngEncoder;
+import org.carrot2.util.WebpEncoder;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
 
 /**
  * Lays out and builds sprite images based on the collected SmartSprites directives.
  */
 public class SpriteImageBuilder
 {
+    /**
+     * Suffix of the temporary files sprite images are written to before being moved to
+     * their final paths.
+     */
+    static final String TEMPORARY_FILE_SUFFIX = ".smartsprites-tmp";
+
     /** This builder's configuration */
     public final SmartSpritesParameters parameters;
 
@@ -51,6 +87,39 @@ public class SpriteImageBuilder
      */
     private String timestamp;
 
+    /**
+     * The manifest of the previous build, <code>null</code> if incremental builds are
+     * not enabled.
+     */
+    private SpriteBuildManifest buildManifest;
+
+    /**
+     * If <code>true</code>, the build manifest is kept in memory between subsequent
+     * {@link #buildSpriteImages(Map, Multimap)} calls, see
+     * {@link #setRetainBuildState(boolean)}.
+     */
+    private boolean retainBuildState;
+
+    /** Decoded source images, shared by all builds of this builder */
+    private DecodedImageCache imageCache;
+
+    /** Usage profile of the current build, <code>null</code> if not provided */
+    private UsageProfile usageProfile;
+
+    /** Encoders of sprite images, keyed by format */
+    private final Map<SpriteImageFormat, SpriteEncoder> encoders;
+
+    /**
+     * Sizes in bytes of the sprite image files written in the current build, keyed by
+     * sprite id. The sizes of IE6-specific images, of images of higher pixel densities
+     * and of images in alternative formats are not included.
+     */
+    private final ConcurrentMap<String, Long> encodedSpriteSizes = new ConcurrentHashMap<String, Long>();
+
+    /** Ids of sprites built, rather than reused, in the last build */
+    private final Set<String> rebuiltSpriteIds = Collections
+        .synchronizedSet(Sets.<String> newHashSet());
+
     /**
      * Creates a {@link SpriteImageBuilder} with the provided parameters and log.
      */
@@ -61,6 +130,57 @@ public class SpriteImageBuilder
         this.parameters = parameters;
         this.resourceHandler = resourceHandler;
         spriteImageRenderer = new SpriteImageRenderer(parameters, messageLog);
+        imageCache = new DecodedImageCache(parameters.getImageCacheSize() * 1024L * 1024L);
+        encoders = createEncoders(parameters);
+    }
+
+    /**
+     * Creates the encoders of all {@link SpriteImageFormat}s. PNG images are written by
+     * the encoder chosen in the parameters, WebP images by {@link WebpEncoder}, other
+     * formats by {@link ImageIO}.
+     */
+    private static Map<SpriteImageFormat, SpriteEncoder> createEncoders(
+        final SmartSpritesParameters parameters)
+    {
+        final Map<SpriteImageFormat, SpriteEncoder> encoders = Maps
+            .newEnumMap(SpriteImageFormat.class);
+        for (final SpriteImageFormat format : SpriteImageFormat.values())
+        {
+            encoders.put(format, new SpriteEncoder()
+            {
+                public void encode(BufferedImage image, OutputStream out)
+                    throws IOException
+                {
+                    ImageIO.write(image, format.toString(), out);
+                }
+            });
+        }
+
+        if (parameters.getSpritePngEncoder() == SpritePngEncoder.BUILTIN)
+        {
+            final PngEncoder pngEncoder = new PngEncoder(
+                parameters.getSpritePngCompressionLevel(),
+                parameters.getSpritePngFilter(),
+                parameters.getSpritePngDeflateParallelism());
+            encoders.put(SpriteImageFormat.PNG, new SpriteEncoder()
+            {
+                public void encode(BufferedImage image, OutputStream out)
+                    throws IOException
+                {
+                    pngEncoder.encode(image, out);
+                }
+            });
+        }
+
+        final WebpEncoder webpEncoder = new WebpEncoder();
+        encoders.put(SpriteImageFormat.WEBP, new SpriteEncoder()
+        {
+            public void encode(BufferedImage image, OutputStream out) throws IOException
+            {
+                webpEncoder.encode(image, out);
+            }
+        });
+        return encoders;
     }
 
     /**
@@ -72,16 +192,72 @@ public class SpriteImageBuilder
         Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId) throws IOException
     {
         timestamp = Long.toString(new Date().getTime());
+        rebuiltSpriteIds.clear();
+        if (retainBuildState && buildManifest != null)
+        {
+            buildManifest = buildManifest.next();
+        }
+        else if (parameters.hasBuildManifestPath())
+        {
+            buildManifest = SpriteBuildManifest.load(parameters.getBuildManifestPath(),
+                resourceHandler, messageLog);
+            if (retainBuildState)
+            {
+                buildManifest = buildManifest.retainingFileDigests();
+            }
+        }
+        else
+        {
+            buildManifest = retainBuildState ? SpriteBuildManifest.empty() : null;
+        }
+
+        encodedSpriteSizes.clear();
+        usageProfile = parameters.hasUsageProfilePath() ? UsageProfile.load(
+            parameters.getUsageProfilePath(), resourceHandler, messageLog) : null;
+
+        // Split sprites by usage and size limits into several sprite images
+        final Map<String, SpriteImageOccurrence> spriteImageOccurrences = Maps
+            .newHashMap(spriteImageOccurrencesBySpriteId);
+        final Map<String, String> splitSpriteIds = Maps.newHashMap();
+        final Map<String, Map<String, SortedSet<String>>> routesBySplitSprite = Maps
+            .newLinkedHashMap();
+        final Collection<Map.Entry<String, Collection<SpriteReferenceOccurrence>>> sprites = splitSprites(
+            spriteImageOccurrences, spriteReferenceOccurrencesBySpriteId, splitSpriteIds,
+            routesBySplitSprite).asMap().entrySet();
+        final List<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>> spriteReferenceReplacementsBySprite;
+        final int threads = Math.min(parameters.getSpriteBuildThreads(), sprites.size());
+        if (threads > 1)
+        {
+            spriteReferenceReplacementsBySprite = buildSpriteReplacementsConcurrently(
+                spriteImageOccurrences, sprites, threads);
+        }
+        else
+        {
+            spriteReferenceReplacementsBySprite = Lists.newArrayList();
+            for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : sprites)
+            {
+                spriteReferenceReplacementsBySprite.add(buildSpriteReplacements(
+                    spriteImageOccurrences.get(spriteReferenceOccurrences.getKey()),
+                    spriteReferenceOccurrences.getValue()));
+            }
+        }
+        for (final Map.Entry<String, String> entry : splitSpriteIds.entrySet())
+        {
+            if (rebuiltSpriteIds.contains(entry.getKey()))
+            {
+                rebuiltSpriteIds.add(entry.getValue());
+            }
+        }
+        if (usageProfile != null && parameters.isReportUsageSavings())
+        {
+            reportUsageSavings(spriteImageOccurrencesBySpriteId,
+                spriteReferenceOccurrencesBySpriteId, routesBySplitSprite);
+        }
 
         final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = LinkedListMultimap
             .create();
-        for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : spriteReferenceOccurrencesBySpriteId
-            .asMap().entrySet())
+        for (final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReferenceReplacements : spriteReferenceReplacementsBySprite)
         {
-            final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReferenceReplacements = buildSpriteReplacements(
-                spriteImageOccurrencesBySpriteId.get(spriteReferenceOccurrences.getKey()),
-                spriteReferenceOccurrences.getValue());
-
             for (final SpriteReferenceReplacement spriteReferenceReplacement : spriteReferenceReplacements
                 .values())
             {
@@ -91,162 +267,1334 @@ public class SpriteImageBuilder
             }
         }
 
+        messageLog.setCssFile(null);
+        if (imageCache.getHitCount() + imageCache.getMissCount() > 0)
+        {
+            messageLog.info(MessageType.IMAGE_CACHE_STATISTICS, imageCache.getHitCount(),
+                imageCache.getMissCount(), imageCache.getEvictionCount());
+        }
+
+        if (parameters.hasBuildManifestPath())
+        {
+            buildManifest.save(parameters.getBuildManifestPath(), resourceHandler,
+                messageLog);
+        }
+
         return spriteReplacementsByFile;
     }
 
     /**
-     * Builds sprite image for a single sprite image directive.
-     * @throws IOException 
+     * Splits the references of sprites between several sprite images, see
+     * {@link SpriteImageDirective#shard(int)}. If a usage profile is provided, the
+     * references are first split into groups of images used by the same routes. Then,
+     * groups whose images would not fit in the size limits of their directives are split
+     * further. The occurrences of the resulting sprite images are put to the provided
+     * map of sprite image occurrences, the ids of the sprites they were split from -- to
+     * the map of split sprite ids. For sprites split by usage, the routes using each of
+     * the resulting sprite images are put to the map of routes by split sprite. A sprite
+     * is not split if the sprite id or the image file of any of its parts is already
+     * used by another sprite.
+     * 
+     * @return sprite reference occurrences by sprite id, split sprites replaced by the
+     *         resulting sprites
      */
-    Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> buildSpriteReplacements(
-        SpriteImageOccurrence spriteImageOccurrence,
-        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences) throws IOException
+    private Multimap<String, SpriteReferenceOccurrence> splitSprites(
+        Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId,
+        Map<String, String> splitSpriteIds,
+        Map<String, Map<String, SortedSet<String>>> routesBySplitSprite)
     {
-        // Load images into memory. TODO: impose some limit here?
-        final Map<SpriteReferenceOccurrence, BufferedImage> images = Maps
+        final Multimap<String, SpriteReferenceOccurrence> result = LinkedListMultimap
+            .create();
+
+        // Parts must not replace sprites declared in CSS or parts of other sprites
+        final Set<String> usedSpriteIds = Sets.newHashSet(spriteImageOccurrencesBySpriteId
+            .keySet());
+        final Set<String> usedImageFiles = Sets.newHashSet();
+        for (SpriteImageOccurrence occurrence : spriteImageOccurrencesBySpriteId.values())
+        {
+            usedImageFiles.add(getImageFile(occurrence.cssFile,
+                occurrence.spriteImageDirective));
+        }
+
+        for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> entry : spriteReferenceOccurrencesBySpriteId
+            .asMap().entrySet())
+        {
+            final String spriteId = entry.getKey();
+            final SpriteImageOccurrence spriteImageOccurrence = spriteImageOccurrencesBySpriteId
+                .get(spriteId);
+            final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+
+            final Map<SortedSet<String>, List<SpriteReferenceOccurrence>> clusters;
+            if (usageProfile != null)
+            {
+                clusters = clusterByUsage(entry.getValue());
+            }
+            else
+            {
+                clusters = Collections
+                    .<SortedSet<String>, List<SpriteReferenceOccurrence>> singletonMap(
+                        ImmutableSortedSet.<String> of(),
+                        Lists.newArrayList(entry.getValue()));
+            }
+
+            final Map<SpriteImageDirective, List<SpriteReferenceOccurrence>> parts = Maps
+                .newLinkedHashMap();
+            final Map<String, SortedSet<String>> routesByPart = Maps.newLinkedHashMap();
+            int clusterNumber = 0;
+            for (final Map.Entry<SortedSet<String>, List<SpriteReferenceOccurrence>> cluster : clusters
+                .entrySet())
+            {
+                final SpriteImageDirective clusterDirective = clusters.size() > 1 ? directive
+                    .shard(++clusterNumber) : directive;
+                final List<List<SpriteReferenceOccurrence>> shards = directive
+                    .hasSizeLimits() ? splitIntoShards(spriteImageOccurrence, cluster.getValue())
+                    : Collections.singletonList(cluster.getValue());
+                for (int i = 0; i < shards.size(); i++)
+                {
+                    final SpriteImageDirective partDirective = shards.size() > 1 ? clusterDirective
+                        .shard(i + 1) : clusterDirective;
+                    parts.put(partDirective, shards.get(i));
+                    routesByPart.put(partDirective.spriteId, cluster.getKey());
+                }
+            }
+
+            if (parts.size() < 2)
+            {
+                result.putAll(spriteId, entry.getValue());
+                continue;
+            }
+
+            final String conflictingPartId = getConflictingPartId(parts.keySet(),
+                spriteImageOccurrence, usedSpriteIds, usedImageFiles);
+            if (conflictingPartId != null)
+            {
+                messageLog.setCssFile(spriteImageOccurrence.cssFile);
+                messageLog.setLine(spriteImageOccurrence.line);
+                messageLog.warning(MessageType.CANNOT_SPLIT_SPRITE_ID_CONFLICT, spriteId,
+                    conflictingPartId);
+                messageLog.setCssFile(null);
+                result.putAll(spriteId, entry.getValue());
+                continue;
+            }
+
+            messageLog.info(MessageType.SPLITTING_SPRITE, spriteId, parts.size());
+            for (final Map.Entry<SpriteImageDirective, List<SpriteReferenceOccurrence>> part : parts
+                .entrySet())
+            {
+                final String partSpriteId = part.getKey().spriteId;
+                spriteImageOccurrencesBySpriteId.put(partSpriteId, new SpriteImageOccurrence(
+                    part.getKey(), spriteImageOccurrence.cssFile, spriteImageOccurrence.line));
+                splitSpriteIds.put(partSpriteId, spriteId);
+                result.putAll(partSpriteId, part.getValue());
+            }
+            if (clusters.size() > 1)
+            {
+                routesBySplitSprite.put(spriteId, routesByPart);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the references of a sprite by the set of routes using their images,
+     * according to the usage profile. Images not in the profile form one group. Groups
+     * are ordered by their first occurrences.
+     */
+    private Map<SortedSet<String>, List<SpriteReferenceOccurrence>> clusterByUsage(
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences)
+    {
+        final Map<SortedSet<String>, List<SpriteReferenceOccurrence>> clusters = Maps
             .newLinkedHashMap();
         for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
         {
             messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
             messageLog.setLine(spriteReferenceOccurrence.line);
+            final SortedSet<String> routes = usageProfile.getRoutes(resourceHandler
+                .getResourcePath(spriteReferenceOccurrence.cssFile,
+                    spriteReferenceOccurrence.imagePath));
 
-            final String realImagePath = resourceHandler.getResourcePath(
-                spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath);
-            InputStream is = null;
-            try
+            List<SpriteReferenceOccurrence> cluster = clusters.get(routes);
+            if (cluster == null)
             {
-                is = resourceHandler.getResourceAsInputStream(realImagePath);
+                cluster = Lists.newArrayList();
+                clusters.put(routes, cluster);
+            }
+            cluster.add(spriteReferenceOccurrence);
+        }
+        messageLog.setCssFile(null);
+        return clusters;
+    }
 
-                // Load image
-                if (is != null)
-                {
-                    messageLog.info(MessageType.READING_IMAGE, realImagePath);
-                    final BufferedImage image = ImageIO.read(is);
-                    if (image != null)
-                    {
-                        images.put(spriteReferenceOccurrence, image);
-                    }
-                    else
-                    {
-                        messageLog.warning(
-                            MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
-                            realImagePath);
-                    }
-                }
-                else
+    /**
+     * Returns the id of the first part whose sprite id or image file is already used,
+     * <code>null</code> if there is none. Otherwise, adds the ids and image files of
+     * the parts to the used ones.
+     */
+    private String getConflictingPartId(Collection<SpriteImageDirective> parts,
+        SpriteImageOccurrence spriteImageOccurrence, Set<String> usedSpriteIds,
+        Set<String> usedImageFiles)
+    {
+        for (SpriteImageDirective part : parts)
+        {
+            if (usedSpriteIds.contains(part.spriteId)
+                || usedImageFiles.contains(getImageFile(spriteImageOccurrence.cssFile,
+                    part)))
+            {
+                return part.spriteId;
+            }
+        }
+        for (SpriteImageDirective part : parts)
+        {
+            usedSpriteIds.add(part.spriteId);
+            usedImageFiles.add(getImageFile(spriteImageOccurrence.cssFile, part));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the image file of the sprite, with the sprite id variable resolved and
+     * other variables unresolved.
+     */
+    private String getImageFile(String cssFile, SpriteImageDirective directive)
+    {
+        return getImageFile(cssFile, directive.imagePath.replace("${"
+            + SpriteImageDirective.PROPERTY_SPRITE_ID + "}", directive.spriteId));
+    }
+
+    /**
+     * Logs the number of bytes of sprite images each route of the usage profile needs
+     * with and without splitting sprites by usage. Only sprites whose split images were
+     * all built in this build are taken into account. Their unsplit images are built
+     * for comparison, but not written.
+     */
+    private void reportUsageSavings(
+        Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId,
+        Map<String, Map<String, SortedSet<String>>> routesBySplitSprite)
+        throws IOException
+    {
+        final Map<String, Long> splitBytes = Maps.newHashMap();
+        final Map<String, Long> unsplitBytes = Maps.newHashMap();
+        for (final Map.Entry<String, Map<String, SortedSet<String>>> entry : routesBySplitSprite
+            .entrySet())
+        {
+            if (!encodedSpriteSizes.keySet().containsAll(entry.getValue().keySet()))
+            {
+                continue;
+            }
+
+            // Measure the sprite image that would have been built without splitting
+            final SpriteImageBuilder unsplitBuilder = new SpriteImageBuilder(parameters,
+                new MessageLog(), resourceHandler);
+            unsplitBuilder.setImageCache(imageCache);
+            final long unsplitSize = unsplitBuilder.measureEncodedSize(
+                spriteImageOccurrencesBySpriteId.get(entry.getKey()),
+                spriteReferenceOccurrencesBySpriteId.get(entry.getKey()));
+
+            final Set<String> spriteRoutes = Sets.newHashSet();
+            for (final Map.Entry<String, SortedSet<String>> part : entry.getValue()
+                .entrySet())
+            {
+                for (String route : part.getValue())
                 {
-                    messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
-                        "Can't read input file!");
-                    continue;
+                    add(splitBytes, route, encodedSpriteSizes.get(part.getKey()));
+                    spriteRoutes.add(route);
                 }
             }
-            catch (final IOException e)
+            for (String route : spriteRoutes)
             {
-                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
-                    "Can't read input file!");
-                continue;
+                add(unsplitBytes, route, unsplitSize);
             }
-            finally
+        }
+
+        for (String route : usageProfile.getRoutes())
+        {
+            if (unsplitBytes.containsKey(route))
             {
-                Closeables.close(is, true);
+                messageLog.info(MessageType.USAGE_PROFILE_ROUTE_SAVINGS, route,
+                    splitBytes.get(route), unsplitBytes.get(route),
+                    unsplitBytes.get(route) - splitBytes.get(route));
             }
+        }
+    }
 
-            messageLog.setCssFile(null);
+    private static void add(Map<String, Long> totals, String key, long value)
+    {
+        final Long total = totals.get(key);
+        totals.put(key, total != null ? total + value : value);
+    }
+
+    /**
+     * Builds the sprite image for the provided references and returns the number of
+     * bytes of its encoded main image, without writing it.
+     */
+    private long measureEncodedSize(SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrenceCollection)
+        throws IOException
+    {
+        final List<SpriteReferenceOccurrence> spriteReferenceOccurrences = Lists
+            .newArrayList(spriteReferenceOccurrenceCollection);
+        final List<String> realImagePaths = Lists.newArrayList();
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            realImagePaths.add(resourceHandler.getResourcePath(
+                spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath));
         }
 
-        // Build the sprite image bitmap
-        final SpriteImage spriteImage = SpriteImageBuilder.buildSpriteImage(
-            spriteImageOccurrence, images, messageLog);
+        final SpriteImage spriteImage = composeSpriteImage(spriteImageOccurrence,
+            spriteReferenceOccurrences, realImagePaths);
         if (spriteImage == null)
         {
-            return Collections
-                .<SpriteReferenceOccurrence, SpriteReferenceReplacement> emptyMap();
+            return 0;
         }
 
-        // Render the sprite into the required formats, perform quantization if needed
-        final BufferedImage [] mergedImages = spriteImageRenderer.render(spriteImage);
+        final CountingOutputStream out = new CountingOutputStream(ByteStreams
+            .nullOutputStream());
+        encode(toWritableImage(spriteImageRenderer.render(spriteImage)[0],
+            spriteImageOccurrence.spriteImageDirective.format),
+            spriteImageOccurrence.spriteImageDirective.format, out);
+        return out.getCount();
+    }
 
-        writeSprite(spriteImage, mergedImages[0], false);
-        if (mergedImages[1] != null)
+    /**
+     * Splits the references of a sprite into groups whose sprite images fit in the size
+     * limits of the sprite. The images are assigned to groups in the order of their first
+     * occurrences, each group receives as many images as fit in the limits. Occurrences
+     * of the same image with the same layout properties stay in one group. Image
+     * dimensions are read from image headers.
+     */
+    private List<List<SpriteReferenceOccurrence>> splitIntoShards(
+        SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences)
+    {
+        final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+
+        // Find the distinct regions and the dimensions of their images
+        final Map<Object, SpriteReferenceOccurrence> regionOccurrences = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, SpriteReferenceOccurrence> regionOfOccurrence = Maps
+            .newHashMap();
+        final Map<SpriteReferenceOccurrence, Dimension> imageSizes = Maps.newHashMap();
+        final Map<SpriteReferenceOccurrence, String> imagePaths = Maps.newHashMap();
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
         {
-            // Write IE6 version if generated
-            writeSprite(spriteImage, mergedImages[1], true);
+            messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+            messageLog.setLine(spriteReferenceOccurrence.line);
+            final String realImagePath = resourceHandler.getResourcePath(
+                spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath);
+            final Object regionKey = regionKey(realImagePath, spriteReferenceOccurrence);
+
+            SpriteReferenceOccurrence regionOccurrence = regionOccurrences.get(regionKey);
+            if (regionOccurrence == null)
+            {
+                regionOccurrence = spriteReferenceOccurrence;
+                regionOccurrences.put(regionKey, regionOccurrence);
+                imagePaths.put(regionOccurrence, realImagePath);
+
+                // Broken images are reported when the sprite is built
+                Dimension imageSize;
+                try
+                {
+                    imageSize = readImageSize(realImagePath);
+                }
+                catch (IOException e)
+                {
+                    imageSize = null;
+                }
+                imageSizes.put(regionOccurrence, imageSize != null ? imageSize
+                    : new Dimension());
+            }
+            regionOfOccurrence.put(spriteReferenceOccurrence, regionOccurrence);
         }
 
-        return spriteImage.spriteReferenceReplacements;
+        // Assign the longest runs of regions that fit in the limits to shards
+        final List<SpriteReferenceOccurrence> regions = Lists
+            .newArrayList(regionOccurrences.values());
+        final Map<SpriteReferenceOccurrence, Integer> shardOfRegion = Maps.newHashMap();
+        int shardCount = 0;
+        for (int start = 0; start < regions.size(); shardCount++)
+        {
+            int low = start + 1;
+            int high = regions.size();
+            while (low < high)
+            {
+                final int middle = (low + high + 1) >>> 1;
+                if (fitsSizeLimits(directive, regions.subList(start, middle), imageSizes))
+                {
+                    low = middle;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+
+            if (low == start + 1
+                && !fitsSizeLimits(directive, regions.subList(start, low), imageSizes))
+            {
+                final SpriteReferenceOccurrence region = regions.get(start);
+                messageLog.setCssFile(region.cssFile);
+                messageLog.setLine(region.line);
+                messageLog.warning(MessageType.IMAGE_EXCEEDS_SPRITE_LIMITS,
+                    imagePaths.get(region), directive.spriteId);
+            }
+
+            for (final SpriteReferenceOccurrence region : regions.subList(start, low))
+            {
+                shardOfRegion.put(region, shardCount);
+            }
+            start = low;
+        }
+        messageLog.setCssFile(null);
+
+        final List<List<SpriteReferenceOccurrence>> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++)
+        {
+            shards.add(Lists.<SpriteReferenceOccurrence> newArrayList());
+        }
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            shards.get(shardOfRegion.get(regionOfOccurrence.get(spriteReferenceOccurrence)))
+                .add(spriteReferenceOccurrence);
+        }
+        return shards;
     }
 
     /**
-     * Writes sprite image to the disk.
-     * @throws IOException 
+     * Returns <code>true</code> if the sprite image laid out from the provided distinct
+     * regions fits in the size limits of the sprite. For sprites generated at several
+     * pixel densities, the image of the highest density must fit.
      */
-    private void writeSprite(SpriteImage spriteImage, final BufferedImage mergedImage,
-        boolean ie6Reduced) throws IOException
+    private static boolean fitsSizeLimits(SpriteImageDirective directive,
+        List<SpriteReferenceOccurrence> regions,
+        Map<SpriteReferenceOccurrence, Dimension> imageSizes)
     {
-        final SpriteImageOccurrence spriteImageOccurrence = spriteImage.spriteImageOccurrence;
-        final SpriteImageDirective spriteImageDirective = spriteImageOccurrence.spriteImageDirective;
+        final Map<SpriteReferenceOccurrence, Dimension> regionSizes = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, Object> regionKeys = Maps.newHashMap();
+        for (final SpriteReferenceOccurrence region : regions)
+        {
+            regionSizes.put(region, imageSizes.get(region));
+            regionKeys.put(region, region);
+        }
 
-        // Write the image to a byte array first. We need the data to compute an md5 hash.
-        final ByteArrayOutputStream spriteImageByteArrayOuputStream = new ByteArrayOutputStream();
+        // Scale warnings are reported when the sprite is built
+        final Dimension spriteSize = layOut(directive.layout, regionSizes, regionKeys,
+            directive.hasResolutions() ? 1.0f : directive.scaleRatio,
+            Maps.<SpriteReferenceOccurrence, Point> newHashMap(),
+            Maps.<SpriteReferenceOccurrence, SpriteReferenceReplacement> newHashMap(),
+            new MessageLog());
+        final int density = directive.hasResolutions() ? directive.resolutions
+            .get(directive.resolutions.size() - 1) : 1;
+        return directive.fitsSizeLimits(spriteSize.width * density, spriteSize.height
+            * density);
+    }
 
-        // If writing to a JPEG, we need to make a 3-byte-encoded image
-        final BufferedImage imageToWrite;
-        if (SpriteImageFormat.JPG.equals(spriteImageDirective.format))
+    /**
+     * Builds sprite images using a pool of worker threads. Messages logged while
+     * building each sprite are collected in a separate {@link MessageLog.Task} and passed
+     * to the log in the order in which the sprites would have been built serially.
+     */
+    private List<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>> buildSpriteReplacementsConcurrently(
+        final Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Collection<Map.Entry<String, Collection<SpriteReferenceOccurrence>>> sprites,
+        int threads) throws IOException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
         {
-            imageToWrite = new BufferedImage(mergedImage.getWidth(),
-                mergedImage.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-            BufferedImageUtils.drawImage(mergedImage, imageToWrite, 0, 0);
+            final MessageLog.Task [] tasks = new MessageLog.Task [sprites.size()];
+            final List<Future<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>>> futures = Lists
+                .newArrayList();
+            for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : sprites)
+            {
+                final int index = futures.size();
+                futures.add(executor
+                    .submit(new Callable<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>>()
+                    {
+                        public Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> call()
+                            throws IOException
+                        {
+                            tasks[index] = messageLog.beginTask();
+                            try
+                            {
+                                return buildSpriteReplacements(
+                                    spriteImageOccurrencesBySpriteId
+                                        .get(spriteReferenceOccurrences.getKey()),
+                                    spriteReferenceOccurrences.getValue());
+                            }
+                            finally
+                            {
+                                tasks[index].end();
+                            }
+                        }
+                    }));
+            }
+
+            final List<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>> result = Lists
+                .newArrayList();
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    result.add(futures.get(i).get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Sprite building interrupted");
+                }
+                catch (ExecutionException e)
+                {
+                    Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                    throw new RuntimeException(e.getCause());
+                }
+                finally
+                {
+                    if (tasks[i] != null)
+                    {
+                        tasks[i].commit();
+                    }
+                }
+            }
+            return result;
         }
-        else
+        finally
         {
-            imageToWrite = mergedImage;
+            executor.shutdownNow();
         }
+    }
+
+    /**
+     * Builds sprite image for a single sprite image directive.
+     * @throws IOException 
+     */
+    Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> buildSpriteReplacements(
+        SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrenceCollection)
+        throws IOException
+    {
+        final List<SpriteReferenceOccurrence> spriteReferenceOccurrences = Lists
+            .newArrayList(spriteReferenceOccurrenceCollection);
+
+        // Resolve image paths
+        final List<String> realImagePaths = Lists.newArrayList();
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+            messageLog.setLine(spriteReferenceOccurrence.line);
+            realImagePaths.add(resourceHandler.getResourcePath(
+                spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath));
+        }
+        messageLog.setCssFile(null);
+
+        // Skip the sprite if nothing changed since the previous build
+        String inputsHash = null;
+        if (buildManifest != null)
+        {
+            inputsHash = buildManifest.computeInputsHash(parameters,
+                spriteImageOccurrence, spriteReferenceOccurrences, realImagePaths,
+                resourceHandler);
+            final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> replayed = buildManifest
+                .replay(inputsHash, spriteImageOccurrence, spriteReferenceOccurrences,
+                    resourceHandler);
+            if (replayed != null)
+            {
+                messageLog.info(MessageType.SPRITE_IMAGE_UP_TO_DATE,
+                    spriteImageOccurrence.spriteImageDirective.spriteId);
+                return replayed;
+            }
+        }
+
+        rebuiltSpriteIds.add(spriteImageOccurrence.spriteImageDirective.spriteId);
+
+        // Build the sprite image bitmap
+        final SpriteImage spriteImage = composeSpriteImage(spriteImageOccurrence,
+            spriteReferenceOccurrences, realImagePaths);
+        if (spriteImage == null)
+        {
+            return Collections
+                .<SpriteReferenceOccurrence, SpriteReferenceReplacement> emptyMap();
+        }
+
+        // Render the sprite into the required formats, perform quantization if needed
+        final BufferedImage [] mergedImages = spriteImageRenderer.render(spriteImage);
+
+        final Map<String, String> outputs = Maps.newLinkedHashMap();
+        writeSprite(spriteImage, mergedImages[0], false, outputs);
+        if (mergedImages[1] != null)
+        {
+            // Write IE6 version if generated
+            writeSprite(spriteImage, mergedImages[1], true, outputs);
+        }
+        writeFormatVariants(spriteImage, mergedImages[0], outputs);
+        for (SpriteImage resolutionVariant : spriteImage.resolutionVariants)
+        {
+            final BufferedImage mergedImage = spriteImageRenderer
+                .render(resolutionVariant)[0];
+            writeSprite(resolutionVariant, mergedImage, false, outputs);
+            writeFormatVariants(resolutionVariant, mergedImage, outputs);
+        }
+
+        if (buildManifest != null)
+        {
+            buildManifest.record(inputsHash, spriteImage, spriteReferenceOccurrences,
+                outputs);
+        }
+
+        return spriteImage.spriteReferenceReplacements;
+    }
+
+    /**
+     * Builds the sprite image bitmap in the way the sprite and the parameters require.
+     */
+    private SpriteImage composeSpriteImage(SpriteImageOccurrence spriteImageOccurrence,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths) throws IOException
+    {
+        if (spriteImageOccurrence.spriteImageDirective.hasResolutions())
+        {
+            return buildMultiResolutionSpriteImage(spriteImageOccurrence,
+                spriteReferenceOccurrences, realImagePaths);
+        }
+        else if (parameters.isStreamingComposition())
+        {
+            return buildSpriteImageStreaming(spriteImageOccurrence,
+                spriteReferenceOccurrences, realImagePaths);
+        }
+        else
+        {
+            return SpriteImageBuilder.buildSpriteImage(spriteImageOccurrence,
+                loadImages(spriteReferenceOccurrences, realImagePaths), messageLog);
+        }
+    }
+
+    /**
+     * Loads the individual images into memory, reusing the images decoded before.
+     */
+    private Map<SpriteReferenceOccurrence, BufferedImage> loadImages(
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths)
+    {
+        final Map<SpriteReferenceOccurrence, BufferedImage> images = Maps
+            .newLinkedHashMap();
+        for (int i = 0; i < spriteReferenceOccurrences.size(); i++)
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = spriteReferenceOccurrences
+                .get(i);
+            messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+            messageLog.setLine(spriteReferenceOccurrence.line);
+
+            final String realImagePath = realImagePaths.get(i);
+            final BufferedImage image;
+            try
+            {
+                image = imageCache.get(realImagePath, resourceHandler);
+            }
+            catch (final IOException e)
+            {
+                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                    "Can't read input file!");
+                continue;
+            }
+
+            messageLog.info(MessageType.READING_IMAGE, realImagePath);
+            if (image != null)
+            {
+                images.put(spriteReferenceOccurrence, image);
+            }
+            else
+            {
+                messageLog.warning(MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
+                    realImagePath);
+            }
+
+            messageLog.setCssFile(null);
+        }
+        return images;
+    }
+
+    /**
+     * Builds the sprite image without holding all individual images in memory at the
+     * same time. The layout is computed from image dimensions read from image headers,
+     * then the individual images are decoded one by one and rendered directly onto the
+     * sprite image. Occurrences of the same image file with the same layout properties
+     * share one region of the sprite image. Unlike
+     * {@link #buildSpriteImage(SpriteImageOccurrence, Map, MessageLog)}, identical
+     * images stored in different files are not detected.
+     */
+    private SpriteImage buildSpriteImageStreaming(
+        SpriteImageOccurrence spriteImageOccurrence,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths)
+    {
+        final SpriteImageLayout layout = spriteImageOccurrence.spriteImageDirective.layout;
+        final float spriteScale = spriteImageOccurrence.spriteImageDirective.scaleRatio;
+        final Map<SpriteReferenceOccurrence, Dimension> imageSizes = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, String> imagePaths = Maps.newHashMap();
+        final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, Point> regions = Maps.newLinkedHashMap();
+        final Dimension spriteSize = layOutImageHeaders(layout, spriteScale,
+            spriteReferenceOccurrences, realImagePaths, imageSizes, imagePaths, regions,
+            spriteReplacements);
+
+        final int spriteWidth = spriteSize.width;
+        final int spriteHeight = spriteSize.height;
+        if (spriteWidth == 0 || spriteHeight == 0)
+        {
+            return null;
+        }
+        checkSpriteScale(spriteImageOccurrence, spriteWidth, spriteHeight, spriteScale,
+            messageLog);
+
+        // Decode the images one by one and render them onto the sprite
+        final int dimension = SpriteImageLayout.HORIZONTAL.equals(layout) ? spriteHeight
+            : spriteWidth;
+        final BufferedImage sprite = new BufferedImage(spriteWidth, spriteHeight,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        for (final Map.Entry<SpriteReferenceOccurrence, Point> entry : regions.entrySet())
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            final String realImagePath = imagePaths.get(spriteReferenceOccurrence);
+            final Dimension imageSize = imageSizes.get(spriteReferenceOccurrence);
+            messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+            messageLog.setLine(spriteReferenceOccurrence.line);
+
+            final BufferedImage image = readImage(realImagePath);
+            if (image == null || image.getWidth() != imageSize.width
+                || image.getHeight() != imageSize.height)
+            {
+                // The image changed or turned out to be broken after reading its header
+                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                    "Can't read input file!");
+                continue;
+            }
+
+            spriteReferenceOccurrence.render(image, layout, dimension, sprite,
+                entry.getValue().x, entry.getValue().y);
+        }
+        messageLog.setCssFile(null);
+
+        return new SpriteImage(sprite, spriteImageOccurrence, spriteReplacements,
+            spriteWidth, spriteHeight, spriteScale);
+    }
+
+    /**
+     * Lays out a sprite image using the dimensions of the individual images read from
+     * image headers. Occurrences of the same image file with the same layout properties
+     * share one region.
+     * 
+     * @param imageSizes receives the dimensions of the images that could be read
+     * @param imagePaths receives the paths of the images that could be read
+     * @param regions receives the position of each distinct region, keyed by its first
+     *            occurrence
+     * @param spriteReplacements receives the replacements of all occurrences
+     * @return the size of the sprite image
+     */
+    private Dimension layOutImageHeaders(SpriteImageLayout layout, float spriteScale,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths, Map<SpriteReferenceOccurrence, Dimension> imageSizes,
+        Map<SpriteReferenceOccurrence, String> imagePaths,
+        Map<SpriteReferenceOccurrence, Point> regions,
+        Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements)
+    {
+        // Read image dimensions only
+        for (int i = 0; i < spriteReferenceOccurrences.size(); i++)
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = spriteReferenceOccurrences
+                .get(i);
+            messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+            messageLog.setLine(spriteReferenceOccurrence.line);
+
+            final String realImagePath = realImagePaths.get(i);
+            final Dimension imageSize;
+            try
+            {
+                imageSize = readImageSize(realImagePath);
+            }
+            catch (final IOException e)
+            {
+                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                    "Can't read input file!");
+                continue;
+            }
+
+            messageLog.info(MessageType.READING_IMAGE, realImagePath);
+            if (imageSize != null)
+            {
+                imageSizes.put(spriteReferenceOccurrence, imageSize);
+                imagePaths.put(spriteReferenceOccurrence, realImagePath);
+            }
+            else
+            {
+                messageLog.warning(MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
+                    realImagePath);
+            }
+
+            messageLog.setCssFile(null);
+        }
+
+        // Lay out the images
+        final Map<SpriteReferenceOccurrence, Object> regionKeys = Maps.newHashMap();
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : imageSizes
+            .keySet())
+        {
+            regionKeys.put(spriteReferenceOccurrence, regionKey(
+                imagePaths.get(spriteReferenceOccurrence), spriteReferenceOccurrence));
+        }
+        return layOut(layout, imageSizes, regionKeys, spriteScale, regions,
+            spriteReplacements, messageLog);
+    }
+
+    /**
+     * Builds the images of a sprite at all pixel densities listed in
+     * {@link SpriteImageDirective#resolutions}. The layout is computed once, treating the
+     * individual images referenced in CSS as 1x images, and shared by all densities.
+     * Occurrences of the same image file with the same layout properties share one
+     * region. For each density, the <code>@2x</code>, <code>@3x</code>, etc. variants of
+     * the individual images are rendered at the positions multiplied by the density.
+     * Variants that do not exist are resampled from the highest density variant
+     * available.
+     * 
+     * @return the sprite image of the lowest density, with the images of the higher
+     *         densities in {@link SpriteImage#resolutionVariants}
+     */
+    private SpriteImage buildMultiResolutionSpriteImage(
+        final SpriteImageOccurrence spriteImageOccurrence,
+        List<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths) throws IOException
+    {
+        final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+        final SpriteImageLayout layout = directive.layout;
+        final Map<SpriteReferenceOccurrence, Dimension> imageSizes = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, String> imagePaths = Maps.newHashMap();
+        final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, Point> regions = Maps.newLinkedHashMap();
+        final Dimension spriteSize = layOutImageHeaders(layout, 1.0f,
+            spriteReferenceOccurrences, realImagePaths, imageSizes, imagePaths, regions,
+            spriteReplacements);
+        if (spriteSize.width == 0 || spriteSize.height == 0)
+        {
+            return null;
+        }
+
+        // Load the images of all densities first, so that messages are logged in order
+        final List<Integer> resolutions = directive.resolutions;
+        final List<Map<SpriteReferenceOccurrence, BufferedImage>> imagesByResolution = Lists
+            .newArrayList();
+        for (int density : resolutions)
+        {
+            final Map<SpriteReferenceOccurrence, BufferedImage> images = Maps
+                .newLinkedHashMap();
+            for (final SpriteReferenceOccurrence spriteReferenceOccurrence : regions
+                .keySet())
+            {
+                messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+                messageLog.setLine(spriteReferenceOccurrence.line);
+                final BufferedImage image = readResolutionVariant(
+                    imagePaths.get(spriteReferenceOccurrence),
+                    imageSizes.get(spriteReferenceOccurrence), density, resolutions);
+                if (image != null)
+                {
+                    images.put(spriteReferenceOccurrence, image);
+                }
+            }
+            imagesByResolution.add(images);
+        }
+        messageLog.setCssFile(null);
+
+        // Render the densities, concurrently if allowed
+        final int dimension = SpriteImageLayout.HORIZONTAL.equals(layout) ? spriteSize.height
+            : spriteSize.width;
+        final List<Callable<BufferedImage>> renderings = Lists.newArrayList();
+        for (int i = 0; i < resolutions.size(); i++)
+        {
+            final int density = resolutions.get(i);
+            final Map<SpriteReferenceOccurrence, BufferedImage> images = imagesByResolution
+                .get(i);
+            renderings.add(new Callable<BufferedImage>()
+            {
+                public BufferedImage call()
+                {
+                    final BufferedImage sprite = new BufferedImage(spriteSize.width
+                        * density, spriteSize.height * density,
+                        BufferedImage.TYPE_4BYTE_ABGR);
+                    for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
+                        .entrySet())
+                    {
+                        final Point position = regions.get(entry.getKey());
+                        entry.getKey().render(entry.getValue(), layout,
+                            dimension * density, sprite, position.x * density,
+                            position.y * density, density);
+                    }
+                    return sprite;
+                }
+            });
+        }
+        final List<BufferedImage> sprites = call(renderings, Math.min(
+            parameters.getPixelParallelism(), renderings.size()));
+
+        SpriteImage result = null;
+        for (int i = 0; i < resolutions.size(); i++)
+        {
+            final int density = resolutions.get(i);
+            final SpriteImageOccurrence resolutionOccurrence = density == 1 ? spriteImageOccurrence
+                : new SpriteImageOccurrence(directive.resolution(density),
+                    spriteImageOccurrence.cssFile, spriteImageOccurrence.line);
+            if (result == null)
+            {
+                result = new SpriteImage(sprites.get(i), resolutionOccurrence,
+                    spriteReplacements, spriteSize.width * density, spriteSize.height
+                        * density, density);
+            }
+            else
+            {
+                result.resolutionVariants.add(new SpriteImage(sprites.get(i),
+                    resolutionOccurrence, Maps
+                        .<SpriteReferenceOccurrence, SpriteReferenceReplacement> newHashMap(),
+                    spriteSize.width * density, spriteSize.height * density, density));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the variant of the individual image for the provided pixel density, sized
+     * exactly as the image multiplied by the density. The variant's file name has the
+     * density suffix, e.g. <code>logo@2x.png</code>, the image itself is the 1x variant.
+     * Missing variants are resampled from the highest density variant available.
+     * Returns <code>null</code> if the image cannot be read.
+     */
+    private BufferedImage readResolutionVariant(String realImagePath, Dimension imageSize,
+        int density, List<Integer> resolutions)
+    {
+        final int width = imageSize.width * density;
+        final int height = imageSize.height * density;
+        if (density == 1)
+        {
+            final BufferedImage image = readImage(realImagePath);
+            if (image == null || image.getWidth() != width || image.getHeight() != height)
+            {
+                // The image changed or turned out to be broken after reading its header
+                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                    "Can't read input file!");
+                return null;
+            }
+            return image;
+        }
+
+        final String variantPath = getResolutionVariantPath(realImagePath, density);
+        final BufferedImage variant = readImage(variantPath);
+        if (variant != null)
+        {
+            if (variant.getWidth() == width && variant.getHeight() == height)
+            {
+                return variant;
+            }
+            messageLog.warning(MessageType.RESOLUTION_VARIANT_SIZE_MISMATCH, variantPath,
+                width, height, density);
+            return BufferedImageUtils.resample(variant, width, height);
+        }
+
+        // Resample the highest density variant available, the image itself at worst
+        String sourcePath = realImagePath;
+        BufferedImage source = null;
+        for (int i = resolutions.size() - 1; i >= 0 && source == null; i--)
+        {
+            final int sourceDensity = resolutions.get(i);
+            if (sourceDensity != density && sourceDensity != 1)
+            {
+                sourcePath = getResolutionVariantPath(realImagePath, sourceDensity);
+                source = readImage(sourcePath);
+            }
+        }
+        if (source == null)
+        {
+            sourcePath = realImagePath;
+            source = readImage(sourcePath);
+        }
+        if (source == null)
+        {
+            messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                "Can't read input file!");
+            return null;
+        }
+
+        messageLog.info(MessageType.RESAMPLING_IMAGE, density, realImagePath, sourcePath);
+        return BufferedImageUtils.resample(source, width, height);
+    }
+
+    /**
+     * Returns the path of the variant of an individual image for the provided pixel
+     * density, e.g. <code>img/logo@2x.png</code> for <code>img/logo.png</code>.
+     */
+    static String getResolutionVariantPath(String realImagePath, int density)
+    {
+        return SpriteImage.addSuffix(realImagePath,
+            SpriteImageDirective.getResolutionSuffix(density));
+    }
+
+    /**
+     * Decodes an individual image, returns <code>null</code> if the image does not exist
+     * or cannot be decoded.
+     */
+    private BufferedImage readImage(String realImagePath)
+    {
+        try
+        {
+            return imageCache.get(realImagePath, resourceHandler);
+        }
+        catch (final IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the tasks, concurrently in up to <code>threads</code> threads, and returns
+     * their results in the order of the tasks.
+     */
+    private static <T> List<T> call(List<Callable<T>> tasks, int threads)
+        throws IOException
+    {
+        final List<T> results = Lists.newArrayList();
+        if (threads <= 1)
+        {
+            for (Callable<T> task : tasks)
+            {
+                try
+                {
+                    results.add(task.call());
+                }
+                catch (Exception e)
+                {
+                    Throwables.propagateIfPossible(e, IOException.class);
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<T> future : executor.invokeAll(tasks))
+            {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sprite rendering interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the dimensions of an individual image from its header.
+     */
+    private Dimension readImageSize(String realImagePath) throws IOException
+    {
+        final InputStream is = resourceHandler.getResourceAsInputStream(realImagePath);
+        if (is == null)
+        {
+            throw new FileNotFoundException(realImagePath);
+        }
+
+        try
+        {
+            return ImageUtils.readSize(is);
+        }
+        finally
+        {
+            Closeables.close(is, true);
+        }
+    }
+
+    /**
+     * Makes this builder keep the state of the last build in memory, so that subsequent
+     * builds in the same process reuse the sprite images whose inputs have not changed.
+     * Files that changed between builds must be reported using
+     * {@link #invalidate(String)}.
+     */
+    void setRetainBuildState(boolean retainBuildState)
+    {
+        this.retainBuildState = retainBuildState;
+    }
+
+    /**
+     * Discards the retained state related to the provided file.
+     */
+    void invalidate(String path)
+    {
+        imageCache.invalidate(path);
+        if (buildManifest != null)
+        {
+            buildManifest.invalidate(path);
+        }
+    }
+
+    /**
+     * Discards all the retained state, including the file digests of the retained build
+     * manifest. The next build starts from the manifest saved on disk, if any.
+     */
+    void invalidateAll()
+    {
+        imageCache.invalidateAll();
+        buildManifest = null;
+    }
+
+    /**
+     * Returns the cache of decoded source images used by this builder.
+     */
+    DecodedImageCache getImageCache()
+    {
+        return imageCache;
+    }
+
+    /**
+     * Makes this builder use the provided cache of decoded source images, e.g. one shared
+     * with other builders.
+     */
+    void setImageCache(DecodedImageCache imageCache)
+    {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Returns the ids of sprites that were built, rather than reused from the previous
+     * build, in the last {@link #buildSpriteImages(Map, Multimap)} call.
+     */
+    Set<String> getRebuiltSpriteIds()
+    {
+        return rebuiltSpriteIds;
+    }
+
+    /**
+     * Returns paths of the sprite image files written or reused in the last build, if the
+     * build state is retained.
+     */
+    Set<String> getSpriteImageFiles()
+    {
+        return buildManifest != null ? buildManifest.getOutputs() : Collections
+            .<String> emptySet();
+    }
+
+    /**
+     * Writes sprite image to the disk. The image is encoded into a temporary file, its md5
+     * hash is computed on the way, and the file is then moved to the sprite image path
+     * resolved with the hash. If the resource handler cannot move resources, the image
+     * is encoded in memory and written directly to its path. If writing succeeds, the md5
+     * hash of the written file is put to the provided outputs map, keyed by the file path.
+     */
+    private void writeSprite(SpriteImage spriteImage, final BufferedImage mergedImage,
+        boolean ie6Reduced, Map<String, String> outputs) throws IOException
+    {
+        final SpriteImageOccurrence spriteImageOccurrence = spriteImage.spriteImageOccurrence;
+        final SpriteImageDirective spriteImageDirective = spriteImageOccurrence.spriteImageDirective;
 
+        final BufferedImage imageToWrite = toWritableImage(mergedImage,
+            spriteImageDirective.format);
+
+        // The hash is not known yet, the temporary file goes next to the sprite image.
+        // Paths of different sprites may be equal without the hash, so the temporary
+        // file path is unique for each write.
+        final String imageFile = getImageFile(spriteImageOccurrence.cssFile,
+            removeQueryString(spriteImage.getImagePath("", timestamp, ie6Reduced)));
+        String temporaryImageFile = null;
+        final ByteArrayOutputStream spriteImageBytes = resourceHandler
+            instanceof MutableResourceHandler ? null : new ByteArrayOutputStream();
+        final MessageDigest digest = SpriteBuildManifest.newDigest();
+
+        OutputStream temporaryOutputStream = null;
+        CountingOutputStream countingOutputStream = null;
         try
         {
-            ImageIO.write(imageToWrite, spriteImageDirective.format.toString(),
-                spriteImageByteArrayOuputStream);
+            if (spriteImageBytes == null)
+            {
+                temporaryImageFile = ((MutableResourceHandler) resourceHandler)
+                    .createTemporaryResource(imageFile, TEMPORARY_FILE_SUFFIX);
+            }
+            countingOutputStream = new CountingOutputStream(
+                temporaryImageFile != null ? new BufferedOutputStream(resourceHandler
+                    .getResourceAsOutputStream(temporaryImageFile)) : spriteImageBytes);
+            temporaryOutputStream = new DigestOutputStream(countingOutputStream, digest);
+            try
+            {
+                encode(imageToWrite, spriteImageDirective.format, temporaryOutputStream);
+            }
+            catch (IOException e)
+            {
+                // Unlikely to happen.
+                messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE,
+                    spriteImageDirective.imagePath, e.getMessage());
+            }
+            temporaryOutputStream.close();
         }
-        catch (IOException e)
+        catch (final IOException e)
         {
-            // Unlikely to happen.
             messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE,
-                spriteImageDirective.imagePath, e.getMessage());
+                temporaryImageFile != null ? temporaryImageFile : imageFile,
+                e.getMessage());
+            Closeables.close(temporaryOutputStream, true);
+            if (temporaryImageFile != null)
+            {
+                // Unique temporary files would otherwise pile up
+                try
+                {
+                    ((MutableResourceHandler) resourceHandler)
+                        .deleteResource(temporaryImageFile);
+                }
+                catch (IOException ignored)
+                {
+                    // The write failure has been reported already
+                }
+            }
+            return;
+        }
+        finally
+        {
+            Closeables.close(temporaryOutputStream, true);
         }
 
-        // Build file name
-        byte [] spriteImageBytes = spriteImageByteArrayOuputStream.toByteArray();
-        String resolvedImagePath = spriteImage.resolveImagePath(spriteImageBytes,
-            timestamp, ie6Reduced);
-        if (resolvedImagePath.indexOf('?') >= 0)
+        if (!ie6Reduced)
         {
-            resolvedImagePath = resolvedImagePath.substring(0,
-                resolvedImagePath.indexOf('?'));
+            // The image of the lowest density is written first
+            encodedSpriteSizes.putIfAbsent(spriteImageDirective.spriteId,
+                countingOutputStream.getCount());
         }
 
-        // Save the image to the disk
+        // Build file name
+        final String md5 = SpriteBuildManifest.toHex(digest.digest());
         final String mergedImageFile = getImageFile(spriteImageOccurrence.cssFile,
-            resolvedImagePath);
+            removeQueryString(spriteImage.resolveImagePath(md5, timestamp, ie6Reduced)));
 
-        OutputStream spriteImageOuputStream = null;
+        // Move the image to its place, unless the existing file has the same content
         try
         {
-            messageLog.info(MessageType.WRITING_SPRITE_IMAGE, mergedImage.getWidth(),
-                mergedImage.getHeight(), spriteImageDirective.spriteId, mergedImageFile);
-            spriteImageOuputStream = resourceHandler
-                .getResourceAsOutputStream(mergedImageFile);
-
-            spriteImageOuputStream.write(spriteImageBytes);
+            if (parameters.isSkipUnchangedOutputs()
+                && md5.equals(SpriteBuildManifest.computeMd5(mergedImageFile,
+                    resourceHandler)))
+            {
+                messageLog.info(MessageType.SPRITE_IMAGE_UNCHANGED,
+                    spriteImageDirective.spriteId, mergedImageFile);
+                if (temporaryImageFile != null)
+                {
+                    ((MutableResourceHandler) resourceHandler)
+                        .deleteResource(temporaryImageFile);
+                }
+            }
+            else
+            {
+                messageLog.info(MessageType.WRITING_SPRITE_IMAGE, mergedImage.getWidth(),
+                    mergedImage.getHeight(), spriteImageDirective.spriteId,
+                    mergedImageFile);
+                if (temporaryImageFile != null)
+                {
+                    ((MutableResourceHandler) resourceHandler).moveResource(
+                        temporaryImageFile, mergedImageFile);
+                }
+                else
+                {
+                    writeResource(mergedImageFile, spriteImageBytes.toByteArray());
+                }
+            }
+            outputs.put(mergedImageFile, md5);
         }
         catch (final IOException e)
         {
             messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE, mergedImageFile,
                 e.getMessage());
         }
+    }
+
+    /**
+     * Writes the content to the resource at the provided path.
+     */
+    private void writeResource(String path, byte [] content) throws IOException
+    {
+        OutputStream outputStream = null;
+        try
+        {
+            outputStream = resourceHandler.getResourceAsOutputStream(path);
+            outputStream.write(content);
+            outputStream.close();
+        }
         finally
         {
-            Closeables.close(spriteImageOuputStream, true);
+            Closeables.close(outputStream, true);
+        }
+    }
+
+    /**
+     * Writes the sprite image in its {@link SpriteImageDirective#alternativeFormats},
+     * adding the images to {@link SpriteImage#formatVariants}. WebP images keep all
+     * colors and the alpha channel of the sprite, images in other formats are written
+     * from the image rendered for the fallback format.
+     */
+    private void writeFormatVariants(SpriteImage spriteImage, BufferedImage mergedImage,
+        Map<String, String> outputs) throws IOException
+    {
+        final SpriteImageOccurrence occurrence = spriteImage.spriteImageOccurrence;
+        final SpriteImageDirective directive = occurrence.spriteImageDirective;
+        for (SpriteImageFormat format : directive.alternativeFormats)
+        {
+            final SpriteImage formatVariant = new SpriteImage(spriteImage.sprite,
+                new SpriteImageOccurrence(directive.format(format), occurrence.cssFile,
+                    occurrence.line),
+                Maps.<SpriteReferenceOccurrence, SpriteReferenceReplacement> newHashMap(),
+                spriteImage.spriteWidth, spriteImage.spriteHeight, spriteImage.scaleRatio);
+            writeSprite(formatVariant, format == SpriteImageFormat.WEBP
+                ? spriteImage.sprite : mergedImage, false, outputs);
+            spriteImage.formatVariants.add(formatVariant);
+        }
+    }
+
+    /**
+     * Returns the image in a form that can be encoded in the provided format.
+     */
+    private static BufferedImage toWritableImage(BufferedImage mergedImage,
+        SpriteImageFormat format)
+    {
+        // If writing to a JPEG, we need to make a 3-byte-encoded image
+        if (SpriteImageFormat.JPG.equals(format))
+        {
+            final BufferedImage imageToWrite = new BufferedImage(mergedImage.getWidth(),
+                mergedImage.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            BufferedImageUtils.drawImage(mergedImage, imageToWrite, 0, 0);
+            return imageToWrite;
         }
+        return mergedImage;
+    }
+
+    /**
+     * Encodes the image in the provided format.
+     */
+    private void encode(BufferedImage image, SpriteImageFormat format, OutputStream out)
+        throws IOException
+    {
+        encoders.get(format).encode(image, out);
+    }
+
+    private static String removeQueryString(String imagePath)
+    {
+        final int queryStart = imagePath.indexOf('?');
+        return queryStart >= 0 ? imagePath.substring(0, queryStart) : imagePath;
     }
 
     /**
@@ -277,32 +1625,24 @@ public class SpriteImageBuilder
     static SpriteImage buildSpriteImage(SpriteImageOccurrence spriteImageOccurrence,
         Map<SpriteReferenceOccurrence, BufferedImage> images, MessageLog messageLog)
     {
-        // First find the least common multiple of the images with 'repeat' alignment
+        // Compute sprite dimension (width for vertical, height for horizontal sprites)
         final SpriteImageLayout layout = spriteImageOccurrence.spriteImageDirective.layout;
         final float spriteScale = spriteImageOccurrence.spriteImageDirective.scaleRatio;
-        final int leastCommonMultiple = SpriteImageBuilder.calculateLeastCommonMultiple(
-            images, layout);
-
-        // Compute sprite dimension (width for vertical, height for horizontal sprites)
         final boolean vertical = layout.equals(SpriteImageLayout.VERTICAL);
-        int dimension = leastCommonMultiple;
+        final Map<SpriteReferenceOccurrence, Dimension> imageSizes = Maps
+            .newLinkedHashMap();
         for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
             .entrySet())
         {
-            final BufferedImage image = entry.getValue();
-            final SpriteReferenceOccurrence spriteReferenceOcurrence = entry.getKey();
-
-            // Compute dimensions
-            dimension = Math.max(dimension,
-                vertical ? spriteReferenceOcurrence.getRequiredWidth(image, layout)
-                    : spriteReferenceOcurrence.getRequiredHeight(image, layout));
+            imageSizes.put(entry.getKey(), new Dimension(entry.getValue().getWidth(),
+                entry.getValue().getHeight()));
         }
-
-        // Correct for least common multiple
-        if (dimension % leastCommonMultiple != 0)
+        if (SpriteImageLayout.PACKED.equals(layout))
         {
-            dimension += leastCommonMultiple - (dimension % leastCommonMultiple);
+            return buildPackedSpriteImage(spriteImageOccurrence, images, imageSizes,
+                messageLog);
         }
+        final int dimension = calculateDimension(imageSizes, layout);
 
         // Compute the other sprite dimension.
         int currentOffset = 0;
@@ -329,14 +1669,9 @@ public class SpriteImageBuilder
                 currentOffset += vertical ? rendered.getHeight() : rendered.getWidth();
             }
 
-            final float scaledImageWidth = spriteReferenceOccurrence.getRequiredWidth(image, layout) / spriteScale;
-            final float scaledImageHeight = spriteReferenceOccurrence.getRequiredHeight(image, layout) / spriteScale;
-            if (Math.round(scaledImageWidth) != scaledImageWidth ||
-                Math.round(scaledImageHeight) != scaledImageHeight)
-            {
-                messageLog.warning(MessageType.IMAGE_FRACTIONAL_SCALE_VALUE,
-                    spriteReferenceOccurrence.imagePath, scaledImageWidth, scaledImageHeight);
-            }
+            checkImageScale(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .getRequiredWidth(image, layout), spriteReferenceOccurrence
+                .getRequiredHeight(image, layout), spriteScale, messageLog);
 
             final int adjustedImageOffset = Math.round(imageOffset / spriteScale);
             spriteReplacements.put(spriteReferenceOccurrence,
@@ -351,14 +1686,8 @@ public class SpriteImageBuilder
             return null;
         }
 
-        final float scaledWidth = spriteWidth / spriteScale;
-        final float scaledHeight = spriteHeight / spriteScale;
-        if (Math.round(scaledWidth) != scaledWidth ||
-            Math.round(scaledHeight) != scaledHeight)
-        {
-            messageLog.warning(MessageType.FRACTIONAL_SCALE_VALUE,
-                spriteImageOccurrence.spriteImageDirective.spriteId, scaledWidth, scaledHeight);
-        }
+        checkSpriteScale(spriteImageOccurrence, spriteWidth, spriteHeight, spriteScale,
+            messageLog);
 
         final BufferedImage sprite = new BufferedImage(spriteWidth, spriteHeight,
             BufferedImage.TYPE_4BYTE_ABGR);
@@ -374,37 +1703,337 @@ public class SpriteImageBuilder
         return new SpriteImage(sprite, spriteImageOccurrence, spriteReplacements, spriteWidth, spriteHeight, spriteScale);
     }
 
+    /**
+     * Lays out a packed sprite image from images held in memory. Identical images with
+     * the same layout properties share one region of the sprite image.
+     */
+    private static SpriteImage buildPackedSpriteImage(
+        SpriteImageOccurrence spriteImageOccurrence,
+        Map<SpriteReferenceOccurrence, BufferedImage> images,
+        Map<SpriteReferenceOccurrence, Dimension> imageSizes, MessageLog messageLog)
+    {
+        final SpriteImageLayout layout = spriteImageOccurrence.spriteImageDirective.layout;
+        final float spriteScale = spriteImageOccurrence.spriteImageDirective.scaleRatio;
+        final Map<SpriteReferenceOccurrence, Object> regionKeys = Maps.newHashMap();
+        for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
+            .entrySet())
+        {
+            regionKeys.put(entry.getKey(), regionKey(
+                new BufferedImageEqualsWrapper(entry.getValue()), entry.getKey()));
+        }
+
+        final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, Point> regions = Maps.newLinkedHashMap();
+        final Dimension spriteSize = layOutPacked(imageSizes, regionKeys, spriteScale,
+            regions, spriteReplacements, messageLog);
+        if (spriteSize.width == 0 || spriteSize.height == 0)
+        {
+            return null;
+        }
+
+        checkSpriteScale(spriteImageOccurrence, spriteSize.width, spriteSize.height,
+            spriteScale, messageLog);
+
+        final BufferedImage sprite = new BufferedImage(spriteSize.width,
+            spriteSize.height, BufferedImage.TYPE_4BYTE_ABGR);
+        for (final Map.Entry<SpriteReferenceOccurrence, Point> entry : regions.entrySet())
+        {
+            entry.getKey().render(images.get(entry.getKey()), layout, spriteSize.width,
+                sprite, entry.getValue().x, entry.getValue().y);
+        }
+
+        return new SpriteImage(sprite, spriteImageOccurrence, spriteReplacements,
+            spriteSize.width, spriteSize.height, spriteScale);
+    }
+
+    /**
+     * Lays out a sprite image of the provided layout, see
+     * {@link #layOutStacked(Map, Map, SpriteImageLayout, float, Map, Map, MessageLog)}
+     * and {@link #layOutPacked(Map, Map, float, Map, Map, MessageLog)}.
+     */
+    private static Dimension layOut(SpriteImageLayout layout,
+        Map<SpriteReferenceOccurrence, Dimension> imageSizes,
+        Map<SpriteReferenceOccurrence, Object> regionKeys, float spriteScale,
+        Map<SpriteReferenceOccurrence, Point> regions,
+        Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements,
+        MessageLog messageLog)
+    {
+        if (SpriteImageLayout.PACKED.equals(layout))
+        {
+            return layOutPacked(imageSizes, regionKeys, spriteScale, regions,
+                spriteReplacements, messageLog);
+        }
+        else
+        {
+            return layOutStacked(imageSizes, regionKeys, layout, spriteScale, regions,
+                spriteReplacements, messageLog);
+        }
+    }
+
+    /**
+     * Lays out a vertical or horizontal sprite image, stacking the regions of the images
+     * one after another. Occurrences with equal region keys share one region.
+     * 
+     * @param regions receives the position of each distinct region, keyed by its first
+     *            occurrence
+     * @param spriteReplacements receives the replacements of all occurrences
+     * @return the size of the sprite image
+     */
+    private static Dimension layOutStacked(
+        Map<SpriteReferenceOccurrence, Dimension> imageSizes,
+        Map<SpriteReferenceOccurrence, Object> regionKeys, SpriteImageLayout layout,
+        float spriteScale, Map<SpriteReferenceOccurrence, Point> regions,
+        Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements,
+        MessageLog messageLog)
+    {
+        final boolean vertical = layout.equals(SpriteImageLayout.VERTICAL);
+        final int dimension = calculateDimension(imageSizes, layout);
+
+        int currentOffset = 0;
+        final Map<Object, Point> regionKeyToPosition = Maps.newHashMap();
+        for (final Map.Entry<SpriteReferenceOccurrence, Dimension> entry : imageSizes
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            final Dimension imageSize = entry.getValue();
+            final Object regionKey = regionKeys.get(spriteReferenceOccurrence);
+
+            Point position = regionKeyToPosition.get(regionKey);
+            if (position == null)
+            {
+                position = vertical ? new Point(0, currentOffset) : new Point(
+                    currentOffset, 0);
+                regionKeyToPosition.put(regionKey, position);
+                regions.put(spriteReferenceOccurrence, position);
+                currentOffset += vertical ? spriteReferenceOccurrence.getRequiredHeight(
+                    imageSize.height, layout) : spriteReferenceOccurrence.getRequiredWidth(
+                    imageSize.width, layout);
+            }
+
+            checkImageScale(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .getRequiredWidth(imageSize.width, layout), spriteReferenceOccurrence
+                .getRequiredHeight(imageSize.height, layout), spriteScale, messageLog);
+            spriteReplacements.put(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .buildReplacement(layout, Math.round((vertical ? position.y : position.x)
+                    / spriteScale)));
+        }
+
+        return vertical ? new Dimension(dimension, currentOffset) : new Dimension(
+            currentOffset, dimension);
+    }
+
+    /**
+     * Lays out a packed sprite image. The distinct regions are packed using
+     * {@link MaxRectsPacker}, except for the regions of images with 'repeat' alignment,
+     * which are stacked below the packed regions and span the full width of the sprite.
+     * Occurrences with equal region keys share one region.
+     * 
+     * @param regions receives the position of each distinct region, keyed by its first
+     *            occurrence
+     * @param spriteReplacements receives the replacements of all occurrences
+     * @return the size of the sprite image
+     */
+    static Dimension layOutPacked(Map<SpriteReferenceOccurrence, Dimension> imageSizes,
+        Map<SpriteReferenceOccurrence, Object> regionKeys, float spriteScale,
+        Map<SpriteReferenceOccurrence, Point> regions,
+        Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements,
+        MessageLog messageLog)
+    {
+        final SpriteImageLayout layout = SpriteImageLayout.PACKED;
+
+        // Pack the distinct regions of images that do not repeat
+        final Map<Object, Integer> regionKeyToIndex = Maps.newHashMap();
+        final List<Dimension> packedSizes = Lists.newArrayList();
+        final Map<SpriteReferenceOccurrence, Dimension> repeatedImageSizes = Maps
+            .newLinkedHashMap();
+        for (final Map.Entry<SpriteReferenceOccurrence, Dimension> entry : imageSizes
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            final Dimension imageSize = entry.getValue();
+            final Object regionKey = regionKeys.get(spriteReferenceOccurrence);
+            if (!layout.equals(spriteReferenceOccurrence.getEffectiveLayout(layout)))
+            {
+                repeatedImageSizes.put(spriteReferenceOccurrence, imageSize);
+            }
+            else if (!regionKeyToIndex.containsKey(regionKey))
+            {
+                regionKeyToIndex.put(regionKey, packedSizes.size());
+                packedSizes.add(new Dimension(spriteReferenceOccurrence.getRequiredWidth(
+                    imageSize.width, layout), spriteReferenceOccurrence.getRequiredHeight(
+                    imageSize.height, layout)));
+            }
+        }
+        final MaxRectsPacker.Packing packing = MaxRectsPacker.pack(packedSizes);
+        final int spriteWidth = calculatePackedWidth(packing.width, repeatedImageSizes);
+
+        // Stack the repeated images below the packed ones
+        int currentOffset = packing.height;
+        final Map<Object, Point> regionKeyToPosition = Maps.newHashMap();
+        for (final Map.Entry<SpriteReferenceOccurrence, Dimension> entry : imageSizes
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            final Dimension imageSize = entry.getValue();
+            final Object regionKey = regionKeys.get(spriteReferenceOccurrence);
+
+            Point position = regionKeyToPosition.get(regionKey);
+            if (position == null)
+            {
+                final Integer index = regionKeyToIndex.get(regionKey);
+                if (index != null)
+                {
+                    position = packing.positions.get(index);
+                }
+                else
+                {
+                    position = new Point(0, currentOffset);
+                    currentOffset += spriteReferenceOccurrence.getRequiredHeight(
+                        imageSize.height, layout);
+                }
+                regionKeyToPosition.put(regionKey, position);
+                regions.put(spriteReferenceOccurrence, position);
+            }
+
+            checkImageScale(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .getRequiredWidth(imageSize.width, layout), spriteReferenceOccurrence
+                .getRequiredHeight(imageSize.height, layout), spriteScale, messageLog);
+            spriteReplacements.put(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .buildReplacement(layout, Math.round(position.x / spriteScale), Math
+                    .round(position.y / spriteScale)));
+        }
+
+        return new Dimension(spriteWidth, currentOffset);
+    }
+
+    /**
+     * Computes the width of a packed sprite, which must fit the packed regions and be a
+     * multiple of the widths of the images with 'repeat' alignment.
+     */
+    static int calculatePackedWidth(int packedWidth,
+        Map<SpriteReferenceOccurrence, Dimension> repeatedImageSizes)
+    {
+        final int leastCommonMultiple = calculateLeastCommonMultiple(repeatedImageSizes,
+            SpriteImageLayout.VERTICAL);
+        int width = Math.max(packedWidth, calculateDimension(repeatedImageSizes,
+            SpriteImageLayout.VERTICAL));
+        if (width % leastCommonMultiple != 0)
+        {
+            width += leastCommonMultiple - (width % leastCommonMultiple);
+        }
+        return width;
+    }
+
+    /**
+     * Returns the key of the sprite region an occurrence of the provided image requires.
+     * Occurrences with equal keys can share one region.
+     */
+    private static Object regionKey(Object image,
+        SpriteReferenceOccurrence spriteReferenceOccurrence)
+    {
+        final SpriteLayoutProperties properties = spriteReferenceOccurrence.spriteReferenceDirective.spriteLayoutProperties;
+        return Arrays.<Object> asList(image, properties.alignment, properties.marginLeft,
+            properties.marginRight, properties.marginTop, properties.marginBottom);
+    }
+
+    /**
+     * Computes the dimension of a sprite (width for vertical, height for horizontal
+     * sprites) holding images of the provided sizes.
+     */
+    static int calculateDimension(Map<SpriteReferenceOccurrence, Dimension> imageSizes,
+        SpriteImageLayout layout)
+    {
+        // First find the least common multiple of the images with 'repeat' alignment
+        final int leastCommonMultiple = SpriteImageBuilder.calculateLeastCommonMultiple(
+            imageSizes, layout);
+
+        final boolean vertical = layout.equals(SpriteImageLayout.VERTICAL);
+        int dimension = leastCommonMultiple;
+        for (final Map.Entry<SpriteReferenceOccurrence, Dimension> entry : imageSizes
+            .entrySet())
+        {
+            final Dimension imageSize = entry.getValue();
+            final SpriteReferenceOccurrence spriteReferenceOcurrence = entry.getKey();
+
+            // Compute dimensions
+            dimension = Math.max(dimension,
+                vertical ? spriteReferenceOcurrence.getRequiredWidth(imageSize.width, layout)
+                    : spriteReferenceOcurrence.getRequiredHeight(imageSize.height, layout));
+        }
+
+        // Correct for least common multiple
+        if (dimension % leastCommonMultiple != 0)
+        {
+            dimension += leastCommonMultiple - (dimension % leastCommonMultiple);
+        }
+        return dimension;
+    }
+
     /**
      * Calculates the width/ height of "repeated" sprites.
      */
     static int calculateLeastCommonMultiple(
-        Map<SpriteReferenceOccurrence, BufferedImage> images, SpriteImageLayout layout)
+        Map<SpriteReferenceOccurrence, Dimension> imageSizes, SpriteImageLayout layout)
     {
         int leastCommonMultiple = 1;
-        for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
+        for (final Map.Entry<SpriteReferenceOccurrence, Dimension> entry : imageSizes
             .entrySet())
         {
-            final BufferedImage image = entry.getValue();
+            final Dimension imageSize = entry.getValue();
             final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
-            if (image != null
+            if (imageSize != null
                 && SpriteAlignment.REPEAT
                     .equals(spriteReferenceOccurrence.spriteReferenceDirective.spriteLayoutProperties.alignment))
             {
                 if (SpriteImageLayout.VERTICAL.equals(layout))
                 {
                     leastCommonMultiple = ArithmeticUtils.lcm(leastCommonMultiple,
-                        spriteReferenceOccurrence.getRequiredWidth(image, layout));
+                        spriteReferenceOccurrence.getRequiredWidth(imageSize.width, layout));
                 }
                 else
                 {
                     leastCommonMultiple = ArithmeticUtils.lcm(leastCommonMultiple,
-                        spriteReferenceOccurrence.getRequiredHeight(image, layout));
+                        spriteReferenceOccurrence.getRequiredHeight(imageSize.height, layout));
                 }
             }
         }
         return leastCommonMultiple;
     }
 
+    /**
+     * Warns if the individual image's dimensions are not integers after scaling.
+     */
+    private static void checkImageScale(
+        SpriteReferenceOccurrence spriteReferenceOccurrence, int requiredWidth,
+        int requiredHeight, float spriteScale, MessageLog messageLog)
+    {
+        final float scaledImageWidth = requiredWidth / spriteScale;
+        final float scaledImageHeight = requiredHeight / spriteScale;
+        if (Math.round(scaledImageWidth) != scaledImageWidth ||
+            Math.round(scaledImageHeight) != scaledImageHeight)
+        {
+            messageLog.warning(MessageType.IMAGE_FRACTIONAL_SCALE_VALUE,
+                spriteReferenceOccurrence.imagePath, scaledImageWidth, scaledImageHeight);
+        }
+    }
+
+    /**
+     * Warns if the sprite's dimensions are not integers after scaling.
+     */
+    private static void checkSpriteScale(SpriteImageOccurrence spriteImageOccurrence,
+        int spriteWidth, int spriteHeight, float spriteScale, MessageLog messageLog)
+    {
+        final float scaledWidth = spriteWidth / spriteScale;
+        final float scaledHeight = spriteHeight / spriteScale;
+        if (Math.round(scaledWidth) != scaledWidth ||
+            Math.round(scaledHeight) != scaledHeight)
+        {
+            messageLog.warning(MessageType.FRACTIONAL_SCALE_VALUE,
+                spriteImageOccurrence.spriteImageDirective.spriteId, scaledWidth, scaledHeight);
+        }
+    }
+
     /**
      * Groups {@link SpriteReferenceReplacement}s by the line number of their
      * corresponding directives.
@@ -442,15 +2071,22 @@ public class SpriteImageBuilder
 
     /**
      * A wrapper that implements content-aware {@link Object#equals(Object)} and
-     * {@link Object#hashCode()} on {@link BufferedImage}s.
+     * {@link Object#hashCode()} on {@link BufferedImage}s. A 64-bit fingerprint of the
+     * image's pixels is computed once, when the wrapper is created, so that hash lookups
+     * don't need to scan the pixels again. Pixels are compared only if the fingerprints
+     * of two images are equal.
      */
     static final class BufferedImageEqualsWrapper
     {
-        BufferedImage image;
+        final BufferedImage image;
+
+        /** Fingerprint of the image's dimensions, type and pixels */
+        final long fingerprint;
 
         BufferedImageEqualsWrapper(BufferedImage image)
         {
             this.image = image;
+            this.fingerprint = fingerprint(image);
         }
 
         @Override
@@ -466,53 +2102,84 @@ public class SpriteImageBuilder
                 return true;
             }
 
-            final BufferedImage other = ((BufferedImageEqualsWrapper) obj).image;
+            final BufferedImageEqualsWrapper other = (BufferedImageEqualsWrapper) obj;
+            if (fingerprint != other.fingerprint)
+            {
+                return false;
+            }
 
-            boolean equal = other.getWidth() == image.getWidth()
-                && other.getHeight() == image.getHeight()
-                && other.getType() == image.getType();
+            final BufferedImage otherImage = other.image;
+            if (otherImage.getWidth() != image.getWidth()
+                || otherImage.getHeight() != image.getHeight()
+                || otherImage.getType() != image.getType())
+            {
+                return false;
+            }
 
-            if (equal)
+            // Fingerprints match, verify the pixels
+            final int width = image.getWidth();
+            final int [] row = new int [width];
+            final int [] otherRow = new int [width];
+            for (int y = 0; y < image.getHeight(); y++)
             {
-                for (int y = 0; y < image.getHeight(); y++)
+                BufferedImageUtils.getArgb(image, 0, y, width, 1, row, 0);
+                BufferedImageUtils.getArgb(otherImage, 0, y, width, 1, otherRow, 0);
+                for (int x = 0; x < width; x++)
                 {
-                    for (int x = 0; x < image.getWidth(); x++)
+                    if (ignoreFullTransparency(row[x]) != ignoreFullTransparency(otherRow[x]))
                     {
-                        if (ignoreFullTransparency(image.getRGB(x, y)) != ignoreFullTransparency(other
-                            .getRGB(x, y)))
-                        {
-                            return false;
-                        }
+                        return false;
                     }
                 }
             }
 
-            return equal;
+            return true;
         }
 
         @Override
         public int hashCode()
+        {
+            return (int) (fingerprint ^ (fingerprint >>> 32));
+        }
+
+        /**
+         * Computes a 64-bit fingerprint of the image's dimensions, type and pixels, with
+         * fully transparent pixels treated as equal.
+         */
+        static long fingerprint(BufferedImage image)
         {
             if (image == null)
             {
                 return 0;
             }
 
-            int hash = image.getWidth() ^ (image.getHeight() << 16);
-
-            // Computes the hashCode based on an 4 x 4 to 7 x 7 grid of image's pixels
-            final int xIncrement = image.getWidth() > 7 ? image.getWidth() >> 2 : 1;
-            final int yIncrement = image.getHeight() > 7 ? image.getHeight() >> 2 : 1;
-
-            for (int y = 0; y < image.getHeight(); y += yIncrement)
+            final int width = image.getWidth();
+            long hash = mix(((long) width << 32) | image.getHeight()) ^ image.getType();
+            final int [] row = new int [width];
+            for (int y = 0; y < image.getHeight(); y++)
             {
-                for (int x = 0; x < image.getWidth(); x += xIncrement)
+                BufferedImageUtils.getArgb(image, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++)
                 {
-                    hash ^= ignoreFullTransparency(image.getRGB(x, y));
+                    hash = Long.rotateLeft(hash ^ ignoreFullTransparency(row[x])
+                        * 0x9e3779b97f4a7c15L, 31) * 0xc2b2ae3d27d4eb4fL;
                 }
             }
 
-            return hash;
+            return mix(hash);
+        }
+
+        /**
+         * The finalization step of MurmurHash3, spreads the bits of the value.
+         */
+        private static long mix(long value)
+        {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            value ^= value >>> 33;
+            return value;
         }
 
         /**
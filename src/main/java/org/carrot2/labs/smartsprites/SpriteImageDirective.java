@@ -1,11 +1,14 @@
 package org.carrot2.labs.smartsprites;
 
 import java.awt.Color;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.css.CssProperty;
 import org.carrot2.labs.smartsprites.css.CssSyntaxUtils;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
@@ -13,6 +16,7 @@ import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.util.CollectionUtils;
 import org.carrot2.util.StringUtils;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -29,12 +33,21 @@ public class SpriteImageDirective
     public static final String PROPERTY_SPRITE_MATTE_COLOR = "sprite-matte-color";
     public static final String PROPERTY_SPRITE_IE6_MODE = "sprite-ie6-mode";
     public static final String PROPERTY_SPRITE_SCALE = "sprite-scale";
+    public static final String PROPERTY_SPRITE_QUANTIZER = "sprite-quantizer";
+    public static final String PROPERTY_SPRITE_MAX_WIDTH = "sprite-max-width";
+    public static final String PROPERTY_SPRITE_MAX_HEIGHT = "sprite-max-height";
+    public static final String PROPERTY_SPRITE_MAX_PIXELS = "sprite-max-pixels";
+    public static final String PROPERTY_SPRITE_RESOLUTIONS = "sprite-resolutions";
+    public static final String PROPERTY_SPRITE_IMAGE_FORMAT = "sprite-image-format";
 
     /** A set of allowed properties */
     private static final Set<String> ALLOWED_PROPERTIES = ImmutableSet.of(
         PROPERTY_SPRITE_ID, PROPERTY_SPRITE_IMAGE_LAYOUT, PROPERTY_SPRITE_IMAGE_URL,
         PROPERTY_SPRITE_MATTE_COLOR, PROPERTY_SPRITE_IE6_MODE,
-        PROPERTY_SPRITE_SCALE, PROPERTY_SPRITE_IMAGE_UID_SUFFIX);
+        PROPERTY_SPRITE_SCALE, PROPERTY_SPRITE_IMAGE_UID_SUFFIX,
+        PROPERTY_SPRITE_QUANTIZER, PROPERTY_SPRITE_MAX_WIDTH,
+        PROPERTY_SPRITE_MAX_HEIGHT, PROPERTY_SPRITE_MAX_PIXELS,
+        PROPERTY_SPRITE_RESOLUTIONS, PROPERTY_SPRITE_IMAGE_FORMAT);
 
     /**
      * Defines the layout of this sprite.
@@ -49,7 +62,14 @@ public class SpriteImageDirective
         /**
          * Horizontal layout, images next to each other.
          */
-        HORIZONTAL;
+        HORIZONTAL,
+
+        /**
+         * Packed layout, images arranged in two dimensions to minimize the area of the
+         * sprite. Images with <code>repeat</code> alignment are stacked below the other
+         * images, as in a vertical sprite.
+         */
+        PACKED;
 
         private String value;
 
@@ -119,13 +139,22 @@ public class SpriteImageDirective
      */
     public enum SpriteImageFormat
     {
-        PNG, GIF, JPG;
+        PNG("image/png"), GIF("image/gif"), JPG("image/jpeg"),
+
+        /**
+         * Lossless WebP, written by {@link org.carrot2.util.WebpEncoder}.
+         */
+        WEBP("image/webp");
 
         private String value;
 
-        private SpriteImageFormat()
+        /** The MIME type of images in this format */
+        public final String mimeType;
+
+        private SpriteImageFormat(String mimeType)
         {
             this.value = name().toLowerCase();
+            this.mimeType = mimeType;
         }
 
         @Override
@@ -218,12 +247,58 @@ public class SpriteImageDirective
      */
     public final float scaleRatio;
 
+    /**
+     * Color quantization engine to use for this sprite, <code>null</code> to use the one
+     * configured in {@link SmartSpritesParameters}.
+     */
+    public final SpriteQuantizer quantizer;
+
     /**
      * Sprite layout properties defined at the sprite image directive level. The defaults
      * provided here can be overridden at the sprite reference directive level.
      */
     public final SpriteLayoutProperties spriteLayoutProperties;
 
+    /**
+     * Maximum width of this sprite image in pixels, <code>0</code> if not limited. If
+     * the individual images do not fit in the limits, they are split between several
+     * sprite images, see {@link #shard(int)}.
+     */
+    public final int maxWidth;
+
+    /**
+     * Maximum height of this sprite image in pixels, <code>0</code> if not limited.
+     */
+    public final int maxHeight;
+
+    /**
+     * Maximum number of pixels of this sprite image, <code>0</code> if not limited.
+     */
+    public final long maxPixels;
+
+    /**
+     * Pixel densities, in ascending order, at which this sprite image is generated, empty
+     * if the sprite image is generated once at {@link #scaleRatio}. The layout is
+     * computed once, for the individual images as referenced in CSS, and each density's
+     * sprite image is rendered from their <code>@2x</code>, <code>@3x</code>, etc.
+     * variants, see {@link #resolution(int)}.
+     */
+    public final List<Integer> resolutions;
+
+    /**
+     * Formats, in order of preference, in which this sprite image is also written for
+     * browsers that support them, empty if the sprite image is written only in
+     * {@link #format}, which is the fallback for other browsers. The image path of each
+     * format has the format's file extension, see {@link #format(SpriteImageFormat)}.
+     */
+    public final List<SpriteImageFormat> alternativeFormats;
+
+    /**
+     * Pattern for a single pixel density, e.g. <code>2x</code>.
+     */
+    private static final Pattern RESOLUTION_PATTERN = Pattern.compile("([0-9]{1,2})x",
+        Pattern.CASE_INSENSITIVE);
+
     /**
      * Pattern for a simple syntactic check of the image path.
      */
@@ -252,6 +327,46 @@ public class SpriteImageDirective
     public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
         SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
         SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties)
+    {
+        this(id, imageUrl, layout, format, ie6Mode, matteColor, uidType, scale,
+            spriteLayoutProperties, null);
+    }
+
+    public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
+        SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
+        SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties,
+        SpriteQuantizer quantizer)
+    {
+        this(id, imageUrl, layout, format, ie6Mode, matteColor, uidType, scale,
+            spriteLayoutProperties, quantizer, 0, 0, 0);
+    }
+
+    public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
+        SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
+        SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties,
+        SpriteQuantizer quantizer, int maxWidth, int maxHeight, long maxPixels)
+    {
+        this(id, imageUrl, layout, format, ie6Mode, matteColor, uidType, scale,
+            spriteLayoutProperties, quantizer, maxWidth, maxHeight, maxPixels,
+            Collections.<Integer> emptyList());
+    }
+
+    public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
+        SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
+        SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties,
+        SpriteQuantizer quantizer, int maxWidth, int maxHeight, long maxPixels,
+        List<Integer> resolutions)
+    {
+        this(id, imageUrl, layout, format, ie6Mode, matteColor, uidType, scale,
+            spriteLayoutProperties, quantizer, maxWidth, maxHeight, maxPixels,
+            resolutions, Collections.<SpriteImageFormat> emptyList());
+    }
+
+    public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
+        SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
+        SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties,
+        SpriteQuantizer quantizer, int maxWidth, int maxHeight, long maxPixels,
+        List<Integer> resolutions, List<SpriteImageFormat> alternativeFormats)
     {
         this.spriteId = id;
         this.imagePath = imageUrl;
@@ -262,6 +377,93 @@ public class SpriteImageDirective
         this.uidType = uidType;
         this.scaleRatio = scale;
         this.spriteLayoutProperties = spriteLayoutProperties;
+        this.quantizer = quantizer;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxPixels = maxPixels;
+        this.resolutions = ImmutableList.copyOf(resolutions);
+        this.alternativeFormats = ImmutableList.copyOf(alternativeFormats);
+    }
+
+    /**
+     * Returns <code>true</code> if the size of this sprite image is limited.
+     */
+    public boolean hasSizeLimits()
+    {
+        return maxWidth > 0 || maxHeight > 0 || maxPixels > 0;
+    }
+
+    /**
+     * Returns <code>true</code> if a sprite image of the provided size fits in the size
+     * limits of this sprite.
+     */
+    public boolean fitsSizeLimits(int width, int height)
+    {
+        return (maxWidth <= 0 || width <= maxWidth)
+            && (maxHeight <= 0 || height <= maxHeight)
+            && (maxPixels <= 0 || (long) width * height <= maxPixels);
+    }
+
+    /**
+     * Returns the directive of one of the images this sprite is split into when its
+     * individual images do not fit in the size limits or are used by different routes of
+     * the {@link SmartSpritesParameters#getUsageProfilePath()} profile. The shard's sprite
+     * id is this sprite's id followed by <code>-number</code>. Unless the image path
+     * refers to the sprite id, the same suffix is added to the image file name.
+     */
+    public SpriteImageDirective shard(int number)
+    {
+        final String suffix = "-" + number;
+        final String shardImagePath = imagePath.contains("${" + PROPERTY_SPRITE_ID + "}")
+            ? imagePath : SpriteImage.addSuffix(imagePath, suffix);
+        return new SpriteImageDirective(spriteId + suffix, shardImagePath, layout, format,
+            ie6Mode, matteColor, uidType, scaleRatio, spriteLayoutProperties, quantizer,
+            maxWidth, maxHeight, maxPixels, resolutions, alternativeFormats);
+    }
+
+    /**
+     * Returns <code>true</code> if this sprite image is generated at several pixel
+     * densities or at a density other than 1x, see {@link #resolutions}.
+     */
+    public boolean hasResolutions()
+    {
+        return !resolutions.isEmpty();
+    }
+
+    /**
+     * Returns the directive of this sprite's image at the provided pixel density. The
+     * image is scaled by the density and its file name has the
+     * {@link #getResolutionSuffix(int)} suffix, except for the density of 1x.
+     */
+    public SpriteImageDirective resolution(int density)
+    {
+        final String resolutionImagePath = density == 1 ? imagePath : SpriteImage
+            .addSuffix(imagePath, getResolutionSuffix(density));
+        return new SpriteImageDirective(spriteId, resolutionImagePath, layout, format,
+            ie6Mode, matteColor, uidType, density, spriteLayoutProperties, quantizer,
+            maxWidth, maxHeight, maxPixels, Collections.<Integer> emptyList(),
+            alternativeFormats);
+    }
+
+    /**
+     * Returns the directive of this sprite's image in the provided format, one of the
+     * {@link #alternativeFormats}. The image path has the format's file extension.
+     */
+    public SpriteImageDirective format(SpriteImageFormat alternativeFormat)
+    {
+        return new SpriteImageDirective(spriteId, SpriteImage.replaceExtension(imagePath,
+            alternativeFormat.toString()), layout, alternativeFormat, ie6Mode,
+            matteColor, uidType, scaleRatio, spriteLayoutProperties, quantizer, maxWidth,
+            maxHeight, maxPixels);
+    }
+
+    /**
+     * Returns the suffix marking files of images of the provided pixel density, e.g.
+     * <code>@2x</code>.
+     */
+    public static String getResolutionSuffix(int density)
+    {
+        return "@" + density + "x";
     }
 
     /**
@@ -310,7 +512,7 @@ public class SpriteImageDirective
         }
 
         // Image path. If the path does not match a regular expression, issue a warning.
-        final String imagePath = CssSyntaxUtils.unpackUrl(rules
+        String imagePath = CssSyntaxUtils.unpackUrl(rules
             .get(PROPERTY_SPRITE_IMAGE_URL).value);
         if (IMAGE_PATH_PATTERN.matcher(imagePath).matches())
         {
@@ -340,31 +542,18 @@ public class SpriteImageDirective
             SpriteImageLayout.class, SpriteImageLayout.VERTICAL, messageCollector,
             MessageType.UNSUPPORTED_LAYOUT);
 
-        // Infer format from image path
-        SpriteImageFormat format;
-        final int lastDotIndex = imagePath.lastIndexOf('.');
-        if ((lastDotIndex < 0) || (lastDotIndex == imagePath.length() - 1))
+        // Formats are optional, the last one is the fallback. By default, the format
+        // is inferred from the image path.
+        final List<SpriteImageFormat> formats = getFormats(rules, messageCollector);
+        final SpriteImageFormat format;
+        if (formats.isEmpty())
         {
-            messageCollector
-                .warning(MessageType.CANNOT_DETERMINE_IMAGE_FORMAT, imagePath);
-            format = SpriteImageFormat.PNG;
+            format = inferFormat(imagePath, messageCollector);
         }
         else
         {
-            final int questionMarkIndex = imagePath.indexOf('?', lastDotIndex);
-            final String formatValue = questionMarkIndex >= 0 ? imagePath.substring(
-                lastDotIndex + 1, questionMarkIndex) : imagePath
-                .substring(lastDotIndex + 1);
-            try
-            {
-                format = SpriteImageFormat.getValue(formatValue);
-            }
-            catch (final IllegalArgumentException e)
-            {
-                messageCollector.warning(MessageType.UNSUPPORTED_SPRITE_IMAGE_FORMAT,
-                    formatValue);
-                format = SpriteImageFormat.PNG;
-            }
+            format = formats.remove(formats.size() - 1);
+            imagePath = SpriteImage.replaceExtension(imagePath, format.toString());
         }
 
         // Layout is optional
@@ -389,19 +578,176 @@ public class SpriteImageDirective
             matteColor = null;
         }
 
+        // Resolutions are optional, they determine the scale of each image
+        final List<Integer> resolutions = getResolutions(rules, messageCollector);
         final float scale;
         if (CssSyntaxUtils.hasNonBlankValue(rules, PROPERTY_SPRITE_SCALE))
         {
             scale = Float.parseFloat(rules.get(PROPERTY_SPRITE_SCALE).value);
+            if (!resolutions.isEmpty())
+            {
+                messageCollector.warning(MessageType.IGNORING_SPRITE_SCALE_WITH_RESOLUTIONS);
+            }
         }
         else
         {
             scale = 1.0f;
         }
 
+        // Quantizer is optional, the one from parameters is used by default
+        SpriteQuantizer quantizer = null;
+        if (CssSyntaxUtils.hasNonBlankValue(rules, PROPERTY_SPRITE_QUANTIZER))
+        {
+            final String quantizerString = rules.get(PROPERTY_SPRITE_QUANTIZER).value;
+            try
+            {
+                quantizer = SpriteQuantizer.getValue(quantizerString);
+            }
+            catch (IllegalArgumentException e)
+            {
+                messageCollector.warning(MessageType.UNSUPPORTED_QUANTIZER,
+                    quantizerString);
+            }
+        }
+
+        // Size limits are optional
+        final int maxWidth = (int) getLimit(rules, PROPERTY_SPRITE_MAX_WIDTH, true,
+            messageCollector);
+        final int maxHeight = (int) getLimit(rules, PROPERTY_SPRITE_MAX_HEIGHT, true,
+            messageCollector);
+        final long maxPixels = getLimit(rules, PROPERTY_SPRITE_MAX_PIXELS, false,
+            messageCollector);
+
         return new SpriteImageDirective(id, imagePath, layout, format, ie6Mode,
             matteColor, uidGenerator, scale, SpriteLayoutProperties.parse(directiveString,
-                layout, messageCollector));
+                layout, messageCollector), quantizer, maxWidth, maxHeight, maxPixels,
+            resolutions, formats);
+    }
+
+    /**
+     * Infers the format of the sprite image from the file extension of its path.
+     */
+    private static SpriteImageFormat inferFormat(String imagePath,
+        MessageLog messageCollector)
+    {
+        final int lastDotIndex = imagePath.lastIndexOf('.');
+        if ((lastDotIndex < 0) || (lastDotIndex == imagePath.length() - 1))
+        {
+            messageCollector
+                .warning(MessageType.CANNOT_DETERMINE_IMAGE_FORMAT, imagePath);
+            return SpriteImageFormat.PNG;
+        }
+
+        final int questionMarkIndex = imagePath.indexOf('?', lastDotIndex);
+        final String formatValue = questionMarkIndex >= 0 ? imagePath.substring(
+            lastDotIndex + 1, questionMarkIndex) : imagePath.substring(lastDotIndex + 1);
+        try
+        {
+            return SpriteImageFormat.getValue(formatValue);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            messageCollector.warning(MessageType.UNSUPPORTED_SPRITE_IMAGE_FORMAT,
+                formatValue);
+            return SpriteImageFormat.PNG;
+        }
+    }
+
+    /**
+     * Parses the list of formats in order of preference, e.g. <code>webp png</code>,
+     * returns an empty list if the property is not defined or contains an unsupported
+     * format.
+     */
+    private static List<SpriteImageFormat> getFormats(Map<String, CssProperty> rules,
+        MessageLog messageCollector)
+    {
+        if (!CssSyntaxUtils.hasNonBlankValue(rules, PROPERTY_SPRITE_IMAGE_FORMAT))
+        {
+            return Lists.newArrayList();
+        }
+
+        final Set<SpriteImageFormat> formats = Sets.newLinkedHashSet();
+        for (String value : rules.get(PROPERTY_SPRITE_IMAGE_FORMAT).value.trim().split(
+            "[\\s,]+"))
+        {
+            try
+            {
+                formats.add(SpriteImageFormat.getValue(value));
+            }
+            catch (final IllegalArgumentException e)
+            {
+                messageCollector.warning(MessageType.UNSUPPORTED_SPRITE_IMAGE_FORMAT,
+                    value);
+                return Lists.newArrayList();
+            }
+        }
+        return Lists.newArrayList(formats);
+    }
+
+    /**
+     * Parses the list of pixel densities, e.g. <code>1x 2x</code>, returns an empty
+     * list if the property is not defined or malformed.
+     */
+    private static List<Integer> getResolutions(Map<String, CssProperty> rules,
+        MessageLog messageCollector)
+    {
+        if (!CssSyntaxUtils.hasNonBlankValue(rules, PROPERTY_SPRITE_RESOLUTIONS))
+        {
+            return Collections.emptyList();
+        }
+
+        final String rawValue = rules.get(PROPERTY_SPRITE_RESOLUTIONS).value;
+        final Set<Integer> resolutions = Sets.newTreeSet();
+        for (String value : rawValue.trim().split("[\\s,]+"))
+        {
+            final Matcher matcher = RESOLUTION_PATTERN.matcher(value);
+            final int density = matcher.matches() ? Integer.parseInt(matcher.group(1))
+                : 0;
+            if (density <= 0)
+            {
+                messageCollector.warning(MessageType.CANNOT_PARSE_SPRITE_RESOLUTIONS,
+                    rawValue);
+                return Collections.emptyList();
+            }
+            resolutions.add(density);
+        }
+        return Lists.newArrayList(resolutions);
+    }
+
+    /**
+     * Parses a size limit, returns <code>0</code> if the limit is not defined or
+     * malformed.
+     */
+    private static long getLimit(Map<String, CssProperty> rules, String property,
+        boolean pixelUnits, MessageLog messageCollector)
+    {
+        if (!CssSyntaxUtils.hasNonBlankValue(rules, property))
+        {
+            return 0;
+        }
+
+        final String rawValue = rules.get(property).value;
+        String value = rawValue;
+        if (pixelUnits && value.toLowerCase().endsWith("px"))
+        {
+            value = value.substring(0, value.length() - 2);
+        }
+        try
+        {
+            final long limit = pixelUnits ? Integer.parseInt(value) : Long
+                .parseLong(value);
+            if (limit > 0)
+            {
+                return limit;
+            }
+        }
+        catch (final NumberFormatException e)
+        {
+            // Reported below
+        }
+        messageCollector.warning(MessageType.CANNOT_PARSE_SPRITE_LIMIT, property,
+            rawValue);
+        return 0;
     }
 
     private static <T extends Enum<T>> T valueOf(String stringValue, Class<T> enumClass,
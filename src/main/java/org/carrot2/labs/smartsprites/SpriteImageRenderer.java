@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 
 import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
 import org.carrot2.labs.smartsprites.message.MessageLog;
@@ -12,6 +13,11 @@ import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.util.BufferedImageUtils;
 import org.carrot2.util.ColorQuantizer;
 import org.carrot2.util.ColorQuantizer.ColorReductionInfo;
+import org.carrot2.util.FlatOctreeQuantizer;
+import org.carrot2.util.KMeansQuantizer;
+import org.carrot2.util.MedianCutQuantizer;
+import org.carrot2.util.OctreeQuantizer;
+import org.carrot2.util.ImageStats;
 
 /**
  * Applies color quantization to the merged sprite image if required.
@@ -24,6 +30,9 @@ public class SpriteImageRenderer
     /** This builder's message log */
     private final MessageLog messageLog;
 
+    /** Reusable quantizers, sprites may be rendered concurrently */
+    private final FlatOctreeQuantizer.Pool quantizerPool = new FlatOctreeQuantizer.Pool();
+
     SpriteImageRenderer(SmartSpritesParameters parameters, MessageLog messageLog)
     {
         this.parameters = parameters;
@@ -40,19 +49,26 @@ public class SpriteImageRenderer
         final boolean isPng = spriteImageDirective.format == SpriteImageFormat.PNG;
         final boolean isJpg = spriteImageDirective.format == SpriteImageFormat.JPG;
 
+        // Lossless WebP keeps all colors and the alpha channel, no need to quantize
+        final boolean isWebp = spriteImageDirective.format == SpriteImageFormat.WEBP;
+
         final boolean isPngAuto = isPng
             && parameters.getSpritePngDepth() == PngDepth.AUTO;
         final boolean isPngDirect = isPng
             && parameters.getSpritePngDepth() == PngDepth.DIRECT;
 
+        // Analyze the sprite once, all decisions below are based on these statistics
+        final ImageStats stats = ImageStats.compute(sprite,
+            ColorQuantizer.MAX_INDEXED_COLORS);
         final ColorReductionInfo colorReductionInfo = ColorQuantizer
-            .getColorReductionInfo(sprite);
+            .getColorReductionInfo(stats);
         final boolean canReduceWithoutQualityLoss = colorReductionInfo
             .canReduceWithoutQualityLoss();
 
         final BufferedImage [] result = new BufferedImage [2];
 
-        if (isPngDirect || (isPngAuto && !canReduceWithoutQualityLoss) || isJpg)
+        if (isPngDirect || (isPngAuto && !canReduceWithoutQualityLoss) || isJpg
+            || isWebp)
         {
             result[0] = sprite;
 
@@ -60,7 +76,7 @@ public class SpriteImageRenderer
             // colors but doesn't have any transparency, we don't need an IE6 version,
             // because IE6 can handle PNG24 with no transparency correctly.
             if (parameters.isSpritePngIe6() && isPng
-                && BufferedImageUtils.hasTransparency(sprite)
+                && stats.hasTransparency()
                 && spriteImageDirective.ie6Mode != Ie6Mode.NONE)
             {
                 result[1] = quantize(sprite, spriteImage, colorReductionInfo,
@@ -85,7 +101,8 @@ public class SpriteImageRenderer
                     MessageType.IGNORING_MATTE_COLOR_NO_PARTIAL_TRANSPARENCY,
                     spriteImageDirective.spriteId);
             }
-            result[0] = ColorQuantizer.reduce(sprite);
+            result[0] = ColorQuantizer.reduce(sprite, stats,
+                parameters.getPixelParallelism());
             return result;
         }
         else
@@ -112,9 +129,12 @@ public class SpriteImageRenderer
         }
         else
         {
+            // Color reduction analysis stops counting past the limit, count all colors
+            // for the message. This is cheap compared to the quantization that follows.
             messageLog.log(logLevel, MessageType.TOO_MANY_COLORS_FOR_INDEXED_COLOR,
                 spriteImageDirective.spriteId,
-                colorReductionInfo.distictColors, ColorQuantizer.MAX_INDEXED_COLORS);
+                BufferedImageUtils.countDistictColors(sprite),
+                ColorQuantizer.MAX_INDEXED_COLORS);
         }
 
         final Color matte;
@@ -132,6 +152,39 @@ public class SpriteImageRenderer
             matte = Color.WHITE;
         }
 
-        return ColorQuantizer.quantize(sprite, matte);
+        final int parallelism = parameters.getPixelParallelism();
+        final SpriteQuantizer spriteQuantizer = spriteImageDirective.quantizer != null
+            ? spriteImageDirective.quantizer : parameters.getSpriteQuantizer();
+        switch (spriteQuantizer)
+        {
+            case FLAT_OCTREE:
+            {
+                final FlatOctreeQuantizer quantizer = quantizerPool.borrow();
+                try
+                {
+                    return ColorQuantizer.quantize(sprite, matte,
+                        ColorQuantizer.MAX_INDEXED_COLORS, quantizer, parallelism);
+                }
+                finally
+                {
+                    quantizerPool.release(quantizer);
+                }
+            }
+
+            case MEDIAN_CUT:
+                return ColorQuantizer.quantize(sprite, matte,
+                    ColorQuantizer.MAX_INDEXED_COLORS, new MedianCutQuantizer(),
+                    parallelism);
+
+            case KMEANS:
+                return ColorQuantizer.quantize(sprite, matte,
+                    ColorQuantizer.MAX_INDEXED_COLORS, new KMeansQuantizer(),
+                    parallelism);
+
+            default:
+                return ColorQuantizer.quantize(sprite, matte,
+                    ColorQuantizer.MAX_INDEXED_COLORS, new OctreeQuantizer(),
+                    parallelism);
+        }
     }
 }
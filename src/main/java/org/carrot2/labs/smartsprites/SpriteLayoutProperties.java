@@ -36,7 +36,7 @@ public class SpriteLayoutProperties
     public enum SpriteAlignment
     {
         /**
-         * To the left edge of a vertical sprite.
+         * To the left edge of a vertical sprite, also the default for packed sprites.
          */
         LEFT,
 
@@ -193,7 +193,17 @@ public class SpriteLayoutProperties
     private static SpriteAlignment correctAlignment(SpriteImageLayout spriteImageLayout,
         SpriteAlignment alignment, MessageLog messageCollector)
     {
-        if (spriteImageLayout.equals(SpriteImageLayout.HORIZONTAL))
+        if (spriteImageLayout.equals(SpriteImageLayout.PACKED))
+        {
+            if (!alignment.equals(SpriteAlignment.REPEAT)
+                && !alignment.equals(SpriteAlignment.LEFT))
+            {
+                messageCollector.warning(MessageType.ONLY_REPEAT_ALIGNMENT_ALLOWED,
+                    alignment.value);
+                return getDefaultAlignment(spriteImageLayout);
+            }
+        }
+        else if (spriteImageLayout.equals(SpriteImageLayout.HORIZONTAL))
         {
             if (alignment.equals(SpriteAlignment.LEFT)
                 || alignment.equals(SpriteAlignment.RIGHT))
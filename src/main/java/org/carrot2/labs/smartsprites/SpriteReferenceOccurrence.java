@@ -34,17 +34,27 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
      */
     public int getRequiredWidth(BufferedImage image, SpriteImageLayout layout)
     {
+        return getRequiredWidth(image.getWidth(), layout);
+    }
+
+    /**
+     * Computes the minimum width an individual image of the provided width will need
+     * when rendering.
+     */
+    public int getRequiredWidth(int imageWidth, SpriteImageLayout layout)
+    {
+        layout = getEffectiveLayout(layout);
         if (SpriteAlignment.REPEAT
             .equals(spriteReferenceDirective.spriteLayoutProperties.alignment)
             && SpriteImageLayout.VERTICAL.equals(layout))
         {
             // Ignoring left/right margins on repeated
             // images in vertically stacked sprites
-            return image.getWidth();
+            return imageWidth;
         }
         else
         {
-            return image.getWidth()
+            return imageWidth
                 + spriteReferenceDirective.spriteLayoutProperties.marginLeft
                 + spriteReferenceDirective.spriteLayoutProperties.marginRight;
         }
@@ -55,110 +65,177 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
      */
     public int getRequiredHeight(BufferedImage image, SpriteImageLayout layout)
     {
+        return getRequiredHeight(image.getHeight(), layout);
+    }
+
+    /**
+     * Computes the minimum height an individual image of the provided height will need
+     * when rendering.
+     */
+    public int getRequiredHeight(int imageHeight, SpriteImageLayout layout)
+    {
+        layout = getEffectiveLayout(layout);
         if (SpriteAlignment.REPEAT
             .equals(spriteReferenceDirective.spriteLayoutProperties.alignment)
             && SpriteImageLayout.HORIZONTAL.equals(layout))
         {
             // Ignoring top/bottom margins on repeated
             // images in horizontally lined sprites
-            return image.getHeight();
+            return imageHeight;
         }
         else
         {
-            return image.getHeight()
+            return imageHeight
                 + spriteReferenceDirective.spriteLayoutProperties.marginTop
                 + spriteReferenceDirective.spriteLayoutProperties.marginBottom;
         }
     }
 
+    /**
+     * Returns the layout the individual image is rendered in within a sprite of the
+     * provided layout. Images with <code>repeat</code> alignment in packed sprites are
+     * rendered as in vertical sprites.
+     */
+    public SpriteImageLayout getEffectiveLayout(SpriteImageLayout layout)
+    {
+        if (SpriteImageLayout.PACKED.equals(layout)
+            && SpriteAlignment.REPEAT
+                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+        {
+            return SpriteImageLayout.VERTICAL;
+        }
+        return layout;
+    }
+
     /**
      * Renders the individual image, including margins and repeats if any.
      * 
      * @param image the individual image as read from the file
      * @param layout the layout the enclosing sprite
-     * @param dimension height/width of a horizontal/vertical sprite
+     * @param dimension height/width of a horizontal/vertical sprite, ignored for images
+     *            packed in packed sprites
      * @return the rendered individual image
      */
     public BufferedImage render(BufferedImage image, SpriteImageLayout layout,
         int dimension)
     {
+        layout = getEffectiveLayout(layout);
         final BufferedImage rendered;
-        if (SpriteImageLayout.VERTICAL.equals(layout))
+        if (SpriteImageLayout.PACKED.equals(layout))
+        {
+            rendered = new BufferedImage(getRequiredWidth(image, layout),
+                getRequiredHeight(image, layout), BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        else if (SpriteImageLayout.VERTICAL.equals(layout))
         {
             rendered = new BufferedImage(dimension, getRequiredHeight(image, layout),
                 BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        else
+        {
+            rendered = new BufferedImage(getRequiredWidth(image, layout), dimension,
+                BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        render(image, layout, dimension, rendered, 0, 0);
+        return rendered;
+    }
 
-            if (SpriteAlignment.LEFT
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+    /**
+     * Renders the individual image, including margins and repeats if any, directly onto
+     * the provided canvas, e.g. the sprite image, without allocating an intermediate
+     * image. The image occupies the canvas region of the size returned by
+     * {@link #render(BufferedImage, SpriteImageLayout, int)} starting at the provided
+     * coordinates.
+     * 
+     * @param image the individual image as read from the file
+     * @param layout the layout the enclosing sprite
+     * @param dimension height/width of a horizontal/vertical sprite
+     * @param canvas the image to render onto
+     * @param x the horizontal coordinate of the rendered image's region on the canvas
+     * @param y the vertical coordinate of the rendered image's region on the canvas
+     */
+    public void render(BufferedImage image, SpriteImageLayout layout, int dimension,
+        BufferedImage canvas, int x, int y)
+    {
+        render(image, layout, dimension, canvas, x, y, 1);
+    }
+
+    /**
+     * Renders the individual image as
+     * {@link #render(BufferedImage, SpriteImageLayout, int, BufferedImage, int, int)}
+     * does, in a sprite image scaled by the provided integer pixel density, e.g. when
+     * the image is a <code>@2x</code> variant. The margins are scaled accordingly.
+     * 
+     * @param scale the pixel density of the image and the canvas
+     */
+    public void render(BufferedImage image, SpriteImageLayout layout, int dimension,
+        BufferedImage canvas, int x, int y, int scale)
+    {
+        final SpriteLayoutProperties properties = spriteReferenceDirective.spriteLayoutProperties;
+        final int marginLeft = properties.marginLeft * scale;
+        final int marginRight = properties.marginRight * scale;
+        final int marginTop = properties.marginTop * scale;
+        final int marginBottom = properties.marginBottom * scale;
+
+        layout = getEffectiveLayout(layout);
+        if (SpriteImageLayout.PACKED.equals(layout))
+        {
+            BufferedImageUtils.drawImage(image, canvas, x + marginLeft, y + marginTop);
+        }
+        else if (SpriteImageLayout.VERTICAL.equals(layout))
+        {
+            if (SpriteAlignment.LEFT.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, canvas, x + marginLeft,
+                    y + marginTop);
             }
-            else if (SpriteAlignment.RIGHT
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.RIGHT.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    dimension
-                        - spriteReferenceDirective.spriteLayoutProperties.marginRight
-                        - image.getWidth(),
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, canvas,
+                    x + dimension - marginRight - image.getWidth(), y + marginTop);
             }
-            else if (SpriteAlignment.CENTER
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.CENTER.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    (rendered.getWidth() - image.getWidth()) / 2,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, canvas,
+                    x + (dimension - image.getWidth()) / 2, y + marginTop);
             }
             else
             {
                 // Repeat, ignoring margin-left and margin-right
-                for (int x = 0; x < dimension; x += image.getWidth())
+                for (int offset = 0; offset < dimension; offset += image.getWidth())
                 {
-                    BufferedImageUtils.drawImage(image, rendered, x,
-                        spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                    BufferedImageUtils.drawImage(image, canvas, x + offset,
+                        y + marginTop);
                 }
             }
         }
         else
         {
-            rendered = new BufferedImage(getRequiredWidth(image, layout), dimension,
-                BufferedImage.TYPE_4BYTE_ABGR);
-
-            if (SpriteAlignment.TOP
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            if (SpriteAlignment.TOP.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, canvas, x + marginLeft,
+                    y + marginTop);
             }
-            else if (SpriteAlignment.BOTTOM
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.BOTTOM.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft, dimension
-                        - spriteReferenceDirective.spriteLayoutProperties.marginBottom
-                        - image.getHeight());
+                BufferedImageUtils.drawImage(image, canvas,
+                    x + marginLeft, y + dimension - marginBottom - image.getHeight());
             }
-            else if (SpriteAlignment.CENTER
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.CENTER.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft, 
-                    (rendered.getHeight() - image.getHeight()) / 2);
+                BufferedImageUtils.drawImage(image, canvas,
+                    x + marginLeft, y + (dimension - image.getHeight()) / 2);
             }
             else
             {
                 // Repeat, ignoring margin-top and margin-bottom
-                for (int y = 0; y < dimension; y += image.getHeight())
+                for (int offset = 0; offset < dimension; offset += image.getHeight())
                 {
-                    BufferedImageUtils.drawImage(image, rendered,
-                        spriteReferenceDirective.spriteLayoutProperties.marginLeft, y);
+                    BufferedImageUtils.drawImage(image, canvas, x + marginLeft,
+                        y + offset);
                 }
             }
         }
-        return rendered;
     }
 
     /**
@@ -169,6 +246,7 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
     public SpriteReferenceReplacement buildReplacement(SpriteImageLayout layout,
         int offset)
     {
+        layout = getEffectiveLayout(layout);
         if (SpriteImageLayout.VERTICAL.equals(layout))
         {
             String horizontalPosition;
@@ -214,4 +292,22 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
                 offset);
         }
     }
+
+    /**
+     * Returns the {@link SpriteReferenceReplacement} corresponding to the occurrence,
+     * taking into account the layout of the enclosing sprite and the coordinates at
+     * which the individual image was rendered. Images packed in packed sprites are
+     * positioned along both axes, in other sprites only one of the coordinates is used.
+     */
+    public SpriteReferenceReplacement buildReplacement(SpriteImageLayout layout, int x,
+        int y)
+    {
+        final SpriteImageLayout effectiveLayout = getEffectiveLayout(layout);
+        if (SpriteImageLayout.PACKED.equals(effectiveLayout))
+        {
+            return new SpriteReferenceReplacement(this, x, y);
+        }
+        return buildReplacement(effectiveLayout,
+            SpriteImageLayout.VERTICAL.equals(effectiveLayout) ? y : x);
+    }
 }
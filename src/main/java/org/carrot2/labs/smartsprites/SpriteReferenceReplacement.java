@@ -45,4 +45,18 @@ public class SpriteReferenceReplacement
         this.verticalPosition = -1;
         this.verticalPositionString = verticalPosition;
     }
+
+    /**
+     * Creates a replacement positioned along both axes, for images in packed sprites.
+     */
+    public SpriteReferenceReplacement(
+        SpriteReferenceOccurrence spriteReferenceOccurrence, int horizontalPosition,
+        int verticalPosition)
+    {
+        this.spriteReferenceOccurrence = spriteReferenceOccurrence;
+        this.horizontalPosition = horizontalPosition;
+        this.horizontalPositionString = "-" + horizontalPosition + "px";
+        this.verticalPosition = verticalPosition;
+        this.verticalPositionString = "-" + verticalPosition + "px";
+    }
 }
@@ -2,15 +2,17 @@ package org.carrot2.labs.smartsprites;
 
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.Closeables;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
@@ -146,19 +148,22 @@ public class SvgSpriteBuilder {
 
 		List<Element> sourceSvgRootElements = new ArrayList<>();
 
-		List<File> sourceSvgFiles = new ArrayList<File>();
 		List<String> sourceSvgFileNames = new ArrayList<>();
+		List<String> missingSvgFileNames = new ArrayList<>();
 
 		for (SvgReplacementInfo replacement: replacements) {
 
-			if (!sourceSvgFileNames.contains(replacement.getSourceSvgFile())) {
+			String svgSourceFile = replacement.getSourceSvgFile();
 
-				File svgSourceFile = new File(replacement.getSourceSvgFile());
+			if (!sourceSvgFileNames.contains(svgSourceFile) && !missingSvgFileNames.contains(svgSourceFile)) {
 
-				if (svgSourceFile.exists()) {
-					sourceSvgFileNames.add(replacement.getSourceSvgFile());
-					sourceSvgFiles.add(svgSourceFile);
+				Document doc = readSvg(dBuilder, svgSourceFile);
+
+				if (doc != null) {
+					sourceSvgFileNames.add(svgSourceFile);
+					sourceSvgRootElements.add(doc.getDocumentElement());
 				} else {
+					missingSvgFileNames.add(svgSourceFile);
 					messageLog.warning(MessageType.GENERIC,
 						svgSourceFile + " does not exist");
 				}
@@ -167,11 +172,6 @@ public class SvgSpriteBuilder {
 
 		}
 
-		for (File f: sourceSvgFiles) {
-			Document doc = dBuilder.parse(f);
-			sourceSvgRootElements.add(doc.getDocumentElement());
-		}
-
 		// Create sprite file
 		Document spriteDoc = dBuilder.newDocument();
 
@@ -235,10 +235,38 @@ public class SvgSpriteBuilder {
 		Transformer transf = transformerFactory.newTransformer();
 
 		DOMSource source = new DOMSource(spriteDoc);
-		File spriteFile = new File(spriteFileName);
-		StreamResult file = new StreamResult(spriteFile);
-		transf.transform(source, file);
+		OutputStream spriteStream = resourceHandler.getResourceAsOutputStream(spriteFileName);
+		try {
+			transf.transform(source, new StreamResult(spriteStream));
+		} finally {
+			spriteStream.close();
+		}
+
+	}
+
+	/**
+	 * Parses the svg file through the resource handler.
+	 *
+	 * @return the parsed document or null if the file does not exist
+	 */
+	private Document readSvg(DocumentBuilder dBuilder, String svgFileName)
+		throws SAXException, IOException {
+
+		InputStream is;
+		try {
+			is = resourceHandler.getResourceAsInputStream(svgFileName);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (is == null) {
+			return null;
+		}
 
+		try {
+			return dBuilder.parse(is);
+		} finally {
+			Closeables.close(is, true);
+		}
 	}
 
 
@@ -254,11 +282,6 @@ public class SvgSpriteBuilder {
 			return;
 		}
 
-		File targetFile = new File(svgSpriteFileName);
-		File parent = targetFile.getParentFile();
-		if (!parent.exists() && !parent.mkdirs()) {
-			throw new IllegalStateException("Couldn't create dir: " + parent);
-		}
 		writeToSprite(svgSpriteFileName, replacements);
 
 	}
@@ -276,8 +299,9 @@ public class SvgSpriteBuilder {
 		return normalized1.concat(getPathConnector(normalized1, normalized2)).concat(normalized2);
 	}
 
-	private void populateSvgSpritesMultimap(String cssFileName, Multimap<String, SvgReplacementInfo> svgSpritesMultimap) throws Exception{
+	private void populateSvgSpritesMultimap(CssFileModel cssFile, Multimap<String, SvgReplacementInfo> svgSpritesMultimap) throws Exception{
 
+		String cssFileName = cssFile.path;
 		String spriteEnding = parameters.getSpriteFileSuffix().concat(".svg");
 		String normalizedCssFileName = cssFileName.replace("\\","/");
 
@@ -290,11 +314,8 @@ public class SvgSpriteBuilder {
 			thisCssFirstParentPath = thisCssFirstParentPath.concat("/").concat(paths[i]);
 		}
 
-		String content = new String(Files.readAllBytes(Paths.get(cssFileName)));
-
-
 		// Get all smartsprites svg image definitions
-		List<String> defSvgSpriteImageDefinition = getAllMatches(DEF_SVG_SPRITE_IMAGE_REGEX, content);
+		List<String> defSvgSpriteImageDefinition = cssFile.svgSpriteImageDefinitions;
 
 		if (defSvgSpriteImageDefinition.size() > 1 ) {
 			messageLog.warning(MessageType.MULTIPLE_SVG_IMAGE_RULES_FOUND);
@@ -311,7 +332,7 @@ public class SvgSpriteBuilder {
 
 		// Get all svg image rule values (background(-image),(-webkit-)mask-image: url('...svg') /* With css comments */)
 
-		List<String> svgImageRules = getAllMatches(ANY_SVG_IMAGE_REGEX, content);
+		List<String> svgImageRules = cssFile.svgImageRules;
 
 
 		String finalLocationForSvgSprite = (hasDefSvgSpriteImageDefinition) ?
@@ -347,13 +368,24 @@ public class SvgSpriteBuilder {
 
 	public void buildSprites(Collection<String> filePaths) throws Exception {
 
-		List<String> allCssFilePaths = new ArrayList<>(filePaths);
+		Map<String, CssFileModel> cssFiles = new LinkedHashMap<>();
+		for (String cssFileName: filePaths) {
+			cssFiles.put(cssFileName, CssFileModel.read(cssFileName, resourceHandler));
+		}
+		buildSprites(cssFiles);
+	}
+
+	/**
+	 * Builds the svg sprites from already read css files, keyed by their paths.
+	 */
+	public void buildSprites(Map<String, CssFileModel> cssFiles) throws Exception {
+
 		Multimap<String, SvgReplacementInfo> svgSpritesMultimap = LinkedListMultimap.create();
 
 
-		// Read all forwarded css files and populate <svgSpriteFileName,svgReplacementInfo> multimap
-		for (String cssFileName: allCssFilePaths) {
-			populateSvgSpritesMultimap(cssFileName, svgSpritesMultimap);
+		// Populate <svgSpriteFileName,svgReplacementInfo> multimap from the css file models
+		for (CssFileModel cssFile: cssFiles.values()) {
+			populateSvgSpritesMultimap(cssFile, svgSpritesMultimap);
 		}
 
 		// Generate .svg sprite sheet and populate replacement strings inside SvgReplacementInfo objects
@@ -384,7 +416,7 @@ public class SvgSpriteBuilder {
 			}
 
 			String outputCssFileName = cssFileName.split("\\.css")[0].concat(SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX).concat(".css");
-			String cssContent = new String(Files.readAllBytes(Paths.get(cssFileName)));
+			String cssContent = cssFiles.get(cssFileName).content;
 
 			if (cssContent.trim().isEmpty())
 			{
@@ -402,10 +434,12 @@ public class SvgSpriteBuilder {
 
 				cssContent = cssContent.replace(replacement.getFindWhat(), replacement.getReplaceWith());
 			}
-			BufferedWriter writer = new BufferedWriter(new FileWriter(outputCssFileName));
-			writer.write(cssContent);
-
-			writer.close();
+			BufferedWriter writer = new BufferedWriter(resourceHandler.getResourceAsWriter(outputCssFileName));
+			try {
+				writer.write(cssContent);
+			} finally {
+				writer.close();
+			}
 		}
 
 	}
@@ -0,0 +1,117 @@
+package org.carrot2.labs.smartsprites;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+import org.carrot2.util.FileUtils;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Describes which pages or routes of a site use which individual images. The profile
+ * is read from a properties file in which the keys are routes and the values are comma
+ * separated paths of the images the routes use, e.g.:
+ *
+ * <pre>
+ * /home = img/logo.png, img/search.png
+ * /search = img/search.png, img/next.png
+ * </pre>
+ *
+ * Relative image paths are taken relative to the profile file, paths starting with "/"
+ * relative to the document root directory, as in CSS files.
+ */
+public class UsageProfile
+{
+    /** Routes using each image, keyed by the normalized absolute image path */
+    private final Map<String, SortedSet<String>> routesByImage;
+
+    /** All routes of the profile */
+    private final SortedSet<String> routes;
+
+    private UsageProfile(Map<String, SortedSet<String>> routesByImage,
+        SortedSet<String> routes)
+    {
+        this.routesByImage = routesByImage;
+        this.routes = Collections.unmodifiableSortedSet(routes);
+    }
+
+    /**
+     * Reads the usage profile from the provided path. If the profile cannot be read,
+     * logs a warning and returns an empty profile.
+     */
+    static UsageProfile load(String path, ResourceHandler resourceHandler,
+        MessageLog messageLog)
+    {
+        final Properties properties = new Properties();
+        Reader reader = null;
+        try
+        {
+            reader = resourceHandler.getResourceAsReader(path);
+            properties.load(reader);
+        }
+        catch (IOException e)
+        {
+            messageLog.warning(MessageType.CANNOT_READ_USAGE_PROFILE, path,
+                e.getMessage());
+            properties.clear();
+        }
+        finally
+        {
+            Closeables.closeQuietly(reader);
+        }
+
+        final Map<String, SortedSet<String>> routesByImage = Maps.newHashMap();
+        final SortedSet<String> routes = Sets.newTreeSet();
+        for (String route : properties.stringPropertyNames())
+        {
+            routes.add(route);
+            for (String imagePath : Splitter.on(',').trimResults().omitEmptyStrings()
+                .split(properties.getProperty(route)))
+            {
+                final String key = key(resourceHandler.getResourcePath(path, imagePath));
+                SortedSet<String> imageRoutes = routesByImage.get(key);
+                if (imageRoutes == null)
+                {
+                    imageRoutes = Sets.newTreeSet();
+                    routesByImage.put(key, imageRoutes);
+                }
+                imageRoutes.add(route);
+            }
+        }
+        return new UsageProfile(routesByImage, routes);
+    }
+
+    /**
+     * Returns all routes of this profile.
+     */
+    SortedSet<String> getRoutes()
+    {
+        return routes;
+    }
+
+    /**
+     * Returns the routes using the image at the provided path, as resolved by the
+     * {@link ResourceHandler}, an empty set if the image is not in the profile.
+     */
+    SortedSet<String> getRoutes(String realImagePath)
+    {
+        final SortedSet<String> imageRoutes = routesByImage.get(key(realImagePath));
+        return imageRoutes != null ? Collections.unmodifiableSortedSet(imageRoutes)
+            : Collections.unmodifiableSortedSet(Sets.<String> newTreeSet());
+    }
+
+    private static String key(String realImagePath)
+    {
+        return FileUtils.getNormalizedAbsolutePath(realImagePath);
+    }
+}
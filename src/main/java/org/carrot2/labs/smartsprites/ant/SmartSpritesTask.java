@@ -11,9 +11,12 @@ import org.apache.tools.ant.types.Resource;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters;
 import org.carrot2.labs.smartsprites.SpriteBuilder;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngEncoder;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.message.*;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.util.EnumUtils;
+import org.carrot2.util.PngEncoder.Filter;
 
 import com.google.common.collect.Lists;
 
@@ -34,7 +37,20 @@ public class SmartSpritesTask extends Task
     private String cssFileEncoding = SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING;
     private PngDepth spritePngDepth = SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH;
     private boolean spritePngIe6 = SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6;
+    private SpriteQuantizer spriteQuantizer = SmartSpritesParameters.DEFAULT_SPRITE_QUANTIZER;
+    private SpritePngEncoder spritePngEncoder = SmartSpritesParameters.DEFAULT_SPRITE_PNG_ENCODER;
+    private int spritePngCompressionLevel = SmartSpritesParameters.DEFAULT_SPRITE_PNG_COMPRESSION_LEVEL;
+    private Filter spritePngFilter = SmartSpritesParameters.DEFAULT_SPRITE_PNG_FILTER;
+    private int spritePngDeflateParallelism = SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEFLATE_PARALLELISM;
     private boolean markSpriteImages = SmartSpritesParameters.DEFAULT_MARK_SPRITE_IMAGES;
+    private int spriteBuildThreads = SmartSpritesParameters.DEFAULT_SPRITE_BUILD_THREADS;
+    private int pixelParallelism = SmartSpritesParameters.DEFAULT_PIXEL_PARALLELISM;
+    private String buildManifestPath;
+    private String usageProfilePath;
+    private boolean reportUsageSavings = SmartSpritesParameters.DEFAULT_REPORT_USAGE_SAVINGS;
+    private int imageCacheSize = SmartSpritesParameters.DEFAULT_IMAGE_CACHE_SIZE;
+    private boolean streamingComposition = SmartSpritesParameters.DEFAULT_STREAMING_COMPOSITION;
+    private boolean skipUnchangedOutputs = SmartSpritesParameters.DEFAULT_SKIP_UNCHANGED_OUTPUTS;
 
     private List<String> cssFiles = Lists.newArrayList();
     private List<String> ignoredDirs = Lists.newArrayList();
@@ -97,17 +113,98 @@ public class SmartSpritesTask extends Task
         this.spritePngIe6 = spritePngIe6;
     }
 
+    public void setSpriteQuantizer(String spriteQuantizerString)
+    {
+        this.spriteQuantizer = EnumUtils.valueOf(spriteQuantizerString,
+            SpriteQuantizer.class, SmartSpritesParameters.DEFAULT_SPRITE_QUANTIZER);
+    }
+
+    public void setSpritePngEncoder(String spritePngEncoderString)
+    {
+        this.spritePngEncoder = EnumUtils.valueOf(spritePngEncoderString,
+            SpritePngEncoder.class, SmartSpritesParameters.DEFAULT_SPRITE_PNG_ENCODER);
+    }
+
+    public void setSpritePngCompressionLevel(int spritePngCompressionLevel)
+    {
+        this.spritePngCompressionLevel = spritePngCompressionLevel;
+    }
+
+    public void setSpritePngFilter(String spritePngFilterString)
+    {
+        this.spritePngFilter = EnumUtils.valueOf(spritePngFilterString, Filter.class,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_FILTER);
+    }
+
+    public void setSpritePngDeflateParallelism(int spritePngDeflateParallelism)
+    {
+        this.spritePngDeflateParallelism = spritePngDeflateParallelism;
+    }
+
     public void setMarkSpriteImages(boolean markSpriteImages)
     {
         this.markSpriteImages = markSpriteImages;
     }
 
+    public void setSpriteBuildThreads(int spriteBuildThreads)
+    {
+        this.spriteBuildThreads = spriteBuildThreads;
+    }
+
+    public void setPixelParallelism(int pixelParallelism)
+    {
+        this.pixelParallelism = pixelParallelism;
+    }
+
+    public void setBuildManifestPath(String buildManifestPath)
+    {
+        this.buildManifestPath = buildManifestPath;
+    }
+
+    public void setUsageProfilePath(String usageProfilePath)
+    {
+        this.usageProfilePath = usageProfilePath;
+    }
+
+    public void setReportUsageSavings(boolean reportUsageSavings)
+    {
+        this.reportUsageSavings = reportUsageSavings;
+    }
+
+    public void setImageCacheSize(int imageCacheSize)
+    {
+        this.imageCacheSize = imageCacheSize;
+    }
+
+    public void setStreamingComposition(boolean streamingComposition)
+    {
+        this.streamingComposition = streamingComposition;
+    }
+
+    public void setSkipUnchangedOutputs(boolean skipUnchangedOutputs)
+    {
+        this.skipUnchangedOutputs = skipUnchangedOutputs;
+    }
+
     @Override
     public void execute()
     {
         final SmartSpritesParameters parameters = new SmartSpritesParameters(rootDir,
             cssFiles, spriteFileSuffix, ignoredDirs, spriteDirPath, outputDir, documentRootDir, logLevel, cssFileSuffix,
             spritePngDepth, spritePngIe6, cssFileEncoding, markSpriteImages);
+        parameters.setSpriteQuantizer(spriteQuantizer);
+        parameters.setSpritePngEncoder(spritePngEncoder);
+        parameters.setSpritePngCompressionLevel(spritePngCompressionLevel);
+        parameters.setSpritePngFilter(spritePngFilter);
+        parameters.setSpritePngDeflateParallelism(spritePngDeflateParallelism);
+        parameters.setSpriteBuildThreads(spriteBuildThreads);
+        parameters.setPixelParallelism(pixelParallelism);
+        parameters.setBuildManifestPath(buildManifestPath);
+        parameters.setUsageProfilePath(usageProfilePath);
+        parameters.setReportUsageSavings(reportUsageSavings);
+        parameters.setImageCacheSize(imageCacheSize);
+        parameters.setStreamingComposition(streamingComposition);
+        parameters.setSkipUnchangedOutputs(skipUnchangedOutputs);
 
         final FailureDetectorMessageSink failureDetectorMessageSink = new FailureDetectorMessageSink();
         MessageLog log = new MessageLog(new AntLogMessageSink(),
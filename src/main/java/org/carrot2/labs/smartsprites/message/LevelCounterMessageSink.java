@@ -1,5 +1,7 @@
 package org.carrot2.labs.smartsprites.message;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 
 /**
@@ -8,31 +10,31 @@ import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 public class LevelCounterMessageSink implements MessageSink
 {
     /** Number of info messages */
-    private int infoCount = 0;
+    private final AtomicInteger infoCount = new AtomicInteger();
 
     /** Number of warning messages */
-    private int warnCount = 0;
+    private final AtomicInteger warnCount = new AtomicInteger();
 
     public void add(Message message)
     {
         if (MessageLevel.INFO.equals(message.level))
         {
-            infoCount++;
+            infoCount.incrementAndGet();
         }
 
         if (MessageLevel.WARN.equals(message.level))
         {
-            warnCount++;
+            warnCount.incrementAndGet();
         }
     }
 
     public int getInfoCount()
     {
-        return infoCount;
+        return infoCount.get();
     }
 
     public int getWarnCount()
     {
-        return warnCount;
+        return warnCount.get();
     }
 }
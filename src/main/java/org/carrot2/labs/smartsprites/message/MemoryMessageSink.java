@@ -1,18 +1,22 @@
 package org.carrot2.labs.smartsprites.message;
 
+import java.util.Collections;
 import java.util.List;
 
 import com.google.common.collect.Lists;
 
 /**
- * Collects messages in a {@link List}, see {@link #messages}.
+ * Collects messages in a {@link List}, see {@link #messages}. Messages can be added
+ * concurrently, iteration over {@link #messages} must be synchronized on the list if
+ * messages are still being logged.
  */
 public class MemoryMessageSink implements MessageSink
 {
     /**
      * Contains collected messages.
      */
-    public final List<Message> messages = Lists.newArrayList();
+    public final List<Message> messages = Collections.synchronizedList(Lists
+        .<Message> newArrayList());
 
     public void add(Message message)
     {
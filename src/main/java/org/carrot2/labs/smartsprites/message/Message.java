@@ -3,6 +3,7 @@ package org.carrot2.labs.smartsprites.message;
 import java.io.Serializable;
 import java.util.Comparator;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
@@ -85,6 +86,23 @@ public class Message implements Serializable
         CANNOT_PARSE_MARGIN_VALUE(
             "Cannot parse margin value: %s. Only 'px' units are supported."),
 
+        CANNOT_PARSE_SPRITE_LIMIT(
+            "Cannot parse value of %s: %s. Only positive integers are supported, ignoring."),
+
+        IMAGE_EXCEEDS_SPRITE_LIMITS(
+            "Image %s alone exceeds the size limits of sprite '%s'"),
+
+        CANNOT_PARSE_SPRITE_RESOLUTIONS(
+            "Cannot parse sprite-resolutions: %s. Only integer densities, e.g. '1x 2x', are supported, ignoring."),
+
+        IGNORING_SPRITE_SCALE_WITH_RESOLUTIONS(
+            "Ignoring sprite-scale, scales are determined by sprite-resolutions"),
+
+        RESOLUTION_VARIANT_SIZE_MISMATCH(
+            "Image %s should be %dx%d pixels for resolution %dx, resampling"),
+
+        RESAMPLING_IMAGE("No %dx variant of image %s, resampling it from %s"),
+
         CANNOT_WRITE_SPRITE_IMAGE("Cannot write sprite image: %s due to %s"),
 
         CANNOT_CREATE_DIRECTORIES("Cannot create directories: %s"),
@@ -95,6 +113,35 @@ public class Message implements Serializable
 
         WRITING_SPRITE_IMAGE("Writing sprite image of size %s x %s for sprite '%s' to %s"),
 
+        SPRITE_IMAGE_UNCHANGED("Sprite image for sprite '%s' unchanged: %s"),
+
+        CSS_UNCHANGED("CSS unchanged: %s"),
+
+        SPRITE_IMAGE_UP_TO_DATE(
+            "Sprite image for sprite '%s' is up to date, reusing the previous build"),
+
+        SPLITTING_SPRITE("Splitting sprite '%s' into %d images"),
+
+        CANNOT_SPLIT_SPRITE_ID_CONFLICT(
+            "Cannot split sprite '%s': sprite id or image of its part '%s' is already used, building one image"),
+
+        CANNOT_READ_USAGE_PROFILE("Cannot read usage profile: %s due to %s"),
+
+        USAGE_PROFILE_ROUTE_SAVINGS(
+            "Route '%s' uses %d bytes of split sprite images instead of %d bytes, %d bytes saved"),
+
+        CANNOT_READ_BUILD_MANIFEST(
+            "Cannot read build manifest: %s due to %s, building all sprites"),
+
+        CANNOT_WRITE_BUILD_MANIFEST("Cannot write build manifest: %s due to %s"),
+
+        IMAGE_CACHE_STATISTICS(
+            "Decoded image cache: %d hits, %d misses, %d evictions"),
+
+        WATCHING_FOR_CHANGES("Watching %s for changes, press Ctrl+C to stop"),
+
+        REBUILDING_AFTER_CHANGES("Rebuilding after changes in %s file(s)"),
+
         IGNORING_SPRITE_IMAGE_REDEFINITION("Ignoring sprite image redefinition"),
 
         MALFORMED_CSS_RULE("Malformed CSS rule: %s"),
@@ -152,12 +199,30 @@ public class Message implements Serializable
             "param --root-dir-path is required if --ignore-dirs is used"
         ),
 
+        SPRITE_BUILD_THREADS_MUST_BE_POSITIVE(
+            "The number of sprite build threads must be at least 1, found: %d"),
+
+        PIXEL_PARALLELISM_MUST_BE_POSITIVE(
+            "The pixel parallelism must be at least 1, found: %d"),
+
+        SPRITE_PNG_COMPRESSION_LEVEL_OUT_OF_RANGE(
+            "The PNG compression level must be between 1 and 9, found: %d"),
+
+        SPRITE_PNG_DEFLATE_PARALLELISM_MUST_BE_POSITIVE(
+            "The PNG deflate parallelism must be at least 1, found: %d"),
+
+        IMAGE_CACHE_SIZE_MUST_NOT_BE_NEGATIVE(
+            "The image cache size must not be negative, found: %d"),
+
         ONLY_LEFT_OR_RIGHT_ALIGNMENT_ALLOWED(
             "Only 'left' or 'right' alignment allowed on vertical sprites, found: %s. Using 'left'."),
 
         ONLY_TOP_OR_BOTTOM_ALIGNMENT_ALLOWED(
             "Only 'top' or 'bottom' alignment allowed on horizontal sprites, found: %s. Using 'top'."),
 
+        ONLY_REPEAT_ALIGNMENT_ALLOWED(
+            "Only 'left' or 'repeat' alignment allowed on packed sprites, found: %s. Using 'left'."),
+
         READING_SPRITE_IMAGE_DIRECTIVES("Reading sprite image directives from %s"),
 
         READING_SPRITE_REFERENCE_DIRECTIVES("Reading sprite reference directives from %s"),
@@ -192,6 +257,9 @@ public class Message implements Serializable
         UNSUPPORTED_IE6_MODE("Unsupported ie6 mode: %s. Supported ie6 modes are: "
             + Ie6Mode.valuesAsString() + "."),
 
+        UNSUPPORTED_QUANTIZER("Unsupported quantizer: %s. Supported quantizers are: "
+            + SpriteQuantizer.valuesAsString() + "."),
+
         UNSUPPORTED_UID_TYPE("Unsupported uid type: %s. Supported uid types are: "
             + SpriteUidType.valuesAsString() + "."),
 
@@ -1,19 +1,29 @@
 package org.carrot2.labs.smartsprites.message;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.google.common.collect.Lists;
 
 /**
- * Gathers {@link Message}s during the runtime of the applications.
+ * Gathers {@link Message}s during the runtime of the applications. This class is
+ * thread-safe: the current CSS file and line set by {@link #setCssFile(String)} and
+ * {@link #setLine(int)} are kept separately for each thread, so concurrent processing
+ * stages do not attach each other's location to their messages. Stages that run on
+ * worker threads can also collect their messages in a {@link Task} and pass them to the
+ * sinks in a deterministic order later on.
  */
 public class MessageLog
 {
-    /** Current line in the CSS file */
-    private int line = 0;
-
-    /** CSS file currently processed */
-    private String cssPath = null;
+    /** Current CSS file and line, separate for each thread */
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>()
+    {
+        @Override
+        protected Context initialValue()
+        {
+            return new Context();
+        }
+    };
 
     /** Sinks for messages */
     private final List<MessageSink> sinks;
@@ -23,18 +33,43 @@ public class MessageLog
      */
     public MessageLog(MessageSink... sinks)
     {
-        this.sinks = Lists.newArrayList(sinks);
+        this.sinks = new CopyOnWriteArrayList<MessageSink>(sinks);
     }
 
     /**
-     * Logs a message to this log.
+     * Logs a message to this log, using the current thread's CSS file and line.
      */
     public void log(Message.MessageLevel level, Message.MessageType type,
         Object... arguments)
     {
-        for (final MessageSink sink : sinks)
+        final Context current = context.get();
+        log(level, current.cssPath, current.line, type, arguments);
+    }
+
+    /**
+     * Logs a message referring to the provided CSS file and line to this log.
+     */
+    public void log(Message.MessageLevel level, String cssPath, int line,
+        Message.MessageType type, Object... arguments)
+    {
+        log(new Message(level, type, cssPath, line, arguments));
+    }
+
+    /**
+     * Passes an already created message to all sinks of this log or, if the current
+     * thread runs a {@link Task}, to the task's buffer. Can be used to forward messages
+     * collected by another log.
+     */
+    public void log(Message message)
+    {
+        final Task task = context.get().task;
+        if (task != null)
+        {
+            task.messages.add(message);
+        }
+        else
         {
-            sink.add(new Message(level, type, cssPath, line, arguments));
+            deliver(message);
         }
     }
 
@@ -61,7 +96,7 @@ public class MessageLog
     {
         log(Message.MessageLevel.DEPRECATION, type, arguments);
     }
-    
+
     /**
      * Logs a warning message to this log.
      */
@@ -69,7 +104,7 @@ public class MessageLog
     {
         log(Message.MessageLevel.WARN, type, arguments);
     }
-    
+
     /**
      * Logs an error message to this log.
      */
@@ -87,18 +122,23 @@ public class MessageLog
     }
 
     /**
-     * Sets current CSS line for this log.
+     * Sets current CSS line for this log. The line applies only to messages logged by
+     * the calling thread.
      */
     public void setLine(int line)
     {
-        this.line = line;
+        context.get().line = line;
     }
-    
+
+    /**
+     * Sets current CSS file for this log. The file applies only to messages logged by
+     * the calling thread.
+     */
     public void setCssFile(String cssFilePath)
     {
-        this.cssPath = cssFilePath;
+        context.get().cssPath = cssFilePath;
     }
-    
+
     /**
      * Adds a {@link MessageSink} to this log.
      */
@@ -106,4 +146,114 @@ public class MessageLog
     {
         this.sinks.add(sink);
     }
+
+    /**
+     * Removes a {@link MessageSink} from this log.
+     */
+    public void removeMessageSink(MessageSink sink)
+    {
+        this.sinks.remove(sink);
+    }
+
+    /**
+     * Starts a {@link Task} on the calling thread. Until {@link Task#end()} is called,
+     * all messages logged by the calling thread are kept in the task instead of being
+     * passed to the sinks. The task starts with the CSS file and line currently set on
+     * the calling thread. Use {@link Task#commit()} to pass the collected messages to the
+     * sinks.
+     */
+    public Task beginTask()
+    {
+        final Context current = context.get();
+        if (current.task != null)
+        {
+            throw new IllegalStateException("A task is already running on this thread");
+        }
+
+        final Task task = new Task(current);
+        current.task = task;
+        return task;
+    }
+
+    private void deliver(Message message)
+    {
+        for (final MessageSink sink : sinks)
+        {
+            sink.add(message);
+        }
+    }
+
+    /**
+     * Per-thread logging state.
+     */
+    private static final class Context
+    {
+        String cssPath;
+        int line;
+        Task task;
+    }
+
+    /**
+     * A unit of work whose messages are collected in memory, without any
+     * synchronization, and passed to the log's sinks on {@link #commit()}.
+     */
+    public final class Task
+    {
+        /** Messages collected by this task, in the order of logging */
+        private final List<Message> messages = Lists.newArrayList();
+
+        /** Context of the thread running this task */
+        private final Context owner;
+
+        /** CSS file and line of the thread before this task started */
+        private final String previousCssPath;
+        private final int previousLine;
+
+        private Task(Context owner)
+        {
+            this.owner = owner;
+            this.previousCssPath = owner.cssPath;
+            this.previousLine = owner.line;
+        }
+
+        /**
+         * Stops collecting messages on the thread that started this task and restores
+         * that thread's CSS file and line. Must be called by the thread that called
+         * {@link MessageLog#beginTask()}.
+         */
+        public void end()
+        {
+            if (owner.task == this)
+            {
+                owner.task = null;
+                owner.cssPath = previousCssPath;
+                owner.line = previousLine;
+            }
+        }
+
+        /**
+         * Passes the messages collected so far to the sinks of the log, or to the task
+         * running on the calling thread, if any. Can be called from any thread once the
+         * task has ended. If called by the thread running this task, the messages go
+         * directly to the sinks.
+         */
+        public void commit()
+        {
+            final List<Message> committed = Lists.newArrayList(messages);
+            messages.clear();
+
+            final Task current = context.get().task;
+            for (Message message : committed)
+            {
+                if (current == null || current == this)
+                {
+                    deliver(message);
+                }
+                else
+                {
+                    current.messages.add(message);
+                }
+            }
+        }
+    }
 }
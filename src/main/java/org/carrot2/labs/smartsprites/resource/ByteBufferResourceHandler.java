@@ -0,0 +1,32 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Implemented by {@link ResourceHandler}s that can provide the whole content of a
+ * resource in a buffer, so that it can be decoded or hashed without copying through
+ * streams.
+ */
+public interface ByteBufferResourceHandler extends ResourceHandler
+{
+    /**
+     * Returns the content of the resource for the provided path. The buffer's position
+     * is zero and its limit is the length of the resource. Callers must not modify the
+     * buffer's content.
+     * 
+     * @param path the resource path
+     * @throws java.io.FileNotFoundException if the resource does not exist
+     */
+    ByteBuffer getResourceAsByteBuffer(String path) throws IOException;
+
+    /**
+     * Returns the content of the resource for the provided path decoded with the same
+     * charset as {@link #getResourceAsReader(String)} uses.
+     * 
+     * @param path the resource path
+     * @throws java.io.FileNotFoundException if the resource does not exist
+     */
+    CharBuffer getResourceAsCharBuffer(String path) throws IOException;
+}
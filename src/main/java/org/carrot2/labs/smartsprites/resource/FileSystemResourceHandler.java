@@ -1,7 +1,8 @@
 package org.carrot2.labs.smartsprites.resource;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -11,15 +12,27 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.io.FilenameUtils;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters;
 import org.carrot2.labs.smartsprites.message.Message;
 import org.carrot2.labs.smartsprites.message.MessageLog;
-import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.util.FileUtils;
-import org.carrot2.util.StringUtils;
+
+import com.google.common.base.Strings;
 
 /**
  * This class defines the resource handler which manage resources from the file system.
@@ -27,8 +40,12 @@ import org.carrot2.util.StringUtils;
  * @author Ibrahim Chaehoi
  * @author Stanislaw Osinski
  */
-public class FileSystemResourceHandler implements ResourceHandler
+public class FileSystemResourceHandler implements ByteBufferResourceHandler,
+    MutableResourceHandler
 {
+    /** Size of the buffer of the streams returned by {@link #getResourceAsInputStream(String)} */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /** The message log */
     private final MessageLog messageLog;
 
@@ -38,6 +55,9 @@ public class FileSystemResourceHandler implements ResourceHandler
     /** The charset to assume in the {@link #getResourceAsReader(String)} method. */
     private final String charset;
 
+    /** Canonical files by path, see {@link #clearPathCache()} */
+    private final ConcurrentMap<String, File> canonicalFiles = new ConcurrentHashMap<String, File>();
+
     /**
      * Creates a new {@link FileSystemResourceHandler}.
      * 
@@ -61,7 +81,52 @@ public class FileSystemResourceHandler implements ResourceHandler
 
     public InputStream getResourceAsInputStream(String path) throws IOException
     {
-        return new FileInputStream(FileUtils.getCanonicalOrAbsoluteFile(path));
+        return new BufferedInputStream(Channels.newInputStream(open(path)), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the whole file in one go through a {@link FileChannel}. Files are not
+     * memory-mapped, as mapped files cannot be replaced on some platforms until the
+     * mapping is garbage-collected.
+     */
+    public ByteBuffer getResourceAsByteBuffer(String path) throws IOException
+    {
+        final FileChannel channel = open(path);
+        try
+        {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("File too large: " + path);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+                // Read until the end of file
+            }
+            // Through Buffer, ByteBuffer.flip() does not exist before Java 9
+            ((Buffer) buffer).flip();
+            return buffer;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    public CharBuffer getResourceAsCharBuffer(String path) throws IOException
+    {
+        return Charset.forName(charset).decode(getResourceAsByteBuffer(path));
+    }
+
+    /**
+     * Discards the cached canonical paths of files. Canonical paths may change when
+     * symbolic links or directories on the path change.
+     */
+    public void clearPathCache()
+    {
+        canonicalFiles.clear();
     }
 
     public Reader getResourceAsReader(String path) throws IOException
@@ -79,14 +144,84 @@ public class FileSystemResourceHandler implements ResourceHandler
 
     public OutputStream getResourceAsOutputStream(String path) throws IOException
     {
-        // Create directories if needed
+        createParentDirectories(path);
+        return new FileOutputStream(getFile(path));
+    }
+
+    /**
+     * Creates the file with {@link File#createTempFile(String, String, File)} in the
+     * directory of the provided path.
+     */
+    public String createTemporaryResource(String path, String suffix) throws IOException
+    {
+        createParentDirectories(path);
+        final File file = new File(path);
+        return File.createTempFile(Strings.padEnd(file.getName(), 3, '_'), suffix,
+            file.getAbsoluteFile().getParentFile()).getPath();
+    }
+
+    /**
+     * Renames the file, atomically if the file system supports it.
+     */
+    public void moveResource(String sourcePath, String targetPath) throws IOException
+    {
+        createParentDirectories(targetPath);
+        // Temporary paths are unique, do not keep them in the cache
+        final Path source = getFile(sourcePath).toPath();
+        canonicalFiles.remove(sourcePath);
+        final Path target = getFile(targetPath).toPath();
+        try
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void deleteResource(String path) throws IOException
+    {
+        Files.deleteIfExists(getFile(path).toPath());
+        canonicalFiles.remove(path);
+    }
+
+    private FileChannel open(String path) throws IOException
+    {
+        try
+        {
+            return FileChannel.open(getFile(path).toPath(), StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException e)
+        {
+            // Callers tell missing resources by FileNotFoundException
+            throw new FileNotFoundException(path);
+        }
+    }
+
+    /**
+     * Returns the canonical file for the path, resolving each distinct path only once.
+     */
+    private File getFile(String path)
+    {
+        File file = canonicalFiles.get(path);
+        if (file == null)
+        {
+            file = FileUtils.getCanonicalOrAbsoluteFile(path);
+            canonicalFiles.put(path, file);
+        }
+        return file;
+    }
+
+    private void createParentDirectories(String path)
+    {
         final File parentFile = new File(path).getParentFile();
         if (!parentFile.exists() && !parentFile.mkdirs())
         {
             messageLog.warning(Message.MessageType.CANNOT_CREATE_DIRECTORIES,
                 parentFile.getPath());
         }
-        return new FileOutputStream(FileUtils.getCanonicalOrAbsoluteFile(path));
     }
 
     public Writer getResourceAsWriter(String path) throws IOException
@@ -109,22 +244,6 @@ public class FileSystemResourceHandler implements ResourceHandler
      */
     public String getResourcePath(String baseFile, String filePath)
     {
-        if (filePath.startsWith("/"))
-        {
-            if (StringUtils.isNotBlank(documentRootDir))
-            {
-                return FilenameUtils.concat(documentRootDir, filePath.substring(1));
-            }
-            else
-            {
-                messageLog.warning(MessageType.ABSOLUTE_PATH_AND_NO_DOCUMENT_ROOT,
-                    filePath);
-                return "";
-            }
-        }
-        else
-        {
-            return FilenameUtils.concat(FilenameUtils.getFullPath(baseFile), filePath);
-        }
+        return ResourcePaths.resolve(documentRootDir, baseFile, filePath, messageLog);
     }
 }
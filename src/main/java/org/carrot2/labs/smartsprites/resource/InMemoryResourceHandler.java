@@ -0,0 +1,281 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FilenameUtils;
+import org.carrot2.labs.smartsprites.message.Message;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+
+/**
+ * This class defines the resource handler which keeps all resources in memory. Input
+ * resources (CSS files, images) are provided using {@link #putResource(String, byte[])},
+ * the outputs can be collected with {@link #getWrittenResourcePaths()} and
+ * {@link #getResource(String)} after the build, without touching the file system.
+ * <p>
+ * Paths are normalized, so that <code>css/../img/a.png</code> and
+ * <code>img\a.png</code> denote the same resource as <code>img/a.png</code>. Written
+ * resources become visible when their streams are closed. This class is thread-safe.
+ */
+public class InMemoryResourceHandler implements ByteBufferResourceHandler,
+    MutableResourceHandler
+{
+    /** The message log */
+    private final MessageLog messageLog;
+
+    /** The root directory */
+    private final String documentRootDir;
+
+    /** The charset to assume in the {@link #getResourceAsReader(String)} method. */
+    private final String charset;
+
+    /** Contents of resources by normalized path */
+    private final ConcurrentMap<String, byte []> resources = new ConcurrentHashMap<String, byte []>();
+
+    /** Normalized paths of resources written by the build */
+    private final Set<String> writtenPaths = new ConcurrentSkipListSet<String>();
+
+    /** Number of temporary resources created, makes their paths unique */
+    private final AtomicLong temporaryResources = new AtomicLong();
+
+    /**
+     * Creates a new {@link InMemoryResourceHandler} with no resources.
+     *
+     * @param documentRootDirPath the document root directory path, can be <code>null</code>
+     * @param charset the charset to assume in the {@link #getResourceAsReader(String)}
+     *            method
+     * @param messageLog the message log
+     */
+    public InMemoryResourceHandler(String documentRootDirPath, String charset,
+        MessageLog messageLog)
+    {
+        this.documentRootDir = documentRootDirPath;
+        this.messageLog = messageLog;
+        this.charset = charset;
+        if (!Charset.isSupported(charset))
+        {
+            messageLog.error(Message.MessageType.GENERIC, "Charset '" + charset
+                + "' is not supported.");
+        }
+    }
+
+    /**
+     * Adds or replaces an input resource. Resources added by this method are not
+     * reported by {@link #getWrittenResourcePaths()}.
+     */
+    public void putResource(String path, byte [] content)
+    {
+        final String normalized = normalize(path);
+        resources.put(normalized, content);
+        writtenPaths.remove(normalized);
+    }
+
+    /**
+     * Adds or replaces an input resource, encoding the content with this handler's
+     * charset.
+     */
+    public void putResource(String path, String content)
+    {
+        try
+        {
+            putResource(path, content.getBytes(charset));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should not happen as we're checking the charset in constructor
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the content of the resource or <code>null</code> if the resource does not
+     * exist.
+     */
+    public byte [] getResource(String path)
+    {
+        return resources.get(normalize(path));
+    }
+
+    /**
+     * Returns the sorted normalized paths of all resources.
+     */
+    public SortedSet<String> getResourcePaths()
+    {
+        return Collections.unmodifiableSortedSet(new TreeSet<String>(resources.keySet()));
+    }
+
+    /**
+     * Returns the sorted normalized paths of the resources written using this handler
+     * that still exist, e.g. sprite images and processed CSS files.
+     */
+    public SortedSet<String> getWrittenResourcePaths()
+    {
+        final SortedSet<String> result = new TreeSet<String>();
+        for (String path : writtenPaths)
+        {
+            if (resources.containsKey(path))
+            {
+                result.add(path);
+            }
+        }
+        return Collections.unmodifiableSortedSet(result);
+    }
+
+    public InputStream getResourceAsInputStream(String path) throws IOException
+    {
+        final byte [] content = getResource(path);
+        if (content == null)
+        {
+            throw new FileNotFoundException(path);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    public ByteBuffer getResourceAsByteBuffer(String path) throws IOException
+    {
+        final byte [] content = getResource(path);
+        if (content == null)
+        {
+            throw new FileNotFoundException(path);
+        }
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    public CharBuffer getResourceAsCharBuffer(String path) throws IOException
+    {
+        return Charset.forName(charset).decode(getResourceAsByteBuffer(path));
+    }
+
+    public Reader getResourceAsReader(String path) throws IOException
+    {
+        try
+        {
+            return new InputStreamReader(getResourceAsInputStream(path), charset);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should not happen as we're checking the charset in constructor
+            throw new RuntimeException(e);
+        }
+    }
+
+    public OutputStream getResourceAsOutputStream(String path) throws IOException
+    {
+        return new ResourceOutputStream(normalize(path));
+    }
+
+    public Writer getResourceAsWriter(String path) throws IOException
+    {
+        try
+        {
+            return new OutputStreamWriter(getResourceAsOutputStream(path), charset);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should not happen as we're checking the charset in constructor
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String createTemporaryResource(String path, String suffix)
+    {
+        final String normalized = normalize(path);
+        while (true)
+        {
+            final String temporaryPath = normalized + "."
+                + temporaryResources.incrementAndGet() + suffix;
+            if (resources.putIfAbsent(temporaryPath, new byte [0]) == null)
+            {
+                return temporaryPath;
+            }
+        }
+    }
+
+    public void moveResource(String sourcePath, String targetPath) throws IOException
+    {
+        final String source = normalize(sourcePath);
+        final byte [] content = resources.remove(source);
+        if (content == null)
+        {
+            throw new FileNotFoundException(sourcePath);
+        }
+        writtenPaths.remove(source);
+        store(normalize(targetPath), content);
+    }
+
+    public void deleteResource(String path) throws IOException
+    {
+        final String normalized = normalize(path);
+        resources.remove(normalized);
+        writtenPaths.remove(normalized);
+    }
+
+    /**
+     * This implementation detects if the resource path starts with a "/" and resolves
+     * such resources against the provided document root directory.
+     */
+    public String getResourcePath(String baseFile, String filePath)
+    {
+        return ResourcePaths.resolve(documentRootDir, baseFile, filePath, messageLog);
+    }
+
+    private void store(String normalizedPath, byte [] content)
+    {
+        resources.put(normalizedPath, content);
+        writtenPaths.add(normalizedPath);
+    }
+
+    /**
+     * Removes redundant name elements from the path and converts separators to '/'.
+     * Paths that point above their root are only converted.
+     */
+    static String normalize(String path)
+    {
+        final String normalized = FilenameUtils.normalize(path, true);
+        return normalized != null ? normalized : FilenameUtils.separatorsToUnix(path);
+    }
+
+    /**
+     * Buffers written content and stores it as the resource once closed.
+     */
+    private final class ResourceOutputStream extends ByteArrayOutputStream
+    {
+        private final String path;
+        private boolean closed;
+
+        ResourceOutputStream(String path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                store(path, toByteArray());
+            }
+        }
+    }
+}
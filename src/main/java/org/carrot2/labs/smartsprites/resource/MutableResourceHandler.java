@@ -0,0 +1,39 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.IOException;
+
+/**
+ * Implemented by {@link ResourceHandler}s that can move and delete written resources, so
+ * that a resource can be written under a temporary path first and then put in place or
+ * discarded. Resources of other handlers are written directly to their final paths.
+ */
+public interface MutableResourceHandler extends ResourceHandler
+{
+    /**
+     * Creates a new, empty resource next to the resource at the provided path. The path
+     * of the created resource is unique, so that concurrent writes of resources with the
+     * same path do not collide.
+     * 
+     * @param path the path of the resource to be written through the temporary resource
+     * @param suffix the suffix of the temporary resource path
+     * @return the path of the created resource
+     */
+    String createTemporaryResource(String path, String suffix) throws IOException;
+
+    /**
+     * Moves the resource to another path, replacing the resource at that path if it
+     * exists. Implementations should make the move atomic if possible, so that the target
+     * resource is never seen partially written.
+     * 
+     * @param sourcePath the path of the resource to move
+     * @param targetPath the new path of the resource
+     */
+    void moveResource(String sourcePath, String targetPath) throws IOException;
+
+    /**
+     * Deletes the resource if it exists.
+     * 
+     * @param path the resource path
+     */
+    void deleteResource(String path) throws IOException;
+}
@@ -0,0 +1,46 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import org.apache.commons.io.FilenameUtils;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.util.StringUtils;
+
+/**
+ * Resolves resource paths referenced from CSS files, shared by the
+ * {@link ResourceHandler} implementations.
+ */
+final class ResourcePaths
+{
+    private ResourcePaths()
+    {
+        // Prevent Instantiation
+    }
+
+    /**
+     * Resolves paths starting with a "/" against the provided
+     * {@link SmartSpritesParameters#getDocumentRootDir()} directory and all other paths
+     * against the directory of the base file.
+     */
+    static String resolve(String documentRootDir, String baseFile, String filePath,
+        MessageLog messageLog)
+    {
+        if (filePath.startsWith("/"))
+        {
+            if (StringUtils.isNotBlank(documentRootDir))
+            {
+                return FilenameUtils.concat(documentRootDir, filePath.substring(1));
+            }
+            else
+            {
+                messageLog.warning(MessageType.ABSOLUTE_PATH_AND_NO_DOCUMENT_ROOT,
+                    filePath);
+                return "";
+            }
+        }
+        else
+        {
+            return FilenameUtils.concat(FilenameUtils.getFullPath(baseFile), filePath);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.carrot2.labs.smartsprites.message.MessageLog;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * This class defines the resource handler which reads resources from a zip or jar
+ * archive. Paths are the archive entry names, e.g. <code>css/style.css</code>. The
+ * archive is read into memory once, all outputs are kept in memory too and can be
+ * written to a new archive using {@link #writeOutputArchive(OutputStream)} or
+ * {@link #writeArchive(OutputStream)}.
+ */
+public class ZipResourceHandler extends InMemoryResourceHandler
+{
+    /**
+     * Creates a new {@link ZipResourceHandler} with the entries of the provided archive
+     * stream. The stream is not closed by this constructor.
+     *
+     * @param archive the zip or jar archive stream
+     * @param documentRootDirPath the document root directory path within the archive,
+     *            can be <code>null</code>
+     * @param charset the charset to assume in the {@link #getResourceAsReader(String)}
+     *            method
+     * @param messageLog the message log
+     */
+    public ZipResourceHandler(InputStream archive, String documentRootDirPath,
+        String charset, MessageLog messageLog) throws IOException
+    {
+        super(documentRootDirPath, charset, messageLog);
+
+        final ZipInputStream zis = new ZipInputStream(archive);
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            if (!entry.isDirectory())
+            {
+                putResource(entry.getName(), ByteStreams.toByteArray(zis));
+            }
+        }
+    }
+
+    /**
+     * Creates a new {@link ZipResourceHandler} with the entries of the archive at the
+     * provided path.
+     */
+    public static ZipResourceHandler open(String archivePath, String documentRootDirPath,
+        String charset, MessageLog messageLog) throws IOException
+    {
+        final InputStream is = new FileInputStream(archivePath);
+        try
+        {
+            return new ZipResourceHandler(is, documentRootDirPath, charset, messageLog);
+        }
+        finally
+        {
+            Closeables.close(is, true);
+        }
+    }
+
+    /**
+     * Writes an archive with the resources written by the build, e.g. sprite images and
+     * processed CSS files. The stream is not closed by this method.
+     */
+    public void writeOutputArchive(OutputStream out) throws IOException
+    {
+        write(out, getWrittenResourcePaths());
+    }
+
+    /**
+     * Writes an archive with all resources, i.e. the entries of the original archive
+     * updated with the resources written by the build. The stream is not closed by this
+     * method.
+     */
+    public void writeArchive(OutputStream out) throws IOException
+    {
+        write(out, getResourcePaths());
+    }
+
+    private void write(OutputStream out, Collection<String> paths) throws IOException
+    {
+        final ZipOutputStream zos = new ZipOutputStream(out);
+        for (String path : paths)
+        {
+            final byte [] content = getResource(path);
+            if (content == null)
+            {
+                // Deleted in the meantime
+                continue;
+            }
+            zos.putNextEntry(new ZipEntry(path));
+            zos.write(content);
+            zos.closeEntry();
+        }
+        zos.finish();
+    }
+}
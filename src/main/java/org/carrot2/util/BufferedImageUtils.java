@@ -2,10 +2,16 @@ package org.carrot2.util;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
-import java.util.Set;
-
-import com.google.common.collect.Sets;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 /**
  * Various utility methods for working with {@link BufferedImage}s.
@@ -89,30 +95,25 @@ public class BufferedImageUtils
         final int width = image.getWidth();
         final int height = image.getHeight();
 
-        final Set<Integer> colors = Sets.newHashSet();
+        final IntHashSet colors = new IntHashSet();
 
-        for (int x = 0; x < width; x++)
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < height; y++)
+            getArgb(image, 0, y, width, 1, row, 0);
+            for (int x = 0; x < width; x++)
             {
-                final int pixel = image.getRGB(x, y);
+                final int pixel = row[x];
 
                 // Count only colors for which alpha is not fully transparent
                 if ((pixel & 0xff000000) != 0x00000000)
                 {
-                    colors.add(Integer.valueOf(pixel & 0x00ffffff));
+                    colors.add(pixel & 0x00ffffff);
                 }
             }
         }
 
-        final int [] colorMap = new int [colors.size() + padding];
-        int index = padding;
-        for (Integer color : colors)
-        {
-            colorMap[index++] = color;
-        }
-
-        return colorMap;
+        return colors.toArray(null, padding);
     }
 
     /**
@@ -126,11 +127,13 @@ public class BufferedImageUtils
 
         final int [][] rgb = new int [width] [height];
 
-        for (int x = 0; x < width; x++)
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < height; y++)
+            getArgb(image, 0, y, width, 1, row, 0);
+            for (int x = 0; x < width; x++)
             {
-                rgb[x][y] = image.getRGB(x, y);
+                rgb[x][y] = row[x];
             }
         }
 
@@ -143,6 +146,17 @@ public class BufferedImageUtils
      * image was put on top of a bitmap filled with <code>matteColor</code>.
      */
     public static BufferedImage matte(BufferedImage source, Color matteColor)
+    {
+        return matte(source, matteColor, 1);
+    }
+
+    /**
+     * Performs matting of the <code>source</code> image using <code>matteColor</code>,
+     * composing up to <code>parallelism</code> stripes of rows concurrently. The results
+     * are the same for any parallelism.
+     */
+    public static BufferedImage matte(BufferedImage source, final Color matteColor,
+        int parallelism)
     {
         final int width = source.getWidth();
         final int height = source.getHeight();
@@ -156,25 +170,69 @@ public class BufferedImageUtils
         final BufferedImage matted = new BufferedImage(width, height,
             BufferedImage.TYPE_4BYTE_ABGR);
 
-        final BufferedImage matte = new BufferedImage(width, height,
-            BufferedImage.TYPE_4BYTE_ABGR);
-        final int matteRgb = matteColor.getRGB();
-        for (int x = 0; x < width; x++)
+        // Each stripe is composed with its own matte of the stripe's size, the
+        // composition is done pixel by pixel, so stripes don't affect the results
+        RowStripes.run(height, parallelism, new RowStripes.Task()
         {
-            for (int y = 0; y < height; y++)
+            public void run(int startRow, int endRow)
             {
-                matte.setRGB(x, y, matteRgb);
-            }
-        }
+                final int rows = endRow - startRow;
+                final BufferedImage matte = new BufferedImage(width, rows,
+                    BufferedImage.TYPE_4BYTE_ABGR);
+                final int [] matteRow = new int [width];
+                Arrays.fill(matteRow, matteColor.getRGB());
+                for (int y = 0; y < rows; y++)
+                {
+                    setArgb(matte, 0, y, width, 1, matteRow, 0);
+                }
 
-        CompositeContext context = AlphaComposite.DstOver.createContext(matte
-            .getColorModel(), sourceConverted.getColorModel(), null);
-        context.compose(matte.getRaster(), sourceConverted.getRaster(), matted
-            .getRaster());
+                final CompositeContext context = AlphaComposite.DstOver.createContext(
+                    matte.getColorModel(), sourceConverted.getColorModel(), null);
+                context.compose(matte.getRaster(), sourceConverted.getRaster()
+                    .createChild(0, startRow, width, rows, 0, 0, null), matted
+                    .getRaster().createWritableChild(0, startRow, width, rows, 0, 0,
+                        null));
+                context.dispose();
+            }
+        });
 
         return matted;
     }
 
+    /**
+     * Resamples the image to the provided size using bicubic interpolation. When shrinking
+     * by more than half, the image is first halved repeatedly, so that all source pixels
+     * contribute to the result.
+     */
+    public static BufferedImage resample(BufferedImage image, int width, int height)
+    {
+        BufferedImage current = image;
+        do
+        {
+            final int stepWidth = Math.max(width, current.getWidth() / 2);
+            final int stepHeight = Math.max(height, current.getHeight() / 2);
+            final BufferedImage resampled = new BufferedImage(stepWidth, stepHeight,
+                BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D graphics = resampled.createGraphics();
+            try
+            {
+                graphics.setComposite(AlphaComposite.Src);
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING,
+                    RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+            }
+            finally
+            {
+                graphics.dispose();
+            }
+            current = resampled;
+        }
+        while (current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
     /**
      * Draws <code>image</code> on the <code>canvas</code> placing the top left corner of
      * <code>image</code> at <code>x</code> / <code>y</code> offset from the top left
@@ -182,10 +240,261 @@ public class BufferedImageUtils
      */
     public static void drawImage(BufferedImage image, BufferedImage canvas, int x, int y)
     {
-        final int [] imgRGB = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
-            null, 0, image.getWidth());
-        canvas.setRGB(x, y, image.getWidth(), image.getHeight(), imgRGB, 0, image
-            .getWidth());
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        checkBounds(canvas, x, y, width, height);
+
+        final int type = getFastPathType(image);
+        if (type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_INDEXED
+            && type == getFastPathType(canvas))
+        {
+            // Same pixel layout, copy whole rows
+            final Object source = getData(image);
+            final Object target = getData(canvas);
+            final int samplesPerPixel = type == BufferedImage.TYPE_INT_ARGB ? 1 : 4;
+            for (int row = 0; row < height; row++)
+            {
+                System.arraycopy(source, row * width * samplesPerPixel, target,
+                    ((y + row) * canvas.getWidth() + x) * samplesPerPixel, width
+                        * samplesPerPixel);
+            }
+            return;
+        }
+
+        final int [] argb = new int [width];
+        for (int row = 0; row < height; row++)
+        {
+            getArgb(image, 0, row, width, 1, argb, 0);
+            setArgb(canvas, x, y + row, width, 1, argb, 0);
+        }
+    }
+
+    /**
+     * Reads pixels of a rectangular region of the image in the default ARGB color model,
+     * just like {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)} does
+     * with the scan size equal to <code>width</code>. Images of type
+     * {@link BufferedImage#TYPE_INT_ARGB}, {@link BufferedImage#TYPE_4BYTE_ABGR} and
+     * {@link BufferedImage#TYPE_BYTE_INDEXED} are read directly from their data buffers,
+     * row by row, without color model conversions for each pixel.
+     * 
+     * @return the array with pixels in row-major order, allocated if <code>argb</code> is
+     *         <code>null</code>
+     */
+    public static int [] getArgb(BufferedImage image, int x, int y, int width,
+        int height, int [] argb, int offset)
+    {
+        if (argb == null)
+        {
+            argb = new int [offset + width * height];
+        }
+
+        final int imageWidth = image.getWidth();
+        switch (getFastPathType(image))
+        {
+            case BufferedImage.TYPE_INT_ARGB:
+            {
+                checkBounds(image, x, y, width, height);
+                final int [] data = (int []) getData(image);
+                for (int row = 0; row < height; row++)
+                {
+                    System.arraycopy(data, (y + row) * imageWidth + x, argb, offset + row
+                        * width, width);
+                }
+                break;
+            }
+
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            {
+                checkBounds(image, x, y, width, height);
+                final byte [] data = (byte []) getData(image);
+                for (int row = 0; row < height; row++)
+                {
+                    int source = ((y + row) * imageWidth + x) * 4;
+                    int target = offset + row * width;
+                    for (int column = 0; column < width; column++, source += 4)
+                    {
+                        argb[target++] = (data[source] & 0xff) << 24
+                            | (data[source + 3] & 0xff) << 16
+                            | (data[source + 2] & 0xff) << 8 | (data[source + 1] & 0xff);
+                    }
+                }
+                break;
+            }
+
+            case BufferedImage.TYPE_BYTE_INDEXED:
+            {
+                checkBounds(image, x, y, width, height);
+                final byte [] data = (byte []) getData(image);
+                final IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+                final int [] palette = new int [256];
+                for (int i = 0; i < palette.length; i++)
+                {
+                    palette[i] = colorModel.getRGB(i);
+                }
+                for (int row = 0; row < height; row++)
+                {
+                    int source = (y + row) * imageWidth + x;
+                    int target = offset + row * width;
+                    for (int column = 0; column < width; column++)
+                    {
+                        argb[target++] = palette[data[source++] & 0xff];
+                    }
+                }
+                break;
+            }
+
+            default:
+                image.getRGB(x, y, width, height, argb, offset, width);
+        }
+
+        return argb;
+    }
+
+    /**
+     * Writes pixels in the default ARGB color model to a rectangular region of the image,
+     * just like {@link BufferedImage#setRGB(int, int, int, int, int[], int, int)} does
+     * with the scan size equal to <code>width</code>. Images of type
+     * {@link BufferedImage#TYPE_INT_ARGB} and {@link BufferedImage#TYPE_4BYTE_ABGR} are
+     * written directly to their data buffers.
+     */
+    public static void setArgb(BufferedImage image, int x, int y, int width, int height,
+        int [] argb, int offset)
+    {
+        final int imageWidth = image.getWidth();
+        switch (getFastPathType(image))
+        {
+            case BufferedImage.TYPE_INT_ARGB:
+            {
+                checkBounds(image, x, y, width, height);
+                final int [] data = (int []) getData(image);
+                for (int row = 0; row < height; row++)
+                {
+                    System.arraycopy(argb, offset + row * width, data, (y + row)
+                        * imageWidth + x, width);
+                }
+                break;
+            }
+
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            {
+                checkBounds(image, x, y, width, height);
+                final byte [] data = (byte []) getData(image);
+                for (int row = 0; row < height; row++)
+                {
+                    int source = offset + row * width;
+                    int target = ((y + row) * imageWidth + x) * 4;
+                    for (int column = 0; column < width; column++)
+                    {
+                        final int pixel = argb[source++];
+                        data[target++] = (byte) (pixel >>> 24);
+                        data[target++] = (byte) pixel;
+                        data[target++] = (byte) (pixel >>> 8);
+                        data[target++] = (byte) (pixel >>> 16);
+                    }
+                }
+                break;
+            }
+
+            default:
+                image.setRGB(x, y, width, height, argb, offset, width);
+        }
+    }
+
+    /**
+     * Returns the type of the image if its pixels can be accessed directly in the
+     * image's data buffer, {@link BufferedImage#TYPE_CUSTOM} otherwise. Direct access is
+     * possible for the supported types if the raster covers the whole data buffer with
+     * no padding, which is the case for all images created with the
+     * {@link BufferedImage#BufferedImage(int, int, int)} constructor, but not e.g. for
+     * sub-images.
+     */
+    static int getFastPathType(BufferedImage image)
+    {
+        final WritableRaster raster = image.getRaster();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final SampleModel sampleModel = raster.getSampleModel();
+        if (raster.getSampleModelTranslateX() != 0
+            || raster.getSampleModelTranslateY() != 0 || dataBuffer.getNumBanks() != 1
+            || dataBuffer.getOffset() != 0 || sampleModel.getWidth() != image.getWidth())
+        {
+            return BufferedImage.TYPE_CUSTOM;
+        }
+
+        final int width = image.getWidth();
+        switch (image.getType())
+        {
+            case BufferedImage.TYPE_INT_ARGB:
+                if (dataBuffer instanceof DataBufferInt
+                    && sampleModel instanceof SinglePixelPackedSampleModel
+                    && ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() == width)
+                {
+                    return BufferedImage.TYPE_INT_ARGB;
+                }
+                break;
+
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (dataBuffer instanceof DataBufferByte
+                    && isInterleaved(sampleModel, width, new int []
+                    {
+                        3, 2, 1, 0
+                    }))
+                {
+                    return BufferedImage.TYPE_4BYTE_ABGR;
+                }
+                break;
+
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                if (dataBuffer instanceof DataBufferByte
+                    && image.getColorModel() instanceof IndexColorModel
+                    && image.getColorModel().getPixelSize() == 8
+                    && isInterleaved(sampleModel, width, new int []
+                    {
+                        0
+                    }))
+                {
+                    return BufferedImage.TYPE_BYTE_INDEXED;
+                }
+                break;
+        }
+
+        return BufferedImage.TYPE_CUSTOM;
+    }
+
+    private static boolean isInterleaved(SampleModel sampleModel, int width,
+        int [] bandOffsets)
+    {
+        if (!(sampleModel instanceof ComponentSampleModel))
+        {
+            return false;
+        }
+
+        final ComponentSampleModel componentSampleModel = (ComponentSampleModel) sampleModel;
+        return componentSampleModel.getPixelStride() == bandOffsets.length
+            && componentSampleModel.getScanlineStride() == width * bandOffsets.length
+            && Arrays.equals(componentSampleModel.getBandOffsets(), bandOffsets);
+    }
+
+    private static Object getData(BufferedImage image)
+    {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt)
+        {
+            return ((DataBufferInt) dataBuffer).getData();
+        }
+        else
+        {
+            return ((DataBufferByte) dataBuffer).getData();
+        }
+    }
+
+    private static void checkBounds(BufferedImage image, int x, int y, int width,
+        int height)
+    {
+        if (x < 0 || y < 0 || x + width > image.getWidth()
+            || y + height > image.getHeight())
+        {
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+        }
     }
 
     private BufferedImageUtils()
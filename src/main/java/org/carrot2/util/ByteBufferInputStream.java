@@ -0,0 +1,57 @@
+package org.carrot2.util;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading the remaining content of a {@link ByteBuffer}. The
+ * position of the provided buffer is not changed.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read()
+    {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte [] b, int off, int len)
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!buffer.hasRemaining())
+        {
+            return -1;
+        }
+
+        final int read = Math.min(len, buffer.remaining());
+        buffer.get(b, off, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        // Through Buffer, ByteBuffer.position(int) does not exist before Java 9
+        ((Buffer) buffer).position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
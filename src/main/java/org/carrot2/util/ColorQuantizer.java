@@ -2,12 +2,13 @@ package org.carrot2.util;
 
 import java.awt.Color;
 import java.awt.image.*;
+import java.util.Arrays;
 
 import amd.Quantize;
 
 /**
- * A simple utility wrapping the {@link Quantize} class to work on {@link BufferedImage}s
- * and handle transparency.
+ * A simple utility wrapping {@link QuantizationEngine}s, by default the one based on the
+ * {@link Quantize} class, to work on {@link BufferedImage}s and handle transparency.
  */
 public class ColorQuantizer
 {
@@ -54,47 +55,98 @@ public class ColorQuantizer
      */
     public static BufferedImage quantize(BufferedImage source, Color matteColor,
         int maxColors)
+    {
+        return quantize(source, matteColor, maxColors, new OctreeQuantizer());
+    }
+
+    /**
+     * Quantizes the image to the provided number of colors with the provided matte
+     * {@link Color} for areas with partial transparency (full transparency will be
+     * preserved), using the provided {@link QuantizationEngine}.
+     * 
+     * @return {@link BufferedImage} with type {@link BufferedImage#TYPE_BYTE_INDEXED} and
+     *         quantized colors
+     */
+    public static BufferedImage quantize(BufferedImage source, Color matteColor,
+        int maxColors, QuantizationEngine engine)
+    {
+        return quantize(source, matteColor, maxColors, engine, 1);
+    }
+
+    /**
+     * Quantizes the image to the provided number of colors with the provided matte
+     * {@link Color} for areas with partial transparency (full transparency will be
+     * preserved), using the provided {@link QuantizationEngine}. Matting and mapping of
+     * pixels to palette entries are run in up to <code>parallelism</code> concurrent
+     * stripes of rows, the results are the same for any parallelism.
+     * 
+     * @return {@link BufferedImage} with type {@link BufferedImage#TYPE_BYTE_INDEXED} and
+     *         quantized colors
+     */
+    public static BufferedImage quantize(final BufferedImage source, Color matteColor,
+        int maxColors, QuantizationEngine engine, int parallelism)
     {
         final int width = source.getWidth();
         final int height = source.getHeight();
 
         // First put the matte color so that we have a sensible result
         // for images with full alpha transparencies
-        final BufferedImage mattedSource = BufferedImageUtils.matte(source, matteColor);
+        final BufferedImage mattedSource = BufferedImageUtils.matte(source, matteColor,
+            parallelism);
 
-        // Get two copies of RGB data (quantization will overwrite one)
-        final int [][] bitmap = BufferedImageUtils.getRgb(mattedSource);
+        // Get a copy of RGB data, quantization will overwrite it. Flat octree quantizers
+        // keep a buffer for that, so that it is not allocated for each image.
+        final int [] pixels = engine instanceof FlatOctreeQuantizer
+            ? ((FlatOctreeQuantizer) engine).getPixelBuffer(width * height)
+            : new int [width * height];
+        BufferedImageUtils.getArgb(mattedSource, 0, 0, width, height, pixels, 0);
 
         // Quantize colors and shift palette by one for transparency color
-        // We'll keep transparency color black for now.
-        final int [] colors = Quantize.quantizeImage(bitmap, maxColors);
-        final int [] colorsWithAlpha = new int [colors.length + 1];
-        System.arraycopy(colors, 0, colorsWithAlpha, 1, colors.length);
-        colorsWithAlpha[0] = matteColor.getRGB();
-        final IndexColorModel colorModel = new IndexColorModel(8, colorsWithAlpha.length,
-            colorsWithAlpha, 0, false, 0, DataBuffer.TYPE_BYTE);
+        final int [] colors = engine.quantize(pixels, width, height, maxColors,
+            parallelism);
+        final BufferedImage quantized = createIndexedImage(source, matteColor, colors);
 
         // Write the results to an indexed image, skipping the fully transparent bits
-        final BufferedImage quantized = new BufferedImage(width, height,
-            BufferedImage.TYPE_BYTE_INDEXED, colorModel);
-        final WritableRaster raster = quantized.getRaster();
-        final int [][] rgb = BufferedImageUtils.getRgb(source);
-        for (int x = 0; x < width; x++)
+        final byte [] indices = ((DataBufferByte) quantized.getRaster().getDataBuffer())
+            .getData();
+        RowStripes.run(height, parallelism, new RowStripes.Task()
         {
-            for (int y = 0; y < height; y++)
+            public void run(int startRow, int endRow)
             {
-                final int value = (rgb[x][y] & 0xff000000) != 0x00000000 ? bitmap[x][y] + 1
-                    : 0;
-                raster.setPixel(x, y, new int []
+                final int [] row = new int [width];
+                for (int y = startRow; y < endRow; y++)
                 {
-                    value
-                });
+                    BufferedImageUtils.getArgb(source, 0, y, width, 1, row, 0);
+                    for (int x = 0, i = y * width; x < width; x++, i++)
+                    {
+                        final boolean opaque = (row[x] & 0xff000000) != 0x00000000;
+                        indices[i] = (byte) (opaque ? pixels[i] + 1 : 0);
+                    }
+                }
             }
-        }
+        });
 
         return quantized;
     }
 
+    /**
+     * Creates an indexed image of the size of <code>source</code> with the provided
+     * colors shifted by one in the palette to make room for the transparent color. We'll
+     * keep the transparent color set to the matte color for now.
+     */
+    private static BufferedImage createIndexedImage(BufferedImage source,
+        Color matteColor, int [] colors)
+    {
+        final int [] colorsWithAlpha = new int [colors.length + 1];
+        System.arraycopy(colors, 0, colorsWithAlpha, 1, colors.length);
+        colorsWithAlpha[0] = matteColor.getRGB();
+        final IndexColorModel colorModel = new IndexColorModel(8, colorsWithAlpha.length,
+            colorsWithAlpha, 0, false, 0, DataBuffer.TYPE_BYTE);
+
+        return new BufferedImage(source.getWidth(), source.getHeight(),
+            BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+    }
+
     /**
      * Reduces a direct color buffered image to an indexed color one without quality loss.
      * To make sure no quality loss will occur, check the results of the
@@ -104,23 +156,53 @@ public class ColorQuantizer
      *             image quality loss
      */
     public static BufferedImage reduce(BufferedImage source)
+    {
+        return reduce(source, ImageStats.compute(source, MAX_INDEXED_COLORS));
+    }
+
+    /**
+     * Reduces a direct color buffered image to an indexed color one without quality
+     * loss, reusing the already computed statistics of the image.
+     * 
+     * @param stats statistics of the <code>source</code> image, computed with at least
+     *            {@link #MAX_INDEXED_COLORS} as the color limit
+     * @throws IllegalArgumentException if the application of this method would result in
+     *             image quality loss
+     */
+    public static BufferedImage reduce(BufferedImage source, ImageStats stats)
+    {
+        return reduce(source, stats, 1);
+    }
+
+    /**
+     * Reduces a direct color buffered image to an indexed color one without quality
+     * loss, reusing the already computed statistics of the image. Pixels are looked up
+     * in the palette in up to <code>parallelism</code> concurrent stripes of rows.
+     * 
+     * @param stats statistics of the <code>source</code> image, computed with at least
+     *            {@link #MAX_INDEXED_COLORS} as the color limit
+     * @throws IllegalArgumentException if the application of this method would result in
+     *             image quality loss
+     */
+    public static BufferedImage reduce(final BufferedImage source, ImageStats stats,
+        int parallelism)
     {
         final int width = source.getWidth();
         final int height = source.getHeight();
 
-        if (BufferedImageUtils.hasPartialTransparency(source))
+        if (stats.hasPartialTransparency())
         {
             throw new IllegalArgumentException(
                 "The source image cannot contain translucent areas");
         }
 
-        final int [] colorsWithAlpha = BufferedImageUtils.getDistictColors(source, 1);
-        if (colorsWithAlpha.length - 1 > MAX_INDEXED_COLORS)
+        if (stats.getDistinctColorCount() > MAX_INDEXED_COLORS)
         {
             throw new IllegalArgumentException(
                 "The source image cannot contain more than " + MAX_INDEXED_COLORS
                     + " colors");
         }
+        final int [] colorsWithAlpha = stats.getDistinctColors(1);
 
         final IndexColorModel colorModel = new IndexColorModel(8, colorsWithAlpha.length,
             colorsWithAlpha, 0, false, 0, DataBuffer.TYPE_BYTE);
@@ -128,29 +210,95 @@ public class ColorQuantizer
         // Write the results to an indexed image, skipping the fully transparent bits
         final BufferedImage quantized = new BufferedImage(width, height,
             BufferedImage.TYPE_BYTE_INDEXED, colorModel);
-        final int [][] rgb = BufferedImageUtils.getRgb(source);
+        final byte [] indices = ((DataBufferByte) quantized.getRaster().getDataBuffer())
+            .getData();
+
+        // Each opaque color maps exactly to its palette entry, sort the colors together
+        // with their indices so that the entries can be found by binary search
+        final long [] entries = new long [colorsWithAlpha.length - 1];
+        for (int i = 1; i < colorsWithAlpha.length; i++)
+        {
+            entries[i - 1] = (long) colorsWithAlpha[i] << 8 | i;
+        }
+        Arrays.sort(entries);
+        final int [] sortedColors = new int [entries.length];
+        final byte [] sortedIndices = new byte [entries.length];
+        for (int i = 0; i < entries.length; i++)
+        {
+            sortedColors[i] = (int) (entries[i] >>> 8);
+            sortedIndices[i] = (byte) entries[i];
+        }
 
-        for (int x = 0; x < width; x++)
+        RowStripes.run(height, parallelism, new RowStripes.Task()
         {
-            for (int y = 0; y < height; y++)
+            public void run(int startRow, int endRow)
             {
-                if ((rgb[x][y] & 0xff000000) != 0x00000000)
+                final int [] row = new int [width];
+                for (int y = startRow; y < endRow; y++)
                 {
-                    quantized.setRGB(x, y, source.getRGB(x, y));
+                    BufferedImageUtils.getArgb(source, 0, y, width, 1, row, 0);
+                    for (int x = 0; x < width; x++)
+                    {
+                        if ((row[x] & 0xff000000) != 0x00000000)
+                        {
+                            indices[y * width + x] = sortedIndices[Arrays.binarySearch(
+                                sortedColors, row[x] & 0x00ffffff)];
+                        }
+                    }
                 }
             }
-        }
+        });
 
         return quantized;
     }
 
     /**
-     * Returns a {@link ColorReductionInfo} for the provided image.
+     * Returns a {@link ColorReductionInfo} for the provided image. Transparency and
+     * colors are checked in a single pass, which stops as soon as the answer to
+     * {@link ColorReductionInfo#canReduceWithoutQualityLoss()} is known, i.e. at the
+     * first partially transparent pixel or at color number
+     * {@link #MAX_INDEXED_COLORS} + 1. Hence, {@link ColorReductionInfo#distictColors}
+     * is exact only for images that can be reduced without quality loss.
      */
     public static ColorReductionInfo getColorReductionInfo(BufferedImage source)
     {
-        return new ColorReductionInfo(BufferedImageUtils.hasPartialTransparency(source),
-            BufferedImageUtils.countDistictColors(source));
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final IntHashSet colors = new IntHashSet(MAX_INDEXED_COLORS + 1);
+
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
+        {
+            BufferedImageUtils.getArgb(source, 0, y, width, 1, row, 0);
+            for (int x = 0; x < width; x++)
+            {
+                final int alpha = row[x] >>> 24;
+                if (alpha == 0x00)
+                {
+                    continue;
+                }
+                if (alpha != 0xff)
+                {
+                    return new ColorReductionInfo(true, colors.size());
+                }
+                if (colors.add(row[x] & 0x00ffffff) && colors.size() > MAX_INDEXED_COLORS)
+                {
+                    return new ColorReductionInfo(false, colors.size());
+                }
+            }
+        }
+
+        return new ColorReductionInfo(false, colors.size());
+    }
+
+    /**
+     * Returns a {@link ColorReductionInfo} based on the already computed statistics of
+     * an image.
+     */
+    public static ColorReductionInfo getColorReductionInfo(ImageStats stats)
+    {
+        return new ColorReductionInfo(stats.hasPartialTransparency(),
+            stats.getDistinctColorCount());
     }
 
     /**
@@ -159,7 +307,10 @@ public class ColorQuantizer
      */
     public static class ColorReductionInfo
     {
-        /** Number of distint colors in the image */
+        /**
+         * Number of distint colors in the image, counted up to {@link #MAX_INDEXED_COLORS}
+         * + 1 by {@link ColorQuantizer#getColorReductionInfo(BufferedImage)}
+         */
         public int distictColors;
 
         /** True if the image has partially transparent areas (alpha channel) */
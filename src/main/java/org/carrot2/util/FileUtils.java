@@ -2,6 +2,8 @@ package org.carrot2.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
@@ -38,6 +40,25 @@ public class FileUtils
         }
     }
 
+    /**
+     * Returns the absolute path of the provided path with redundant name elements, such
+     * as <code>.</code> and <code>..</code>, removed. Unlike
+     * {@link #getCanonicalOrAbsoluteFile(String)}, this method does not access the file
+     * system, so symbolic links are not resolved. If the path is not a valid file
+     * system path, it is returned unchanged.
+     */
+    public static String getNormalizedAbsolutePath(String path)
+    {
+        try
+        {
+            return Paths.get(path).toAbsolutePath().normalize().toString();
+        }
+        catch (final InvalidPathException e)
+        {
+            return path;
+        }
+    }
+
     /**
      * Changes the root directory of a file. For example, file is /a/b/c/d/e and oldRoot
      * is /a/b/c, and newRoot is /x/y, the result will be /x/y/d/e.
@@ -0,0 +1,522 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import amd.Quantize;
+
+/**
+ * An allocation-lean implementation of the octree color quantization algorithm of
+ * {@link Quantize}. Pixels are passed in a flat, row-major array and the nodes of the
+ * color description tree are stored in parallel arrays indexed by node number rather
+ * than in separate objects. An instance retains its arrays between calls, so when
+ * reused, e.g. through a {@link Pool}, quantizing subsequent images allocates nearly
+ * nothing.
+ * <p>
+ * The palettes and pixel assignments are the same as the ones produced by
+ * {@link Quantize#quantizeImage(int[][], int)}, as long as the color description tree
+ * does not need to be pruned during classification, which is the case for up to 255
+ * colors. Instances of this class are not thread-safe.
+ */
+public class FlatOctreeQuantizer implements QuantizationEngine
+{
+    private static final int MAX_RGB = 255;
+    private static final int MAX_NODES = 266817;
+    private static final int MAX_TREE_DEPTH = 8;
+
+    /** Number of entries in the cache of colors already assigned to palette entries */
+    private static final int ASSIGNMENT_CACHE_SIZE = 4096;
+
+    private static final int [] SQUARES;
+    private static final int [] SHIFT;
+
+    static
+    {
+        SQUARES = new int [MAX_RGB + MAX_RGB + 1];
+        for (int i = -MAX_RGB; i <= MAX_RGB; i++)
+        {
+            SQUARES[i + MAX_RGB] = i * i;
+        }
+
+        SHIFT = new int [MAX_TREE_DEPTH + 1];
+        for (int i = 0; i < MAX_TREE_DEPTH + 1; ++i)
+        {
+            SHIFT[i] = 1 << (15 - i);
+        }
+    }
+
+    /** The root node, which is never a child, hence 0 also means "no child" */
+    private static final int ROOT = 0;
+
+    /*
+     * Node storage, see Quantize.Cube.Node for the meaning of the fields.
+     */
+    private int [] parent;
+    private int [] children;
+    private int [] nchild;
+    private int [] id;
+    private int [] level;
+    private int [] midRed;
+    private int [] midGreen;
+    private int [] midBlue;
+    private int [] numberPixels;
+    private int [] unique;
+    private int [] totalRed;
+    private int [] totalGreen;
+    private int [] totalBlue;
+    private int [] colorNumber;
+
+    /** Number of node slots ever used, slots of pruned nodes are kept on a free list */
+    private int allocated;
+    private int [] freeNodes;
+    private int freeNodeCount;
+
+    /*
+     * Current quantization state.
+     */
+    private int depth;
+    private int colors;
+    private int nodes;
+    private int [] colormap;
+
+    /** Direct-mapped cache of RGB values (with an extra bit set) and their palette entries */
+    private final int [] assignmentCacheKeys = new int [ASSIGNMENT_CACHE_SIZE];
+    private final int [] assignmentCacheValues = new int [ASSIGNMENT_CACHE_SIZE];
+
+    /** Reusable pixel buffer, see {@link #getPixelBuffer(int)} */
+    private int [] pixelBuffer = new int [0];
+
+    public FlatOctreeQuantizer()
+    {
+        allocateNodes(1024);
+    }
+
+    /**
+     * Returns a buffer of at least the provided size that can be used to pass pixels to
+     * {@link #quantize(int[], int, int)}. The buffer is retained by this quantizer and
+     * returned by subsequent calls if large enough.
+     */
+    public int [] getPixelBuffer(int size)
+    {
+        if (pixelBuffer.length < size)
+        {
+            pixelBuffer = new int [size];
+        }
+        return pixelBuffer;
+    }
+
+    public int [] quantize(int [] pixels, int width, int height, int maxColors,
+        int parallelism)
+    {
+        initialize(maxColors);
+        classification(pixels, width * height);
+        reduction(maxColors);
+        assignment(pixels, width, height, parallelism);
+        return colormap;
+    }
+
+    /**
+     * Quantizes the first <code>length</code> RGB values of <code>pixels</code> to at most
+     * <code>maxColors</code> colors, replacing each value with the index of its color in
+     * the returned palette.
+     */
+    public int [] quantize(int [] pixels, int length, int maxColors)
+    {
+        initialize(maxColors);
+        classification(pixels, length);
+        reduction(maxColors);
+        assignment(pixels, length, 1, 1);
+        return colormap;
+    }
+
+    private void initialize(int maxColors)
+    {
+        int i = maxColors;
+        for (depth = 1; i != 0; depth++)
+        {
+            i /= 4;
+        }
+        if (depth > 1)
+        {
+            --depth;
+        }
+        if (depth > MAX_TREE_DEPTH)
+        {
+            depth = MAX_TREE_DEPTH;
+        }
+        else if (depth < 2)
+        {
+            depth = 2;
+        }
+
+        colors = 0;
+        nodes = 0;
+        allocated = 1;
+        freeNodeCount = 0;
+
+        parent[ROOT] = ROOT;
+        Arrays.fill(children, 0, 8, 0);
+        nchild[ROOT] = 0;
+        id[ROOT] = 0;
+        level[ROOT] = 0;
+        numberPixels[ROOT] = Integer.MAX_VALUE;
+        unique[ROOT] = 0;
+        totalRed[ROOT] = 0;
+        totalGreen[ROOT] = 0;
+        totalBlue[ROOT] = 0;
+        midRed[ROOT] = (MAX_RGB + 1) >> 1;
+        midGreen[ROOT] = (MAX_RGB + 1) >> 1;
+        midBlue[ROOT] = (MAX_RGB + 1) >> 1;
+    }
+
+    private void classification(int [] pixels, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            final int pixel = pixels[i];
+            final int red = (pixel >> 16) & 0xff;
+            final int green = (pixel >> 8) & 0xff;
+            final int blue = pixel & 0xff;
+
+            if (nodes > MAX_NODES)
+            {
+                pruneLevel(ROOT);
+                --depth;
+            }
+
+            int node = ROOT;
+            for (int l = 1; l <= depth; ++l)
+            {
+                final int childId = childId(node, red, green, blue);
+                int child = children[node * 8 + childId];
+                if (child == 0)
+                {
+                    child = newNode(node, childId, l);
+                }
+                node = child;
+                numberPixels[node] += SHIFT[l];
+            }
+
+            ++unique[node];
+            totalRed[node] += red;
+            totalGreen[node] += green;
+            totalBlue[node] += blue;
+        }
+    }
+
+    private void reduction(int maxColors)
+    {
+        int threshold = 1;
+        while (colors > maxColors)
+        {
+            colors = 0;
+            threshold = reduce(ROOT, threshold, Integer.MAX_VALUE);
+        }
+    }
+
+    private void assignment(final int [] pixels, final int width, int height,
+        final int parallelism)
+    {
+        colormap = new int [colors];
+        colors = 0;
+        colormap(ROOT);
+
+        // The tree and the palette are only read from now on, so that stripes of pixels
+        // can be assigned concurrently, each with its own cache
+        RowStripes.run(height, parallelism, new RowStripes.Task()
+        {
+            public void run(int startRow, int endRow)
+            {
+                if (parallelism <= 1)
+                {
+                    Arrays.fill(assignmentCacheKeys, 0);
+                    assignment(pixels, startRow * width, endRow * width,
+                        assignmentCacheKeys, assignmentCacheValues);
+                }
+                else
+                {
+                    assignment(pixels, startRow * width, endRow * width,
+                        new int [ASSIGNMENT_CACHE_SIZE], new int [ASSIGNMENT_CACHE_SIZE]);
+                }
+            }
+        });
+    }
+
+    private void assignment(int [] pixels, int start, int end, int [] cacheKeys,
+        int [] cacheValues)
+    {
+        // Distance and color number of the closest color found so far
+        final int [] search = new int [2];
+        for (int i = start; i < end; i++)
+        {
+            final int rgb = pixels[i] & 0x00ffffff;
+
+            // Same colors are assigned the same palette entries, look them up first
+            final int key = rgb | 0x01000000;
+            final int slot = (rgb ^ (rgb >>> 12)) & (ASSIGNMENT_CACHE_SIZE - 1);
+            if (cacheKeys[slot] == key)
+            {
+                pixels[i] = cacheValues[slot];
+                continue;
+            }
+
+            final int red = (rgb >> 16) & 0xff;
+            final int green = (rgb >> 8) & 0xff;
+            final int blue = rgb & 0xff;
+
+            int node = ROOT;
+            while (true)
+            {
+                final int child = children[node * 8 + childId(node, red, green, blue)];
+                if (child == 0)
+                {
+                    break;
+                }
+                node = child;
+            }
+
+            search[0] = Integer.MAX_VALUE;
+            closestColor(parent[node], red, green, blue, search);
+
+            cacheKeys[slot] = key;
+            cacheValues[slot] = search[1];
+            pixels[i] = search[1];
+        }
+    }
+
+    private int childId(int node, int red, int green, int blue)
+    {
+        return (red > midRed[node] ? 1 : 0) | (green > midGreen[node] ? 2 : 0)
+            | (blue > midBlue[node] ? 4 : 0);
+    }
+
+    private int newNode(int parentNode, int childId, int nodeLevel)
+    {
+        final int node;
+        if (freeNodeCount > 0)
+        {
+            node = freeNodes[--freeNodeCount];
+        }
+        else
+        {
+            if (allocated == parent.length)
+            {
+                allocateNodes(parent.length * 2);
+            }
+            node = allocated++;
+        }
+
+        parent[node] = parentNode;
+        Arrays.fill(children, node * 8, node * 8 + 8, 0);
+        nchild[node] = 0;
+        id[node] = childId;
+        level[node] = nodeLevel;
+        numberPixels[node] = 0;
+        unique[node] = 0;
+        totalRed[node] = 0;
+        totalGreen[node] = 0;
+        totalBlue[node] = 0;
+        colorNumber[node] = 0;
+
+        ++nodes;
+        if (nodeLevel == depth)
+        {
+            ++colors;
+        }
+
+        ++nchild[parentNode];
+        children[parentNode * 8 + childId] = node;
+
+        final int bi = (1 << (MAX_TREE_DEPTH - nodeLevel)) >> 1;
+        midRed[node] = midRed[parentNode] + ((childId & 1) > 0 ? bi : -bi);
+        midGreen[node] = midGreen[parentNode] + ((childId & 2) > 0 ? bi : -bi);
+        midBlue[node] = midBlue[parentNode] + ((childId & 4) > 0 ? bi : -bi);
+
+        return node;
+    }
+
+    /**
+     * Removes the node, its parent absorbs the node's pixel statistics.
+     */
+    private void pruneChild(int node)
+    {
+        final int p = parent[node];
+        --nchild[p];
+        unique[p] += unique[node];
+        totalRed[p] += totalRed[node];
+        totalGreen[p] += totalGreen[node];
+        totalBlue[p] += totalBlue[node];
+        children[p * 8 + id[node]] = 0;
+        --nodes;
+        freeNodes[freeNodeCount++] = node;
+    }
+
+    /**
+     * Prunes the lowest layer of the tree.
+     */
+    private void pruneLevel(int node)
+    {
+        if (nchild[node] != 0)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                final int child = children[node * 8 + i];
+                if (child != 0)
+                {
+                    pruneLevel(child);
+                }
+            }
+        }
+        if (level[node] == depth)
+        {
+            pruneChild(node);
+        }
+    }
+
+    /**
+     * Removes nodes that have fewer than threshold pixels, counts the remaining colors
+     * and returns the next threshold.
+     */
+    private int reduce(int node, int threshold, int nextThreshold)
+    {
+        if (nchild[node] != 0)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                final int child = children[node * 8 + i];
+                if (child != 0)
+                {
+                    nextThreshold = reduce(child, threshold, nextThreshold);
+                }
+            }
+        }
+        if (numberPixels[node] <= threshold)
+        {
+            pruneChild(node);
+        }
+        else
+        {
+            if (unique[node] != 0)
+            {
+                colors++;
+            }
+            if (numberPixels[node] < nextThreshold)
+            {
+                nextThreshold = numberPixels[node];
+            }
+        }
+        return nextThreshold;
+    }
+
+    /**
+     * Assigns palette entries to nodes with a non-zero number of unique colors.
+     */
+    private void colormap(int node)
+    {
+        if (nchild[node] != 0)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                final int child = children[node * 8 + i];
+                if (child != 0)
+                {
+                    colormap(child);
+                }
+            }
+        }
+        final int n = unique[node];
+        if (n != 0)
+        {
+            final int r = (totalRed[node] + (n >> 1)) / n;
+            final int g = (totalGreen[node] + (n >> 1)) / n;
+            final int b = (totalBlue[node] + (n >> 1)) / n;
+            colormap[colors] = 0xff000000 | (r & 0xff) << 16 | (g & 0xff) << 8
+                | (b & 0xff);
+            colorNumber[node] = colors++;
+        }
+    }
+
+    /**
+     * Finds the palette entry closest to the provided color in the node's subtree,
+     * <code>search</code> holds the distance and number of the closest color found so
+     * far.
+     */
+    private void closestColor(int node, int red, int green, int blue, int [] search)
+    {
+        if (nchild[node] != 0)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                final int child = children[node * 8 + i];
+                if (child != 0)
+                {
+                    closestColor(child, red, green, blue, search);
+                }
+            }
+        }
+
+        if (unique[node] != 0)
+        {
+            final int color = colormap[colorNumber[node]];
+            final int distance = SQUARES[((color >> 16) & 0xff) - red + MAX_RGB]
+                + SQUARES[((color >> 8) & 0xff) - green + MAX_RGB]
+                + SQUARES[(color & 0xff) - blue + MAX_RGB];
+            if (distance < search[0])
+            {
+                search[0] = distance;
+                search[1] = colorNumber[node];
+            }
+        }
+    }
+
+    private void allocateNodes(int capacity)
+    {
+        parent = copyOf(parent, capacity);
+        children = copyOf(children, capacity * 8);
+        nchild = copyOf(nchild, capacity);
+        id = copyOf(id, capacity);
+        level = copyOf(level, capacity);
+        midRed = copyOf(midRed, capacity);
+        midGreen = copyOf(midGreen, capacity);
+        midBlue = copyOf(midBlue, capacity);
+        numberPixels = copyOf(numberPixels, capacity);
+        unique = copyOf(unique, capacity);
+        totalRed = copyOf(totalRed, capacity);
+        totalGreen = copyOf(totalGreen, capacity);
+        totalBlue = copyOf(totalBlue, capacity);
+        colorNumber = copyOf(colorNumber, capacity);
+        freeNodes = copyOf(freeNodes, capacity);
+    }
+
+    private static int [] copyOf(int [] array, int length)
+    {
+        return array == null ? new int [length] : Arrays.copyOf(array, length);
+    }
+
+    /**
+     * A thread-safe pool of {@link FlatOctreeQuantizer}s, so that quantizing many sprites
+     * reuses the same node storage and pixel buffers.
+     */
+    public static class Pool
+    {
+        private final Queue<FlatOctreeQuantizer> quantizers = new ConcurrentLinkedQueue<FlatOctreeQuantizer>();
+
+        /**
+         * Returns a pooled quantizer or a new one if none is available.
+         */
+        public FlatOctreeQuantizer borrow()
+        {
+            final FlatOctreeQuantizer quantizer = quantizers.poll();
+            return quantizer != null ? quantizer : new FlatOctreeQuantizer();
+        }
+
+        /**
+         * Returns the quantizer to the pool.
+         */
+        public void release(FlatOctreeQuantizer quantizer)
+        {
+            quantizers.add(quantizer);
+        }
+    }
+}
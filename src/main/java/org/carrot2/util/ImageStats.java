@@ -0,0 +1,148 @@
+package org.carrot2.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Transparency and color statistics of a {@link BufferedImage}, collected in a single
+ * pass over the image's pixels, so that the decisions on how to encode an image don't
+ * need to scan it multiple times.
+ */
+public class ImageStats
+{
+    private final boolean hasTransparency;
+    private final boolean hasPartialTransparency;
+
+    /** Distinct colors, collected up to {@link #maxColors} + 1 */
+    private final IntHashSet colors;
+    private final int maxColors;
+
+    /** Bounding box of pixels that are not fully transparent */
+    private final Rectangle bounds;
+
+    private ImageStats(boolean hasTransparency, boolean hasPartialTransparency,
+        IntHashSet colors, int maxColors, Rectangle bounds)
+    {
+        this.hasTransparency = hasTransparency;
+        this.hasPartialTransparency = hasPartialTransparency;
+        this.colors = colors;
+        this.maxColors = maxColors;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Computes statistics of the provided image, collecting up to
+     * <code>maxColors</code> distinct colors. Once the limit is exceeded, further colors
+     * are not collected, while the remaining statistics are still computed for the
+     * whole image.
+     */
+    public static ImageStats compute(BufferedImage image, int maxColors)
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        boolean hasTransparency = false;
+        boolean hasPartialTransparency = false;
+        final IntHashSet colors = new IntHashSet(Math.min(maxColors + 1, 4096));
+        boolean colorLimitExceeded = false;
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
+        {
+            BufferedImageUtils.getArgb(image, 0, y, width, 1, row, 0);
+            for (int x = 0; x < width; x++)
+            {
+                final int pixel = row[x];
+                final int alpha = pixel >>> 24;
+                if (alpha == 0x00)
+                {
+                    hasTransparency = true;
+                    continue;
+                }
+                if (alpha != 0xff)
+                {
+                    hasTransparency = true;
+                    hasPartialTransparency = true;
+                }
+
+                if (!colorLimitExceeded && colors.add(pixel & 0x00ffffff)
+                    && colors.size() > maxColors)
+                {
+                    colorLimitExceeded = true;
+                }
+
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = y;
+            }
+        }
+
+        return new ImageStats(hasTransparency, hasPartialTransparency, colors,
+            maxColors, maxY >= 0 ? new Rectangle(minX, minY, maxX - minX + 1, maxY
+                - minY + 1) : null);
+    }
+
+    /**
+     * Returns <code>true</code> if the image has any kind of transparent pixels.
+     */
+    public boolean hasTransparency()
+    {
+        return hasTransparency;
+    }
+
+    /**
+     * Returns <code>true</code> if the image has partially transparent pixels (alpha
+     * channel).
+     */
+    public boolean hasPartialTransparency()
+    {
+        return hasPartialTransparency;
+    }
+
+    /**
+     * Returns <code>true</code> if the image has more distinct colors than the limit
+     * provided when computing the statistics.
+     */
+    public boolean isColorLimitExceeded()
+    {
+        return colors.size() > maxColors;
+    }
+
+    /**
+     * Returns the number of distinct colors (excluding transparency) in the image, or
+     * the limit + 1 if the limit was exceeded.
+     */
+    public int getDistinctColorCount()
+    {
+        return colors.size();
+    }
+
+    /**
+     * Returns the image's distinct colors in an RGB format, discarding transparency
+     * information. Adds <code>padding</code> empty slots at the beginning of the returned
+     * array.
+     *
+     * @throws IllegalStateException if the color limit was exceeded, in which case not
+     *             all colors are known
+     */
+    public int [] getDistinctColors(int padding)
+    {
+        if (isColorLimitExceeded())
+        {
+            throw new IllegalStateException("The image has more than " + maxColors
+                + " colors");
+        }
+        return colors.toArray(null, padding);
+    }
+
+    /**
+     * Returns the bounding box of the pixels that are not fully transparent or
+     * <code>null</code> if the image is fully transparent.
+     */
+    public Rectangle getBounds()
+    {
+        return bounds != null ? new Rectangle(bounds) : null;
+    }
+}
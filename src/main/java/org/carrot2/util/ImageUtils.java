@@ -0,0 +1,265 @@
+package org.carrot2.util;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Various utility methods for working with encoded images.
+ */
+public class ImageUtils
+{
+    /** Number of bytes needed to recognize the supported formats */
+    private static final int SIGNATURE_LENGTH = 8;
+
+    private static final byte [] PNG_SIGNATURE = new byte []
+    {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /**
+     * Decodes the image from the remaining content of the buffer. Unlike
+     * {@link ImageIO#read(InputStream)}, this method never caches the stream in a
+     * temporary file, the content is already in memory.
+     *
+     * @return the image or <code>null</code> if the image format is not supported
+     */
+    public static BufferedImage read(ByteBuffer buffer) throws IOException
+    {
+        final ImageInputStream imageInputStream = new MemoryCacheImageInputStream(
+            new ByteBufferInputStream(buffer));
+        final BufferedImage image = ImageIO.read(imageInputStream);
+        if (image == null)
+        {
+            // ImageIO closes the stream only if a reader was found
+            imageInputStream.close();
+        }
+        return image;
+    }
+
+    /**
+     * Reads the dimensions of the image from the provided stream without decoding the
+     * image's pixels. PNG, GIF and JPEG headers are parsed directly, reading only the
+     * few bytes preceding the dimensions (the IHDR chunk, the first image descriptor
+     * and the first start-of-frame segment, respectively). Other formats are probed
+     * using the available {@link ImageReader}s.
+     *
+     * @return the dimensions of the image or <code>null</code> if the image format is not
+     *         supported
+     */
+    public static Dimension readSize(InputStream inputStream) throws IOException
+    {
+        final BufferedInputStream bufferedInputStream = new BufferedInputStream(
+            inputStream);
+        bufferedInputStream.mark(SIGNATURE_LENGTH);
+        final byte [] signature = new byte [SIGNATURE_LENGTH];
+        final int signatureLength = ByteStreams.read(bufferedInputStream, signature, 0,
+            signature.length);
+        bufferedInputStream.reset();
+
+        final DataInputStream in = new DataInputStream(bufferedInputStream);
+        if (startsWith(signature, signatureLength, PNG_SIGNATURE))
+        {
+            return readPngSize(in);
+        }
+        else if (startsWith(signature, signatureLength, new byte []
+        {
+            'G', 'I', 'F', '8'
+        }))
+        {
+            return readGifSize(in);
+        }
+        else if (startsWith(signature, signatureLength, new byte []
+        {
+            (byte) 0xff, (byte) 0xd8
+        }))
+        {
+            return readJpegSize(in);
+        }
+        else
+        {
+            return readSizeUsingImageReaders(bufferedInputStream);
+        }
+    }
+
+    /**
+     * The IHDR chunk must come first and starts with the width and height.
+     */
+    private static Dimension readPngSize(DataInputStream in) throws IOException
+    {
+        ByteStreams.skipFully(in, PNG_SIGNATURE.length);
+        in.readInt(); // chunk length
+        if (in.readInt() != 0x49484452 /* IHDR */)
+        {
+            throw new IIOException("PNG image does not start with an IHDR chunk");
+        }
+        return new Dimension(in.readInt(), in.readInt());
+    }
+
+    /**
+     * Returns the dimensions of the first image in the GIF file rather than the logical
+     * screen dimensions, as this is the image {@link ImageIO#read(InputStream)} returns.
+     */
+    private static Dimension readGifSize(DataInputStream in) throws IOException
+    {
+        ByteStreams.skipFully(in, 6 + 4); // signature, logical screen size
+        final int flags = in.readUnsignedByte();
+        ByteStreams.skipFully(in, 2); // background color, aspect ratio
+        skipGifColorTable(in, flags);
+
+        while (true)
+        {
+            final int blockType = in.readUnsignedByte();
+            if (blockType == 0x2c)
+            {
+                // Image descriptor: left, top, width, height
+                ByteStreams.skipFully(in, 4);
+                return new Dimension(readUnsignedShortLittleEndian(in),
+                    readUnsignedShortLittleEndian(in));
+            }
+            else if (blockType == 0x21)
+            {
+                // Extension: label followed by data sub-blocks
+                in.readUnsignedByte();
+                for (int size = in.readUnsignedByte(); size > 0; size = in
+                    .readUnsignedByte())
+                {
+                    ByteStreams.skipFully(in, size);
+                }
+            }
+            else
+            {
+                throw new IIOException("GIF image contains no image descriptor");
+            }
+        }
+    }
+
+    private static void skipGifColorTable(DataInputStream in, int flags)
+        throws IOException
+    {
+        if ((flags & 0x80) != 0)
+        {
+            ByteStreams.skipFully(in, 3 * (1 << ((flags & 0x07) + 1)));
+        }
+    }
+
+    /**
+     * Reads segments up to the first start-of-frame segment, which contains the
+     * dimensions.
+     */
+    private static Dimension readJpegSize(DataInputStream in) throws IOException
+    {
+        ByteStreams.skipFully(in, 2); // SOI
+        while (true)
+        {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff)
+            {
+                throw new IIOException("Invalid JPEG segment marker");
+            }
+            while (marker == 0xff)
+            {
+                // Skip fill bytes
+                marker = in.readUnsignedByte();
+            }
+
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7))
+            {
+                // Stand-alone markers, no length
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda)
+            {
+                throw new IIOException("JPEG image contains no start-of-frame segment");
+            }
+
+            final int length = in.readUnsignedShort();
+            if (length < 2)
+            {
+                throw new IIOException("Invalid JPEG segment length");
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8
+                && marker != 0xcc)
+            {
+                in.readUnsignedByte(); // sample precision
+                final int height = in.readUnsignedShort();
+                final int width = in.readUnsignedShort();
+                return new Dimension(width, height);
+            }
+            ByteStreams.skipFully(in, length - 2);
+        }
+    }
+
+    private static Dimension readSizeUsingImageReaders(InputStream inputStream)
+        throws IOException
+    {
+        // Only the header is read, so caching in memory is cheaper than in a file
+        final ImageInputStream imageInputStream = new MemoryCacheImageInputStream(
+            inputStream);
+        try
+        {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext())
+            {
+                return null;
+            }
+
+            final ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(imageInputStream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+        finally
+        {
+            imageInputStream.close();
+        }
+    }
+
+    private static int readUnsignedShortLittleEndian(DataInputStream in)
+        throws IOException
+    {
+        final int low = in.readUnsignedByte();
+        final int high = in.readUnsignedByte();
+        return (high << 8) | low;
+    }
+
+    private static boolean startsWith(byte [] bytes, int length, byte [] prefix)
+    {
+        if (length < prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (bytes[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ImageUtils()
+    {
+    }
+}
@@ -0,0 +1,177 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive <code>int</code>s with open addressing and linear probing. Compared
+ * to a {@link java.util.HashSet} of {@link Integer}s, adding a value does not allocate
+ * any objects, which matters when collecting e.g. distinct colors of large images.
+ */
+public class IntHashSet
+{
+    /** Slots of the hash table, <code>0</code> marks an empty slot */
+    private int [] keys;
+
+    /** Whether <code>0</code>, which can't be stored in {@link #keys}, is in the set */
+    private boolean containsZero;
+
+    /** Number of non-zero values in {@link #keys} */
+    private int assigned;
+
+    /** Number of non-zero values at which the table will be expanded */
+    private int resizeAt;
+
+    public IntHashSet()
+    {
+        this(16);
+    }
+
+    /**
+     * Creates a set that can hold <code>expectedSize</code> values without expanding.
+     */
+    public IntHashSet(int expectedSize)
+    {
+        allocate(Math.max(4, Integer.highestOneBit(Math.max(1, expectedSize * 4 / 3)) << 1));
+    }
+
+    /**
+     * Adds the value to this set.
+     *
+     * @return <code>true</code> if the value was not in the set before
+     */
+    public boolean add(int value)
+    {
+        if (value == 0)
+        {
+            final boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+
+        final int mask = keys.length - 1;
+        int slot = hash(value) & mask;
+        while (keys[slot] != 0)
+        {
+            if (keys[slot] == value)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = value;
+        if (++assigned >= resizeAt)
+        {
+            expand();
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the value is in this set.
+     */
+    public boolean contains(int value)
+    {
+        if (value == 0)
+        {
+            return containsZero;
+        }
+
+        final int mask = keys.length - 1;
+        for (int slot = hash(value) & mask; keys[slot] != 0; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of values in this set.
+     */
+    public int size()
+    {
+        return assigned + (containsZero ? 1 : 0);
+    }
+
+    /**
+     * Copies the values of this set to <code>target</code> starting at
+     * <code>offset</code>, in no particular order.
+     *
+     * @return <code>target</code>, allocated if <code>null</code>
+     */
+    public int [] toArray(int [] target, int offset)
+    {
+        if (target == null)
+        {
+            target = new int [offset + size()];
+        }
+
+        int index = offset;
+        if (containsZero)
+        {
+            target[index++] = 0;
+        }
+        for (int key : keys)
+        {
+            if (key != 0)
+            {
+                target[index++] = key;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Removes all values from this set.
+     */
+    public void clear()
+    {
+        Arrays.fill(keys, 0);
+        containsZero = false;
+        assigned = 0;
+    }
+
+    private void expand()
+    {
+        final int [] oldKeys = keys;
+        allocate(oldKeys.length << 1);
+
+        final int mask = keys.length - 1;
+        for (int key : oldKeys)
+        {
+            if (key != 0)
+            {
+                int slot = hash(key) & mask;
+                while (keys[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new int [capacity];
+        resizeAt = capacity - (capacity >>> 2);
+    }
+
+    /**
+     * Spreads the bits of the value so that e.g. similar colors don't end up in
+     * consecutive slots (the MurmurHash3 finalizer).
+     */
+    private static int hash(int value)
+    {
+        int h = value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
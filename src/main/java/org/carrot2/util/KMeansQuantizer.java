@@ -0,0 +1,80 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+
+/**
+ * A {@link QuantizationEngine} that refines the median cut palette with k-means
+ * iterations, an approach similar to the one used by libimagequant. In each iteration,
+ * every distinct color of the image is assigned to its nearest palette color and each
+ * palette color is moved to the weighted mean of the colors assigned to it. Iterations
+ * stop when the palette no longer changes or after the configured number of iterations.
+ * Each iteration can only lower the quantization error of the image's colors (up to
+ * rounding of palette colors to 8-bit channels), so the results are never worse than
+ * median cut's, at the cost of a longer computation.
+ */
+public class KMeansQuantizer extends MedianCutQuantizer
+{
+    /** The default maximum number of k-means iterations */
+    public static final int DEFAULT_ITERATIONS = 8;
+
+    private final int iterations;
+
+    public KMeansQuantizer()
+    {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public KMeansQuantizer(int iterations)
+    {
+        this.iterations = iterations;
+    }
+
+    @Override
+    int [] refine(ColorHistogram histogram, int [] palette)
+    {
+        final int [] colors = histogram.colors;
+        final int [] counts = histogram.counts;
+
+        final long [] n = new long [palette.length];
+        final long [] r = new long [palette.length];
+        final long [] g = new long [palette.length];
+        final long [] b = new long [palette.length];
+        for (int iteration = 0; iteration < iterations; iteration++)
+        {
+            Arrays.fill(n, 0);
+            Arrays.fill(r, 0);
+            Arrays.fill(g, 0);
+            Arrays.fill(b, 0);
+            for (int i = 0; i < colors.length; i++)
+            {
+                final int color = colors[i];
+                final int nearest = nearest(palette, color);
+                final long count = counts[i];
+                n[nearest] += count;
+                r[nearest] += count * ((color >> 16) & 0xff);
+                g[nearest] += count * ((color >> 8) & 0xff);
+                b[nearest] += count * (color & 0xff);
+            }
+
+            boolean changed = false;
+            for (int i = 0; i < palette.length; i++)
+            {
+                // Palette colors with no colors assigned stay where they are
+                if (n[i] > 0)
+                {
+                    final int mean = rgb((r[i] + n[i] / 2) / n[i], (g[i] + n[i] / 2)
+                        / n[i], (b[i] + n[i] / 2) / n[i]);
+                    changed |= mean != palette[i];
+                    palette[i] = mean;
+                }
+            }
+
+            if (!changed)
+            {
+                break;
+            }
+        }
+
+        return palette;
+    }
+}
@@ -0,0 +1,251 @@
+package org.carrot2.util;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Packs rectangles into a small enclosing rectangle using the MaxRects algorithm with the
+ * bottom-left placement rule. Rectangles are not rotated. Several bin widths are tried
+ * and the packing of the smallest area is returned, so results are deterministic for
+ * the same input.
+ */
+public final class MaxRectsPacker
+{
+    /** Bin widths tried, as fractions of the square root of the total area, in percent */
+    private static final int [] WIDTH_FACTORS = new int []
+    {
+        80, 90, 100, 110, 120, 130, 140, 160, 180, 200
+    };
+
+    /**
+     * The result of packing: the size of the enclosing rectangle and the positions of
+     * the rectangles, in the order of the input sizes.
+     */
+    public static final class Packing
+    {
+        /** Width of the enclosing rectangle */
+        public final int width;
+
+        /** Height of the enclosing rectangle */
+        public final int height;
+
+        /** Top left corners of the rectangles */
+        public final List<Point> positions;
+
+        Packing(int width, int height, List<Point> positions)
+        {
+            this.width = width;
+            this.height = height;
+            this.positions = Collections.unmodifiableList(positions);
+        }
+    }
+
+    private MaxRectsPacker()
+    {
+        // Prevent Instantiation
+    }
+
+    /**
+     * Packs rectangles of the provided sizes, none of which may be negative.
+     */
+    public static Packing pack(final List<Dimension> sizes)
+    {
+        if (sizes.isEmpty())
+        {
+            return new Packing(0, 0, Lists.<Point> newArrayList());
+        }
+
+        long area = 0;
+        int maxWidth = 0;
+        long totalWidth = 0;
+        long totalHeight = 0;
+        for (Dimension size : sizes)
+        {
+            area += (long) size.width * size.height;
+            maxWidth = Math.max(maxWidth, size.width);
+            totalWidth += size.width;
+            totalHeight += size.height;
+        }
+
+        // Larger rectangles first, ties broken by input order
+        final Integer [] order = new Integer [sizes.size()];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                final Dimension sa = sizes.get(a);
+                final Dimension sb = sizes.get(b);
+                final int bySide = Math.max(sb.width, sb.height)
+                    - Math.max(sa.width, sa.height);
+                if (bySide != 0)
+                {
+                    return bySide;
+                }
+                final int byArea = Long.compare((long) sb.width * sb.height,
+                    (long) sa.width * sa.height);
+                return byArea != 0 ? byArea : a - b;
+            }
+        });
+
+        final int binHeight = (int) Math.min(Integer.MAX_VALUE, Math.max(1, totalHeight));
+        final int side = (int) Math.ceil(Math.sqrt(area));
+        Packing best = null;
+        int lastWidth = -1;
+        for (int factor : WIDTH_FACTORS)
+        {
+            final int binWidth = (int) Math.max(Math.max(1, maxWidth), Math.min(
+                totalWidth, (long) side * factor / 100));
+            if (binWidth == lastWidth)
+            {
+                continue;
+            }
+            lastWidth = binWidth;
+
+            final Packing packing = pack(sizes, order, binWidth, binHeight);
+            if (best == null || isBetter(packing, best))
+            {
+                best = packing;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(Packing packing, Packing than)
+    {
+        final long area = (long) packing.width * packing.height;
+        final long thanArea = (long) than.width * than.height;
+        if (area != thanArea)
+        {
+            return area < thanArea;
+        }
+        return Math.max(packing.width, packing.height) < Math.max(than.width,
+            than.height);
+    }
+
+    private static Packing pack(List<Dimension> sizes, Integer [] order, int binWidth,
+        int binHeight)
+    {
+        final List<Rectangle> free = Lists.newArrayList(new Rectangle(0, 0, binWidth,
+            binHeight));
+        final Point [] positions = new Point [sizes.size()];
+        int width = 0;
+        int height = 0;
+        for (int index : order)
+        {
+            final Dimension size = sizes.get(index);
+            final Rectangle placed = findPosition(free, size);
+            positions[index] = placed.getLocation();
+            if (placed.width == 0 || placed.height == 0)
+            {
+                // Empty rectangles take no space
+                continue;
+            }
+
+            width = Math.max(width, placed.x + placed.width);
+            height = Math.max(height, placed.y + placed.height);
+            splitFreeRectangles(free, placed);
+            pruneFreeRectangles(free);
+        }
+        return new Packing(width, height, Arrays.asList(positions));
+    }
+
+    /**
+     * Finds the free position with the lowest bottom edge, then the leftmost one.
+     */
+    private static Rectangle findPosition(List<Rectangle> free, Dimension size)
+    {
+        Rectangle best = null;
+        for (Rectangle rectangle : free)
+        {
+            if (rectangle.width < size.width || rectangle.height < size.height)
+            {
+                continue;
+            }
+
+            final int bottom = rectangle.y + size.height;
+            if (best == null || bottom < best.y + best.height
+                || (bottom == best.y + best.height && rectangle.x < best.x))
+            {
+                best = new Rectangle(rectangle.x, rectangle.y, size.width, size.height);
+            }
+        }
+
+        // The bin is as high as all rectangles together and as wide as the widest one
+        assert best != null;
+        return best;
+    }
+
+    /**
+     * Replaces the free rectangles overlapping the placed one with the maximal free
+     * rectangles around it.
+     */
+    private static void splitFreeRectangles(List<Rectangle> free, Rectangle placed)
+    {
+        final List<Rectangle> split = Lists.newArrayList();
+        for (Rectangle rectangle : free)
+        {
+            if (!rectangle.intersects(placed))
+            {
+                split.add(rectangle);
+                continue;
+            }
+
+            if (placed.x > rectangle.x)
+            {
+                split.add(new Rectangle(rectangle.x, rectangle.y, placed.x - rectangle.x,
+                    rectangle.height));
+            }
+            if (placed.x + placed.width < rectangle.x + rectangle.width)
+            {
+                split.add(new Rectangle(placed.x + placed.width, rectangle.y, rectangle.x
+                    + rectangle.width - placed.x - placed.width, rectangle.height));
+            }
+            if (placed.y > rectangle.y)
+            {
+                split.add(new Rectangle(rectangle.x, rectangle.y, rectangle.width,
+                    placed.y - rectangle.y));
+            }
+            if (placed.y + placed.height < rectangle.y + rectangle.height)
+            {
+                split.add(new Rectangle(rectangle.x, placed.y + placed.height,
+                    rectangle.width, rectangle.y + rectangle.height - placed.y
+                        - placed.height));
+            }
+        }
+        free.clear();
+        free.addAll(split);
+    }
+
+    /**
+     * Removes free rectangles contained in other free rectangles.
+     */
+    private static void pruneFreeRectangles(List<Rectangle> free)
+    {
+        for (int i = 0; i < free.size(); i++)
+        {
+            for (int j = i + 1; j < free.size(); j++)
+            {
+                if (free.get(j).contains(free.get(i)))
+                {
+                    free.remove(i--);
+                    break;
+                }
+                if (free.get(i).contains(free.get(j)))
+                {
+                    free.remove(j--);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+
+/**
+ * A {@link QuantizationEngine} based on the median cut algorithm. The image's distinct
+ * colors are put in a single box in the RGB space, which is then repeatedly split into
+ * two at the weighted median of its widest color channel. The box with the largest
+ * squared error, i.e. the one whose colors are the furthest from their mean, is split
+ * first. The palette consists of the weighted mean colors of the boxes and each pixel is
+ * assigned the nearest palette color.
+ */
+public class MedianCutQuantizer implements QuantizationEngine
+{
+    /** Number of entries in the cache of colors already assigned to palette entries */
+    private static final int ASSIGNMENT_CACHE_SIZE = 4096;
+
+    public int [] quantize(final int [] pixels, final int width, int height,
+        int maxColors, int parallelism)
+    {
+        final ColorHistogram histogram = ColorHistogram.create(pixels, width * height);
+
+        final int [] palette = refine(histogram, medianCut(histogram, maxColors));
+        RowStripes.run(height, parallelism, new RowStripes.Task()
+        {
+            public void run(int startRow, int endRow)
+            {
+                assign(pixels, startRow * width, endRow * width, palette);
+            }
+        });
+        return palette;
+    }
+
+    /**
+     * Improves the palette computed by the median cut algorithm. This implementation
+     * returns the palette unchanged.
+     */
+    int [] refine(ColorHistogram histogram, int [] palette)
+    {
+        return palette;
+    }
+
+    /**
+     * Splits the histogram's colors into at most <code>maxColors</code> boxes and returns
+     * their mean colors.
+     */
+    static int [] medianCut(ColorHistogram histogram, int maxColors)
+    {
+        final int [] colors = histogram.colors;
+        final int [] counts = histogram.counts;
+
+        // Boxes are ranges of the colors array, [starts[i], ends[i])
+        final int [] starts = new int [Math.max(1, maxColors)];
+        final int [] ends = new int [starts.length];
+        final double [] errors = new double [starts.length];
+        int boxes = 0;
+        if (colors.length > 0)
+        {
+            ends[0] = colors.length;
+            errors[0] = squaredError(colors, counts, 0, colors.length);
+            boxes = 1;
+        }
+
+        while (boxes < maxColors)
+        {
+            // Find the box with the largest error that can be split
+            int box = -1;
+            for (int i = 0; i < boxes; i++)
+            {
+                if (ends[i] - starts[i] > 1 && (box < 0 || errors[i] > errors[box]))
+                {
+                    box = i;
+                }
+            }
+            if (box < 0 || errors[box] <= 0)
+            {
+                break;
+            }
+
+            final int start = starts[box];
+            final int end = ends[box];
+            final int split = split(colors, counts, start, end);
+
+            ends[box] = split;
+            errors[box] = squaredError(colors, counts, start, split);
+            starts[boxes] = split;
+            ends[boxes] = end;
+            errors[boxes] = squaredError(colors, counts, split, end);
+            boxes++;
+        }
+
+        final int [] palette = new int [boxes];
+        for (int i = 0; i < boxes; i++)
+        {
+            palette[i] = meanColor(colors, counts, starts[i], ends[i]);
+        }
+        return palette;
+    }
+
+    /**
+     * Sorts the colors of the box along the channel with the largest range and returns
+     * the index at which the box should be split, so that both parts hold about the same
+     * number of pixels and none of them is empty.
+     */
+    private static int split(int [] colors, int [] counts, int start, int end)
+    {
+        int shift = 16;
+        int largestRange = -1;
+        for (int channelShift = 16; channelShift >= 0; channelShift -= 8)
+        {
+            int min = 255, max = 0;
+            for (int i = start; i < end; i++)
+            {
+                final int value = (colors[i] >> channelShift) & 0xff;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > largestRange)
+            {
+                largestRange = max - min;
+                shift = channelShift;
+            }
+        }
+
+        // Sort by the channel, keeping colors and counts together: 8 bits of the
+        // channel, 24 bits of the color and 31 bits of the (positive) count
+        final long [] entries = new long [end - start];
+        for (int i = start; i < end; i++)
+        {
+            entries[i - start] = (long) ((colors[i] >> shift) & 0xff) << 55
+                | (long) colors[i] << 31 | counts[i];
+        }
+        Arrays.sort(entries);
+        long total = 0;
+        for (int i = start; i < end; i++)
+        {
+            colors[i] = (int) (entries[i - start] >>> 31) & 0x00ffffff;
+            counts[i] = (int) (entries[i - start] & 0x7fffffff);
+            total += counts[i];
+        }
+
+        long sum = 0;
+        for (int i = start; i < end - 1; i++)
+        {
+            sum += counts[i];
+            if (sum * 2 >= total)
+            {
+                return i + 1;
+            }
+        }
+        return end - 1;
+    }
+
+    private static double squaredError(int [] colors, int [] counts, int start, int end)
+    {
+        double n = 0, r = 0, g = 0, b = 0, squares = 0;
+        for (int i = start; i < end; i++)
+        {
+            final int color = colors[i];
+            final double count = counts[i];
+            final int red = (color >> 16) & 0xff;
+            final int green = (color >> 8) & 0xff;
+            final int blue = color & 0xff;
+            n += count;
+            r += count * red;
+            g += count * green;
+            b += count * blue;
+            squares += count * (red * red + green * green + blue * blue);
+        }
+        return n > 0 ? squares - (r * r + g * g + b * b) / n : 0;
+    }
+
+    private static int meanColor(int [] colors, int [] counts, int start, int end)
+    {
+        long n = 0, r = 0, g = 0, b = 0;
+        for (int i = start; i < end; i++)
+        {
+            final int color = colors[i];
+            final long count = counts[i];
+            n += count;
+            r += count * ((color >> 16) & 0xff);
+            g += count * ((color >> 8) & 0xff);
+            b += count * (color & 0xff);
+        }
+        return rgb((r + n / 2) / n, (g + n / 2) / n, (b + n / 2) / n);
+    }
+
+    /**
+     * Replaces each pixel from <code>start</code> (inclusive) to <code>end</code>
+     * (exclusive) with the index of the nearest palette color.
+     */
+    static void assign(int [] pixels, int start, int end, int [] palette)
+    {
+        final int [] cacheKeys = new int [ASSIGNMENT_CACHE_SIZE];
+        final int [] cacheValues = new int [ASSIGNMENT_CACHE_SIZE];
+        for (int i = start; i < end; i++)
+        {
+            final int rgb = pixels[i] & 0x00ffffff;
+            final int key = rgb | 0x01000000;
+            final int slot = (rgb ^ (rgb >>> 12)) & (ASSIGNMENT_CACHE_SIZE - 1);
+            if (cacheKeys[slot] != key)
+            {
+                cacheKeys[slot] = key;
+                cacheValues[slot] = nearest(palette, rgb);
+            }
+            pixels[i] = cacheValues[slot];
+        }
+    }
+
+    /**
+     * Returns the index of the palette color nearest to the provided color, the lowest
+     * index in case of ties.
+     */
+    static int nearest(int [] palette, int rgb)
+    {
+        final int red = (rgb >> 16) & 0xff;
+        final int green = (rgb >> 8) & 0xff;
+        final int blue = rgb & 0xff;
+
+        int nearest = 0;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++)
+        {
+            final int color = palette[i];
+            final int dr = ((color >> 16) & 0xff) - red;
+            final int dg = ((color >> 8) & 0xff) - green;
+            final int db = (color & 0xff) - blue;
+            final int distance = dr * dr + dg * dg + db * db;
+            if (distance < nearestDistance)
+            {
+                nearestDistance = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    static int rgb(long red, long green, long blue)
+    {
+        return 0xff000000 | (int) red << 16 | (int) green << 8 | (int) blue;
+    }
+
+    /**
+     * Distinct colors of an image and the numbers of pixels of each color.
+     */
+    static final class ColorHistogram
+    {
+        final int [] colors;
+        final int [] counts;
+
+        private ColorHistogram(int [] colors, int [] counts)
+        {
+            this.colors = colors;
+            this.counts = counts;
+        }
+
+        static ColorHistogram create(int [] pixels, int length)
+        {
+            final int [] sorted = new int [length];
+            for (int i = 0; i < length; i++)
+            {
+                sorted[i] = pixels[i] & 0x00ffffff;
+            }
+            Arrays.sort(sorted);
+
+            int distinct = 0;
+            for (int i = 0; i < length; i++)
+            {
+                if (i == 0 || sorted[i] != sorted[i - 1])
+                {
+                    distinct++;
+                }
+            }
+
+            final int [] colors = new int [distinct];
+            final int [] counts = new int [distinct];
+            int index = -1;
+            for (int i = 0; i < length; i++)
+            {
+                if (i == 0 || sorted[i] != sorted[i - 1])
+                {
+                    colors[++index] = sorted[i];
+                }
+                counts[index]++;
+            }
+            return new ColorHistogram(colors, counts);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.carrot2.util;
+
+import amd.Quantize;
+
+/**
+ * A {@link QuantizationEngine} based on the octree algorithm of {@link Quantize}. Pixels
+ * are always mapped to palette entries sequentially.
+ */
+public class OctreeQuantizer implements QuantizationEngine
+{
+    public int [] quantize(int [] pixels, int width, int height, int maxColors,
+        int parallelism)
+    {
+        final int [][] bitmap = new int [width] [height];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                bitmap[x][y] = pixels[y * width + x];
+            }
+        }
+
+        final int [] colors = Quantize.quantizeImage(bitmap, maxColors);
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                pixels[y * width + x] = bitmap[x][y];
+            }
+        }
+        return colors;
+    }
+}
@@ -0,0 +1,700 @@
+package org.carrot2.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG writer with a configurable deflate level and row filters, writing images with
+ * {@link IndexColorModel}s as palette images directly.
+ * <p>
+ * Palette images are written with the smallest bit depth that can hold their palettes
+ * and the alpha channel of direct color images is written only if any of their pixels
+ * is not fully opaque.
+ * <p>
+ * With parallelism larger than 1, blocks of rows are filtered and deflated concurrently.
+ * Each block is deflated with the last 32 kB of the preceding block's data as the preset
+ * dictionary and all blocks make a single zlib stream, so the compression ratio is
+ * close to that of a single block. Instances of this class are thread-safe.
+ */
+public class PngEncoder
+{
+    /**
+     * Filters applied to rows of pixels before compression, see the PNG specification.
+     */
+    public enum Filter
+    {
+        NONE, SUB, UP, AVERAGE, PAETH,
+
+        /**
+         * For each row, the filter that gives the smallest sum of absolute values of
+         * filtered bytes. As recommended by the PNG specification, palette images are
+         * not filtered with this strategy.
+         */
+        ADAPTIVE;
+    }
+
+    /** The default deflate level, a trade-off between speed and size */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    private static final byte [] SIGNATURE = new byte []
+    {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /** Size of the deflate window, used as the maximum dictionary size */
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    /** Maximum number of bytes of compressed data written in a single IDAT chunk */
+    private static final int MAX_IDAT_SIZE = 64 * 1024;
+
+    private final int compressionLevel;
+    private final Filter filter;
+    private final int parallelism;
+
+    public PngEncoder()
+    {
+        this(DEFAULT_COMPRESSION_LEVEL, Filter.ADAPTIVE, 1);
+    }
+
+    /**
+     * @param compressionLevel deflate level, from 1 (fastest) to 9 (smallest)
+     * @param filter row filter
+     * @param parallelism maximum number of blocks of rows deflated concurrently
+     */
+    public PngEncoder(int compressionLevel, Filter filter, int parallelism)
+    {
+        if (compressionLevel < 1 || compressionLevel > 9)
+        {
+            throw new IllegalArgumentException(
+                "Compression level must be between 1 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes the image in the PNG format to the provided stream. The stream is not
+     * closed.
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException
+    {
+        final Scanlines scanlines = isPaletteImage(image) ? new PaletteScanlines(image)
+            : new DirectScanlines(image);
+        final Filter rowFilter = filter == Filter.ADAPTIVE
+            && scanlines.colorType == COLOR_TYPE_PALETTE ? Filter.NONE : filter;
+
+        out.write(SIGNATURE);
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        writeInt(header, image.getWidth());
+        writeInt(header, image.getHeight());
+        header.write(scanlines.bitDepth);
+        header.write(scanlines.colorType);
+        header.write(0); // deflate
+        header.write(0); // adaptive filtering
+        header.write(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+        if (scanlines instanceof PaletteScanlines)
+        {
+            ((PaletteScanlines) scanlines).writePalette(out);
+        }
+
+        // Compress blocks of rows, possibly concurrently
+        final Map<Integer, Block> blocks = new ConcurrentSkipListMap<Integer, Block>();
+        RowStripes.run(image.getHeight(), parallelism, new RowStripes.Task()
+        {
+            public void run(int startRow, int endRow)
+            {
+                blocks.put(startRow, compress(scanlines, rowFilter, startRow, endRow));
+            }
+        });
+
+        // Put the blocks together into a zlib stream
+        final IdatOutputStream idat = new IdatOutputStream(out);
+        idat.write(0x78);
+        idat.write(zlibFlags(compressionLevel));
+        long adler = 1;
+        for (Block block : blocks.values())
+        {
+            idat.write(block.data, 0, block.data.length);
+            adler = adler32Combine(adler, block.adler, block.length);
+        }
+        writeInt(idat, (int) adler);
+        idat.flush();
+
+        writeChunk(out, "IEND", new byte [0], 0, 0);
+    }
+
+    private static boolean isPaletteImage(BufferedImage image)
+    {
+        return image.getColorModel() instanceof IndexColorModel
+            && ((IndexColorModel) image.getColorModel()).getMapSize() <= 256;
+    }
+
+    /**
+     * Filters and deflates rows from <code>startRow</code> to <code>endRow</code>.
+     */
+    private Block compress(Scanlines scanlines, Filter rowFilter, int startRow,
+        int endRow)
+    {
+        final RowFilter filterer = new RowFilter(scanlines, rowFilter);
+        final Deflater deflater = new Deflater(compressionLevel, true);
+        try
+        {
+            if (startRow > 0)
+            {
+                deflater.setDictionary(dictionary(scanlines, rowFilter, startRow));
+            }
+
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final byte [] buffer = new byte [16 * 1024];
+            final Adler32 adler = new Adler32();
+
+            filterer.start(startRow);
+            for (int y = startRow; y < endRow; y++)
+            {
+                final byte [] filtered = filterer.next();
+                adler.update(filtered);
+                deflater.setInput(filtered);
+                while (!deflater.needsInput())
+                {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+
+            if (endRow == scanlines.height)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else
+            {
+                // End the block on a byte boundary, so that the next one can follow
+                int length;
+                do
+                {
+                    length = deflater.deflate(buffer, 0, buffer.length,
+                        Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, length);
+                }
+                while (length == buffer.length);
+            }
+
+            return new Block(compressed.toByteArray(), adler.getValue(),
+                (long) (endRow - startRow) * (scanlines.rowBytes + 1));
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the filtered data of the rows preceding <code>startRow</code>, up to the
+     * size of the deflate window, which the block starting at that row can refer to.
+     */
+    private static byte [] dictionary(Scanlines scanlines, Filter rowFilter,
+        int startRow)
+    {
+        final int filteredRowBytes = scanlines.rowBytes + 1;
+        final int rows = Math.min(startRow, (WINDOW_SIZE + filteredRowBytes - 1)
+            / filteredRowBytes);
+
+        final byte [] data = new byte [rows * filteredRowBytes];
+        final RowFilter filterer = new RowFilter(scanlines, rowFilter);
+        filterer.start(startRow - rows);
+        for (int i = 0; i < rows; i++)
+        {
+            System.arraycopy(filterer.next(), 0, data, i * filteredRowBytes,
+                filteredRowBytes);
+        }
+
+        return data.length <= WINDOW_SIZE ? data : Arrays.copyOfRange(data, data.length
+            - WINDOW_SIZE, data.length);
+    }
+
+    /**
+     * Returns the second byte of the zlib header for deflate with a 32 kB window.
+     */
+    private static int zlibFlags(int compressionLevel)
+    {
+        final int level = compressionLevel <= 1 ? 0 : (compressionLevel <= 5 ? 1
+            : (compressionLevel == 6 ? 2 : 3));
+        final int flags = level << 6;
+        return flags + 31 - ((0x78 << 8 | flags) % 31);
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated sequences of bytes given the
+     * checksums of the sequences and the length of the second one, as in zlib's
+     * <code>adler32_combine()</code>.
+     */
+    static long adler32Combine(long adler1, long adler2, long length2)
+    {
+        final long base = 65521;
+        final long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base)
+        {
+            sum1 -= base;
+        }
+        if (sum1 >= base)
+        {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1)
+        {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base)
+        {
+            sum2 -= base;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte [] data,
+        int offset, int length) throws IOException
+    {
+        final byte [] typeBytes = type.getBytes("US-ASCII");
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        writeInt(out, length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException
+    {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Compressed data of a block of rows.
+     */
+    private static final class Block
+    {
+        final byte [] data;
+        final long adler;
+        final long length;
+
+        Block(byte [] data, long adler, long length)
+        {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Splits the compressed data into IDAT chunks.
+     */
+    private static final class IdatOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final byte [] buffer = new byte [MAX_IDAT_SIZE];
+        private int size;
+
+        IdatOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (size == buffer.length)
+            {
+                flush();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte [] b, int offset, int length) throws IOException
+        {
+            while (length > 0)
+            {
+                if (size == buffer.length)
+                {
+                    flush();
+                }
+                final int count = Math.min(length, buffer.length - size);
+                System.arraycopy(b, offset, buffer, size, count);
+                size += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (size > 0)
+            {
+                writeChunk(out, "IDAT", buffer, 0, size);
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * Filters consecutive rows of an image, keeping the previous row for the filters that
+     * need it.
+     */
+    private static final class RowFilter
+    {
+        private final Scanlines scanlines;
+        private final Filter filter;
+        private final int bytesPerPixel;
+        private final int [] argb;
+
+        private byte [] previous;
+        private byte [] current;
+        private int y;
+
+        /** Filtered rows, indexed by filter type, with the filter type byte */
+        private final byte [][] filtered = new byte [5] [];
+
+        RowFilter(Scanlines scanlines, Filter filter)
+        {
+            this.scanlines = scanlines;
+            this.filter = filter;
+            this.bytesPerPixel = scanlines.bytesPerPixel;
+            this.argb = new int [scanlines.width];
+            this.previous = new byte [scanlines.rowBytes];
+            this.current = new byte [scanlines.rowBytes];
+            for (int i = 0; i < filtered.length; i++)
+            {
+                filtered[i] = new byte [scanlines.rowBytes + 1];
+                filtered[i][0] = (byte) i;
+            }
+        }
+
+        /**
+         * Prepares for filtering rows starting at <code>startRow</code>.
+         */
+        void start(int startRow)
+        {
+            y = startRow;
+            if (startRow > 0)
+            {
+                scanlines.getRow(startRow - 1, previous, argb);
+            }
+            else
+            {
+                Arrays.fill(previous, (byte) 0);
+            }
+        }
+
+        /**
+         * Returns the next filtered row, the array is reused in subsequent calls.
+         */
+        byte [] next()
+        {
+            scanlines.getRow(y++, current, argb);
+
+            final byte [] result;
+            if (filter == Filter.ADAPTIVE)
+            {
+                long smallestSum = Long.MAX_VALUE;
+                byte [] best = null;
+                for (int type = 0; type < filtered.length; type++)
+                {
+                    final long sum = filter(type, filtered[type]);
+                    if (sum < smallestSum)
+                    {
+                        smallestSum = sum;
+                        best = filtered[type];
+                    }
+                }
+                result = best;
+            }
+            else
+            {
+                result = filtered[filter.ordinal()];
+                filter(filter.ordinal(), result);
+            }
+
+            final byte [] swap = previous;
+            previous = current;
+            current = swap;
+            return result;
+        }
+
+        /**
+         * Filters the current row with the provided filter type and returns the sum of
+         * absolute values of the filtered bytes taken as signed.
+         */
+        private long filter(int type, byte [] target)
+        {
+            final byte [] row = current;
+            final byte [] prior = previous;
+            final int bpp = bytesPerPixel;
+            long sum = 0;
+            for (int i = 0; i < row.length; i++)
+            {
+                final int x = row[i] & 0xff;
+                final int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+                final int b = prior[i] & 0xff;
+                final int value;
+                switch (type)
+                {
+                    case 0:
+                        value = x;
+                        break;
+                    case 1:
+                        value = x - a;
+                        break;
+                    case 2:
+                        value = x - b;
+                        break;
+                    case 3:
+                        value = x - ((a + b) >>> 1);
+                        break;
+                    default:
+                        final int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+                        value = x - paeth(a, b, c);
+                }
+                target[i + 1] = (byte) value;
+                sum += Math.abs((byte) value);
+            }
+            return sum;
+        }
+
+        private static int paeth(int a, int b, int c)
+        {
+            final int p = a + b - c;
+            final int pa = Math.abs(p - a);
+            final int pb = Math.abs(p - b);
+            final int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc)
+            {
+                return a;
+            }
+            return pb <= pc ? b : c;
+        }
+    }
+
+    /**
+     * Provides unfiltered rows of an image in one of the PNG formats.
+     */
+    private static abstract class Scanlines
+    {
+        final BufferedImage image;
+        final int width;
+        final int height;
+        final int colorType;
+        final int bitDepth;
+        final int bytesPerPixel;
+        final int rowBytes;
+
+        Scanlines(BufferedImage image, int colorType, int bitDepth, int channels)
+        {
+            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+            this.rowBytes = (width * channels * bitDepth + 7) / 8;
+        }
+
+        /**
+         * Writes bytes of row <code>y</code> to <code>row</code>, <code>argb</code> is
+         * a buffer for the row's pixels.
+         */
+        abstract void getRow(int y, byte [] row, int [] argb);
+    }
+
+    /**
+     * Rows of RGB or RGBA pixels, 8 bits per channel.
+     */
+    private static final class DirectScanlines extends Scanlines
+    {
+        DirectScanlines(BufferedImage image)
+        {
+            this(image, hasAlpha(image));
+        }
+
+        private DirectScanlines(BufferedImage image, boolean alpha)
+        {
+            super(image, alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB, 8, alpha ? 4 : 3);
+        }
+
+        @Override
+        void getRow(int y, byte [] row, int [] argb)
+        {
+            BufferedImageUtils.getArgb(image, 0, y, width, 1, argb, 0);
+            if (colorType == COLOR_TYPE_RGBA)
+            {
+                for (int x = 0, i = 0; x < width; x++)
+                {
+                    final int pixel = argb[x];
+                    row[i++] = (byte) (pixel >> 16);
+                    row[i++] = (byte) (pixel >> 8);
+                    row[i++] = (byte) pixel;
+                    row[i++] = (byte) (pixel >>> 24);
+                }
+            }
+            else
+            {
+                for (int x = 0, i = 0; x < width; x++)
+                {
+                    final int pixel = argb[x];
+                    row[i++] = (byte) (pixel >> 16);
+                    row[i++] = (byte) (pixel >> 8);
+                    row[i++] = (byte) pixel;
+                }
+            }
+        }
+
+        /**
+         * Returns <code>true</code> if any pixel of the image is not fully opaque.
+         */
+        private static boolean hasAlpha(BufferedImage image)
+        {
+            if (!image.getColorModel().hasAlpha())
+            {
+                return false;
+            }
+
+            final int width = image.getWidth();
+            final int [] row = new int [width];
+            for (int y = 0; y < image.getHeight(); y++)
+            {
+                BufferedImageUtils.getArgb(image, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++)
+                {
+                    if ((row[x] >>> 24) != 0xff)
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Rows of palette indices, packed to the smallest bit depth that holds the palette.
+     */
+    private static final class PaletteScanlines extends Scanlines
+    {
+        private final IndexColorModel colorModel;
+        private final boolean byteIndexed;
+
+        PaletteScanlines(BufferedImage image)
+        {
+            super(image, COLOR_TYPE_PALETTE, bitDepth(((IndexColorModel) image
+                .getColorModel()).getMapSize()), 1);
+            this.colorModel = (IndexColorModel) image.getColorModel();
+            this.byteIndexed = BufferedImageUtils.getFastPathType(image)
+                == BufferedImage.TYPE_BYTE_INDEXED;
+        }
+
+        private static int bitDepth(int mapSize)
+        {
+            if (mapSize <= 2)
+            {
+                return 1;
+            }
+            else if (mapSize <= 4)
+            {
+                return 2;
+            }
+            else if (mapSize <= 16)
+            {
+                return 4;
+            }
+            return 8;
+        }
+
+        /**
+         * Writes the PLTE chunk and the tRNS chunk if the palette has transparent colors.
+         */
+        void writePalette(OutputStream out) throws IOException
+        {
+            final int size = colorModel.getMapSize();
+            final byte [] palette = new byte [size * 3];
+            final byte [] alphas = new byte [size];
+            int alphasLength = 0;
+            for (int i = 0; i < size; i++)
+            {
+                final int rgb = colorModel.getRGB(i);
+                palette[i * 3] = (byte) (rgb >> 16);
+                palette[i * 3 + 1] = (byte) (rgb >> 8);
+                palette[i * 3 + 2] = (byte) rgb;
+                alphas[i] = (byte) (rgb >>> 24);
+                if ((rgb >>> 24) != 0xff)
+                {
+                    alphasLength = i + 1;
+                }
+            }
+
+            writeChunk(out, "PLTE", palette, 0, palette.length);
+            if (alphasLength > 0)
+            {
+                writeChunk(out, "tRNS", alphas, 0, alphasLength);
+            }
+        }
+
+        @Override
+        void getRow(int y, byte [] row, int [] indices)
+        {
+            if (bitDepth == 8 && byteIndexed)
+            {
+                System.arraycopy(
+                    ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), y
+                        * width, row, 0, width);
+                return;
+            }
+
+            image.getRaster().getSamples(0, y, width, 1, 0, indices);
+            if (bitDepth == 8)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    row[x] = (byte) indices[x];
+                }
+                return;
+            }
+
+            Arrays.fill(row, (byte) 0);
+            final int pixelsPerByte = 8 / bitDepth;
+            for (int x = 0; x < width; x++)
+            {
+                final int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                row[x / pixelsPerByte] |= indices[x] << shift;
+            }
+        }
+    }
+}
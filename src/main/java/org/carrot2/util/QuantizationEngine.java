@@ -0,0 +1,23 @@
+package org.carrot2.util;
+
+/**
+ * Reduces the colors of an image to a palette of limited size. Implementations are used
+ * by {@link ColorQuantizer#quantize(java.awt.image.BufferedImage, java.awt.Color, int, QuantizationEngine)},
+ * which takes care of transparency and of building the indexed image.
+ */
+public interface QuantizationEngine
+{
+    /**
+     * Quantizes the RGB values of an image to at most <code>maxColors</code> colors,
+     * replacing each value with the index of its color in the returned palette. The
+     * alpha components of the values are ignored. Engines may map pixels to palette
+     * entries in up to <code>parallelism</code> concurrent stripes of rows, see
+     * {@link RowStripes}, but the results must not depend on the parallelism.
+     *
+     * @param pixels RGB values of the image in row-major order, at least
+     *            <code>width * height</code> of them
+     * @return the palette, fully opaque ARGB colors
+     */
+    int [] quantize(int [] pixels, int width, int height, int maxColors,
+        int parallelism);
+}
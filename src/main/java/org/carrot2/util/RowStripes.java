@@ -0,0 +1,115 @@
+package org.carrot2.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-row image processing in horizontal stripes, concurrently on a
+ * {@link ForkJoinPool} if parallelism larger than 1 is requested. Tasks must only write
+ * to the rows of their stripes, so that the results do not depend on the parallelism.
+ */
+public final class RowStripes
+{
+    /** Stripes are never shorter than this, unless the image is */
+    static final int MIN_ROWS_PER_STRIPE = 8;
+
+    /** Pools by parallelism, their worker threads are daemons */
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+    /**
+     * Processes a range of rows.
+     */
+    public interface Task
+    {
+        /**
+         * Processes rows from <code>startRow</code> (inclusive) to <code>endRow</code>
+         * (exclusive).
+         */
+        void run(int startRow, int endRow);
+    }
+
+    private RowStripes()
+    {
+        // Prevent Instantiation
+    }
+
+    /**
+     * Runs the task for all of the <code>rows</code>, split into at most
+     * <code>parallelism</code> stripes processed concurrently. With parallelism of 1 or
+     * for small images, the task is run once for all rows in the calling thread.
+     */
+    public static void run(int rows, int parallelism, Task task)
+    {
+        final int stripes = Math.min(parallelism, rows / MIN_ROWS_PER_STRIPE);
+        if (stripes <= 1)
+        {
+            task.run(0, rows);
+            return;
+        }
+
+        getPool(parallelism).invoke(new StripeAction(task, rows, stripes, 0, stripes));
+    }
+
+    private static ForkJoinPool getPool(int parallelism)
+    {
+        ForkJoinPool pool = POOLS.get(parallelism);
+        if (pool == null)
+        {
+            final ForkJoinPool newPool = new ForkJoinPool(parallelism);
+            pool = POOLS.putIfAbsent(parallelism, newPool);
+            if (pool == null)
+            {
+                pool = newPool;
+            }
+            else
+            {
+                newPool.shutdown();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Processes stripes from <code>startStripe</code> to <code>endStripe</code>, forking
+     * halves until a single stripe remains.
+     */
+    @SuppressWarnings("serial")
+    private static final class StripeAction extends RecursiveAction
+    {
+        private final Task task;
+        private final int rows;
+        private final int stripes;
+        private final int startStripe;
+        private final int endStripe;
+
+        StripeAction(Task task, int rows, int stripes, int startStripe, int endStripe)
+        {
+            this.task = task;
+            this.rows = rows;
+            this.stripes = stripes;
+            this.startStripe = startStripe;
+            this.endStripe = endStripe;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (endStripe - startStripe == 1)
+            {
+                task.run(firstRow(startStripe), firstRow(endStripe));
+                return;
+            }
+
+            final int middle = (startStripe + endStripe) >>> 1;
+            invokeAll(new StripeAction(task, rows, stripes, startStripe, middle),
+                new StripeAction(task, rows, stripes, middle, endStripe));
+        }
+
+        private int firstRow(int stripe)
+        {
+            return (int) ((long) rows * stripe / stripes);
+        }
+    }
+}
@@ -0,0 +1,1177 @@
+package org.carrot2.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * A writer of lossless WebP images (the VP8L bitstream in a RIFF container), written
+ * after the WebP lossless bitstream specification.
+ * <p>
+ * Images are written with the subtract green and the predictor transforms. Images with
+ * at most 256 distinct colors are also written with the color indexing transform,
+ * several pixels packed into one if the palette is small, and the smaller of the two
+ * results is kept. The transformed pixels are compressed with LZ77 backward references
+ * and a color cache of the size that gives the smallest estimated output, and entropy
+ * coded with a single group of prefix codes. All pixels are written exactly, including
+ * the colors of fully transparent pixels.
+ * Instances of this class are thread-safe.
+ */
+public class WebpEncoder
+{
+    /** The maximum width and height of a WebP image */
+    public static final int MAX_DIMENSION = 16384;
+
+    private static final int VP8L_SIGNATURE = 0x2f;
+
+    private static final int PREDICTOR_TRANSFORM = 0;
+    private static final int SUBTRACT_GREEN_TRANSFORM = 2;
+    private static final int COLOR_INDEXING_TRANSFORM = 3;
+
+    /** Width and height of predictor blocks are <code>1 &lt;&lt; PREDICTOR_BITS</code> */
+    private static final int PREDICTOR_BITS = 4;
+
+    /** Predictor modes tried for each block, see {@link #predict(int[], int, int, int)} */
+    private static final int PREDICTOR_MODES = 11;
+
+    private static final int NUM_LITERAL_CODES = 256;
+    private static final int NUM_LENGTH_CODES = 24;
+    private static final int NUM_DISTANCE_CODES = 40;
+    private static final int MAX_COLOR_CACHE_BITS = 10;
+
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int MAX_CODE_LENGTH_CODE_LENGTH = 7;
+    private static final int [] CODE_LENGTH_CODE_ORDER = new int []
+    {
+        17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15
+    };
+
+    /** Longest backward reference, limited by the length prefix codes */
+    private static final int MAX_LENGTH = 4096;
+
+    /** Farthest backward reference, limited by the distance prefix codes */
+    private static final int MAX_DISTANCE = (1 << 20) - 120;
+
+    /** Maximum number of earlier positions tried when looking for a backward reference */
+    private static final int MAX_CHAIN_LENGTH = 64;
+
+    private static final int HASH_BITS = 16;
+
+    /**
+     * The first of the short distance codes, as (x, y) offsets from the current pixel,
+     * the left pixel being at (1, 0). Only these short codes are used, other distances
+     * are written as the distance plus 120.
+     */
+    private static final int [][] SHORT_DISTANCES = new int [] []
+    {
+        {
+            0, 1
+        },
+        {
+            1, 0
+        },
+        {
+            1, 1
+        },
+        {
+            -1, 1
+        },
+        {
+            0, 2
+        },
+        {
+            2, 0
+        }
+    };
+
+    /**
+     * Writes the image in the lossless WebP format to the provided stream. The stream is
+     * not closed.
+     *
+     * @throws IOException if the image is larger than {@link #MAX_DIMENSION} in any
+     *             direction or if writing to the stream fails
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (width > MAX_DIMENSION || height > MAX_DIMENSION)
+        {
+            throw new IOException("WebP images can be at most " + MAX_DIMENSION
+                + " pixels wide and high, the image is " + width + "x" + height);
+        }
+
+        final int [] argb = BufferedImageUtils.getArgb(image, 0, 0, width, height, null,
+            0);
+        boolean hasAlpha = false;
+        for (int i = 0; i < argb.length && !hasAlpha; i++)
+        {
+            hasAlpha = (argb[i] >>> 24) != 0xff;
+        }
+
+        // Images of few colors are usually smaller with a palette, but not always
+        final int [] palette = getPalette(argb, 256);
+        BitWriter bits = encodeWithPredictor(argb.clone(), width, height, hasAlpha);
+        if (palette != null)
+        {
+            final BitWriter paletteBits = encodeWithPalette(argb, width, height,
+                hasAlpha, palette);
+            if (paletteBits.size() <= bits.size())
+            {
+                bits = paletteBits;
+            }
+        }
+
+        final int size = bits.size();
+        final int paddedSize = size + (size & 1);
+        out.write(new byte []
+        {
+            'R', 'I', 'F', 'F'
+        });
+        writeIntLittleEndian(out, 4 + 8 + paddedSize);
+        out.write(new byte []
+        {
+            'W', 'E', 'B', 'P', 'V', 'P', '8', 'L'
+        });
+        writeIntLittleEndian(out, size);
+        out.write(bits.bytes, 0, size);
+        if (paddedSize > size)
+        {
+            out.write(0);
+        }
+    }
+
+    /**
+     * Writes the image with the subtract green and the predictor transforms. The pixels
+     * are modified.
+     */
+    private static BitWriter encodeWithPredictor(int [] argb, int width, int height,
+        boolean hasAlpha)
+    {
+        final BitWriter bits = writeHeader(width, height, hasAlpha, argb.length);
+        subtractGreen(argb);
+        bits.write(1, 1);
+        bits.write(SUBTRACT_GREEN_TRANSFORM, 2);
+
+        final int blocksWide = (width + (1 << PREDICTOR_BITS) - 1) >> PREDICTOR_BITS;
+        final int blocksHigh = (height + (1 << PREDICTOR_BITS) - 1) >> PREDICTOR_BITS;
+        final int [] modes = new int [blocksWide * blocksHigh];
+        final int [] residuals = applyPredictor(argb, width, height, blocksWide, modes);
+        bits.write(1, 1);
+        bits.write(PREDICTOR_TRANSFORM, 2);
+        bits.write(PREDICTOR_BITS - 2, 3);
+        writeImage(bits, modes, blocksWide, false);
+
+        bits.write(0, 1); // no more transforms
+        writeImage(bits, residuals, width, true);
+        bits.finish();
+        return bits;
+    }
+
+    /**
+     * Writes the image with the color indexing transform.
+     */
+    private static BitWriter encodeWithPalette(int [] argb, int width, int height,
+        boolean hasAlpha, int [] palette)
+    {
+        final BitWriter bits = writeHeader(width, height, hasAlpha, argb.length);
+        final int widthBits = getPackingBits(palette.length);
+        bits.write(1, 1);
+        bits.write(COLOR_INDEXING_TRANSFORM, 2);
+        bits.write(palette.length - 1, 8);
+        final int [] deltas = new int [palette.length];
+        deltas[0] = palette[0];
+        for (int i = 1; i < palette.length; i++)
+        {
+            deltas[i] = subtractPixels(palette[i], palette[i - 1]);
+        }
+        writeImage(bits, deltas, palette.length, false);
+
+        bits.write(0, 1); // no more transforms
+        writeImage(bits, applyPalette(argb, width, height, palette, widthBits),
+            (width + (1 << widthBits) - 1) >> widthBits, true);
+        bits.finish();
+        return bits;
+    }
+
+    private static BitWriter writeHeader(int width, int height, boolean hasAlpha,
+        int pixels)
+    {
+        final BitWriter bits = new BitWriter(pixels);
+        bits.write(VP8L_SIGNATURE, 8);
+        bits.write(width - 1, 14);
+        bits.write(height - 1, 14);
+        bits.write(hasAlpha ? 1 : 0, 1);
+        bits.write(0, 3); // version
+        return bits;
+    }
+
+    /**
+     * Returns the distinct colors of the image in ascending order or <code>null</code>
+     * if there are more than <code>maxColors</code> of them.
+     */
+    private static int [] getPalette(int [] argb, int maxColors)
+    {
+        final IntHashSet colors = new IntHashSet(maxColors * 2);
+        for (int pixel : argb)
+        {
+            if (colors.add(pixel) && colors.size() > maxColors)
+            {
+                return null;
+            }
+        }
+        final int [] palette = colors.toArray(null, 0);
+        Arrays.sort(palette);
+        return palette;
+    }
+
+    /**
+     * Returns the base 2 logarithm of the number of palette indices packed into one
+     * pixel by the color indexing transform.
+     */
+    private static int getPackingBits(int paletteSize)
+    {
+        if (paletteSize <= 2)
+        {
+            return 3;
+        }
+        else if (paletteSize <= 4)
+        {
+            return 2;
+        }
+        else if (paletteSize <= 16)
+        {
+            return 1;
+        }
+        else
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Replaces the pixels with their palette indices, packed into the green components of
+     * <code>1 &lt;&lt; widthBits</code> pixels wide bundles.
+     */
+    private static int [] applyPalette(int [] argb, int width, int height,
+        int [] palette, int widthBits)
+    {
+        final int packedWidth = (width + (1 << widthBits) - 1) >> widthBits;
+        final int bitsPerIndex = 8 >> widthBits;
+        final int xMask = (1 << widthBits) - 1;
+        final int [] packed = new int [packedWidth * height];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int index = Arrays.binarySearch(palette, argb[y * width + x]);
+                packed[y * packedWidth + (x >> widthBits)] |= index << (8 + bitsPerIndex
+                    * (x & xMask));
+            }
+        }
+        for (int i = 0; i < packed.length; i++)
+        {
+            packed[i] |= 0xff000000;
+        }
+        return packed;
+    }
+
+    /**
+     * Subtracts the green component from the red and blue components of all pixels.
+     */
+    private static void subtractGreen(int [] argb)
+    {
+        for (int i = 0; i < argb.length; i++)
+        {
+            final int green = (argb[i] >> 8) & 0xff;
+            final int red = (((argb[i] >> 16) & 0xff) - green) & 0xff;
+            final int blue = ((argb[i] & 0xff) - green) & 0xff;
+            argb[i] = (argb[i] & 0xff00ff00) | red << 16 | blue;
+        }
+    }
+
+    /**
+     * Chooses the predictor mode of each block, the one with the smallest residuals, and
+     * returns the residuals. The modes are stored in the green components of
+     * <code>modes</code>.
+     */
+    private static int [] applyPredictor(int [] argb, int width, int height,
+        int blocksWide, int [] modes)
+    {
+        final int [] residuals = new int [argb.length];
+        final int blockSize = 1 << PREDICTOR_BITS;
+        for (int blockY = 0; blockY * blockSize < height; blockY++)
+        {
+            for (int blockX = 0; blockX < blocksWide; blockX++)
+            {
+                final int startX = blockX * blockSize;
+                final int startY = blockY * blockSize;
+                final int endX = Math.min(startX + blockSize, width);
+                final int endY = Math.min(startY + blockSize, height);
+
+                int bestMode = 0;
+                long bestCost = Long.MAX_VALUE;
+                for (int mode = 0; mode < PREDICTOR_MODES; mode++)
+                {
+                    long cost = 0;
+                    for (int y = startY; y < endY && cost < bestCost; y++)
+                    {
+                        for (int x = startX; x < endX; x++)
+                        {
+                            cost += residualCost(subtractPixels(argb[y * width + x],
+                                predict(argb, width, y * width + x, mode)));
+                        }
+                    }
+                    if (cost < bestCost)
+                    {
+                        bestCost = cost;
+                        bestMode = mode;
+                    }
+                }
+
+                modes[blockY * blocksWide + blockX] = 0xff000000 | bestMode << 8;
+                for (int y = startY; y < endY; y++)
+                {
+                    for (int x = startX; x < endX; x++)
+                    {
+                        residuals[y * width + x] = subtractPixels(argb[y * width + x],
+                            predict(argb, width, y * width + x, bestMode));
+                    }
+                }
+            }
+        }
+        return residuals;
+    }
+
+    /**
+     * Predicts the pixel at <code>index</code> from the pixels above it and to its left.
+     * The first pixel is predicted as opaque black, the rest of the first row from the
+     * left pixel and the rest of the first column from the top pixel, regardless of the
+     * mode. The top-right pixel of the last column is the first pixel of the current row.
+     */
+    private static int predict(int [] argb, int width, int index, int mode)
+    {
+        if (index == 0)
+        {
+            return 0xff000000;
+        }
+        else if (index < width)
+        {
+            return argb[index - 1];
+        }
+        else if (index % width == 0)
+        {
+            return argb[index - width];
+        }
+
+        final int left = argb[index - 1];
+        final int top = argb[index - width];
+        final int topLeft = argb[index - width - 1];
+        final int topRight = argb[index - width + 1];
+        switch (mode)
+        {
+            case 0:
+                return 0xff000000;
+            case 1:
+                return left;
+            case 2:
+                return top;
+            case 3:
+                return topRight;
+            case 4:
+                return topLeft;
+            case 5:
+                return average(average(left, topRight), top);
+            case 6:
+                return average(left, topLeft);
+            case 7:
+                return average(left, top);
+            case 8:
+                return average(topLeft, top);
+            case 9:
+                return average(top, topRight);
+            case 10:
+                return average(average(left, topLeft), average(top, topRight));
+            default:
+                throw new IllegalArgumentException("Unsupported predictor mode: " + mode);
+        }
+    }
+
+    /**
+     * Returns the component-wise average of two pixels, rounded down.
+     */
+    private static int average(int a, int b)
+    {
+        return (((a ^ b) & 0xfefefefe) >>> 1) + (a & b);
+    }
+
+    /**
+     * Returns the component-wise difference of two pixels, modulo 256.
+     */
+    private static int subtractPixels(int a, int b)
+    {
+        final int alphaGreen = 0x00ff00ff + (a & 0xff00ff00) - (b & 0xff00ff00);
+        final int redBlue = 0xff00ff00 + (a & 0x00ff00ff) - (b & 0x00ff00ff);
+        return (alphaGreen & 0xff00ff00) | (redBlue & 0x00ff00ff);
+    }
+
+    /**
+     * Estimates the cost of a residual as the sum of magnitudes of its components.
+     */
+    private static int residualCost(int residual)
+    {
+        int cost = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            final int component = (byte) (residual >> shift);
+            cost += component < 0 ? -component : component;
+        }
+        return cost;
+    }
+
+    /**
+     * Writes an entropy-coded image: the main image or one of the sub-images of the
+     * transforms, which have no meta prefix codes.
+     */
+    private static void writeImage(BitWriter bits, int [] pixels, int width,
+        boolean mainImage)
+    {
+        final Tokens tokens = findBackwardReferences(pixels, width);
+
+        // Choose the color cache size that gives the smallest estimated output
+        int cacheBits = 0;
+        Histograms histograms = new Histograms(tokens, pixels, 0);
+        double cost = histograms.estimateCost();
+        for (int candidateBits = 1; candidateBits <= MAX_COLOR_CACHE_BITS; candidateBits++)
+        {
+            final Histograms candidate = new Histograms(tokens, pixels, candidateBits);
+            final double candidateCost = candidate.estimateCost();
+            if (candidateCost < cost)
+            {
+                cacheBits = candidateBits;
+                histograms = candidate;
+                cost = candidateCost;
+            }
+        }
+
+        if (cacheBits > 0)
+        {
+            bits.write(1, 1);
+            bits.write(cacheBits, 4);
+        }
+        else
+        {
+            bits.write(0, 1);
+        }
+        if (mainImage)
+        {
+            bits.write(0, 1); // no meta prefix codes
+        }
+
+        final int [][] lengths = new int [histograms.counts.length] [];
+        final int [][] codes = new int [histograms.counts.length] [];
+        for (int i = 0; i < lengths.length; i++)
+        {
+            lengths[i] = writePrefixCode(bits, histograms.counts[i]);
+            codes[i] = getCanonicalCodes(lengths[i]);
+        }
+
+        final ColorCache cache = new ColorCache(cacheBits);
+        int position = 0;
+        for (int t = 0; t < tokens.size; t++)
+        {
+            final int length = tokens.lengths[t];
+            if (length == 0)
+            {
+                final int pixel = pixels[position];
+                final int cacheIndex = cache.lookup(pixel);
+                if (cacheIndex >= 0)
+                {
+                    writeSymbol(bits, NUM_LITERAL_CODES + NUM_LENGTH_CODES + cacheIndex,
+                        lengths[0], codes[0]);
+                }
+                else
+                {
+                    writeSymbol(bits, (pixel >> 8) & 0xff, lengths[0], codes[0]);
+                    writeSymbol(bits, (pixel >> 16) & 0xff, lengths[1], codes[1]);
+                    writeSymbol(bits, pixel & 0xff, lengths[2], codes[2]);
+                    writeSymbol(bits, pixel >>> 24, lengths[3], codes[3]);
+                }
+                cache.insert(pixel);
+                position++;
+            }
+            else
+            {
+                final int lengthPrefix = getPrefix(length);
+                writeSymbol(bits, NUM_LITERAL_CODES + lengthPrefix, lengths[0], codes[0]);
+                writePrefixExtraBits(bits, length, lengthPrefix);
+
+                final int distanceCode = tokens.distanceCodes[t];
+                final int distancePrefix = getPrefix(distanceCode);
+                writeSymbol(bits, distancePrefix, lengths[4], codes[4]);
+                writePrefixExtraBits(bits, distanceCode, distancePrefix);
+
+                for (int i = 0; i < length; i++)
+                {
+                    cache.insert(pixels[position++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds backward references with a hash chain of pixel pairs, deferring a reference
+     * by one pixel if a longer one starts there.
+     */
+    private static Tokens findBackwardReferences(int [] pixels, int width)
+    {
+        final Tokens tokens = new Tokens();
+        final int [] head = new int [1 << HASH_BITS];
+        final int [] chain = new int [pixels.length];
+        Arrays.fill(head, -1);
+
+        int position = 0;
+        final int [] match = new int [2];
+        final int [] nextMatch = new int [2];
+        while (position < pixels.length)
+        {
+            findLongestMatch(pixels, width, position, head, chain, match);
+            if (match[0] > 0 && position + 1 < pixels.length)
+            {
+                insertHash(pixels, position, head, chain);
+                findLongestMatch(pixels, width, position + 1, head, chain, nextMatch);
+                if (nextMatch[0] > match[0] + 1)
+                {
+                    tokens.add(0, 0);
+                    position++;
+                    System.arraycopy(nextMatch, 0, match, 0, 2);
+                }
+                else
+                {
+                    removeHash(pixels, position, head, chain);
+                }
+            }
+
+            if (match[0] > 0)
+            {
+                tokens.add(match[0], getDistanceCode(match[1], width));
+                final int end = position + match[0];
+                for (; position < end; position++)
+                {
+                    insertHash(pixels, position, head, chain);
+                }
+            }
+            else
+            {
+                tokens.add(0, 0);
+                insertHash(pixels, position, head, chain);
+                position++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Finds the longest match for the pixels at <code>position</code>, storing its length
+     * (<code>0</code> if there is no match worth a reference) and distance in
+     * <code>match</code>. The pixels to the left and above are tried first.
+     */
+    private static void findLongestMatch(int [] pixels, int width, int position,
+        int [] head, int [] chain, int [] match)
+    {
+        match[0] = 0;
+        match[1] = 0;
+        final int maxLength = Math.min(MAX_LENGTH, pixels.length - position);
+        if (maxLength < 2)
+        {
+            return;
+        }
+
+        int bestLength = 0;
+        int bestDistance = 0;
+        for (int distance : new int []
+        {
+            1, width
+        })
+        {
+            if (distance <= position)
+            {
+                final int length = matchLength(pixels, position - distance, position,
+                    maxLength);
+                if (length > bestLength)
+                {
+                    bestLength = length;
+                    bestDistance = distance;
+                }
+            }
+        }
+
+        int candidate = head[hash(pixels, position)];
+        for (int tries = 0; candidate >= 0 && tries < MAX_CHAIN_LENGTH
+            && bestLength < maxLength; tries++)
+        {
+            final int distance = position - candidate;
+            if (distance > MAX_DISTANCE)
+            {
+                break;
+            }
+            final int length = matchLength(pixels, candidate, position, maxLength);
+            if (length > bestLength)
+            {
+                bestLength = length;
+                bestDistance = distance;
+            }
+            candidate = chain[candidate];
+        }
+
+        // Short references to far pixels cost more than the literals
+        if (bestLength >= 3 || (bestLength == 2 && (bestDistance == 1 || bestDistance == width)))
+        {
+            match[0] = bestLength;
+            match[1] = bestDistance;
+        }
+    }
+
+    private static int matchLength(int [] pixels, int from, int to, int maxLength)
+    {
+        int length = 0;
+        while (length < maxLength && pixels[from + length] == pixels[to + length])
+        {
+            length++;
+        }
+        return length;
+    }
+
+    private static int hash(int [] pixels, int position)
+    {
+        final int next = position + 1 < pixels.length ? pixels[position + 1] : 0;
+        return ((pixels[position] * 0x1e35a7bd) ^ (next * 0x5bd1e995)) >>> (32 - HASH_BITS);
+    }
+
+    private static void insertHash(int [] pixels, int position, int [] head, int [] chain)
+    {
+        final int hash = hash(pixels, position);
+        chain[position] = head[hash];
+        head[hash] = position;
+    }
+
+    private static void removeHash(int [] pixels, int position, int [] head, int [] chain)
+    {
+        head[hash(pixels, position)] = chain[position];
+    }
+
+    /**
+     * Returns the distance code of a backward reference: one of the short codes if the
+     * distance matches it, the distance plus 120 otherwise.
+     */
+    private static int getDistanceCode(int distance, int width)
+    {
+        for (int i = 0; i < SHORT_DISTANCES.length; i++)
+        {
+            final int shortDistance = Math.max(1, SHORT_DISTANCES[i][0]
+                + SHORT_DISTANCES[i][1] * width);
+            if (shortDistance == distance)
+            {
+                return i + 1;
+            }
+        }
+        return distance + 120;
+    }
+
+    /**
+     * Returns the prefix code of a backward reference length or distance code.
+     */
+    private static int getPrefix(int value)
+    {
+        if (value <= 4)
+        {
+            return value - 1;
+        }
+        final int v = value - 1;
+        final int highestBit = 31 - Integer.numberOfLeadingZeros(v);
+        return 2 * highestBit + ((v >> (highestBit - 1)) & 1);
+    }
+
+    private static void writePrefixExtraBits(BitWriter bits, int value, int prefix)
+    {
+        if (prefix >= 4)
+        {
+            final int extraBits = (prefix - 2) >> 1;
+            bits.write((value - 1) & ((1 << extraBits) - 1), extraBits);
+        }
+    }
+
+    /**
+     * Computes the code lengths for the provided symbol counts and writes the prefix code.
+     * A code of a single symbol is written as a simple code of zero-length codes, if
+     * possible. Otherwise, the code lengths are written with a prefix code of their own.
+     *
+     * @return the code lengths of the symbols
+     */
+    private static int [] writePrefixCode(BitWriter bits, int [] counts)
+    {
+        int usedSymbols = 0;
+        int lastUsed = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++)
+        {
+            if (counts[symbol] > 0)
+            {
+                usedSymbols++;
+                lastUsed = symbol;
+            }
+        }
+
+        if (usedSymbols <= 1 && lastUsed < 256)
+        {
+            bits.write(1, 1); // simple code
+            bits.write(0, 1); // one symbol
+            if (lastUsed > 1)
+            {
+                bits.write(1, 1);
+                bits.write(lastUsed, 8);
+            }
+            else
+            {
+                bits.write(0, 1);
+                bits.write(lastUsed, 1);
+            }
+            return new int [counts.length];
+        }
+
+        final int [] lengths = getCodeLengths(counts, MAX_CODE_LENGTH);
+
+        // Run-length encode the code lengths
+        final int [] symbols = new int [counts.length];
+        final int [] extras = new int [counts.length];
+        int size = 0;
+        for (int i = 0; i < lengths.length;)
+        {
+            final int length = lengths[i];
+            int run = 1;
+            while (i + run < lengths.length && lengths[i + run] == length)
+            {
+                run++;
+            }
+            i += run;
+
+            if (length == 0)
+            {
+                while (run > 0)
+                {
+                    if (run < 3)
+                    {
+                        symbols[size++] = 0;
+                        run--;
+                    }
+                    else if (run <= 10)
+                    {
+                        symbols[size] = 17;
+                        extras[size++] = run - 3;
+                        run = 0;
+                    }
+                    else
+                    {
+                        final int repeat = Math.min(run, 138);
+                        symbols[size] = 18;
+                        extras[size++] = repeat - 11;
+                        run -= repeat;
+                    }
+                }
+            }
+            else
+            {
+                symbols[size++] = length;
+                run--;
+                while (run >= 3)
+                {
+                    final int repeat = Math.min(run, 6);
+                    symbols[size] = 16;
+                    extras[size++] = repeat - 3;
+                    run -= repeat;
+                }
+                while (run-- > 0)
+                {
+                    symbols[size++] = length;
+                }
+            }
+        }
+
+        final int [] codeLengthCounts = new int [CODE_LENGTH_CODE_ORDER.length];
+        for (int i = 0; i < size; i++)
+        {
+            codeLengthCounts[symbols[i]]++;
+        }
+        final int [] codeLengthLengths = getCodeLengths(codeLengthCounts,
+            MAX_CODE_LENGTH_CODE_LENGTH);
+        final int [] codeLengthCodes = getCanonicalCodes(codeLengthLengths);
+
+        int codeLengthsWritten = CODE_LENGTH_CODE_ORDER.length;
+        while (codeLengthsWritten > 4
+            && codeLengthLengths[CODE_LENGTH_CODE_ORDER[codeLengthsWritten - 1]] == 0)
+        {
+            codeLengthsWritten--;
+        }
+
+        bits.write(0, 1); // normal code
+        bits.write(codeLengthsWritten - 4, 4);
+        for (int i = 0; i < codeLengthsWritten; i++)
+        {
+            bits.write(codeLengthLengths[CODE_LENGTH_CODE_ORDER[i]], 3);
+        }
+        bits.write(0, 1); // code lengths of all symbols follow
+        for (int i = 0; i < size; i++)
+        {
+            writeSymbol(bits, symbols[i], codeLengthLengths, codeLengthCodes);
+            if (symbols[i] == 16)
+            {
+                bits.write(extras[i], 2);
+            }
+            else if (symbols[i] == 17)
+            {
+                bits.write(extras[i], 3);
+            }
+            else if (symbols[i] == 18)
+            {
+                bits.write(extras[i], 7);
+            }
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Computes Huffman code lengths not longer than <code>maxLength</code>. Codes of a
+     * single symbol get another one-bit symbol, so that all codes are complete binary
+     * trees. If the code is too deep, small counts are increased until it fits.
+     */
+    static int [] getCodeLengths(int [] counts, int maxLength)
+    {
+        final int [] adjusted = counts.clone();
+        int usedSymbols = 0;
+        for (int count : adjusted)
+        {
+            usedSymbols += count > 0 ? 1 : 0;
+        }
+        if (usedSymbols == 0)
+        {
+            adjusted[0] = 1;
+            usedSymbols = 1;
+        }
+        if (usedSymbols == 1)
+        {
+            adjusted[adjusted[0] > 0 ? 1 : 0] = 1;
+        }
+
+        for (int minCount = 1;; minCount *= 2)
+        {
+            final int [] lengths = buildHuffmanCodeLengths(adjusted);
+            int longest = 0;
+            for (int length : lengths)
+            {
+                longest = Math.max(longest, length);
+            }
+            if (longest <= maxLength)
+            {
+                return lengths;
+            }
+
+            for (int i = 0; i < adjusted.length; i++)
+            {
+                if (adjusted[i] > 0 && adjusted[i] < minCount)
+                {
+                    adjusted[i] = minCount;
+                }
+            }
+        }
+    }
+
+    private static int [] buildHuffmanCodeLengths(int [] counts)
+    {
+        final int symbols = counts.length;
+        final int [] parents = new int [2 * symbols];
+        final PriorityQueue<Long> queue = new PriorityQueue<Long>();
+        for (int symbol = 0; symbol < symbols; symbol++)
+        {
+            if (counts[symbol] > 0)
+            {
+                queue.add((long) counts[symbol] << 16 | symbol);
+            }
+        }
+
+        int nextNode = symbols;
+        while (queue.size() > 1)
+        {
+            final long first = queue.poll();
+            final long second = queue.poll();
+            parents[(int) (first & 0xffff)] = nextNode;
+            parents[(int) (second & 0xffff)] = nextNode;
+            queue.add(((first >>> 16) + (second >>> 16)) << 16 | nextNode);
+            nextNode++;
+        }
+
+        final int root = nextNode - 1;
+        final int [] lengths = new int [symbols];
+        for (int symbol = 0; symbol < symbols; symbol++)
+        {
+            if (counts[symbol] > 0)
+            {
+                for (int node = symbol; node != root; node = parents[node])
+                {
+                    lengths[symbol]++;
+                }
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the canonical codes for the provided code lengths, with the bits reversed
+     * because the bitstream is read from the least significant bit.
+     */
+    private static int [] getCanonicalCodes(int [] lengths)
+    {
+        final int [] lengthCounts = new int [MAX_CODE_LENGTH + 1];
+        for (int length : lengths)
+        {
+            lengthCounts[length]++;
+        }
+        lengthCounts[0] = 0;
+
+        final int [] nextCode = new int [MAX_CODE_LENGTH + 1];
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++)
+        {
+            code = (code + lengthCounts[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        final int [] codes = new int [lengths.length];
+        for (int symbol = 0; symbol < lengths.length; symbol++)
+        {
+            final int length = lengths[symbol];
+            if (length > 0)
+            {
+                codes[symbol] = Integer.reverse(nextCode[length]++) >>> (32 - length);
+            }
+        }
+        return codes;
+    }
+
+    private static void writeSymbol(BitWriter bits, int symbol, int [] lengths,
+        int [] codes)
+    {
+        bits.write(codes[symbol], lengths[symbol]);
+    }
+
+    private static void writeIntLittleEndian(OutputStream out, int value)
+        throws IOException
+    {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Literals and backward references found in an image. A literal has zero length.
+     */
+    private static final class Tokens
+    {
+        int [] lengths = new int [1024];
+        int [] distanceCodes = new int [1024];
+        int size;
+
+        void add(int length, int distanceCode)
+        {
+            if (size == lengths.length)
+            {
+                lengths = Arrays.copyOf(lengths, size * 2);
+                distanceCodes = Arrays.copyOf(distanceCodes, size * 2);
+            }
+            lengths[size] = length;
+            distanceCodes[size] = distanceCode;
+            size++;
+        }
+    }
+
+    /**
+     * The color cache of recently seen pixels, indexed by a hash of the pixel. The
+     * entries not filled yet are never used.
+     */
+    private static final class ColorCache
+    {
+        private final int [] colors;
+        private final boolean [] filled;
+        private final int shift;
+
+        ColorCache(int bits)
+        {
+            this.colors = new int [bits > 0 ? 1 << bits : 0];
+            this.filled = new boolean [colors.length];
+            this.shift = 32 - bits;
+        }
+
+        /**
+         * Returns the index of the pixel in the cache or <code>-1</code> if it is not
+         * cached.
+         */
+        int lookup(int pixel)
+        {
+            if (colors.length == 0)
+            {
+                return -1;
+            }
+            final int index = (pixel * 0x1e35a7bd) >>> shift;
+            return filled[index] && colors[index] == pixel ? index : -1;
+        }
+
+        void insert(int pixel)
+        {
+            if (colors.length > 0)
+            {
+                final int index = (pixel * 0x1e35a7bd) >>> shift;
+                colors[index] = pixel;
+                filled[index] = true;
+            }
+        }
+    }
+
+    /**
+     * Symbol counts of the five prefix codes of an image: green, length prefixes and
+     * color cache indices, red, blue, alpha and distance prefixes.
+     */
+    private static final class Histograms
+    {
+        final int [][] counts;
+
+        /** Number of extra bits of length and distance prefixes */
+        private long extraBits;
+
+        Histograms(Tokens tokens, int [] pixels, int cacheBits)
+        {
+            counts = new int [] []
+            {
+                new int [NUM_LITERAL_CODES + NUM_LENGTH_CODES
+                    + (cacheBits > 0 ? 1 << cacheBits : 0)],
+                new int [256], new int [256], new int [256],
+                new int [NUM_DISTANCE_CODES]
+            };
+
+            final ColorCache cache = new ColorCache(cacheBits);
+            int position = 0;
+            for (int t = 0; t < tokens.size; t++)
+            {
+                final int length = tokens.lengths[t];
+                if (length == 0)
+                {
+                    final int pixel = pixels[position++];
+                    final int cacheIndex = cache.lookup(pixel);
+                    if (cacheIndex >= 0)
+                    {
+                        counts[0][NUM_LITERAL_CODES + NUM_LENGTH_CODES + cacheIndex]++;
+                    }
+                    else
+                    {
+                        counts[0][(pixel >> 8) & 0xff]++;
+                        counts[1][(pixel >> 16) & 0xff]++;
+                        counts[2][pixel & 0xff]++;
+                        counts[3][pixel >>> 24]++;
+                    }
+                    cache.insert(pixel);
+                }
+                else
+                {
+                    final int lengthPrefix = getPrefix(length);
+                    final int distancePrefix = getPrefix(tokens.distanceCodes[t]);
+                    counts[0][NUM_LITERAL_CODES + lengthPrefix]++;
+                    counts[4][distancePrefix]++;
+                    extraBits += Math.max(0, (lengthPrefix - 2) >> 1)
+                        + Math.max(0, (distancePrefix - 2) >> 1);
+                    for (int i = 0; i < length; i++)
+                    {
+                        cache.insert(pixels[position++]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Estimates the number of bits of the entropy coded symbols and of the code
+         * lengths, roughly 4 bits for each used symbol.
+         */
+        double estimateCost()
+        {
+            double bits = extraBits;
+            for (int [] histogram : counts)
+            {
+                long total = 0;
+                for (int count : histogram)
+                {
+                    total += count;
+                }
+                for (int count : histogram)
+                {
+                    if (count > 0)
+                    {
+                        bits += count * (Math.log((double) total / count) / Math.log(2))
+                            + 4;
+                    }
+                }
+            }
+            return bits;
+        }
+    }
+
+    /**
+     * Writes bits starting from the least significant bit of each byte.
+     */
+    private static final class BitWriter
+    {
+        byte [] bytes;
+        private int size;
+        private long buffer;
+        private int bufferedBits;
+
+        BitWriter(int expectedSize)
+        {
+            bytes = new byte [Math.max(256, expectedSize)];
+        }
+
+        void write(int value, int count)
+        {
+            buffer |= ((long) value & ((1L << count) - 1)) << bufferedBits;
+            bufferedBits += count;
+            while (bufferedBits >= 8)
+            {
+                if (size == bytes.length)
+                {
+                    bytes = Arrays.copyOf(bytes, size * 2);
+                }
+                bytes[size++] = (byte) buffer;
+                buffer >>>= 8;
+                bufferedBits -= 8;
+            }
+        }
+
+        /**
+         * Writes the remaining bits, padded with zeros.
+         */
+        void finish()
+        {
+            if (bufferedBits > 0)
+            {
+                write(0, 8 - bufferedBits);
+            }
+        }
+
+        /**
+         * Returns the number of bytes written.
+         */
+        int size()
+        {
+            return size;
+        }
+    }
+}
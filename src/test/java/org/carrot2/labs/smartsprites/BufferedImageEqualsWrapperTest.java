@@ -0,0 +1,81 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+
+import org.carrot2.labs.smartsprites.SpriteImageBuilder.BufferedImageEqualsWrapper;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link BufferedImageEqualsWrapper}.
+ */
+public class BufferedImageEqualsWrapperTest
+{
+    @Test
+    public void testEqualImages()
+    {
+        final BufferedImageEqualsWrapper a = wrap(image(16, 16, 0xff336699));
+        final BufferedImageEqualsWrapper b = wrap(image(16, 16, 0xff336699));
+
+        assertThat(a).isEqualTo(b);
+        assertThat(a.hashCode()).isEqualTo(b.hashCode());
+    }
+
+    @Test
+    public void testFullyTransparentPixelsIgnored()
+    {
+        final BufferedImageEqualsWrapper a = wrap(image(16, 16, 0x00336699));
+        final BufferedImageEqualsWrapper b = wrap(image(16, 16, 0x00ffffff));
+
+        assertThat(a).isEqualTo(b);
+        assertThat(a.hashCode()).isEqualTo(b.hashCode());
+    }
+
+    @Test
+    public void testSinglePixelDifference()
+    {
+        final BufferedImage image = image(16, 16, 0xff336699);
+        image.setRGB(15, 15, 0xff336698);
+
+        assertThat(wrap(image)).isNotEqualTo(wrap(image(16, 16, 0xff336699)));
+    }
+
+    @Test
+    public void testSamePixelsDifferentDimensions()
+    {
+        assertThat(wrap(image(16, 8, 0xff336699))).isNotEqualTo(
+            wrap(image(8, 16, 0xff336699)));
+    }
+
+    @Test
+    public void testSwappedPixelsDifferentFingerprints()
+    {
+        final BufferedImage a = image(2, 1, 0xff000000);
+        a.setRGB(1, 0, 0xffffffff);
+        final BufferedImage b = image(2, 1, 0xffffffff);
+        b.setRGB(1, 0, 0xff000000);
+
+        assertThat(BufferedImageEqualsWrapper.fingerprint(a)).isNotEqualTo(
+            BufferedImageEqualsWrapper.fingerprint(b));
+    }
+
+    private static BufferedImageEqualsWrapper wrap(BufferedImage image)
+    {
+        return new BufferedImageEqualsWrapper(image);
+    }
+
+    private static BufferedImage image(int width, int height, int argb)
+    {
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,53 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link CssFileModel}.
+ */
+public class CssFileModelTest
+{
+    @Test
+    public void testLineSplitting()
+    {
+        final CssFileModel model = new CssFileModel("test.css",
+            "a {}\r\nb {}\rc {}\n\nd {}\n");
+
+        assertThat(model.getLineCount()).isEqualTo(5);
+        assertThat(model.getLine(0)).isEqualTo("a {}");
+        assertThat(model.getLine(1)).isEqualTo("b {}");
+        assertThat(model.getLine(2)).isEqualTo("c {}");
+        assertThat(model.getLine(3)).isEqualTo("");
+        assertThat(model.getLine(4)).isEqualTo("d {}");
+        assertThat(model.getLineOffset(2)).isEqualTo(11);
+    }
+
+    @Test
+    public void testLastLineWithoutTerminator()
+    {
+        final CssFileModel model = new CssFileModel("test.css", "a {}\nb {}");
+
+        assertThat(model.getLineCount()).isEqualTo(2);
+        assertThat(model.getLine(1)).isEqualTo("b {}");
+    }
+
+    @Test
+    public void testDirectivesCollectedInOnePass()
+    {
+        final CssFileModel model = new CssFileModel("test.css",
+            "/** sprite: mysprite; sprite-image: url('../img/mysprite.png'); */\n"
+                + "#web {\n"
+                + "  width: 17px;\n"
+                + "  background-image: url(../img/web.gif); /** sprite-ref: mysprite; */\n"
+                + "  mask-image: url('icon.svg');\n" + "}\n");
+
+        assertThat(model.spriteImageDirectives).hasSize(1).containsEntry(0,
+            "sprite: mysprite; sprite-image: url('../img/mysprite.png');");
+        assertThat(model.spriteReferenceDirectives).hasSize(1).containsEntry(3,
+            "sprite-ref: mysprite;");
+        assertThat(model.svgImageRules).containsExactly("mask-image: url('icon.svg');");
+        assertThat(model.svgSpriteImageDefinitions).isEmpty();
+    }
+}
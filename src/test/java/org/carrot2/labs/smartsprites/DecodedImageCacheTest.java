@@ -0,0 +1,123 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.carrot2.labs.smartsprites.resource.FileSystemResourceHandler;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link DecodedImageCache}.
+ */
+public class DecodedImageCacheTest extends TestWithMemoryMessageSink
+{
+    private File dir;
+    private ResourceHandler resourceHandler;
+
+    @Before
+    public void setUpImages() throws IOException
+    {
+        dir = File.createTempFile("smartsprites", "");
+        FileUtils.deleteQuietly(dir);
+        FileUtils.copyDirectory(new File("test/large-repeat/img"), dir);
+        resourceHandler = new FileSystemResourceHandler(null, "UTF-8", messageLog);
+    }
+
+    @After
+    public void cleanUp()
+    {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testRepeatedRequestsHit() throws IOException
+    {
+        final DecodedImageCache cache = new DecodedImageCache(1024 * 1024);
+
+        final BufferedImage first = cache.get(image("web.gif"), resourceHandler);
+        final BufferedImage second = cache.get(image("web.gif"), resourceHandler);
+
+        assertThat(second).isSameAs(first);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testModifiedFileDecodedAgain() throws IOException
+    {
+        final DecodedImageCache cache = new DecodedImageCache(1024 * 1024);
+        final File file = new File(image("web.gif"));
+
+        final BufferedImage first = cache.get(file.getPath(), resourceHandler);
+        assertThat(file.setLastModified(file.lastModified() - 10000)).isTrue();
+        final BufferedImage second = cache.get(file.getPath(), resourceHandler);
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        final int webSize = DecodedImageCache.getSizeInBytes(ImageIO.read(new File(
+            image("web.gif"))));
+        final int pubmedSize = DecodedImageCache.getSizeInBytes(ImageIO.read(new File(
+            image("pubmed.gif"))));
+        final DecodedImageCache cache = new DecodedImageCache(Math.max(webSize,
+            pubmedSize) + 1);
+
+        cache.get(image("web.gif"), resourceHandler);
+        cache.get(image("pubmed.gif"), resourceHandler);
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getEvictionCount()).isEqualTo(1);
+
+        cache.get(image("pubmed.gif"), resourceHandler);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInvalidate() throws IOException
+    {
+        final DecodedImageCache cache = new DecodedImageCache(1024 * 1024);
+
+        cache.get(image("web.gif"), resourceHandler);
+        cache.invalidate(image("web.gif"));
+        cache.get(image("web.gif"), resourceHandler);
+
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCachingDisabled() throws IOException
+    {
+        final DecodedImageCache cache = new DecodedImageCache(0);
+
+        final BufferedImage first = cache.get(image("web.gif"), resourceHandler);
+        final BufferedImage second = cache.get(image("web.gif"), resourceHandler);
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingImage() throws IOException
+    {
+        new DecodedImageCache(1024 * 1024).get(image("missing.gif"), resourceHandler);
+    }
+
+    private String image(String name)
+    {
+        return new File(dir, name).getPath();
+    }
+}
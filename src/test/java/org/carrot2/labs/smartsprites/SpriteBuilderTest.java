@@ -5,19 +5,28 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.*;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 
 import org.apache.commons.io.FileUtils;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngEncoder;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.message.Message;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.resource.FileSystemResourceHandler;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
 import org.junit.*;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 /**
  * Test cases for {@link SpriteBuilder}. The test cases read/ write files to the
@@ -142,6 +151,151 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         assertThat(sprite(testDir, spriteVerticalPath))
             .hasSize(new Dimension(15 * 17 /* lcm(15, 17) */, 17 + 16));
         assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+
+        // Both images are used in both sprites, but decoded only once
+        assertThat(spriteBuilder.getImageCache().getMissCount()).isEqualTo(2);
+        assertThat(spriteBuilder.getImageCache().getHitCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testConcurrentSpriteBuild() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("large-repeat");
+        buildSprites(testDir);
+        final List<String> serialMessages = messagesExceptStatus();
+        messages.clear();
+        cleanUp();
+
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(
+            testDir.getPath(), null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setSpriteBuildThreads(4);
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(sprite(testDir, "img/sprite-horizontal.png"))
+            .hasSize(new Dimension(17 + 15, 16 * 17));
+        assertThat(sprite(testDir, "img/sprite-vertical.png"))
+            .hasSize(new Dimension(15 * 17, 17 + 16));
+        assertThat(messagesExceptStatus()).isEqualTo(serialMessages);
+    }
+
+    @Test
+    public void testIncrementalBuild() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("large-repeat");
+        final File manifest = File.createTempFile("smartsprites", ".manifest");
+        try
+        {
+            final SmartSpritesParameters parameters = new SmartSpritesParameters(
+                testDir.getPath(), null, null, null, "sprites", null, null,
+                SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+            parameters.setBuildManifestPath(manifest.getPath());
+
+            // Initial build, nothing to reuse
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).isEmpty();
+
+            // Nothing changed
+            messages.clear();
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).containsExactly("horizontal", "vertical");
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+
+            // One of the outputs removed
+            messages.clear();
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(new File(testDir,
+                "img/sprite-vertical.png"));
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).containsExactly("horizontal");
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+            assertThat(sprite(testDir, "img/sprite-vertical.png")).hasSize(
+                new Dimension(15 * 17, 17 + 16));
+        }
+        finally
+        {
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+        }
+    }
+
+    @Test
+    public void testRetainedBuildState() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("large-repeat");
+        spriteBuilder = new SpriteBuilder(new SmartSpritesParameters(testDir.getPath(),
+            null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING), messageLog);
+        spriteBuilder.setRetainBuildState(true);
+
+        spriteBuilder.buildSprites();
+        assertThat(upToDateSprites()).isEmpty();
+        assertThat(spriteBuilder.getOutputFiles()).contains(
+            processedCss().getPath());
+
+        // Nothing changed, the source CSS is not read again
+        messages.clear();
+        spriteBuilder.buildSprites();
+        assertThat(readCssFiles()).doesNotContain(sourceCss().getPath());
+        assertThat(upToDateSprites()).containsExactly("horizontal", "vertical");
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+
+        // The CSS file changed
+        messages.clear();
+        spriteBuilder.invalidate(Lists.newArrayList(sourceCss().getPath()));
+        spriteBuilder.buildSprites();
+        assertThat(readCssFiles()).containsOnlyOnce(sourceCss().getPath());
+        assertThat(upToDateSprites()).containsExactly("horizontal", "vertical");
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+    }
+
+    @Test
+    public void testRetainedBuildStateDiscardedWhenChangesLost() throws IOException
+    {
+        final File testDir = File.createTempFile("smartsprites", "");
+        FileUtils.deleteQuietly(testDir);
+        FileUtils.copyDirectory(testDir("simple-horizontal-sprite"), testDir);
+        try
+        {
+            spriteBuilder = new SpriteBuilder(filesystemSmartSpritesParameters(testDir,
+                null, null, MessageLevel.INFO,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING), messageLog);
+            spriteBuilder.setRetainBuildState(true);
+            spriteBuilder.buildSprites();
+            final Dimension size = new Dimension(sprite(testDir).getWidth(),
+                sprite(testDir).getHeight());
+
+            // An image changes, but the change events are lost
+            FileUtils.copyFile(new File(testDir, "img/pubmed.gif"), new File(testDir,
+                "img/web.gif"));
+            messages.clear();
+            spriteBuilder.invalidateAll();
+            spriteBuilder.buildSprites();
+
+            assertThat(readCssFiles()).containsOnlyOnce(sourceCss().getPath());
+            assertThat(upToDateSprites()).isEmpty();
+            assertThat(sprite(testDir)).hasSize(
+                new Dimension(size.width - 17 + 15, size.height));
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(testDir);
+        }
     }
 
     @Test
@@ -462,6 +616,85 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
             "many-colors", 293, 255));
     }
 
+    @Test
+    public void testFlatOctreeQuantizer() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("indexed-color");
+        final String [] spritePaths = new String []
+        {
+            "img/sprite-full-alpha.png", "img/sprite-many-colors.png"
+        };
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX, PngDepth.INDEXED,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        buildSprites(parameters);
+        final List<BufferedImage> expectedSprites = Lists.newArrayList();
+        for (String spritePath : spritePaths)
+        {
+            expectedSprites.add(sprite(testDir, spritePath));
+        }
+        cleanUp();
+
+        parameters.setSpriteQuantizer(SpriteQuantizer.FLAT_OCTREE);
+        buildSprites(parameters);
+
+        for (int i = 0; i < spritePaths.length; i++)
+        {
+            final BufferedImage expected = expectedSprites.get(i);
+            final BufferedImage actual = sprite(testDir, spritePaths[i]);
+            org.carrot2.labs.test.Assertions.assertThat(actual).isIndexedColor();
+            assertThat(
+                actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0,
+                    actual.getWidth())).isEqualTo(
+                expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null,
+                    0, expected.getWidth()));
+        }
+    }
+
+    @Test
+    public void testBuiltinPngEncoder() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("indexed-color");
+        final String [] spritePaths = new String []
+        {
+            "img/sprite-bit-alpha.png", "img/sprite-full-alpha.png",
+            "img/sprite-many-colors.png"
+        };
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        buildSprites(parameters);
+        final List<BufferedImage> expectedSprites = Lists.newArrayList();
+        for (String spritePath : spritePaths)
+        {
+            expectedSprites.add(sprite(testDir, spritePath));
+        }
+        cleanUp();
+
+        parameters.setSpritePngEncoder(SpritePngEncoder.BUILTIN);
+        parameters.setSpritePngCompressionLevel(1);
+        parameters.setSpritePngDeflateParallelism(4);
+        buildSprites(parameters);
+
+        for (int i = 0; i < spritePaths.length; i++)
+        {
+            final BufferedImage expected = expectedSprites.get(i);
+            final BufferedImage actual = sprite(testDir, spritePaths[i]);
+            assertThat(actual.getColorModel() instanceof IndexColorModel).isEqualTo(
+                expected.getColorModel() instanceof IndexColorModel);
+            assertThat(
+                actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0,
+                    actual.getWidth())).isEqualTo(
+                expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null,
+                    0, expected.getWidth()));
+        }
+    }
+
     @Test
     public void testMatteColor() throws FileNotFoundException, IOException
     {
@@ -619,6 +852,140 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         // assertThat(processedCss()).hasSameContentAs(expectedCss());
     }
 
+    @Test
+    public void testSpriteImageUidMd5MatchesWrittenFile() throws IOException
+    {
+        final File testDir = testDir("sprite-image-uid-md5");
+        buildSprites(testDir);
+
+        final String css = FileUtils.readFileToString(processedCss(), "UTF-8");
+        for (String sprite : new String []
+        {
+            "sprite.png", "sprite2.png"
+        })
+        {
+            final byte [] spriteBytes = FileUtils.readFileToByteArray(new File(testDir,
+                "img/" + sprite));
+            assertThat(css).contains(sprite + "?" + SpriteBuildManifest.md5(spriteBytes));
+        }
+
+        // Temporary files are moved to the sprite image paths
+        assertThat(new File(testDir, "img").list(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(SpriteImageBuilder.TEMPORARY_FILE_SUFFIX);
+            }
+        })).isEmpty();
+    }
+
+    @Test
+    public void testConcurrentSpritesWithMd5OnlyImagePaths() throws IOException
+    {
+        final File testDir = testDir("sprite-image-md5-only-path");
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setSpriteBuildThreads(8);
+        buildSprites(parameters);
+
+        // Each sprite is written to its own temporary file, then to its md5 path
+        final String css = FileUtils.readFileToString(processedCss(), "UTF-8");
+        final Matcher matcher = Pattern.compile("img/(sprite-([0-9a-f]+)\\.png)")
+            .matcher(css);
+        final Set<String> sprites = Sets.newHashSet();
+        while (matcher.find())
+        {
+            final byte [] spriteBytes = FileUtils.readFileToByteArray(new File(testDir,
+                "img/" + matcher.group(1)));
+            assertThat(SpriteBuildManifest.md5(spriteBytes)).isEqualTo(matcher.group(2));
+            sprites.add(matcher.group(1));
+        }
+        assertThat(sprites).hasSize(8);
+        assertThat(new File(testDir, "img").list(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(SpriteImageBuilder.TEMPORARY_FILE_SUFFIX);
+            }
+        })).isEmpty();
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testSpriteImageUidMd5WithoutMovingResources() throws IOException
+    {
+        final File testDir = testDir("sprite-image-uid-md5");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(
+            testDir.getPath(), null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        spriteBuilder = new SpriteBuilder(parameters, messageLog,
+            new DelegatingResourceHandler(new FileSystemResourceHandler(null,
+                parameters.getCssFileEncoding(), messageLog)));
+        spriteBuilder.buildSprites();
+
+        // Images are written directly to the sprite image paths
+        final String css = FileUtils.readFileToString(processedCss(), "UTF-8");
+        final byte [] spriteBytes = FileUtils.readFileToByteArray(new File(testDir,
+            "img/sprite.png"));
+        assertThat(css).contains("sprite.png?" + SpriteBuildManifest.md5(spriteBytes));
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+
+        // Unchanged images are left alone, there are no temporary files to delete
+        messages.clear();
+        parameters.setSkipUnchangedOutputs(true);
+        spriteBuilder.buildSprites();
+        assertThat(messageTypes()).contains(MessageType.SPRITE_IMAGE_UNCHANGED);
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testSkipUnchangedOutputs() throws IOException
+    {
+        final File testDir = testDir("sprite-image-uid-md5");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(
+            testDir.getPath(), null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setSkipUnchangedOutputs(true);
+        buildSprites(parameters);
+        final String css = FileUtils.readFileToString(processedCss(), "UTF-8");
+
+        final File [] outputs = new File []
+        {
+            processedCss(), new File(testDir, "img/sprite.png"),
+            new File(testDir, "img/sprite2.png")
+        };
+        final long lastModified = 1000000000000L;
+        for (File output : outputs)
+        {
+            assertThat(output.setLastModified(lastModified)).isTrue();
+        }
+
+        messages.clear();
+        buildSprites(parameters);
+
+        for (File output : outputs)
+        {
+            assertThat(output.lastModified()).as(output.getPath()).isEqualTo(
+                lastModified);
+        }
+        assertThat(FileUtils.readFileToString(processedCss(), "UTF-8")).isEqualTo(css);
+        assertThat(messageTypes()).contains(MessageType.SPRITE_IMAGE_UNCHANGED,
+            MessageType.CSS_UNCHANGED).doesNotContain(MessageType.WRITING_SPRITE_IMAGE,
+            MessageType.WRITING_CSS);
+    }
+
     /*@Test
     public void testSpriteImageUidMd5Ie6() throws FileNotFoundException, IOException
     {
@@ -766,6 +1133,277 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
     }
 
+    @Test
+    public void testStreamingCompositionWithMargins() throws FileNotFoundException,
+        IOException
+    {
+        checkStreamingComposition("sprite-margins", "img/sprite-horizontal.png",
+            "img/sprite-vertical.png");
+    }
+
+    @Test
+    public void testStreamingCompositionWithRepeat() throws FileNotFoundException,
+        IOException
+    {
+        checkStreamingComposition("large-repeat", "img/sprite-horizontal.png",
+            "img/sprite-vertical.png");
+    }
+
+    @Test
+    public void testPackedSprite() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("packed-sprite");
+        buildSprites(testDir);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        // The width is rounded up to a multiple of the repeated image's width
+        assertThat(sprite(testDir, "img/sprite-packed.png")).hasSize(
+            new Dimension(48 + 21 + 1, 47 + 6));
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testStreamingCompositionWithPackedSprite() throws FileNotFoundException,
+        IOException
+    {
+        checkStreamingComposition("packed-sprite", "img/sprite-packed.png");
+    }
+
+    @Test
+    public void testSpriteShards() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("sprite-shards");
+        buildSprites(testDir);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(new File(testDir, "img/sprite.png")).doesNotExist();
+        assertThat(sprite(testDir, "img/sprite-1.png")).hasSize(
+            new Dimension(17, 17 + 16));
+        assertThat(sprite(testDir, "img/sprite-2.png")).hasSize(
+            new Dimension(16, 16 + 16));
+        assertThat(sprite(testDir, "img/sprite-3.png")).hasSize(new Dimension(16, 16));
+        assertThat(messageTypes()).contains(MessageType.SPLITTING_SPRITE);
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testSpriteShardsConcurrently() throws FileNotFoundException,
+        IOException
+    {
+        final File testDir = testDir("sprite-shards");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(
+            testDir.getPath(), null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setSpriteBuildThreads(3);
+        parameters.setStreamingComposition(true);
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(sprite(testDir, "img/sprite-3.png")).hasSize(new Dimension(16, 16));
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testSpriteShardConflicts() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("sprite-shard-conflicts");
+        buildSprites(testDir);
+
+        // The parts would replace sprite icons-2 and the image of sprite misc
+        assertThat(sprite(testDir)).hasSize(new Dimension(17, 17 + 16));
+        assertThat(sprite(testDir, "img/sprite-flags.png")).hasSize(
+            new Dimension(16, 16 + 16));
+        assertThat(new File(testDir, "img/sprite-1.png")).doesNotExist();
+        assertThat(sprite(testDir, "img/sprite-flags-1.png")).hasSize(
+            new Dimension(16, 16));
+        assertThat(messageTypes()).doesNotContain(MessageType.SPLITTING_SPRITE);
+        final String css = sourceCss().getPath();
+        assertThat(messages).isEquivalentTo(MessageLevel.WARN, Lists.newArrayList(
+            new Message(MessageLevel.WARN,
+                MessageType.CANNOT_SPLIT_SPRITE_ID_CONFLICT, css, 4, "icons", "icons-2"),
+            new Message(MessageLevel.WARN,
+                MessageType.CANNOT_SPLIT_SPRITE_ID_CONFLICT, css, 6, "flags", "flags-1")));
+    }
+
+    @Test
+    public void testUsageProfile() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("usage-profile");
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setUsageProfilePath(new File(testDir, "usage-profile.properties")
+            .getPath());
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(new File(testDir, "img/sprite.png")).doesNotExist();
+        assertThat(sprite(testDir, "img/sprite-1.png")).hasSize(
+            new Dimension(17, 17 + 16));
+        assertThat(sprite(testDir, "img/sprite-2.png")).hasSize(
+            new Dimension(16, 16 + 16));
+        assertThat(sprite(testDir, "img/sprite-3.png")).hasSize(new Dimension(16, 16));
+        assertThat(messageTypes()).contains(MessageType.SPLITTING_SPRITE)
+            .doesNotContain(MessageType.USAGE_PROFILE_ROUTE_SAVINGS);
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testUsageProfileSavings() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("usage-profile");
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setUsageProfilePath(new File(testDir, "usage-profile.properties")
+            .getPath());
+        parameters.setReportUsageSavings(true);
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(messageTypes()).contains(MessageType.USAGE_PROFILE_ROUTE_SAVINGS);
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testMultiResolutionSprite() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("multi-resolution-sprite");
+        buildSprites(testDir);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(sprite(testDir)).hasSize(new Dimension(17, 17 + 16 + 2));
+        final BufferedImage highResolution = sprite(testDir, "img/sprite@2x.png");
+        assertThat(highResolution).hasSize(new Dimension(17 * 2, (17 + 16 + 2) * 2));
+
+        // The @2x variant of web.gif is solid blue, pubmed.gif has no @2x variant
+        assertThat(highResolution.getRGB(33, 33)).isEqualTo(0xff0000ff);
+        assertThat(highResolution.getRGB(33, 34)).isNotEqualTo(0xff0000ff);
+        assertThat(messageTypes()).contains(MessageType.RESAMPLING_IMAGE);
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testMultiResolutionSpriteConcurrently() throws FileNotFoundException,
+        IOException
+    {
+        final File testDir = testDir("multi-resolution-sprite");
+        final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+            testDir, null, null, MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setPixelParallelism(2);
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(sprite(testDir, "img/sprite@2x.png")).hasSize(
+            new Dimension(17 * 2, (17 + 16 + 2) * 2));
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testIncrementalBuildOfMultiResolutionSprite()
+        throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("multi-resolution-sprite");
+        final File manifest = File.createTempFile("smartsprites", ".manifest");
+        try
+        {
+            final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+                testDir, null, null, MessageLevel.INFO,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+            parameters.setBuildManifestPath(manifest.getPath());
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+            buildSprites(parameters);
+
+            // The image-set is written from the manifest
+            messages.clear();
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).containsExactly("icons");
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+
+            // The high resolution image removed
+            messages.clear();
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(new File(testDir,
+                "img/sprite@2x.png"));
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).isEmpty();
+            assertThat(new File(testDir, "img/sprite@2x.png")).exists();
+        }
+        finally
+        {
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+        }
+    }
+
+    @Test
+    public void testWebpSprite() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("webp-sprite");
+        buildSprites(testDir);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(sprite(testDir)).hasSize(new Dimension(17, 17 + 16 + 2));
+        final byte [] webp = FileUtils.readFileToByteArray(new File(testDir,
+            "img/sprite.webp"));
+        assertThat(new String(webp, 0, 4, "US-ASCII")).isEqualTo("RIFF");
+        assertThat(new String(webp, 8, 4, "US-ASCII")).isEqualTo("WEBP");
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testIncrementalBuildOfWebpSprite() throws FileNotFoundException,
+        IOException
+    {
+        final File testDir = testDir("webp-sprite");
+        final File manifest = File.createTempFile("smartsprites", ".manifest");
+        try
+        {
+            final SmartSpritesParameters parameters = filesystemSmartSpritesParameters(
+                testDir, null, null, MessageLevel.INFO,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+                SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+                SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+            parameters.setBuildManifestPath(manifest.getPath());
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+            buildSprites(parameters);
+
+            // The image-set is written from the manifest
+            messages.clear();
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).containsExactly("icons");
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+
+            // The WebP image removed
+            messages.clear();
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(new File(testDir,
+                "img/sprite.webp"));
+            buildSprites(parameters);
+            assertThat(upToDateSprites()).isEmpty();
+            assertThat(new File(testDir, "img/sprite.webp")).exists();
+        }
+        finally
+        {
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+        }
+    }
+
     @Test
     public void testSpriteCentering() throws FileNotFoundException, IOException {
         final File testDir = testDir("sprite-centering");
@@ -864,6 +1502,98 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
           }));
     }
 
+    private List<String> messagesExceptStatus()
+    {
+        final List<String> result = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            if (message.level != MessageLevel.STATUS)
+            {
+                result.add(message.toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the streaming composition produces the same CSS and sprite images as
+     * the default in-memory composition.
+     */
+    private void checkStreamingComposition(String test, String... spritePaths)
+        throws IOException
+    {
+        final File testDir = testDir(test);
+        buildSprites(testDir);
+        final List<BufferedImage> expectedSprites = Lists.newArrayList();
+        for (String spritePath : spritePaths)
+        {
+            expectedSprites.add(sprite(testDir, spritePath));
+        }
+        cleanUp();
+
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(
+            testDir.getPath(), null, null, null, "sprites", null, null,
+            SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        parameters.setStreamingComposition(true);
+        parameters.setImageCacheSize(0);
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        for (int i = 0; i < spritePaths.length; i++)
+        {
+            final BufferedImage expected = expectedSprites.get(i);
+            final BufferedImage actual = sprite(testDir, spritePaths[i]);
+            assertThat(actual).hasSize(
+                new Dimension(expected.getWidth(), expected.getHeight()));
+            assertThat(
+                actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0,
+                    actual.getWidth())).isEqualTo(
+                expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null,
+                    0, expected.getWidth()));
+        }
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    private List<MessageType> messageTypes()
+    {
+        final List<MessageType> result = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            result.add(message.type);
+        }
+        return result;
+    }
+
+    private List<String> upToDateSprites()
+    {
+        final List<String> result = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            if (message.type == MessageType.SPRITE_IMAGE_UP_TO_DATE)
+            {
+                result.add((String) message.arguments[0]);
+            }
+        }
+        return result;
+    }
+
+    private List<String> readCssFiles()
+    {
+        final List<String> result = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            if (message.type == MessageType.READING_CSS)
+            {
+                result.add((String) message.arguments[0]);
+            }
+        }
+        return result;
+    }
+
     private File testDir(String test)
     {
         return new File("test/" + test);
@@ -956,4 +1686,42 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         final String version = System.getProperty("java.version");
         Assume.assumeTrue(!version.startsWith("1.5") && !version.startsWith("1.6") && !version.startsWith("1.7"));
     }
+
+    /**
+     * A {@link ResourceHandler} implementing none of the optional interfaces.
+     */
+    private static class DelegatingResourceHandler implements ResourceHandler
+    {
+        private final ResourceHandler delegate;
+
+        DelegatingResourceHandler(ResourceHandler delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        public InputStream getResourceAsInputStream(String path) throws IOException
+        {
+            return delegate.getResourceAsInputStream(path);
+        }
+
+        public Reader getResourceAsReader(String path) throws IOException
+        {
+            return delegate.getResourceAsReader(path);
+        }
+
+        public OutputStream getResourceAsOutputStream(String path) throws IOException
+        {
+            return delegate.getResourceAsOutputStream(path);
+        }
+
+        public Writer getResourceAsWriter(String path) throws IOException
+        {
+            return delegate.getResourceAsWriter(path);
+        }
+
+        public String getResourcePath(String cssFilePath, String cssRelativePath)
+        {
+            return delegate.getResourcePath(cssFilePath, cssRelativePath);
+        }
+    }
 }
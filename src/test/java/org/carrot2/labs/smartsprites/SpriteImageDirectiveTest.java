@@ -2,12 +2,17 @@ package org.carrot2.labs.smartsprites;
 
 import static org.carrot2.labs.test.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
+import java.util.Arrays;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteUidType;
 import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
 import org.carrot2.labs.smartsprites.message.Message;
@@ -283,6 +288,203 @@ public class SpriteImageDirectiveTest extends TestWithMemoryMessageSink
                 Message.MessageType.UNSUPPORTED_IE6_MODE, null, 0, "other"));
     }
 
+    @Test
+    public void testQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-quantizer: median-cut",
+            messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteQuantizer.MEDIAN_CUT, directive.quantizer);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testNoQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png')", messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.quantizer);
+    }
+
+    @Test
+    public void testUnsupportedQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-quantizer: other",
+            messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.quantizer);
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.UNSUPPORTED_QUANTIZER, null, 0, "other"));
+    }
+
+    @Test
+    public void testSizeLimits()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-max-width: 4096px; "
+                + "sprite-max-height: 2048; sprite-max-pixels: 4194304", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(4096, directive.maxWidth);
+        assertEquals(2048, directive.maxHeight);
+        assertEquals(4194304, directive.maxPixels);
+        assertTrue(directive.hasSizeLimits());
+        assertTrue(directive.fitsSizeLimits(4096, 1024));
+        assertFalse(directive.fitsSizeLimits(4096, 2048));
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testMalformedSizeLimits()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-max-width: 10em; "
+                + "sprite-max-pixels: -1", messageLog);
+
+        assertNotNull(directive);
+        assertFalse(directive.hasSizeLimits());
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.CANNOT_PARSE_SPRITE_LIMIT, null, 0,
+                "sprite-max-width", "10em"),
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.CANNOT_PARSE_SPRITE_LIMIT, null, 0,
+                "sprite-max-pixels", "-1"));
+    }
+
+    @Test
+    public void testResolutions()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png?${md5}'); "
+                + "sprite-resolutions: 3x, 1x 2X", messageLog);
+
+        assertNotNull(directive);
+        assertTrue(directive.hasResolutions());
+        assertEquals(Arrays.asList(1, 2, 3), directive.resolutions);
+        assertEquals("../img/sprite.png?${md5}", directive.resolution(1).imagePath);
+        assertEquals("../img/sprite@2x.png?${md5}", directive.resolution(2).imagePath);
+        assertEquals(2.0f, directive.resolution(2).scaleRatio, 0);
+        assertFalse(directive.resolution(2).hasResolutions());
+        assertEquals(directive.resolutions, directive.shard(1).resolutions);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testImageFormats()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png?${md5}'); "
+                + "sprite-image-format: webp, png", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteImageFormat.PNG, directive.format);
+        assertEquals(Arrays.asList(SpriteImageFormat.WEBP), directive.alternativeFormats);
+        assertEquals("../img/sprite.png?${md5}", directive.imagePath);
+        final SpriteImageDirective webp = directive.format(SpriteImageFormat.WEBP);
+        assertEquals(SpriteImageFormat.WEBP, webp.format);
+        assertEquals("../img/sprite.webp?${md5}", webp.imagePath);
+        assertTrue(webp.alternativeFormats.isEmpty());
+        assertEquals(directive.alternativeFormats, directive.shard(1).alternativeFormats);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testImageFormatReplacesExtension()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png'); "
+                + "sprite-image-format: gif", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteImageFormat.GIF, directive.format);
+        assertTrue(directive.alternativeFormats.isEmpty());
+        assertEquals("../img/sprite.gif", directive.imagePath);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testUnsupportedImageFormat()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png'); "
+                + "sprite-image-format: avif png", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteImageFormat.PNG, directive.format);
+        assertTrue(directive.alternativeFormats.isEmpty());
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.UNSUPPORTED_SPRITE_IMAGE_FORMAT, null, 0, "avif"));
+    }
+
+    @Test
+    public void testWebpFormatInferred()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.webp')", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteImageFormat.WEBP, directive.format);
+        assertTrue(directive.alternativeFormats.isEmpty());
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testMalformedResolutions()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png'); "
+                + "sprite-resolutions: 1x 1.5x", messageLog);
+
+        assertNotNull(directive);
+        assertFalse(directive.hasResolutions());
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.CANNOT_PARSE_SPRITE_RESOLUTIONS, null, 0, "1x 1.5x"));
+    }
+
+    @Test
+    public void testScaleIgnoredWithResolutions()
+    {
+        SpriteImageDirective.parse("sprite: icons; sprite-image: url('../img/sprite.png'); "
+            + "sprite-resolutions: 1x 2x; sprite-scale: 2", messageLog);
+
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.IGNORING_SPRITE_SCALE_WITH_RESOLUTIONS, null, 0));
+    }
+
+    @Test
+    public void testShard()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/sprite.png?${md5}'); "
+                + "sprite-max-height: 100", messageLog).shard(2);
+
+        assertEquals("icons-2", directive.spriteId);
+        assertEquals("../img/sprite-2.png?${md5}", directive.imagePath);
+        assertEquals(100, directive.maxHeight);
+    }
+
+    @Test
+    public void testShardWithSpriteIdInPath()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: icons; sprite-image: url('../img/${sprite}.png')", messageLog)
+            .shard(1);
+
+        assertEquals("icons-1", directive.spriteId);
+        assertEquals("../img/${sprite}.png", directive.imagePath);
+    }
+
     @Test
     public void testIgnoredIe6Mode()
     {
@@ -62,4 +62,28 @@ public class SpriteImageTest
     {
         assertEquals("assets.img/image-ie6?query", SpriteImage.addIe6Suffix("assets.img/image?query", true));
     }
+
+    @Test
+    public void replaceExtensionPlainFileName()
+    {
+        assertEquals("image.webp", SpriteImage.replaceExtension("image.png", "webp"));
+    }
+
+    @Test
+    public void replaceExtensionFileNameWithoutDot()
+    {
+        assertEquals("image.webp", SpriteImage.replaceExtension("image", "webp"));
+    }
+
+    @Test
+    public void replaceExtensionPathWithDot()
+    {
+        assertEquals("../assets.img/image.webp", SpriteImage.replaceExtension("../assets.img/image", "webp"));
+    }
+
+    @Test
+    public void replaceExtensionPathWithDotAndQuery()
+    {
+        assertEquals("assets.img/image-${md5}.webp?query.png", SpriteImage.replaceExtension("assets.img/image-${md5}.png?query.png", "webp"));
+    }
 }
@@ -33,6 +33,10 @@ public class SpriteReferenceDirectiveTest extends TestWithMemoryMessageSink
         "hsprite", "hsprite.png", SpriteImageLayout.HORIZONTAL, SpriteImageFormat.PNG,
         Ie6Mode.AUTO, Color.WHITE, SpriteUidType.NONE, 1);
 
+    private static final SpriteImageDirective PACKED_SPRITE_IMAGE_DIRECTIVE = new SpriteImageDirective(
+        "psprite", "psprite.png", SpriteImageLayout.PACKED, SpriteImageFormat.PNG,
+        Ie6Mode.AUTO, Color.WHITE, SpriteUidType.NONE, 1);
+
     private static final SpriteImageDirective VERTICAL_SPRITE_IMAGE_DIRECTIVE_WITH_LAYOUT = new SpriteImageDirective(
         "vsprite", "sprite.png", SpriteImageLayout.VERTICAL, SpriteImageFormat.PNG,
         Ie6Mode.AUTO, Color.WHITE, SpriteUidType.NONE, 1, new SpriteLayoutProperties(
@@ -41,7 +45,8 @@ public class SpriteReferenceDirectiveTest extends TestWithMemoryMessageSink
     private static final Map<String, SpriteImageDirective> SPRITE_IMAGE_DIRECTIVES = ImmutableMap
         .of("vsprite", VERTICAL_SPRITE_IMAGE_DIRECTIVE, "hsprite",
             HORIZONTAL_SPRITE_IMAGE_DIRECTIVE, "vlsprite",
-            VERTICAL_SPRITE_IMAGE_DIRECTIVE_WITH_LAYOUT);
+            VERTICAL_SPRITE_IMAGE_DIRECTIVE_WITH_LAYOUT, "psprite",
+            PACKED_SPRITE_IMAGE_DIRECTIVE);
 
     @Test
     public void testEmpty()
@@ -168,6 +173,25 @@ public class SpriteReferenceDirectiveTest extends TestWithMemoryMessageSink
             Message.MessageType.ONLY_TOP_OR_BOTTOM_ALIGNMENT_ALLOWED);
     }
 
+    @Test
+    public void testMismatchedPackedAlignment()
+    {
+        checkMismatchedAlignment("psprite", "right", SpriteAlignment.LEFT,
+            Message.MessageType.ONLY_REPEAT_ALIGNMENT_ALLOWED);
+    }
+
+    @Test
+    public void testPackedLeftAlignment()
+    {
+        final SpriteReferenceDirective directive = SpriteReferenceDirective.parse(
+            "sprite-ref: psprite; sprite-alignment: left", SPRITE_IMAGE_DIRECTIVES,
+            messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteAlignment.LEFT, directive.spriteLayoutProperties.alignment);
+        assertThat(messages).isEmpty();
+    }
+
     private void checkMismatchedAlignment(String sprite, final String alignment,
         SpriteAlignment correctedAlignment, MessageType message)
     {
@@ -0,0 +1,54 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.carrot2.labs.test.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.carrot2.labs.smartsprites.message.Message;
+import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.resource.InMemoryResourceHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UsageProfile}.
+ */
+public class UsageProfileTest extends TestWithMemoryMessageSink
+{
+    private InMemoryResourceHandler resourceHandler;
+
+    @Before
+    public void setUpResourceHandler()
+    {
+        resourceHandler = new InMemoryResourceHandler("/root", "UTF-8", messageLog);
+    }
+
+    @Test
+    public void testRoutesByImage()
+    {
+        resourceHandler.putResource("profiles/usage.properties",
+            "/home = ../img/a.png, /img/b.png\n" + "/search = ../img/b.png,,\n");
+
+        final UsageProfile profile = UsageProfile.load("profiles/usage.properties",
+            resourceHandler, messageLog);
+
+        assertThat(profile.getRoutes()).containsExactly("/home", "/search");
+        assertThat(profile.getRoutes("img/a.png")).containsExactly("/home");
+        assertThat(profile.getRoutes("img/b.png")).containsExactly("/search");
+        assertThat(profile.getRoutes("/root/img/b.png")).containsExactly("/home");
+        assertThat(profile.getRoutes("img/c.png")).isEmpty();
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testMissingProfile()
+    {
+        final UsageProfile profile = UsageProfile.load("missing.properties",
+            resourceHandler, messageLog);
+
+        assertThat(profile.getRoutes()).isEmpty();
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.WARN, MessageType.CANNOT_READ_USAGE_PROFILE, null, 0,
+                "missing.properties", "missing.properties"));
+    }
+}
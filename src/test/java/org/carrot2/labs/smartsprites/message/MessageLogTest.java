@@ -0,0 +1,131 @@
+package org.carrot2.labs.smartsprites.message;
+
+import static org.carrot2.labs.test.Assertions.assertThat;
+
+import java.util.List;
+
+import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link MessageLog}.
+ */
+public class MessageLogTest
+{
+    private MessageLog messageLog;
+    private List<Message> messages;
+
+    @Before
+    public void setUpMessageLog()
+    {
+        final MemoryMessageSink sink = new MemoryMessageSink();
+        messageLog = new MessageLog(sink);
+        messages = sink.messages;
+    }
+
+    @Test
+    public void testCssFileAndLineAreThreadLocal() throws InterruptedException
+    {
+        messageLog.setCssFile("main.css");
+        messageLog.setLine(3);
+
+        final Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                messageLog.setCssFile("other.css");
+                messageLog.setLine(7);
+                messageLog.info(MessageType.GENERIC, "other");
+            }
+        };
+        thread.start();
+        thread.join();
+
+        messageLog.info(MessageType.GENERIC, "main");
+
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.INFO, MessageType.GENERIC, "other.css", 7, "other"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, "main.css", 3, "main"));
+    }
+
+    @Test
+    public void testTaskMessagesAreDeliveredOnCommit() throws InterruptedException
+    {
+        final MessageLog.Task [] tasks = new MessageLog.Task [2];
+        final Thread [] threads = new Thread [tasks.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    tasks[index] = messageLog.beginTask();
+                    messageLog.setCssFile("task" + index + ".css");
+                    messageLog.warning(MessageType.GENERIC, "task" + index);
+                    tasks[index].end();
+                }
+            };
+        }
+
+        // Run the tasks in the reverse order
+        threads[1].start();
+        threads[1].join();
+        threads[0].start();
+        threads[0].join();
+        assertThat(messages).isEmpty();
+
+        tasks[0].commit();
+        tasks[1].commit();
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.WARN, MessageType.GENERIC, "task0.css", 0, "task0"),
+            new Message(MessageLevel.WARN, MessageType.GENERIC, "task1.css", 0, "task1"));
+    }
+
+    @Test
+    public void testEndingTaskRestoresContext()
+    {
+        messageLog.setCssFile("main.css");
+        messageLog.setLine(5);
+
+        final MessageLog.Task task = messageLog.beginTask();
+        messageLog.info(MessageType.GENERIC, "in task");
+        messageLog.setCssFile("task.css");
+        messageLog.setLine(8);
+        messageLog.info(MessageType.GENERIC, "in task, other file");
+        task.end();
+        messageLog.info(MessageType.GENERIC, "after task");
+        task.commit();
+
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.INFO, MessageType.GENERIC, "main.css", 5,
+                "after task"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, "main.css", 5, "in task"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, "task.css", 8,
+                "in task, other file"));
+    }
+
+    @Test
+    public void testCommittingRunningTask()
+    {
+        final MessageLog.Task task = messageLog.beginTask();
+        messageLog.info(MessageType.GENERIC, "first");
+        messageLog.info(MessageType.GENERIC, "second");
+        task.commit();
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.INFO, MessageType.GENERIC, null, 0, "first"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, null, 0, "second"));
+
+        messageLog.info(MessageType.GENERIC, "third");
+        task.end();
+        task.commit();
+        assertThat(messages).isEquivalentTo(
+            new Message(MessageLevel.INFO, MessageType.GENERIC, null, 0, "first"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, null, 0, "second"),
+            new Message(MessageLevel.INFO, MessageType.GENERIC, null, 0, "third"));
+    }
+}
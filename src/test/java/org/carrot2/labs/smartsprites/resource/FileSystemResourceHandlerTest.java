@@ -0,0 +1,118 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.carrot2.labs.smartsprites.TestWithMemoryMessageSink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link FileSystemResourceHandler}.
+ */
+public class FileSystemResourceHandlerTest extends TestWithMemoryMessageSink
+{
+    private File dir;
+    private FileSystemResourceHandler resourceHandler;
+
+    @Before
+    public void setUpResourceHandler() throws IOException
+    {
+        dir = File.createTempFile("smartsprites", "");
+        FileUtils.deleteQuietly(dir);
+        assertThat(dir.mkdirs()).isTrue();
+        resourceHandler = new FileSystemResourceHandler(null, "ISO-8859-2", messageLog);
+    }
+
+    @After
+    public void cleanUp()
+    {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testByteBufferMatchesStream() throws IOException
+    {
+        final String path = new File("test/simple-horizontal-sprite/img/logo.png")
+            .getPath();
+        final ByteBuffer buffer = resourceHandler.getResourceAsByteBuffer(path);
+
+        final InputStream is = resourceHandler.getResourceAsInputStream(path);
+        try
+        {
+            final byte [] expected = IOUtils.toByteArray(is);
+            assertThat(buffer.position()).isEqualTo(0);
+            assertThat(buffer.remaining()).isEqualTo(expected.length);
+            final byte [] actual = new byte [buffer.remaining()];
+            buffer.get(actual);
+            assertThat(actual).isEqualTo(expected);
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testCharBufferDecodedWithCharset() throws IOException
+    {
+        final File css = new File(dir, "style.css");
+        final String content = "/* żółw */";
+        FileUtils.writeStringToFile(css, content, "ISO-8859-2");
+
+        assertThat(resourceHandler.getResourceAsCharBuffer(css.getPath()).toString())
+            .isEqualTo(content);
+    }
+
+    @Test
+    public void testMovedResourceReadable() throws IOException
+    {
+        final File source = new File(dir, "a.tmp");
+        final File target = new File(dir, "sub/b.css");
+        FileUtils.writeStringToFile(source, "a", "ISO-8859-2");
+
+        // Resolve the target path before its directory exists
+        resourceHandler.deleteResource(target.getPath());
+        resourceHandler.moveResource(source.getPath(), target.getPath());
+
+        assertThat(resourceHandler.getResourceAsCharBuffer(target.getPath()).toString())
+            .isEqualTo("a");
+        assertThat(source).doesNotExist();
+    }
+
+    @Test
+    public void testTemporaryResourcesUnique() throws IOException
+    {
+        final File sub = new File(dir, "sub");
+        final String path = new File(sub, ".png").getPath();
+        final File first = new File(resourceHandler.createTemporaryResource(path,
+            ".tmp"));
+        final File second = new File(resourceHandler.createTemporaryResource(path,
+            ".tmp"));
+
+        assertThat(first).exists().isNotEqualTo(second);
+        assertThat(second).exists();
+        assertThat(first.getParentFile()).isEqualTo(sub.getAbsoluteFile());
+        assertThat(first.getName()).endsWith(".tmp");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingResourceStream() throws IOException
+    {
+        resourceHandler.getResourceAsInputStream(new File(dir, "missing.css").getPath());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingResourceBuffer() throws IOException
+    {
+        resourceHandler.getResourceAsByteBuffer(new File(dir, "missing.css").getPath());
+    }
+}
@@ -0,0 +1,151 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import static org.carrot2.labs.test.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters;
+import org.carrot2.labs.smartsprites.SpriteBuilder;
+import org.carrot2.labs.smartsprites.TestWithMemoryMessageSink;
+import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link InMemoryResourceHandler}.
+ */
+public class InMemoryResourceHandlerTest extends TestWithMemoryMessageSink
+{
+    private InMemoryResourceHandler resourceHandler;
+
+    @Before
+    public void setUpResourceHandler()
+    {
+        resourceHandler = new InMemoryResourceHandler("/", "UTF-8", messageLog);
+    }
+
+    @Test
+    public void testBuildSprites() throws IOException
+    {
+        final File testDir = new File("test/simple-horizontal-sprite");
+        putResources(resourceHandler, testDir);
+
+        build("css/style.css");
+
+        assertThat(new String(resourceHandler.getResource("css/style-sprite.css"),
+            "UTF-8")).isEqualTo(
+            FileUtils.readFileToString(new File(testDir, "css/style-expected.css"),
+                "UTF-8"));
+        assertThat(resourceHandler.getWrittenResourcePaths()).containsExactly(
+            "css/style-sprite.css", "img/sprite.png");
+        final BufferedImage sprite = ImageIO.read(new ByteArrayInputStream(
+            resourceHandler.getResource("img/sprite.png")));
+        assertThat(sprite.getWidth()).isGreaterThan(0);
+        assertThat(new File(testDir, "css/style-sprite.css")).doesNotExist();
+        assertThat(new File(testDir, "img/sprite.png")).doesNotExist();
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+    }
+
+    @Test
+    public void testBuildSvgSprites() throws IOException
+    {
+        resourceHandler.putResource("css/icons.css", ".a {\n"
+            + "  background-image: url('../svg/a.svg');\n" + "}\n");
+        resourceHandler.putResource("svg/a.svg",
+            "<svg xmlns=\"http://www.w3.org/2000/svg\"><g><circle r=\"1\"/></g></svg>");
+
+        build("css/icons.css");
+
+        assertThat(resourceHandler.getWrittenResourcePaths()).containsExactly(
+            "/css/icons-sprite.svg", "css/icons-sprite.css");
+        assertThat(new String(resourceHandler.getResource("/css/icons-sprite.svg"),
+            "UTF-8")).contains("circle");
+        assertThat(new String(resourceHandler.getResource("css/icons-sprite.css"),
+            "UTF-8")).contains("url('/css/icons-sprite.svg#0')");
+    }
+
+    @Test
+    public void testPathsNormalized() throws IOException
+    {
+        resourceHandler.putResource("css/../img/a.png", new byte []
+        {
+            1
+        });
+
+        assertThat(resourceHandler.getResource("img\\a.png")).containsExactly(1);
+        assertThat(resourceHandler.getResourcePaths()).containsExactly("img/a.png");
+    }
+
+    @Test
+    public void testWrittenResourceVisibleWhenClosed() throws IOException
+    {
+        final OutputStream os = resourceHandler.getResourceAsOutputStream("a.tmp");
+        os.write(new byte []
+        {
+            1, 2
+        });
+        assertThat(resourceHandler.getResource("a.tmp")).isNull();
+        os.close();
+
+        resourceHandler.moveResource("a.tmp", "b.png");
+        assertThat(resourceHandler.getResource("a.tmp")).isNull();
+        assertThat(resourceHandler.getResource("b.png")).containsExactly(1, 2);
+        assertThat(resourceHandler.getWrittenResourcePaths()).containsExactly("b.png");
+
+        resourceHandler.deleteResource("b.png");
+        assertThat(resourceHandler.getResourcePaths()).isEmpty();
+    }
+
+    @Test
+    public void testTemporaryResourcesUnique() throws IOException
+    {
+        final String first = resourceHandler.createTemporaryResource("img/.png", ".tmp");
+        final String second = resourceHandler.createTemporaryResource("img/.png", ".tmp");
+
+        assertThat(first).isNotEqualTo(second).startsWith("img/").endsWith(".tmp");
+        assertThat(second).startsWith("img/").endsWith(".tmp");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingResource() throws IOException
+    {
+        resourceHandler.getResourceAsInputStream("missing.css");
+    }
+
+    private void build(String... cssFiles) throws IOException
+    {
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(null,
+            null, null, null, null, null, "/", MessageLevel.INFO,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        new SpriteBuilder(parameters, messageLog, resourceHandler).buildSprites(Arrays
+            .asList(cssFiles));
+    }
+
+    /**
+     * Puts all files of the directory into the handler, with paths relative to the
+     * directory.
+     */
+    static void putResources(InMemoryResourceHandler resourceHandler, File dir)
+        throws IOException
+    {
+        for (File file : FileUtils.listFiles(dir, null, true))
+        {
+            resourceHandler.putResource(
+                dir.toURI().relativize(file.toURI()).getPath(),
+                FileUtils.readFileToByteArray(file));
+        }
+    }
+}
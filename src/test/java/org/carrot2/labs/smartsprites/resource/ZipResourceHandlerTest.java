@@ -0,0 +1,77 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.carrot2.labs.smartsprites.SmartSpritesParameters;
+import org.carrot2.labs.smartsprites.SpriteBuilder;
+import org.carrot2.labs.smartsprites.TestWithMemoryMessageSink;
+import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Test cases for {@link ZipResourceHandler}.
+ */
+public class ZipResourceHandlerTest extends TestWithMemoryMessageSink
+{
+    @Test
+    public void testBuildSpritesFromArchive() throws IOException
+    {
+        final InMemoryResourceHandler source = new InMemoryResourceHandler(null,
+            "UTF-8", messageLog);
+        InMemoryResourceHandlerTest.putResources(source,
+            new File("test/simple-horizontal-sprite"));
+        final ZipResourceHandler sourceArchive = new ZipResourceHandler(
+            new ByteArrayInputStream(new byte [0]), null, "UTF-8", messageLog);
+        for (String path : source.getResourcePaths())
+        {
+            sourceArchive.putResource(path, source.getResource(path));
+        }
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        sourceArchive.writeArchive(archive);
+
+        final ZipResourceHandler resourceHandler = new ZipResourceHandler(
+            new ByteArrayInputStream(archive.toByteArray()), null, "UTF-8", messageLog);
+        assertThat(resourceHandler.getResourcePaths()).isEqualTo(
+            source.getResourcePaths());
+
+        new SpriteBuilder(new SmartSpritesParameters(null, null, null, null, null, null,
+            null, MessageLevel.INFO, SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING), messageLog,
+            resourceHandler).buildSprites(Arrays.asList("css/style.css"));
+
+        final ByteArrayOutputStream outputs = new ByteArrayOutputStream();
+        resourceHandler.writeOutputArchive(outputs);
+        assertThat(entries(outputs.toByteArray())).containsExactly(
+            "css/style-sprite.css", "img/sprite.png");
+
+        final ByteArrayOutputStream updated = new ByteArrayOutputStream();
+        resourceHandler.writeArchive(updated);
+        assertThat(entries(updated.toByteArray())).contains("css/style.css",
+            "css/style-sprite.css", "img/web.gif", "img/sprite.png");
+    }
+
+    private static List<String> entries(byte [] archive) throws IOException
+    {
+        final List<String> result = Lists.newArrayList();
+        final ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            result.add(entry.getName());
+        }
+        return result;
+    }
+}
@@ -5,7 +5,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 
 import java.awt.Color;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -90,4 +93,123 @@ public class BufferedImageUtilsTest extends BufferedImageTestBase
             BufferedImageUtils
                 .countDistictColors(image("many-colors.png")));
     }
+
+    @Test
+    public void testGetArgbMatchesGetRgb() throws IOException
+    {
+        for (BufferedImage image : Arrays.asList(random(BufferedImage.TYPE_INT_ARGB),
+            random(BufferedImage.TYPE_4BYTE_ABGR), random(BufferedImage.TYPE_INT_RGB),
+            ColorQuantizer.quantize(random(BufferedImage.TYPE_4BYTE_ABGR)),
+            random(BufferedImage.TYPE_4BYTE_ABGR).getSubimage(3, 5, 20, 10),
+            image("many-colors.png")))
+        {
+            final int width = image.getWidth() - 2;
+            final int height = image.getHeight() - 3;
+            final int [] expected = image.getRGB(1, 2, width, height, null, 0, width);
+            final int [] actual = BufferedImageUtils.getArgb(image, 1, 2, width, height,
+                null, 0);
+            assertTrue("Type: " + image.getType(), Arrays.equals(expected, actual));
+        }
+    }
+
+    @Test
+    public void testSetArgbMatchesSetRgb()
+    {
+        for (int type : new int []
+        {
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_INT_RGB
+        })
+        {
+            final int [] argb = pixels(new Random(type), 10 * 7);
+            final BufferedImage expected = new BufferedImage(20, 15, type);
+            final BufferedImage actual = new BufferedImage(20, 15, type);
+            expected.setRGB(4, 3, 10, 7, argb, 0, 10);
+            BufferedImageUtils.setArgb(actual, 4, 3, 10, 7, argb, 0);
+
+            assertTrue("Type: " + type, Arrays.equals(
+                expected.getRGB(0, 0, 20, 15, null, 0, 20),
+                actual.getRGB(0, 0, 20, 15, null, 0, 20)));
+        }
+    }
+
+    @Test
+    public void testDrawImageMixedTypes()
+    {
+        final BufferedImage image = random(BufferedImage.TYPE_INT_ARGB);
+        for (int type : new int []
+        {
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR
+        })
+        {
+            final BufferedImage canvas = new BufferedImage(40, 30, type);
+            BufferedImageUtils.drawImage(image, canvas, 7, 5);
+
+            assertTrue("Type: " + type, Arrays.equals(
+                image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                    image.getWidth()),
+                canvas.getRGB(7, 5, image.getWidth(), image.getHeight(), null, 0,
+                    image.getWidth())));
+            assertEquals(0, canvas.getRGB(6, 5));
+        }
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testDrawImageOutOfBounds()
+    {
+        BufferedImageUtils.drawImage(random(BufferedImage.TYPE_4BYTE_ABGR),
+            new BufferedImage(30, 20, BufferedImage.TYPE_4BYTE_ABGR), 5, 0);
+    }
+
+    @Test
+    public void testMatteParallelismDoesNotChangeResults()
+    {
+        final BufferedImage image = new BufferedImage(53, 71,
+            BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 53, 71, pixels(new Random(0x4321), 53 * 71), 0, 53);
+
+        final BufferedImage serial = BufferedImageUtils.matte(image, Color.ORANGE, 1);
+        final BufferedImage parallel = BufferedImageUtils.matte(image, Color.ORANGE, 4);
+        assertTrue(Arrays.equals(
+            BufferedImageUtils.getArgb(serial, 0, 0, 53, 71, null, 0),
+            BufferedImageUtils.getArgb(parallel, 0, 0, 53, 71, null, 0)));
+    }
+
+    @Test
+    public void testResample()
+    {
+        final BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+        final int [] red = new int [64 * 48];
+        Arrays.fill(red, 0xffff0000);
+        image.setRGB(0, 0, 64, 48, red, 0, 64);
+
+        final BufferedImage shrunk = BufferedImageUtils.resample(image, 7, 5);
+        assertEquals(7, shrunk.getWidth());
+        assertEquals(5, shrunk.getHeight());
+        assertEquals(0xffff0000, shrunk.getRGB(3, 2));
+
+        final BufferedImage enlarged = BufferedImageUtils.resample(image, 128, 96);
+        assertEquals(128, enlarged.getWidth());
+        assertEquals(96, enlarged.getHeight());
+        assertEquals(0xffff0000, enlarged.getRGB(64, 48));
+    }
+
+    private static BufferedImage random(int type)
+    {
+        final BufferedImage image = new BufferedImage(30, 20, type);
+        image.setRGB(0, 0, 30, 20, pixels(new Random(type), 30 * 20), 0, 30);
+        return image;
+    }
+
+    private static int [] pixels(Random random, int count)
+    {
+        final int [] argb = new int [count];
+        for (int i = 0; i < count; i++)
+        {
+            // Fully transparent, opaque and translucent pixels
+            final int alpha = (i % 3 == 0) ? 0 : (i % 3 == 1 ? 0xff : random.nextInt(256));
+            argb[i] = alpha << 24 | random.nextInt(0x1000000);
+        }
+        return argb;
+    }
 }
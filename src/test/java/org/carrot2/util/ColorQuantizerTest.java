@@ -96,6 +96,33 @@ public class ColorQuantizerTest extends BufferedImageTestBase
         checkDataLoss("one-color.png", true);
     }
 
+    @Test
+    public void testColorReductionInfoStopsAtColorLimit() throws IOException
+    {
+        final ColorQuantizer.ColorReductionInfo info = ColorQuantizer
+            .getColorReductionInfo(image("many-colors.png"));
+        assertEquals(false, info.hasPartialTransparency);
+        assertEquals(ColorQuantizer.MAX_INDEXED_COLORS + 1, info.distictColors);
+    }
+
+    @Test
+    public void testColorReductionInfoExactCount() throws IOException
+    {
+        final BufferedImage image = image("exact-colors.png");
+        final ColorQuantizer.ColorReductionInfo info = ColorQuantizer
+            .getColorReductionInfo(image);
+        assertEquals(BufferedImageUtils.countDistictColors(image), info.distictColors);
+    }
+
+    @Test
+    public void testColorReductionInfoPartialTransparency() throws IOException
+    {
+        assertEquals(true, ColorQuantizer.getColorReductionInfo(
+            image("full-alpha.png")).hasPartialTransparency);
+        assertEquals(false, ColorQuantizer.getColorReductionInfo(
+            image("bit-alpha.png")).hasPartialTransparency);
+    }
+
     private void checkDataLoss(String path, boolean expectedCanReduce) throws IOException
     {
         assertEquals(expectedCanReduce,
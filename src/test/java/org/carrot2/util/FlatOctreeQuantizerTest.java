@@ -0,0 +1,114 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import amd.Quantize;
+
+/**
+ * Test cases for {@link FlatOctreeQuantizer}.
+ */
+public class FlatOctreeQuantizerTest extends BufferedImageTestBase
+{
+    @Test
+    public void testSameResultsAsQuantize() throws IOException
+    {
+        final FlatOctreeQuantizer quantizer = new FlatOctreeQuantizer();
+        for (String fileName : new String []
+        {
+            "many-colors.png", "full-alpha.png", "no-alpha.png", "one-color.png"
+        })
+        {
+            for (int maxColors : new int []
+            {
+                255, 16, 2
+            })
+            {
+                checkSameResults(quantizer, image(fileName), maxColors);
+            }
+        }
+    }
+
+    @Test
+    public void testSameResultsAsQuantizeRandomPixels()
+    {
+        // Reuses node storage expanded for the larger image for the smaller one
+        final FlatOctreeQuantizer quantizer = new FlatOctreeQuantizer();
+        checkSameResults(quantizer, random(200, 150, 0x1234), 255);
+        checkSameResults(quantizer, random(17, 9, 0x5678), 255);
+        checkSameResults(quantizer, random(64, 64, 0x9abc), 64);
+    }
+
+    @Test
+    public void testQuantizeImage() throws IOException
+    {
+        final BufferedImage image = image("full-alpha.png");
+        final BufferedImage expected = ColorQuantizer.quantize(image, Color.WHITE);
+        final BufferedImage actual = ColorQuantizer.quantize(image, Color.WHITE,
+            ColorQuantizer.MAX_INDEXED_COLORS, new FlatOctreeQuantizer());
+
+        org.carrot2.labs.test.Assertions.assertThat(actual).isIndexedColor();
+        assertThat(
+            actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0,
+                actual.getWidth())).isEqualTo(
+            expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0,
+                expected.getWidth()));
+    }
+
+    @Test
+    public void testPool()
+    {
+        final FlatOctreeQuantizer.Pool pool = new FlatOctreeQuantizer.Pool();
+        final FlatOctreeQuantizer quantizer = pool.borrow();
+        assertThat(pool.borrow()).isNotSameAs(quantizer);
+
+        pool.release(quantizer);
+        assertThat(pool.borrow()).isSameAs(quantizer);
+    }
+
+    private static void checkSameResults(FlatOctreeQuantizer quantizer,
+        BufferedImage image, int maxColors)
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        final int [][] bitmap = BufferedImageUtils.getRgb(image);
+        final int [] expectedColors = Quantize.quantizeImage(bitmap, maxColors);
+
+        final int [] pixels = quantizer.getPixelBuffer(width * height);
+        BufferedImageUtils.getArgb(image, 0, 0, width, height, pixels, 0);
+        final int [] colors = quantizer.quantize(pixels, width * height, maxColors);
+
+        assertThat(colors).isEqualTo(expectedColors);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                assertThat(pixels[y * width + x]).isEqualTo(bitmap[x][y]);
+            }
+        }
+    }
+
+    private static BufferedImage random(int width, int height, long seed)
+    {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                // Clusters of similar colors plus some noise
+                final int base = (x / 16) * 0x203040 + (y / 16) * 0x401020;
+                image.setRGB(x, y, 0xff000000 | (base + random.nextInt(0x080808)));
+            }
+        }
+        return image;
+    }
+}
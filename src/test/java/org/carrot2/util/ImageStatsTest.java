@@ -0,0 +1,80 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ImageStats}.
+ */
+public class ImageStatsTest extends BufferedImageTestBase
+{
+    @Test
+    public void testMatchesBufferedImageUtils() throws IOException
+    {
+        for (String fileName : new String []
+        {
+            "bit-alpha.png", "exact-colors.png", "full-alpha.png", "no-alpha.png",
+            "one-color.png"
+        })
+        {
+            final BufferedImage image = image(fileName);
+            final ImageStats stats = ImageStats.compute(image,
+                ColorQuantizer.MAX_INDEXED_COLORS);
+
+            assertThat(stats.hasTransparency()).as(fileName).isEqualTo(
+                BufferedImageUtils.hasTransparency(image));
+            assertThat(stats.hasPartialTransparency()).as(fileName).isEqualTo(
+                BufferedImageUtils.hasPartialTransparency(image));
+            assertThat(stats.isColorLimitExceeded()).as(fileName).isFalse();
+            assertThat(stats.getDistinctColors(0)).as(fileName).containsOnly(
+                BufferedImageUtils.getDistictColors(image));
+            assertThat(stats.getDistinctColorCount()).as(fileName).isEqualTo(
+                BufferedImageUtils.countDistictColors(image));
+        }
+    }
+
+    @Test
+    public void testColorLimitExceeded() throws IOException
+    {
+        final ImageStats stats = ImageStats.compute(image("many-colors.png"), 255);
+        assertThat(stats.isColorLimitExceeded()).isTrue();
+        assertThat(stats.getDistinctColorCount()).isEqualTo(256);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testColorsUnknownAfterLimitExceeded() throws IOException
+    {
+        ImageStats.compute(image("many-colors.png"), 255).getDistinctColors(0);
+    }
+
+    @Test
+    public void testBounds()
+    {
+        final BufferedImage image = new BufferedImage(20, 10,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(3, 7, 0x80ff0000);
+        image.setRGB(12, 2, 0xff00ff00);
+
+        final ImageStats stats = ImageStats.compute(image, 255);
+        assertThat(stats.getBounds()).isEqualTo(new Rectangle(3, 2, 10, 6));
+        assertThat(stats.hasTransparency()).isTrue();
+        assertThat(stats.hasPartialTransparency()).isTrue();
+        assertThat(stats.getDistinctColors(0)).containsOnly(0xff0000, 0x00ff00);
+    }
+
+    @Test
+    public void testFullyTransparent()
+    {
+        final ImageStats stats = ImageStats.compute(new BufferedImage(5, 5,
+            BufferedImage.TYPE_4BYTE_ABGR), 255);
+        assertThat(stats.getBounds()).isNull();
+        assertThat(stats.hasTransparency()).isTrue();
+        assertThat(stats.hasPartialTransparency()).isFalse();
+        assertThat(stats.getDistinctColorCount()).isEqualTo(0);
+    }
+}
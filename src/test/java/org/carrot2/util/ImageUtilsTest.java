@@ -0,0 +1,124 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ImageUtils}.
+ */
+public class ImageUtilsTest
+{
+    @Test
+    public void testPngSize() throws IOException
+    {
+        assertThat(readSize(encode("png", BufferedImage.TYPE_4BYTE_ABGR))).isEqualTo(
+            new Dimension(17, 23));
+    }
+
+    @Test
+    public void testGifSize() throws IOException
+    {
+        assertThat(readSize(encode("gif", BufferedImage.TYPE_BYTE_INDEXED))).isEqualTo(
+            new Dimension(17, 23));
+    }
+
+    @Test
+    public void testJpegSize() throws IOException
+    {
+        assertThat(readSize(encode("jpg", BufferedImage.TYPE_3BYTE_BGR))).isEqualTo(
+            new Dimension(17, 23));
+    }
+
+    @Test
+    public void testOtherFormatSize() throws IOException
+    {
+        assertThat(readSize(encode("bmp", BufferedImage.TYPE_3BYTE_BGR))).isEqualTo(
+            new Dimension(17, 23));
+    }
+
+    @Test
+    public void testUnsupportedFormat() throws IOException
+    {
+        assertThat(readSize("not an image".getBytes("UTF-8"))).isNull();
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedPng() throws IOException
+    {
+        final byte [] png = encode("png", BufferedImage.TYPE_4BYTE_ABGR);
+        final byte [] truncated = new byte [12];
+        System.arraycopy(png, 0, truncated, 0, truncated.length);
+        readSize(truncated);
+    }
+
+    @Test
+    public void testSizesMatchDecodedImages() throws IOException
+    {
+        final Collection<File> files = FileUtils.listFiles(new File("test"), new String []
+        {
+            "png", "gif", "jpg"
+        }, true);
+        assertThat(files).isNotEmpty();
+
+        for (File file : files)
+        {
+            final BufferedImage image = ImageIO.read(file);
+            if (image == null)
+            {
+                continue;
+            }
+
+            final InputStream is = new FileInputStream(file);
+            try
+            {
+                assertThat(ImageUtils.readSize(is)).as(file.getPath()).isEqualTo(
+                    new Dimension(image.getWidth(), image.getHeight()));
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReadFromByteBuffer() throws IOException
+    {
+        final byte [] png = encode("png", BufferedImage.TYPE_4BYTE_ABGR);
+        final ByteBuffer buffer = ByteBuffer.wrap(png);
+        final BufferedImage image = ImageUtils.read(buffer);
+        assertThat(image.getWidth()).isEqualTo(17);
+        assertThat(image.getHeight()).isEqualTo(23);
+        assertThat(buffer.position()).isEqualTo(0);
+
+        assertThat(ImageUtils.read(ByteBuffer.wrap("not an image".getBytes("UTF-8"))))
+            .isNull();
+    }
+
+    private static Dimension readSize(byte [] bytes) throws IOException
+    {
+        return ImageUtils.readSize(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte [] encode(String format, int type) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(ImageIO.write(new BufferedImage(17, 23, type), format, out)).isTrue();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,95 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+/**
+ * Test cases for {@link IntHashSet}.
+ */
+public class IntHashSetTest
+{
+    @Test
+    public void testAddContains()
+    {
+        final IntHashSet set = new IntHashSet();
+        assertThat(set.add(5)).isTrue();
+        assertThat(set.add(5)).isFalse();
+        assertThat(set.add(-1)).isTrue();
+
+        assertThat(set.contains(5)).isTrue();
+        assertThat(set.contains(-1)).isTrue();
+        assertThat(set.contains(6)).isFalse();
+        assertThat(set.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testZero()
+    {
+        final IntHashSet set = new IntHashSet();
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.add(0)).isTrue();
+        assertThat(set.add(0)).isFalse();
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.size()).isEqualTo(1);
+        assertThat(set.toArray(null, 0)).containsOnly(0);
+    }
+
+    @Test
+    public void testToArrayWithOffset()
+    {
+        final IntHashSet set = new IntHashSet();
+        set.add(3);
+        set.add(0);
+        set.add(0xffffff);
+
+        final int [] array = set.toArray(null, 2);
+        assertThat(array).hasSize(5);
+        assertThat(array[0]).isEqualTo(0);
+        assertThat(array[1]).isEqualTo(0);
+        assertThat(Arrays.copyOfRange(array, 2, 5)).containsOnly(0, 3, 0xffffff);
+    }
+
+    @Test
+    public void testExpandMatchesHashSet()
+    {
+        final Random random = new Random(0x1234);
+        final IntHashSet set = new IntHashSet(2);
+        final Set<Integer> expected = Sets.newHashSet();
+        for (int i = 0; i < 50000; i++)
+        {
+            // Plenty of repetitions and sequential colors
+            final int value = random.nextBoolean() ? random.nextInt(1000) : random
+                .nextInt();
+            assertThat(set.add(value)).isEqualTo(expected.add(value));
+        }
+
+        assertThat(set.size()).isEqualTo(expected.size());
+        assertThat(Sets.newHashSet(Ints.asList(set.toArray(null, 0)))).isEqualTo(
+            expected);
+        for (int i = -1000; i < 2000; i++)
+        {
+            assertThat(set.contains(i)).isEqualTo(expected.contains(i));
+        }
+    }
+
+    @Test
+    public void testClear()
+    {
+        final IntHashSet set = new IntHashSet();
+        set.add(0);
+        set.add(7);
+        set.clear();
+
+        assertThat(set.size()).isEqualTo(0);
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.contains(7)).isFalse();
+    }
+}
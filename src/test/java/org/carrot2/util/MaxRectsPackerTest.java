@@ -0,0 +1,123 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Test cases for {@link MaxRectsPacker}.
+ */
+public class MaxRectsPackerTest
+{
+    @Test
+    public void testEmpty()
+    {
+        final MaxRectsPacker.Packing packing = MaxRectsPacker.pack(Lists
+            .<Dimension> newArrayList());
+
+        assertThat(packing.width).isEqualTo(0);
+        assertThat(packing.height).isEqualTo(0);
+        assertThat(packing.positions).isEmpty();
+    }
+
+    @Test
+    public void testSquares()
+    {
+        final List<Dimension> sizes = Lists.newArrayList();
+        for (int i = 0; i < 4; i++)
+        {
+            sizes.add(new Dimension(16, 16));
+        }
+
+        final MaxRectsPacker.Packing packing = MaxRectsPacker.pack(sizes);
+
+        assertThat(packing.width).isEqualTo(32);
+        assertThat(packing.height).isEqualTo(32);
+        checkPacking(sizes, packing);
+    }
+
+    @Test
+    public void testRandomSizes()
+    {
+        final Random random = new Random(0x5eed);
+        for (int round = 0; round < 20; round++)
+        {
+            final List<Dimension> sizes = Lists.newArrayList();
+            long area = 0;
+            final int count = 1 + random.nextInt(40);
+            for (int i = 0; i < count; i++)
+            {
+                final Dimension size = new Dimension(1 + random.nextInt(64),
+                    1 + random.nextInt(64));
+                sizes.add(size);
+                area += size.width * size.height;
+            }
+
+            final MaxRectsPacker.Packing packing = MaxRectsPacker.pack(sizes);
+
+            checkPacking(sizes, packing);
+            assertThat((long) packing.width * packing.height).isGreaterThanOrEqualTo(
+                area);
+        }
+    }
+
+    @Test
+    public void testDeterministic()
+    {
+        final List<Dimension> sizes = Lists.newArrayList(new Dimension(48, 47),
+            new Dimension(17, 17), new Dimension(15, 16), new Dimension(17, 17),
+            new Dimension(100, 2), new Dimension(2, 100));
+
+        final MaxRectsPacker.Packing first = MaxRectsPacker.pack(sizes);
+        final MaxRectsPacker.Packing second = MaxRectsPacker.pack(sizes);
+
+        assertThat(second.width).isEqualTo(first.width);
+        assertThat(second.height).isEqualTo(first.height);
+        assertThat(second.positions).isEqualTo(first.positions);
+    }
+
+    @Test
+    public void testEmptyRectangles()
+    {
+        final List<Dimension> sizes = Lists.newArrayList(new Dimension(0, 10),
+            new Dimension(8, 8), new Dimension(0, 0));
+
+        final MaxRectsPacker.Packing packing = MaxRectsPacker.pack(sizes);
+
+        assertThat(packing.width).isEqualTo(8);
+        assertThat(packing.height).isEqualTo(8);
+        assertThat(packing.positions).hasSize(3);
+    }
+
+    /**
+     * Checks that all rectangles fit in the packing and do not overlap.
+     */
+    private static void checkPacking(List<Dimension> sizes, MaxRectsPacker.Packing packing)
+    {
+        assertThat(packing.positions).hasSize(sizes.size());
+        final List<Rectangle> placed = Lists.newArrayList();
+        for (int i = 0; i < sizes.size(); i++)
+        {
+            final Point position = packing.positions.get(i);
+            final Rectangle rectangle = new Rectangle(position, sizes.get(i));
+            assertThat(rectangle.x).isGreaterThanOrEqualTo(0);
+            assertThat(rectangle.y).isGreaterThanOrEqualTo(0);
+            assertThat(rectangle.x + rectangle.width).isLessThanOrEqualTo(packing.width);
+            assertThat(rectangle.y + rectangle.height)
+                .isLessThanOrEqualTo(packing.height);
+            for (Rectangle other : placed)
+            {
+                assertThat(rectangle.intersects(other)).isFalse();
+            }
+            placed.add(rectangle);
+        }
+    }
+}
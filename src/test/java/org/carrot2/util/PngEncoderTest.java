@@ -0,0 +1,176 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.carrot2.util.PngEncoder.Filter;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link PngEncoder}.
+ */
+public class PngEncoderTest extends BufferedImageTestBase
+{
+    @Test
+    public void testDirectColorRoundTrip() throws IOException
+    {
+        for (String fileName : new String []
+        {
+            "full-alpha.png", "no-alpha.png", "many-colors.png"
+        })
+        {
+            final BufferedImage image = image(fileName);
+            for (Filter filter : Filter.values())
+            {
+                checkRoundTrip(fileName + ", " + filter, image, new PngEncoder(6,
+                    filter, 1));
+            }
+        }
+    }
+
+    @Test
+    public void testNoAlphaChannelForOpaqueImages() throws IOException
+    {
+        final BufferedImage image = random(40, 30, 0x1234, false);
+        final BufferedImage decoded = encodeDecode(image, new PngEncoder());
+        assertThat(decoded.getColorModel().hasAlpha()).isFalse();
+        assertThat(pixels(decoded)).isEqualTo(pixels(image));
+    }
+
+    @Test
+    public void testPaletteImages() throws IOException
+    {
+        final BufferedImage image = image("full-alpha.png");
+        for (int maxColors : new int []
+        {
+            1, 3, 15, 100, 255
+        })
+        {
+            final BufferedImage quantized = ColorQuantizer.quantize(image, Color.WHITE,
+                maxColors);
+            for (Filter filter : Filter.values())
+            {
+                final String description = maxColors + ", " + filter;
+                final BufferedImage decoded = checkRoundTrip(description, quantized,
+                    new PngEncoder(9, filter, 1));
+                assertThat(decoded.getColorModel()).as(description).isInstanceOf(
+                    IndexColorModel.class);
+                assertThat(decoded.getColorModel().getPixelSize()).as(description)
+                    .isLessThanOrEqualTo(
+                        quantized.getColorModel().getPixelSize());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException
+    {
+        final BufferedImage image = random(123, 517, 0x5678, true);
+        for (int parallelism : new int []
+        {
+            2, 3, 8
+        })
+        {
+            for (Filter filter : new Filter []
+            {
+                Filter.NONE, Filter.PAETH, Filter.ADAPTIVE
+            })
+            {
+                checkRoundTrip(parallelism + ", " + filter, image, new PngEncoder(1,
+                    filter, parallelism));
+            }
+        }
+    }
+
+    @Test
+    public void testAdler32Combine()
+    {
+        final byte [] data = new byte [100000];
+        new Random(0x9abc).nextBytes(data);
+
+        final Adler32 whole = new Adler32();
+        whole.update(data);
+        for (int split : new int []
+        {
+            0, 1, 65521, 70000, data.length
+        })
+        {
+            final Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            final Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            assertThat(
+                PngEncoder.adler32Combine(first.getValue(), second.getValue(),
+                    data.length - split)).as("" + split).isEqualTo(whole.getValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel()
+    {
+        new PngEncoder(0, Filter.NONE, 1);
+    }
+
+    private static BufferedImage checkRoundTrip(String description, BufferedImage image,
+        PngEncoder encoder) throws IOException
+    {
+        final BufferedImage decoded = encodeDecode(image, encoder);
+        assertThat(decoded.getWidth()).as(description).isEqualTo(image.getWidth());
+        assertThat(decoded.getHeight()).as(description).isEqualTo(image.getHeight());
+        assertThat(pixels(decoded)).as(description).isEqualTo(pixels(image));
+        return decoded;
+    }
+
+    private static BufferedImage encodeDecode(BufferedImage image, PngEncoder encoder)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(image, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * Returns ARGB pixels of the image with all fully transparent pixels the same.
+     */
+    private static int [] pixels(BufferedImage image)
+    {
+        final int [] pixels = BufferedImageUtils.getArgb(image, 0, 0, image.getWidth(),
+            image.getHeight(), null, 0);
+        for (int i = 0; i < pixels.length; i++)
+        {
+            if ((pixels[i] >>> 24) == 0)
+            {
+                pixels[i] = 0;
+            }
+        }
+        return pixels;
+    }
+
+    private static BufferedImage random(int width, int height, long seed, boolean alpha)
+    {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                // Smooth gradients with some noise, so that filters make a difference
+                final int rgb = ((x * 2) & 0xff) << 16 | ((y + x) & 0xff) << 8
+                    | random.nextInt(16);
+                image.setRGB(x, y, (alpha ? random.nextInt(256) : 0xff) << 24 | rgb);
+            }
+        }
+        return image;
+    }
+}
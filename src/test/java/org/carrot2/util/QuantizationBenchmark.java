@@ -0,0 +1,123 @@
+package org.carrot2.util;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compares the speed and the palette quality of the available
+ * {@link QuantizationEngine}s on the images from the <code>test/indexed-color</code> and
+ * <code>test/real-world-example</code> fixtures. Run from the project's root directory,
+ * optionally providing other directories with images as arguments. The quality is
+ * measured as the peak signal-to-noise ratio (PSNR) of the quantized image relative to
+ * the matted source image, the higher the better.
+ */
+public class QuantizationBenchmark
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    public static void main(String [] args) throws IOException
+    {
+        final String [] dirs = args.length > 0 ? args : new String []
+        {
+            "test/indexed-color", "test/real-world-example"
+        };
+
+        final String [] names = new String []
+        {
+            "octree", "flat-octree", "median-cut", "kmeans"
+        };
+        final QuantizationEngine [] engines = new QuantizationEngine []
+        {
+            new OctreeQuantizer(), new FlatOctreeQuantizer(), new MedianCutQuantizer(),
+            new KMeansQuantizer()
+        };
+
+        System.out.println(String.format(Locale.ENGLISH, "%-60s %-12s %10s %10s",
+            "image", "engine", "ms", "PSNR [dB]"));
+        for (String dir : dirs)
+        {
+            final Collection<File> files = FileUtils.listFiles(new File(dir),
+                new String []
+                {
+                    "png", "gif", "jpg"
+                }, true);
+            for (File file : files)
+            {
+                final BufferedImage image = ImageIO.read(file);
+                if (image == null)
+                {
+                    continue;
+                }
+
+                for (int i = 0; i < engines.length; i++)
+                {
+                    BufferedImage quantized = null;
+                    for (int round = 0; round < WARMUP_ROUNDS; round++)
+                    {
+                        quantized = ColorQuantizer.quantize(image, Color.WHITE,
+                            ColorQuantizer.MAX_INDEXED_COLORS, engines[i]);
+                    }
+
+                    final long start = System.nanoTime();
+                    for (int round = 0; round < ROUNDS; round++)
+                    {
+                        quantized = ColorQuantizer.quantize(image, Color.WHITE,
+                            ColorQuantizer.MAX_INDEXED_COLORS, engines[i]);
+                    }
+                    final double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+
+                    System.out.println(String.format(Locale.ENGLISH,
+                        "%-60s %-12s %10.3f %10.2f", file.getPath(), names[i], millis,
+                        psnr(BufferedImageUtils.matte(image, Color.WHITE), quantized)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of the RGB channels of the visible pixels of
+     * the two images, {@link Double#POSITIVE_INFINITY} for identical images.
+     */
+    static double psnr(BufferedImage expected, BufferedImage actual)
+    {
+        final int width = expected.getWidth();
+        final int height = expected.getHeight();
+        final int [] expectedPixels = BufferedImageUtils.getArgb(expected, 0, 0, width,
+            height, null, 0);
+        final int [] actualPixels = BufferedImageUtils.getArgb(actual, 0, 0, width,
+            height, null, 0);
+
+        double squaredError = 0;
+        long samples = 0;
+        for (int i = 0; i < expectedPixels.length; i++)
+        {
+            if ((actualPixels[i] & 0xff000000) == 0)
+            {
+                // Fully transparent pixels are not quantized
+                continue;
+            }
+            for (int shift = 0; shift <= 16; shift += 8)
+            {
+                final int difference = ((expectedPixels[i] >> shift) & 0xff)
+                    - ((actualPixels[i] >> shift) & 0xff);
+                squaredError += difference * difference;
+                samples++;
+            }
+        }
+
+        if (squaredError == 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10 * Math.log10(255.0 * 255.0 * samples / squaredError);
+    }
+}
@@ -0,0 +1,196 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link QuantizationEngine} implementations.
+ */
+public class QuantizationEngineTest extends BufferedImageTestBase
+{
+    private static final QuantizationEngine [] ENGINES = new QuantizationEngine []
+    {
+        new OctreeQuantizer(), new FlatOctreeQuantizer(), new MedianCutQuantizer(),
+        new KMeansQuantizer()
+    };
+
+    @Test
+    public void testPaletteSizeAndIndices() throws IOException
+    {
+        final BufferedImage image = image("many-colors.png");
+        for (QuantizationEngine engine : ENGINES)
+        {
+            for (int maxColors : new int []
+            {
+                255, 16, 2
+            })
+            {
+                final int width = image.getWidth();
+                final int height = image.getHeight();
+                final int [] pixels = BufferedImageUtils.getArgb(image, 0, 0, width,
+                    height, null, 0);
+                final int [] palette = engine.quantize(pixels, width, height,
+                    maxColors, 1);
+
+                final String description = engine.getClass().getSimpleName() + ", "
+                    + maxColors;
+                assertThat(palette.length).as(description).isBetween(1, maxColors);
+                for (int pixel : pixels)
+                {
+                    assertThat(pixel).as(description).isBetween(0, palette.length - 1);
+                }
+                for (int color : palette)
+                {
+                    assertThat(color >>> 24).as(description).isEqualTo(0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExactColorsPreserved() throws IOException
+    {
+        for (String fileName : new String []
+        {
+            "no-alpha.png", "bit-alpha.png", "one-color.png"
+        })
+        {
+            final BufferedImage image = image(fileName);
+            for (QuantizationEngine engine : new QuantizationEngine []
+            {
+                new MedianCutQuantizer(), new KMeansQuantizer()
+            })
+            {
+                final BufferedImage quantized = ColorQuantizer.quantize(image,
+                    Color.WHITE, ColorQuantizer.MAX_INDEXED_COLORS, engine);
+                assertThat(
+                    QuantizationBenchmark.psnr(
+                        BufferedImageUtils.matte(image, Color.WHITE), quantized)).as(
+                    fileName + ", " + engine.getClass().getSimpleName()).isEqualTo(
+                    Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    @Test
+    public void testKMeansNotWorseThanMedianCut() throws IOException
+    {
+        for (String fileName : new String []
+        {
+            "many-colors.png", "full-alpha.png"
+        })
+        {
+            final BufferedImage image = image(fileName);
+            for (int maxColors : new int []
+            {
+                255, 16
+            })
+            {
+                final BufferedImage matted = BufferedImageUtils.matte(image, Color.WHITE);
+                final double medianCut = QuantizationBenchmark.psnr(matted, ColorQuantizer
+                    .quantize(image, Color.WHITE, maxColors, new MedianCutQuantizer()));
+                final double kMeans = QuantizationBenchmark.psnr(matted, ColorQuantizer
+                    .quantize(image, Color.WHITE, maxColors, new KMeansQuantizer()));
+
+                assertThat(kMeans).as(fileName + ", " + maxColors).isGreaterThanOrEqualTo(
+                    medianCut - 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void testOctreeSameAsDefault() throws IOException
+    {
+        final BufferedImage image = image("full-alpha.png");
+        final BufferedImage expected = ColorQuantizer.quantize(image, Color.WHITE);
+        final BufferedImage actual = ColorQuantizer.quantize(image, Color.WHITE,
+            ColorQuantizer.MAX_INDEXED_COLORS, new OctreeQuantizer());
+
+        assertThat(QuantizationBenchmark.psnr(expected, actual)).isEqualTo(
+            Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void testParallelismDoesNotChangeResults() throws IOException
+    {
+        for (BufferedImage image : new BufferedImage []
+        {
+            image("full-alpha.png"), random(97, 83, 0x1234, true)
+        })
+        {
+            for (QuantizationEngine engine : ENGINES)
+            {
+                final String description = engine.getClass().getSimpleName();
+                final BufferedImage serial = ColorQuantizer.quantize(image,
+                    Color.WHITE, 64, engine, 1);
+                for (int parallelism : new int []
+                {
+                    2, 3, 8
+                })
+                {
+                    assertSameIndexedImage(description, serial, ColorQuantizer.quantize(
+                        image, Color.WHITE, 64, engine, parallelism));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelismDoesNotChangeReduction()
+    {
+        final BufferedImage image = random(101, 67, 0x5678, false);
+        final ImageStats stats = ImageStats.compute(image,
+            ColorQuantizer.MAX_INDEXED_COLORS);
+        final BufferedImage serial = ColorQuantizer.reduce(image, stats, 1);
+        assertSameIndexedImage("reduce", serial, ColorQuantizer.reduce(image, stats, 4));
+    }
+
+    private static void assertSameIndexedImage(String description,
+        BufferedImage expected, BufferedImage actual)
+    {
+        final IndexColorModel expectedColors = (IndexColorModel) expected.getColorModel();
+        final IndexColorModel actualColors = (IndexColorModel) actual.getColorModel();
+        assertThat(actualColors.getMapSize()).as(description).isEqualTo(
+            expectedColors.getMapSize());
+        for (int i = 0; i < expectedColors.getMapSize(); i++)
+        {
+            assertThat(actualColors.getRGB(i)).as(description).isEqualTo(
+                expectedColors.getRGB(i));
+        }
+        assertThat(((DataBufferByte) actual.getRaster().getDataBuffer()).getData())
+            .as(description).isEqualTo(
+                ((DataBufferByte) expected.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * Returns a random image with transparent pixels and either translucent pixels and
+     * many colors or up to 200 opaque colors.
+     */
+    private static BufferedImage random(int width, int height, long seed,
+        boolean translucent)
+    {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int alpha = random.nextInt(5) == 0 ? 0
+                    : (translucent ? random.nextInt(256) : 0xff);
+                final int rgb = translucent ? random.nextInt(0x1000000) : random
+                    .nextInt(200) * 0x010203;
+                image.setRGB(x, y, alpha << 24 | rgb);
+            }
+        }
+        return image;
+    }
+}
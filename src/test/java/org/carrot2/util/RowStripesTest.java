@@ -0,0 +1,69 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link RowStripes}.
+ */
+public class RowStripesTest
+{
+    @Test
+    public void testAllRowsProcessedOnce()
+    {
+        for (int rows : new int []
+        {
+            0, 1, 15, 16, 17, 100, 1001
+        })
+        {
+            for (int parallelism : new int []
+            {
+                1, 2, 3, 7
+            })
+            {
+                final AtomicIntegerArray counts = new AtomicIntegerArray(rows);
+                RowStripes.run(rows, parallelism, new RowStripes.Task()
+                {
+                    public void run(int startRow, int endRow)
+                    {
+                        for (int row = startRow; row < endRow; row++)
+                        {
+                            counts.incrementAndGet(row);
+                        }
+                    }
+                });
+
+                for (int row = 0; row < rows; row++)
+                {
+                    assertThat(counts.get(row)).as(rows + ", " + parallelism).isEqualTo(1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNumberOfStripes()
+    {
+        assertThat(stripes(1000, 1)).isEqualTo(1);
+        assertThat(stripes(1000, 4)).isEqualTo(4);
+        assertThat(stripes(RowStripes.MIN_ROWS_PER_STRIPE * 2 - 1, 4)).isEqualTo(1);
+        assertThat(stripes(RowStripes.MIN_ROWS_PER_STRIPE * 3, 4)).isEqualTo(3);
+    }
+
+    private static int stripes(int rows, int parallelism)
+    {
+        final AtomicInteger stripes = new AtomicInteger();
+        RowStripes.run(rows, parallelism, new RowStripes.Task()
+        {
+            public void run(int startRow, int endRow)
+            {
+                stripes.incrementAndGet();
+            }
+        });
+        return stripes.get();
+    }
+}
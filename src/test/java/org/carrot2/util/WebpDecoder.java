@@ -0,0 +1,501 @@
+package org.carrot2.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A decoder of lossless WebP images for tests, as there is no WebP reader in Image I/O.
+ * It follows the WebP lossless bitstream specification, but supports only what
+ * {@link WebpEncoder} may write: no meta prefix codes, no color transform and only the
+ * first of the short distance codes.
+ */
+final class WebpDecoder
+{
+    private static final int [] CODE_LENGTH_CODE_ORDER = new int []
+    {
+        17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15
+    };
+
+    private static final int [][] SHORT_DISTANCES = new int [] []
+    {
+        {
+            0, 1
+        },
+        {
+            1, 0
+        },
+        {
+            1, 1
+        },
+        {
+            -1, 1
+        },
+        {
+            0, 2
+        },
+        {
+            2, 0
+        }
+    };
+
+    private final byte [] data;
+    private int position;
+    private long buffer;
+    private int bufferedBits;
+
+    private WebpDecoder(byte [] data, int offset)
+    {
+        this.data = data;
+        this.position = offset;
+    }
+
+    static BufferedImage decode(byte [] webp) throws IOException
+    {
+        check(new String(webp, 0, 4, "US-ASCII").equals("RIFF"), "RIFF");
+        check(readIntLittleEndian(webp, 4) == webp.length - 8, "RIFF size");
+        check(new String(webp, 8, 8, "US-ASCII").equals("WEBPVP8L"), "VP8L chunk");
+        final int size = readIntLittleEndian(webp, 16);
+        check(20 + size + (size & 1) == webp.length, "VP8L chunk size");
+
+        final WebpDecoder decoder = new WebpDecoder(Arrays.copyOf(webp, 20 + size), 20);
+        check(decoder.read(8) == 0x2f, "signature");
+        final int width = decoder.read(14) + 1;
+        final int height = decoder.read(14) + 1;
+        decoder.read(1); // alpha hint
+        check(decoder.read(3) == 0, "version");
+
+        final int [] argb = decoder.decodeImage(width, height);
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        return image;
+    }
+
+    private int [] decodeImage(int width, int height) throws IOException
+    {
+        int [] predictorModes = null;
+        int predictorBits = 0;
+        int [] colorTable = null;
+        int colorTableBits = 0;
+        int transformedWidth = width;
+
+        // The transforms, in the order the encoder applied them
+        final int [] order = new int [4];
+        int transforms = 0;
+        while (read(1) == 1)
+        {
+            final int type = read(2);
+            order[transforms++] = type;
+            switch (type)
+            {
+                case 0:
+                    predictorBits = read(3) + 2;
+                    predictorModes = decodeEntropyCodedImage(
+                        divRoundUp(transformedWidth, 1 << predictorBits), divRoundUp(
+                            height, 1 << predictorBits), false);
+                    break;
+                case 2:
+                    break;
+                case 3:
+                    final int colors = read(8) + 1;
+                    colorTableBits = colors <= 2 ? 3 : colors <= 4 ? 2 : colors <= 16 ? 1
+                        : 0;
+                    final int [] deltas = decodeEntropyCodedImage(colors, 1, false);
+                    colorTable = new int [256];
+                    colorTable[0] = deltas[0];
+                    for (int i = 1; i < colors; i++)
+                    {
+                        colorTable[i] = addPixels(colorTable[i - 1], deltas[i]);
+                    }
+                    transformedWidth = divRoundUp(transformedWidth, 1 << colorTableBits);
+                    break;
+                default:
+                    throw new IOException("Unsupported transform: " + type);
+            }
+        }
+
+        int [] pixels = decodeEntropyCodedImage(transformedWidth, height, true);
+
+        for (int t = transforms - 1; t >= 0; t--)
+        {
+            switch (order[t])
+            {
+                case 0:
+                    inversePredictor(pixels, width, height, predictorModes, predictorBits);
+                    break;
+                case 2:
+                    for (int i = 0; i < pixels.length; i++)
+                    {
+                        final int green = (pixels[i] >> 8) & 0xff;
+                        final int red = (((pixels[i] >> 16) & 0xff) + green) & 0xff;
+                        final int blue = ((pixels[i] & 0xff) + green) & 0xff;
+                        pixels[i] = (pixels[i] & 0xff00ff00) | red << 16 | blue;
+                    }
+                    break;
+                case 3:
+                    pixels = inverseColorIndexing(pixels, width, height, colorTable,
+                        colorTableBits);
+                    break;
+            }
+        }
+        return pixels;
+    }
+
+    private int [] decodeEntropyCodedImage(int width, int height, boolean mainImage)
+        throws IOException
+    {
+        int cacheBits = 0;
+        if (read(1) == 1)
+        {
+            cacheBits = read(4);
+            check(cacheBits >= 1 && cacheBits <= 11, "color cache bits");
+        }
+        if (mainImage)
+        {
+            check(read(1) == 0, "no meta prefix codes");
+        }
+
+        final int [] alphabetSizes = new int []
+        {
+            256 + 24 + (cacheBits > 0 ? 1 << cacheBits : 0), 256, 256, 256, 40
+        };
+        final PrefixCode [] codes = new PrefixCode [5];
+        for (int i = 0; i < codes.length; i++)
+        {
+            codes[i] = readPrefixCode(alphabetSizes[i]);
+        }
+
+        final int [] cache = new int [cacheBits > 0 ? 1 << cacheBits : 0];
+        final int [] pixels = new int [width * height];
+        int index = 0;
+        int cached = 0;
+        while (index < pixels.length)
+        {
+            final int green = codes[0].readSymbol(this);
+            if (green < 256)
+            {
+                final int red = codes[1].readSymbol(this);
+                final int blue = codes[2].readSymbol(this);
+                final int alpha = codes[3].readSymbol(this);
+                pixels[index++] = alpha << 24 | red << 16 | green << 8 | blue;
+            }
+            else if (green < 256 + 24)
+            {
+                final int length = readPrefixValue(green - 256);
+                final int distanceCode = readPrefixValue(codes[4].readSymbol(this));
+                final int distance;
+                if (distanceCode > 120)
+                {
+                    distance = distanceCode - 120;
+                }
+                else
+                {
+                    check(distanceCode <= SHORT_DISTANCES.length, "short distance code");
+                    final int [] offset = SHORT_DISTANCES[distanceCode - 1];
+                    distance = Math.max(1, offset[0] + offset[1] * width);
+                }
+                check(distance <= index && index + length <= pixels.length,
+                    "backward reference");
+                for (int i = 0; i < length; i++, index++)
+                {
+                    pixels[index] = pixels[index - distance];
+                }
+            }
+            else
+            {
+                check(green - 280 < cache.length, "color cache index");
+                pixels[index++] = cache[green - 280];
+            }
+
+            for (; cached < index && cache.length > 0; cached++)
+            {
+                cache[(pixels[cached] * 0x1e35a7bd) >>> (32 - cacheBits)] = pixels[cached];
+            }
+        }
+        return pixels;
+    }
+
+    private int readPrefixValue(int prefix) throws IOException
+    {
+        if (prefix < 4)
+        {
+            return prefix + 1;
+        }
+        final int extraBits = (prefix - 2) >> 1;
+        final int offset = (2 + (prefix & 1)) << extraBits;
+        return offset + read(extraBits) + 1;
+    }
+
+    private PrefixCode readPrefixCode(int alphabetSize) throws IOException
+    {
+        final int [] lengths = new int [alphabetSize];
+        if (read(1) == 1)
+        {
+            final int symbols = read(1) + 1;
+            final int first = read(read(1) == 1 ? 8 : 1);
+            lengths[first] = 1;
+            if (symbols == 2)
+            {
+                lengths[read(8)] = 1;
+            }
+            return new PrefixCode(lengths);
+        }
+
+        final int [] codeLengthLengths = new int [19];
+        final int codeLengths = read(4) + 4;
+        for (int i = 0; i < codeLengths; i++)
+        {
+            codeLengthLengths[CODE_LENGTH_CODE_ORDER[i]] = read(3);
+        }
+        final PrefixCode codeLengthCode = new PrefixCode(codeLengthLengths);
+
+        int maxSymbol = alphabetSize;
+        if (read(1) == 1)
+        {
+            final int lengthBits = 2 + 2 * read(3);
+            maxSymbol = 2 + read(lengthBits);
+        }
+
+        int previous = 8;
+        int symbol = 0;
+        while (symbol < alphabetSize && maxSymbol-- > 0)
+        {
+            final int length = codeLengthCode.readSymbol(this);
+            if (length < 16)
+            {
+                lengths[symbol++] = length;
+                if (length != 0)
+                {
+                    previous = length;
+                }
+            }
+            else
+            {
+                final int repeat = length == 16 ? read(2) + 3 : length == 17 ? read(3) + 3
+                    : read(7) + 11;
+                check(symbol + repeat <= alphabetSize, "code length repeat");
+                for (int i = 0; i < repeat; i++)
+                {
+                    lengths[symbol++] = length == 16 ? previous : 0;
+                }
+            }
+        }
+        return new PrefixCode(lengths);
+    }
+
+    private static void inversePredictor(int [] pixels, int width, int height,
+        int [] modes, int bits) throws IOException
+    {
+        final int blocksWide = divRoundUp(width, 1 << bits);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int index = y * width + x;
+                final int prediction;
+                if (index == 0)
+                {
+                    prediction = 0xff000000;
+                }
+                else if (y == 0)
+                {
+                    prediction = pixels[index - 1];
+                }
+                else if (x == 0)
+                {
+                    prediction = pixels[index - width];
+                }
+                else
+                {
+                    final int mode = (modes[(y >> bits) * blocksWide + (x >> bits)] >> 8) & 0xf;
+                    prediction = predict(mode, pixels[index - 1], pixels[index - width],
+                        pixels[index - width - 1], pixels[index - width + 1]);
+                }
+                pixels[index] = addPixels(pixels[index], prediction);
+            }
+        }
+    }
+
+    private static int predict(int mode, int left, int top, int topLeft, int topRight)
+        throws IOException
+    {
+        switch (mode)
+        {
+            case 0:
+                return 0xff000000;
+            case 1:
+                return left;
+            case 2:
+                return top;
+            case 3:
+                return topRight;
+            case 4:
+                return topLeft;
+            case 5:
+                return average(average(left, topRight), top);
+            case 6:
+                return average(left, topLeft);
+            case 7:
+                return average(left, top);
+            case 8:
+                return average(topLeft, top);
+            case 9:
+                return average(top, topRight);
+            case 10:
+                return average(average(left, topLeft), average(top, topRight));
+            default:
+                throw new IOException("Unsupported predictor mode: " + mode);
+        }
+    }
+
+    private static int average(int a, int b)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            result |= ((((a >>> shift) & 0xff) + ((b >>> shift) & 0xff)) / 2) << shift;
+        }
+        return result;
+    }
+
+    private static int [] inverseColorIndexing(int [] packed, int width, int height,
+        int [] colorTable, int bits)
+    {
+        final int packedWidth = divRoundUp(width, 1 << bits);
+        final int bitsPerIndex = 8 >> bits;
+        final int [] pixels = new int [width * height];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int green = (packed[y * packedWidth + (x >> bits)] >> 8) & 0xff;
+                final int index = (green >> (bitsPerIndex * (x & ((1 << bits) - 1))))
+                    & ((1 << bitsPerIndex) - 1);
+                pixels[y * width + x] = colorTable[index];
+            }
+        }
+        return pixels;
+    }
+
+    private static int addPixels(int a, int b)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            result |= ((((a >>> shift) & 0xff) + ((b >>> shift) & 0xff)) & 0xff) << shift;
+        }
+        return result;
+    }
+
+    private static int divRoundUp(int value, int divisor)
+    {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private int read(int count) throws IOException
+    {
+        while (bufferedBits < count)
+        {
+            check(position < data.length, "end of data");
+            buffer |= (long) (data[position++] & 0xff) << bufferedBits;
+            bufferedBits += 8;
+        }
+        final int value = (int) (buffer & ((1L << count) - 1));
+        buffer >>>= count;
+        bufferedBits -= count;
+        return value;
+    }
+
+    private static int readIntLittleEndian(byte [] data, int offset)
+    {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+            | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void check(boolean condition, String what) throws IOException
+    {
+        if (!condition)
+        {
+            throw new IOException("Malformed WebP data: " + what);
+        }
+    }
+
+    /**
+     * A canonical prefix code, decoded bit by bit. A code of a single symbol takes no
+     * bits.
+     */
+    private static final class PrefixCode
+    {
+        private final int [] lengthCounts = new int [16];
+        private final int [] sortedSymbols;
+        private final int singleSymbol;
+
+        PrefixCode(int [] lengths) throws IOException
+        {
+            int used = 0;
+            int last = -1;
+            for (int symbol = 0; symbol < lengths.length; symbol++)
+            {
+                if (lengths[symbol] > 0)
+                {
+                    lengthCounts[lengths[symbol]]++;
+                    used++;
+                    last = symbol;
+                }
+            }
+            singleSymbol = used == 1 ? last : -1;
+
+            sortedSymbols = new int [used];
+            int index = 0;
+            for (int length = 1; length < 16; length++)
+            {
+                for (int symbol = 0; symbol < lengths.length; symbol++)
+                {
+                    if (lengths[symbol] == length)
+                    {
+                        sortedSymbols[index++] = symbol;
+                    }
+                }
+            }
+
+            if (used > 1)
+            {
+                // The code must be a complete binary tree
+                long left = 1;
+                for (int length = 1; length < 16; length++)
+                {
+                    left = (left << 1) - lengthCounts[length];
+                    check(left >= 0, "over-subscribed prefix code");
+                }
+                check(left == 0, "incomplete prefix code");
+            }
+        }
+
+        int readSymbol(WebpDecoder decoder) throws IOException
+        {
+            if (singleSymbol >= 0)
+            {
+                return singleSymbol;
+            }
+            check(sortedSymbols.length > 0, "empty prefix code");
+
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for (int length = 1; length < 16; length++)
+            {
+                code |= decoder.read(1);
+                final int count = lengthCounts[length];
+                if (code - first < count)
+                {
+                    return sortedSymbols[index + code - first];
+                }
+                index += count;
+                first = (first + count) << 1;
+                code <<= 1;
+            }
+            throw new IOException("Malformed WebP data: prefix code");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.carrot2.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.carrot2.util.PngEncoder.Filter;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link WebpEncoder}.
+ */
+public class WebpEncoderTest extends BufferedImageTestBase
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        for (String fileName : new String []
+        {
+            "full-alpha.png", "bit-alpha.png", "no-alpha.png", "many-colors.png",
+            "exact-colors.png", "one-color.png"
+        })
+        {
+            checkRoundTrip(fileName, image(fileName));
+        }
+    }
+
+    @Test
+    public void testPaletteSizes() throws IOException
+    {
+        // Palettes of these sizes pack 8, 4, 2 and 1 pixels into one
+        for (int colors : new int []
+        {
+            1, 2, 3, 4, 5, 16, 17, 256
+        })
+        {
+            for (int width : new int []
+            {
+                1, 7, 29
+            })
+            {
+                checkRoundTrip(colors + " colors, width " + width, random(width, 13,
+                    colors, colors));
+            }
+        }
+    }
+
+    @Test
+    public void testDirectColors() throws IOException
+    {
+        checkRoundTrip("gradient", gradient(97, 61, 0x1234, false));
+        checkRoundTrip("gradient with alpha", gradient(97, 61, 0x5678, true));
+        checkRoundTrip("noise", random(33, 17, 0x9abc, 1 << 24));
+        checkRoundTrip("single row", gradient(300, 1, 0x1111, true));
+        checkRoundTrip("single column", gradient(1, 300, 0x2222, true));
+    }
+
+    @Test
+    public void testRepetitiveImage() throws IOException
+    {
+        // Long backward references, also across rows, and color cache hits
+        final BufferedImage image = new BufferedImage(300, 200,
+            BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage tile = gradient(20, 10, 0x3333, true);
+        for (int y = 0; y < image.getHeight(); y += tile.getHeight())
+        {
+            for (int x = 0; x < image.getWidth(); x += tile.getWidth())
+            {
+                BufferedImageUtils.drawImage(tile, image, x, y);
+            }
+        }
+        final byte [] webp = checkRoundTrip("tiles", image);
+        assertThat(webp.length).isLessThan(2000);
+    }
+
+    @Test
+    public void testSmallerThanPng() throws IOException
+    {
+        for (BufferedImage image : new BufferedImage []
+        {
+            image("full-alpha.png"), image("many-colors.png"),
+            gradient(97, 61, 0x5678, true)
+        })
+        {
+            final ByteArrayOutputStream png = new ByteArrayOutputStream();
+            new PngEncoder(9, Filter.ADAPTIVE, 1).encode(image, png);
+            assertThat(encode(image).length).isLessThan(png.size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooLarge() throws IOException
+    {
+        encode(new BufferedImage(WebpEncoder.MAX_DIMENSION + 1, 1,
+            BufferedImage.TYPE_INT_ARGB));
+    }
+
+    private static byte [] checkRoundTrip(String description, BufferedImage image)
+        throws IOException
+    {
+        final byte [] webp = encode(image);
+        final BufferedImage decoded = WebpDecoder.decode(webp);
+        assertThat(decoded.getWidth()).as(description).isEqualTo(image.getWidth());
+        assertThat(decoded.getHeight()).as(description).isEqualTo(image.getHeight());
+        assertThat(pixels(decoded)).as(description).isEqualTo(pixels(image));
+        return webp;
+    }
+
+    private static byte [] encode(BufferedImage image) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new WebpEncoder().encode(image, out);
+        return out.toByteArray();
+    }
+
+    private static int [] pixels(BufferedImage image)
+    {
+        return BufferedImageUtils.getArgb(image, 0, 0, image.getWidth(),
+            image.getHeight(), null, 0);
+    }
+
+    /**
+     * Returns an image of random pixels of the provided number of colors at most, any
+     * colors if the number is larger than 256.
+     */
+    private static BufferedImage random(int width, int height, long seed, int colors)
+    {
+        final Random random = new Random(seed);
+        final int [] palette = new int [Math.min(colors, 256)];
+        for (int i = 0; i < palette.length; i++)
+        {
+            palette[i] = random.nextInt();
+        }
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, colors > 256 ? random.nextInt()
+                    : palette[random.nextInt(colors)]);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage gradient(int width, int height, long seed,
+        boolean alpha)
+    {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int rgb = ((x * 2) & 0xff) << 16 | ((y + x) & 0xff) << 8
+                    | random.nextInt(4);
+                image.setRGB(x, y, (alpha ? (x * 7 + y) & 0xff : 0xff) << 24 | rgb);
+            }
+        }
+        return image;
+    }
+}